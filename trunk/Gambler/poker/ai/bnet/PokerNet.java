@@ -7,6 +7,7 @@
 
 package poker.ai.bnet;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +17,8 @@ import poker.ai.core.Hand;
 import bayes.BayesError;
 import bayes.BayesNet;
 import bayes.Distribution;
+import bayes.EMLearner;
+import bayes.NetContext;
 import bayes.Query;
 
 /**
@@ -108,6 +111,18 @@ public abstract class PokerNet
 	/** query the ai uses to determine opponent hands */
 	protected Query oppQuery;
 
+	/**
+	 * evidence and priors over a network shared with other instances, or null
+	 * if this instance owns its network
+	 */
+	protected NetContext context;
+
+	/** query for batch computations on an owned network */
+	private Query batchQuery;
+
+	/** query variables of the batch query */
+	private String[] batchVars;
+
 	/* static initialization */
 	static
 	{
@@ -152,6 +167,109 @@ public abstract class PokerNet
 	public abstract void compute(String name, Map<String, String> omap,
 			Map<String, Distribution> pmap, Map<String, Distribution> qmap);
 
+	/**
+	 * Perform a network computation against this instance's context over the
+	 * shared network. Priors persist between computations, as they do on an
+	 * owned network; evidence does not.
+	 * 
+	 * @param omap
+	 *            map of observed variables
+	 * @param pmap
+	 *            map of prior distributions
+	 * @param qmap
+	 *            map of query variables
+	 * @throws BayesError
+	 */
+	protected void computeShared(Map<String, String> omap,
+			Map<String, Distribution> pmap, Map<String, Distribution> qmap)
+			throws BayesError
+	{
+		context.clearEvidence();
+		for (String v : omap.keySet())
+			context.observe(v, omap.get(v));
+		for (String v : pmap.keySet())
+			context.setPrior(v, pmap.get(v).getData());
+		context.query(qmap);
+	}
+
+	/**
+	 * Perform a network computation for a batch of observation and prior
+	 * maps in one pass. Unlike compute(), an entry's priors apply to that
+	 * entry only, and leave the network as it was.
+	 * 
+	 * @param omaps
+	 *            map of observed variables, one per entry
+	 * @param pmaps
+	 *            map of prior (or conditional) distributions, one per entry
+	 * @param qvars
+	 *            query variables
+	 * @return map of query variable to marginal, one per entry
+	 * @throws BayesError
+	 */
+	public List<Map<String, Distribution>> computeBatch(
+			List<Map<String, String>> omaps,
+			List<Map<String, Distribution>> pmaps, String... qvars)
+			throws BayesError
+	{
+		if (context != null)
+			return context.queryBatch(qvars, omaps, pmaps);
+
+		if ((batchQuery == null) || !Arrays.equals(batchVars, qvars))
+		{
+			batchQuery = new Query("batch", net, qvars);
+			batchVars = qvars.clone();
+		}
+		return batchQuery.solveBatch(omaps, pmaps);
+	}
+
+	/**
+	 * Re-fit the network's conditional tables to recorded hands by EM. A
+	 * record holds the observed state index of every node, in the order of
+	 * the network's getVars(), or -1 where the node was not seen (see
+	 * EMLearner.encode()).
+	 * 
+	 * @param hands
+	 *            recorded hands; iterated once per pass
+	 * @param maxIter
+	 *            largest number of passes
+	 * @param tol
+	 *            relative improvement of the log-likelihood to stop at
+	 * @return the learner, holding the corpus statistics of the last pass
+	 * @throws BayesError
+	 */
+	public EMLearner refit(Iterable<int[]> hands, int maxIter, double tol)
+			throws BayesError
+	{
+		if (context != null)
+			throw new BayesError("cannot refit a shared network");
+
+		EMLearner em = new EMLearner(net);
+		em.learn(hands, maxIter, tol);
+		invalidateQueries();
+		return em;
+	}
+
+
+	/**
+	 * Drop the solutions the queries on the owned network have cached, as
+	 * its densities have changed. Subclasses which keep queries of their
+	 * own override this to invalidate them as well.
+	 */
+	protected void invalidateQueries()
+	{
+		for (Query q : new Query[] { playerQuery, oppQuery, batchQuery })
+			if (q != null)
+				q.invalidate();
+	}
+
+	/**
+	 * @return whether this instance runs against a shared network
+	 */
+	public boolean isShared()
+	{
+		return context != null;
+	}
+
 	/**
 	 * Initialize total, with-suit hole combinations.
 	 */
@@ -258,7 +376,9 @@ public abstract class PokerNet
 	}
 
 	/**
-	 * @return bayesian network
+	 * @return bayesian network; for a shared instance, the network the shared
+	 *         one was compiled from, without this instance's evidence and
+	 *         priors
 	 */
 	public BayesNet getNetwork()
 	{
@@ -7,6 +7,7 @@ import java.util.HashMap;
 import bayes.BayesError;
 import bayes.BayesNet;
 import bayes.BayesNode;
+import bayes.CompiledNet;
 import bayes.Distribution;
 import bayes.Query;
 import poker.ai.bnet.PokerNet;
@@ -28,6 +29,12 @@ import poker.ai.bnet.PokerNet;
 public class SPostflopNet extends PokerNet
 {
 
+	/** network shared by instances made with shared() */
+	private static CompiledNet	compiled;
+
+	/** instance the shared network was compiled from */
+	private static SPostflopNet	source;
+
 	private boolean	fwdPrint	= true;
 
 	private boolean	debug		= false;
@@ -42,6 +49,43 @@ public class SPostflopNet extends PokerNet
 	public double[]		lastMoveDist;
 
 
+	/**
+	 * @return the postflop network, compiled once and shared
+	 * @throws BayesError
+	 */
+	public static synchronized CompiledNet compiledNetwork() throws BayesError
+	{
+		if (compiled == null)
+		{
+			SPostflopNet n = new SPostflopNet();
+			n.buildNetwork();
+			compiled = new CompiledNet(n.net);
+			source = n;
+		}
+		return compiled;
+	}
+
+
+	/**
+	 * Make an instance with its own evidence and priors over the shared
+	 * network. It needs no buildNetwork() or buildQueries(). Its
+	 * getNetwork() and getHoleNode() are those the shared network was
+	 * compiled from, which must not be changed; their evidence and priors
+	 * are not this instance's.
+	 * 
+	 * @return new instance
+	 * @throws BayesError
+	 */
+	public static SPostflopNet shared() throws BayesError
+	{
+		SPostflopNet n = new SPostflopNet();
+		n.context = compiledNetwork().newContext();
+		n.net = source.net;
+		n.hole = source.hole;
+		return n;
+	}
+
+
 	/**
 	 * @see poker.ai.bnet.PokerNet#buildNetwork()
 	 */
@@ -149,13 +193,21 @@ public class SPostflopNet extends PokerNet
 
 		try
 		{
+			if (context != null)
+			{
+				computeShared(omap, pmap, qmap);
+				if (name.equals("fwd"))
+					lastMoveDist = qmap.get("strat").values.clone();
+				return;
+			}
+
 			net.clearEvidence();
 			for (String v : omap.keySet())
 				net.getNode(v).observe(omap.get(v));
 			for (String v : pmap.keySet())
 			{
 				net.getNode(v).setPrior(pmap.get(v).getData());
-				query.invalidate();
+				query.invalidate(v);
 			}
 
 			if (debug)
@@ -185,11 +237,23 @@ public class SPostflopNet extends PokerNet
 		}
 		catch (BayesError e)
 		{
-			e.printStackTrace();
+			throw new IllegalStateException("computation failed: " + name, e);
 		}
 	}
 
 
+	/**
+	 * @see poker.ai.bnet.PokerNet#invalidateQueries()
+	 */
+	protected void invalidateQueries()
+	{
+		super.invalidateQueries();
+		for (Query q : new Query[] { fwdQuery, holeQuery, biasQuery })
+			if (q != null)
+				q.invalidate();
+	}
+
+
 	/**
 	 * Initialize the density function for the hole variable.
 	 */
@@ -219,12 +283,11 @@ public class SPostflopNet extends PokerNet
 
 
 	/**
-	 * Initialize the density function for the mode variable.
+	 * Initialize the density function for the mode variable, a deterministic
+	 * function of its parents.
 	 */
-	private void initModeTable()
+	private void initModeTable() throws BayesError
 	{
-		double[] dist = mode.getFunction().getData();
-
 		// style, bias, strength, profit
 		// 5 * 2 * 2 * 3
 		int[] m = new int[] {0, 1, 3, 0, 1, 4, 0, 1, 3, 0, 1, 1, 0, 1, 1, 0, 2,
@@ -232,32 +295,20 @@ public class SPostflopNet extends PokerNet
 				1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
 				2};
 
-		int i = 0;
-		int b = 60;
-		
-		for (int s = 0; s < 5; s++)
-			for (int j = 0; j < b; j++)
-				dist[i++] = (m[j] == s) ? 1.0 : 0.0;
+		mode.getFunction().setFunctional(m);
 	}
 
 
 	/**
-	 * Initialize the density function for the pstrat variable.
+	 * Initialize the density function for the pstrat variable, a
+	 * deterministic function of its parents.
 	 */
-	private void initPStratTable()
+	private void initPStratTable() throws BayesError
 	{
-		double[] dist = pstrat.getFunction().getData();
-		
 		// mode, pot_size
 		// 5 * 2
 		int[] input = new int[] {0, 0, 1, 1, 3, 3, 1, 3, 4, 2};
-		
-		int i = 0;
-		int b = 10;
-		
-		for (int s = 0; s < 5; s++)
-			for (int j = 0; j < b; j++)
-				dist[i++] = (input[j] == s) ? 1.0 : 0.0;
+		pstrat.getFunction().setFunctional(input);
 
 		// f,* = f (0)
 		// c,* = c* (1)
@@ -270,17 +321,13 @@ public class SPostflopNet extends PokerNet
 
 
 	/**
-	 * Initialize the density function for the strat variable.
+	 * Initialize the density function for the strat variable, a deterministic
+	 * function of its parents.
 	 */
-	private void initStratTable()
+	private void initStratTable() throws BayesError
 	{
-		double[] dist = strat.getFunction().getData();
 		int[] input = new int[] {1, 1, 2, 2, 2, 0, 3, 3, 4, 4, 0, 3, 3, 4, 3};
-		int b = dist.length / 5;
-		for (int i = 0; i < dist.length; i++)
-			dist[i] = 0.0;
-		for (int i = 0; i < input.length; i++)
-			dist[b * input[i] + i] = 1.0;
+		strat.getFunction().setFunctional(input);
 		// n,f = ch
 		// n,c* = ch
 		// n,b* = b
@@ -296,20 +343,56 @@ public class SPostflopNet extends PokerNet
 	}
 
 
+	/**
+	 * @return hole node; for a shared instance, that of the network the
+	 *         shared one was compiled from
+	 */
 	public BayesNode getHoleNode()
 	{
 		return hole;
 	}
 
 
+	/**
+	 * @return copy of the hole prior
+	 * @throws BayesError
+	 */
+	public double[] getHoleTable() throws BayesError
+	{
+		if (context != null)
+			return context.getConditional("hole");
+		return hole.getFunction().getData().clone();
+	}
+
+
+	/**
+	 * @param dist
+	 *            new hole prior
+	 * @throws BayesError
+	 */
+	public void setHoleTable(double[] dist) throws BayesError
+	{
+		if (context != null)
+			context.setPrior("hole", dist);
+		else
+			hole.getFunction().setData(dist);
+	}
+
+
 	public void initHandTable(double[] dist) throws BayesError
 	{
-		hand.getFunction().setData(dist);
+		if (context != null)
+			context.setConditional("hand", dist);
+		else
+			hand.getFunction().setData(dist);
 	}
 
 
 	public void initProfitTable(double[] dist) throws BayesError
 	{
-		profit.getFunction().setData(dist);
+		if (context != null)
+			context.setConditional("profit", dist);
+		else
+			profit.getFunction().setData(dist);
 	}
 }
@@ -9,6 +9,7 @@ import poker.util.SklanskyGrouper;
 import bayes.BayesError;
 import bayes.BayesNet;
 import bayes.BayesNode;
+import bayes.CompiledNet;
 import bayes.Distribution;
 import bayes.Query;
 
@@ -21,6 +22,12 @@ import bayes.Query;
 public class SPreflopNet extends PokerNet
 {
 
+	/** network shared by instances made with shared() */
+	private static CompiledNet	compiled;
+
+	/** network the shared one was compiled from */
+	private static BayesNet		source;
+
 	/** whether to print debugging output */
 	private boolean	debug	= false;
 
@@ -40,6 +47,41 @@ public class SPreflopNet extends PokerNet
 	private String[][]	sTable;
 
 
+	/**
+	 * @return the preflop network, compiled once and shared
+	 * @throws BayesError
+	 */
+	public static synchronized CompiledNet compiledNetwork() throws BayesError
+	{
+		if (compiled == null)
+		{
+			SPreflopNet n = new SPreflopNet();
+			n.buildNetwork();
+			compiled = new CompiledNet(n.net);
+			source = n.net;
+		}
+		return compiled;
+	}
+
+
+	/**
+	 * Make an instance with its own evidence and priors over the shared
+	 * network. It needs no buildNetwork() or buildQueries(). Its
+	 * getNetwork() is the network the shared one was compiled from, which
+	 * must not be changed; its evidence and priors are not this instance's.
+	 * 
+	 * @return new instance
+	 * @throws BayesError
+	 */
+	public static SPreflopNet shared() throws BayesError
+	{
+		SPreflopNet n = new SPreflopNet();
+		n.context = compiledNetwork().newContext();
+		n.net = source;
+		return n;
+	}
+
+
 	/**
 	 * @see poker.ai.bnet.PokerNet#buildNetwork()
 	 */
@@ -129,7 +171,10 @@ public class SPreflopNet extends PokerNet
 			double[] data = (double[]) value;
 			try
 			{
-				bias.setPrior(data);
+				if (context != null)
+					context.setPrior("bias", data);
+				else
+					bias.setPrior(data);
 			}
 			catch (BayesError e)
 			{
@@ -165,13 +210,19 @@ public class SPreflopNet extends PokerNet
 
 		try
 		{
+			if (context != null)
+			{
+				computeShared(omap, pmap, qmap);
+				return;
+			}
+
 			net.clearEvidence();
 			for (String v : omap.keySet())
 				net.getNode(v).observe(omap.get(v));
 			for (String v : pmap.keySet())
 			{
 				net.getNode(v).setPrior(pmap.get(v).getData());
-				query.invalidate();
+				query.invalidate(v);
 			}
 
 			if (debug)
@@ -199,11 +250,23 @@ public class SPreflopNet extends PokerNet
 		}
 		catch (BayesError e)
 		{
-			e.printStackTrace();
+			throw new IllegalStateException("computation failed: " + name, e);
 		}
 	}
 
 
+	/**
+	 * @see poker.ai.bnet.PokerNet#invalidateQueries()
+	 */
+	protected void invalidateQueries()
+	{
+		super.invalidateQueries();
+		for (Query q : new Query[] { fwdQuery, holeQuery, biasQuery, grpQuery })
+			if (q != null)
+				q.invalidate();
+	}
+
+
 	/**
 	 * Verify sanity of conditional distributions.
 	 */
@@ -226,17 +289,21 @@ public class SPreflopNet extends PokerNet
 	{
 		try
 		{
+			if (context != null)
+			{
+				context.setConditional("bias", dist.getData());
+				return;
+			}
 			bias.setConditional(dist.getData());
+			fwdQuery.invalidate("bias");
+			biasQuery.invalidate("bias");
+			holeQuery.invalidate("bias");
+			grpQuery.invalidate("bias");
 		}
 		catch (BayesError e)
 		{
 			throw new IllegalArgumentException("invalid bias distribution", e);
 		}
-
-		fwdQuery.invalidate();
-		biasQuery.invalidate();
-		holeQuery.invalidate();
-		grpQuery.invalidate();
 	}
 
 
@@ -244,17 +311,21 @@ public class SPreflopNet extends PokerNet
 	{
 		try
 		{
+			if (context != null)
+			{
+				context.setConditional("style", dist.getData());
+				return;
+			}
 			style.setConditional(dist.getData());
+			fwdQuery.invalidate("style");
+			biasQuery.invalidate("style");
+			holeQuery.invalidate("style");
+			grpQuery.invalidate("style");
 		}
 		catch (BayesError e)
 		{
 			throw new IllegalArgumentException("invalid style distribution", e);
 		}
-
-		fwdQuery.invalidate();
-		biasQuery.invalidate();
-		holeQuery.invalidate();
-		grpQuery.invalidate();
 	}
 
 
@@ -0,0 +1,224 @@
+/*
+ * CardSet.java
+ * 
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package poker.ai.core;
+
+import poker.common.PokerError;
+
+
+/**
+ * Primitive cards and sets of cards. A card is an int from 0 to 51, the same
+ * index as Card.getIndex(): rank (deuce is 0, ace is 12) times four, plus
+ * suit (c, d, h, s). A set of cards is a long with the card's bit set, so
+ * union, intersection and size are single instructions. To walk a set
+ * without allocating:
+ *
+ * <pre>
+ * for (long m = set; m != 0; m &amp;= m - 1)
+ * {
+ * 	int card = Long.numberOfTrailingZeros(m);
+ * 	...
+ * }
+ * </pre>
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public final class CardSet
+{
+
+	/** number of cards in the deck */
+	public static final int		CARDS	= 52;
+
+	/** set of every card */
+	public static final long	DECK	= (1L << CARDS) - 1;
+
+	/** printable rank characters, by rank */
+	private static final String	RANKS	= "23456789TJQKA";
+
+	/** printable suit characters, by suit */
+	private static final String	SUITS	= "cdhs";
+
+
+	/**
+	 * Not instantiable.
+	 */
+	private CardSet()
+	{
+	}
+
+
+	/**
+	 * @param rank
+	 *            rank, deuce is 0
+	 * @param suit
+	 *            suit, clubs is 0
+	 * @return card
+	 */
+	public static int card(int rank, int suit)
+	{
+		return (rank << 2) | suit;
+	}
+
+
+	/**
+	 * @param card
+	 *            card
+	 * @return its rank, deuce is 0
+	 */
+	public static int rank(int card)
+	{
+		return card >>> 2;
+	}
+
+
+	/**
+	 * @param card
+	 *            card
+	 * @return its suit, clubs is 0
+	 */
+	public static int suit(int card)
+	{
+		return card & 3;
+	}
+
+
+	/**
+	 * @param card
+	 *            card
+	 * @return set holding only that card
+	 */
+	public static long bit(int card)
+	{
+		return 1L << card;
+	}
+
+
+	/**
+	 * @param set
+	 *            set of cards
+	 * @param card
+	 *            card
+	 * @return whether the card is in the set
+	 */
+	public static boolean contains(long set, int card)
+	{
+		return (set & (1L << card)) != 0;
+	}
+
+
+	/**
+	 * @param set
+	 *            set of cards
+	 * @return number of cards in the set
+	 */
+	public static int size(long set)
+	{
+		return Long.bitCount(set);
+	}
+
+
+	/**
+	 * @param cards
+	 *            cards
+	 * @return set of the cards
+	 */
+	public static long of(int... cards)
+	{
+		long set = 0;
+		for (int c : cards)
+			set |= 1L << c;
+		return set;
+	}
+
+
+	/**
+	 * @param hand
+	 *            hand of fully defined cards
+	 * @return set of its cards
+	 * @throws PokerError
+	 */
+	public static long of(Hand hand) throws PokerError
+	{
+		long set = 0;
+		for (Card c : hand.getCards())
+			set |= 1L << index(c);
+		return set;
+	}
+
+
+	/**
+	 * @param card
+	 *            fully defined card
+	 * @return the card as an int
+	 * @throws PokerError
+	 */
+	public static int index(Card card) throws PokerError
+	{
+		if (!card.fullyDefined())
+			throw new PokerError("masked or bound card has no index: " + card);
+		return card.getIndex();
+	}
+
+
+	/**
+	 * @param cards
+	 *            card strings, as taken by Card.fromString()
+	 * @return set of the cards
+	 * @throws PokerError
+	 */
+	public static long parse(String... cards) throws PokerError
+	{
+		long set = 0;
+		for (String s : cards)
+			set |= 1L << Card.fromString(s, false).getIndex();
+		return set;
+	}
+
+
+	/**
+	 * @param set
+	 *            set of cards
+	 * @return hand of the cards, in index order
+	 */
+	public static Hand toHand(long set)
+	{
+		Card[] cards = new Card[size(set)];
+		int i = 0;
+		for (long m = set; m != 0; m &= m - 1)
+			cards[i++] = Card.fromIndex(Long.numberOfTrailingZeros(m));
+		return new Hand(cards);
+	}
+
+
+	/**
+	 * @param card
+	 *            card
+	 * @return two-character name of the card, as "Tc"
+	 */
+	public static String toString(int card)
+	{
+		return "" + RANKS.charAt(rank(card)) + SUITS.charAt(suit(card));
+	}
+
+
+	/**
+	 * @param set
+	 *            set of cards
+	 * @return names of the cards in index order, separated by spaces
+	 */
+	public static String toString(long set)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (long m = set; m != 0; m &= m - 1)
+		{
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(toString(Long.numberOfTrailingZeros(m)));
+		}
+		return sb.toString();
+	}
+}
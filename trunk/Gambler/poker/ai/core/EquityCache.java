@@ -0,0 +1,380 @@
+/*
+ * EquityCache.java
+ * 
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package poker.ai.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import poker.common.PokerError;
+
+
+/**
+ * Persistent cache of hand strength, positive and negative potential, keyed
+ * by the canonical form of a deal (see SuitIsomorphism). The cache is an
+ * open-addressing hash table in a memory-mapped file, so it survives across
+ * sessions and is shared (through the page cache) by every process which
+ * maps it.
+ * <p>
+ * Processes coordinate through a lock on the header's count of used slots,
+ * which a store holds exclusively: it re-reads the count and the slot it
+ * claims under the lock, so deals stored by other processes are never
+ * overwritten, and it writes a slot's values before its key. Lookups take
+ * no lock and simply probe the mapped slots, so a key is only seen once its
+ * values are in place. File locks are held per process, so a process should
+ * open a file only once. If the lock cannot be taken, a deal is not stored.
+ * <p>
+ * The file is a header (magic, version, log2 of the number of slots, number
+ * of slots used) followed by the slots; a slot is a key (0 when empty) and
+ * the three values as floats. Slots are filled until three quarters are
+ * used, after which new deals are no longer stored. All flops can be
+ * computed ahead of time with fillFlops() (or main()); turns and rivers are
+ * filled as they are met.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class EquityCache
+{
+
+	/** file magic: "EQC1" */
+	private static final int	MAGIC		= 0x45514331;
+
+	/** file format version */
+	private static final int	VERSION		= 1;
+
+	/** bytes of the header */
+	private static final int	HEADER		= 16;
+
+	/** bytes of a slot: key and three floats, padded */
+	private static final int	SLOT		= 24;
+
+	/** largest log2 of the number of slots (keeps the map under 2GB) */
+	public static final int		MAX_BITS	= 26;
+
+	/** log2 of the number of slots which holds every canonical flop */
+	public static final int		FLOP_BITS	= 21;
+
+	/** offset of the count of used slots, which is what is locked */
+	private static final int	COUNT		= 12;
+
+	/** the open file */
+	private FileChannel			channel;
+
+	/** the file, mapped */
+	private MappedByteBuffer	map;
+
+	/** log2 of the number of slots */
+	private int					bits;
+
+	/** number of slots which may be used */
+	private int					limit;
+
+
+	/**
+	 * Open a cache file, creating it if it does not exist.
+	 *
+	 * @param file
+	 *            cache file
+	 * @param bits
+	 *            log2 of the number of slots of a new file; ignored if the
+	 *            file exists
+	 * @throws IOException
+	 * @throws PokerError
+	 */
+	public EquityCache(File file, int bits) throws IOException, PokerError
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		boolean opened = false;
+		try
+		{
+			/* another process may be creating the file */
+			FileLock lock = channel.lock();
+			try
+			{
+				boolean exists = (raf.length() > 0);
+				if (exists)
+				{
+					if (raf.length() < HEADER)
+						throw new PokerError("not an equity cache: " + file);
+					raf.seek(0);
+					int magic = raf.readInt();
+					int version = raf.readInt();
+					bits = raf.readInt();
+					if ((magic != MAGIC) || (version != VERSION) || (bits < 1)
+							|| (bits > MAX_BITS)
+							|| (raf.length() != HEADER + ((long) SLOT << bits)))
+						throw new PokerError("not an equity cache: " + file);
+				}
+				else if ((bits < 1) || (bits > MAX_BITS))
+					throw new PokerError("cache size must be 2^1 to 2^"
+							+ MAX_BITS + " slots, not 2^" + bits);
+
+				long size = HEADER + ((long) SLOT << bits);
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				if (!exists)
+				{
+					map.putInt(0, MAGIC);
+					map.putInt(4, VERSION);
+					map.putInt(8, bits);
+					map.putInt(COUNT, 0);
+				}
+			}
+			finally
+			{
+				lock.release();
+			}
+			opened = true;
+		}
+		finally
+		{
+			if (!opened)
+				raf.close();
+		}
+
+		this.bits = bits;
+		limit = (3 << bits) / 4;
+	}
+
+
+	/**
+	 * Look up a deal.
+	 *
+	 * @param key
+	 *            canonical key of the deal
+	 * @param out
+	 *            receives hand strength, positive and negative potential
+	 * @return whether the deal was found
+	 */
+	public synchronized boolean get(long key, double[] out)
+	{
+		int mask = (1 << bits) - 1;
+		for (int s = hash(key); ; s = (s + 1) & mask)
+		{
+			int at = HEADER + (s * SLOT);
+			long k = map.getLong(at);
+			if (k == 0)
+				return false;
+			if (k == key)
+			{
+				out[0] = map.getFloat(at + 8);
+				out[1] = map.getFloat(at + 12);
+				out[2] = map.getFloat(at + 16);
+				return true;
+			}
+		}
+	}
+
+
+	/**
+	 * Store a deal, unless the cache is full.
+	 *
+	 * @param key
+	 *            canonical key of the deal
+	 * @param hs
+	 *            hand strength
+	 * @param ppot
+	 *            positive potential
+	 * @param npot
+	 *            negative potential
+	 * @return whether the deal is stored
+	 */
+	public synchronized boolean put(long key, double hs, double ppot,
+			double npot)
+	{
+		FileLock lock = lock(false);
+		if (lock == null)
+			return false;
+		try
+		{
+			int mask = (1 << bits) - 1;
+			for (int s = hash(key); ; s = (s + 1) & mask)
+			{
+				int at = HEADER + (s * SLOT);
+				long k = map.getLong(at);
+				if ((k != 0) && (k != key))
+					continue;
+				if (k == 0)
+				{
+					int used = map.getInt(COUNT);
+					if (used >= limit)
+						return false;
+					map.putInt(COUNT, used + 1);
+				}
+				map.putFloat(at + 8, (float) hs);
+				map.putFloat(at + 12, (float) ppot);
+				map.putFloat(at + 16, (float) npot);
+				map.putLong(at, key);
+				return true;
+			}
+		}
+		finally
+		{
+			unlock(lock);
+		}
+	}
+
+
+	/**
+	 * @return number of deals stored, by every process
+	 */
+	public synchronized int size()
+	{
+		FileLock lock = lock(true);
+		try
+		{
+			return map.getInt(COUNT);
+		}
+		finally
+		{
+			unlock(lock);
+		}
+	}
+
+
+	/**
+	 * Write the cache back to its file.
+	 */
+	public synchronized void flush()
+	{
+		map.force();
+	}
+
+
+	/**
+	 * Write the cache back to its file and close it.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		map.force();
+		channel.close();
+	}
+
+
+	/**
+	 * Compute and store every canonical flop not yet stored.
+	 *
+	 * @param engine
+	 *            engine to compute with; its cache, if any, is not used
+	 * @return number of flops computed
+	 * @throws PokerError
+	 */
+	public int fillFlops(HandStrength engine) throws PokerError
+	{
+		EquityCache saved = engine.getCache();
+		engine.setCache(null);
+		double[] v = new double[3];
+		int n = 0;
+		try
+		{
+			for (int c1 = 0; c1 < CardSet.CARDS; c1++)
+				for (int c2 = c1 + 1; c2 < CardSet.CARDS; c2++)
+					for (int a = 0; a < CardSet.CARDS; a++)
+						for (int b = a + 1; b < CardSet.CARDS; b++)
+							for (int c = b + 1; c < CardSet.CARDS; c++)
+							{
+								long board = CardSet.of(a, b, c);
+								if (CardSet.contains(board, c1)
+										|| CardSet.contains(board, c2))
+									continue;
+								long key = SuitIsomorphism.key(c1, c2, board);
+								if (!SuitIsomorphism.isCanonical(key)
+										|| get(key, v))
+									continue;
+								engine.compute(c1, c2, board);
+								put(key, engine.getStrength(), engine
+										.getPositive(), engine.getNegative());
+								n++;
+							}
+		}
+		finally
+		{
+			engine.setCache(saved);
+		}
+		flush();
+		return n;
+	}
+
+
+	/**
+	 * @return lock on the count of used slots, or null if it cannot be taken
+	 */
+	private FileLock lock(boolean shared)
+	{
+		try
+		{
+			return channel.lock(COUNT, 4, shared);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+
+	/**
+	 * Release a lock taken by lock(), if any.
+	 */
+	private void unlock(FileLock lock)
+	{
+		if (lock == null)
+			return;
+		try
+		{
+			lock.release();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+
+	/**
+	 * @return first slot to probe for a key
+	 */
+	private int hash(long key)
+	{
+		return (int) ((key * 0x9e3779b97f4a7c15L) >>> (64 - bits));
+	}
+
+
+	/**
+	 * Precompute the flops of a cache file.
+	 *
+	 * @param args
+	 *            cache file, and optionally log2 of its number of slots
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: EquityCache <file> [log2 slots]");
+			System.exit(1);
+		}
+
+		try
+		{
+			int bits = (args.length > 1) ? Integer.parseInt(args[1])
+					: FLOP_BITS;
+			EquityCache cache = new EquityCache(new File(args[0]), bits);
+			int n = cache.fillFlops(new HandStrength());
+			System.out.printf("%d flops computed, %d deals stored\n", n, cache
+					.size());
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * HandEval.java
+ * 
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package poker.ai.core;
+
+
+/**
+ * Table-driven evaluator of the best five-card poker hand in a set of up to
+ * seven cards (see CardSet). The set is folded into four 13-bit rank masks,
+ * one per suit; with at most seven cards, a suit holding five is the best
+ * hand short of a straight flush, and otherwise the pairs, trips and quads
+ * fall out of ANDs and ORs of the suit masks. Straights and the top ranks of
+ * a mask are looked up in tables indexed by the 13-bit mask, so evaluation
+ * neither allocates nor sorts.
+ * <p>
+ * The value is the hand class times 2^20, plus up to five ranks (deuce is 0)
+ * in four bits each, most significant first: the ranks of the made hand,
+ * then kickers. A better hand has a greater value; equal hands have equal
+ * values.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public final class HandEval
+{
+
+	/** hand class: high card */
+	public static final int			NOPAIR		= 0;
+
+	/** hand class: one pair */
+	public static final int			PAIR		= 1;
+
+	/** hand class: two pair */
+	public static final int			TWOPAIR		= 2;
+
+	/** hand class: three of a kind */
+	public static final int			TRIPS		= 3;
+
+	/** hand class: straight */
+	public static final int			STRAIGHT	= 4;
+
+	/** hand class: flush */
+	public static final int			FLUSH		= 5;
+
+	/** hand class: full house */
+	public static final int			FULLHOUSE	= 6;
+
+	/** hand class: four of a kind */
+	public static final int			QUADS		= 7;
+
+	/** hand class: straight flush */
+	public static final int			SFLUSH		= 8;
+
+	/** bit position of the hand class in a value */
+	private static final int		CLASS		= 20;
+
+	/** mask of all thirteen ranks */
+	private static final int		RANKS		= 0x1fff;
+
+	/** top rank of the best straight in a rank mask, plus one; 0 if none */
+	private static final byte[]		straight	= new byte[RANKS + 1];
+
+	/** top five ranks of a rank mask, four bits each, highest first */
+	private static final int[]		top5		= new int[RANKS + 1];
+
+	/**
+	 * four ranks of cards (16 bits of a card set) folded into four 16-bit
+	 * rank masks, one per suit
+	 */
+	private static final long[]		fold		= new long[1 << 16];
+
+	/* build the tables */
+	static
+	{
+		for (int m = 0; m <= RANKS; m++)
+		{
+			for (int r = 12; r >= 3; r--)
+			{
+				int run = (r == 3) ? 0x100f : (0x1f << (r - 4));
+				if ((m & run) == run)
+				{
+					straight[m] = (byte) (r + 1);
+					break;
+				}
+			}
+
+			int t = 0, n = 0;
+			for (int r = 12; (r >= 0) && (n < 5); r--)
+				if ((m & (1 << r)) != 0)
+				{
+					t |= r << (4 * (4 - n));
+					n++;
+				}
+			top5[m] = t;
+		}
+
+		for (int m = 0; m < fold.length; m++)
+			for (int c = 0; c < 16; c++)
+				if ((m & (1 << c)) != 0)
+					fold[m] |= 1L << (((c & 3) << 4) | (c >>> 2));
+	}
+
+
+	/**
+	 * Not instantiable.
+	 */
+	private HandEval()
+	{
+	}
+
+
+	/**
+	 * @param cards
+	 *            set of five to seven cards
+	 * @return value of the best five-card hand in the set
+	 */
+	public static int eval(long cards)
+	{
+		/* fold into four 16-bit rank masks, one per suit */
+		long sm = fold[(int) cards & 0xffff]
+				| (fold[(int) (cards >>> 16) & 0xffff] << 4)
+				| (fold[(int) (cards >>> 32) & 0xffff] << 8)
+				| (fold[(int) (cards >>> 48)] << 12);
+		int s0 = (int) sm & RANKS;
+		int s1 = (int) (sm >>> 16) & RANKS;
+		int s2 = (int) (sm >>> 32) & RANKS;
+		int s3 = (int) (sm >>> 48) & RANKS;
+
+		int f = flushMask(s0, s1, s2, s3);
+		if (f != 0)
+		{
+			int sf = straight[f];
+			if (sf != 0)
+				return (SFLUSH << CLASS) | ((sf - 1) << 16);
+			return (FLUSH << CLASS) | top5[f];
+		}
+
+		int any = s0 | s1 | s2 | s3;
+		int two = (s0 & s1) | (s2 & s3) | ((s0 | s1) & (s2 | s3));
+		int three = ((s0 & s1) & (s2 | s3)) | ((s2 & s3) & (s0 | s1));
+		int four = s0 & s1 & s2 & s3;
+
+		if (four != 0)
+		{
+			int q = Integer.highestOneBit(four);
+			return (QUADS << CLASS) | (rankOf(q) << 16)
+					| (top(any & ~q, 1) << 12);
+		}
+
+		if (three != 0)
+		{
+			int t = Integer.highestOneBit(three);
+			int p = two & ~t;
+			if (p != 0)
+				return (FULLHOUSE << CLASS) | (rankOf(t) << 16)
+						| (rankOf(Integer.highestOneBit(p)) << 12);
+		}
+
+		int st = straight[any];
+		if (st != 0)
+			return (STRAIGHT << CLASS) | ((st - 1) << 16);
+
+		if (three != 0)
+		{
+			int t = Integer.highestOneBit(three);
+			return (TRIPS << CLASS) | (rankOf(t) << 16)
+					| (top(any & ~t, 2) << 8);
+		}
+
+		if (two != 0)
+		{
+			int p1 = Integer.highestOneBit(two);
+			int rest = two & ~p1;
+			if (rest != 0)
+			{
+				int p2 = Integer.highestOneBit(rest);
+				return (TWOPAIR << CLASS) | (rankOf(p1) << 16)
+						| (rankOf(p2) << 12)
+						| (top(any & ~(p1 | p2), 1) << 8);
+			}
+			return (PAIR << CLASS) | (rankOf(p1) << 16)
+					| (top(any & ~p1, 3) << 4);
+		}
+
+		return (NOPAIR << CLASS) | top5[any];
+	}
+
+
+	/**
+	 * @param c1
+	 *            first hole card
+	 * @param c2
+	 *            second hole card
+	 * @param board
+	 *            set of board cards
+	 * @return value of the best hand of the hole cards and the board
+	 */
+	public static int eval(int c1, int c2, long board)
+	{
+		return eval(board | (1L << c1) | (1L << c2));
+	}
+
+
+	/**
+	 * @param value
+	 *            hand value
+	 * @return its hand class, NOPAIR to SFLUSH
+	 */
+	public static int handClass(int value)
+	{
+		return value >>> CLASS;
+	}
+
+
+	/**
+	 * @return rank mask of the suit holding five or more cards, or 0
+	 */
+	private static int flushMask(int s0, int s1, int s2, int s3)
+	{
+		if (Integer.bitCount(s0) >= 5)
+			return s0;
+		if (Integer.bitCount(s1) >= 5)
+			return s1;
+		if (Integer.bitCount(s2) >= 5)
+			return s2;
+		if (Integer.bitCount(s3) >= 5)
+			return s3;
+		return 0;
+	}
+
+
+	/**
+	 * @return top n ranks of the mask, four bits each, highest first
+	 */
+	private static int top(int mask, int n)
+	{
+		return top5[mask] >>> (4 * (5 - n));
+	}
+
+
+	/**
+	 * @return rank of a single-bit mask
+	 */
+	private static int rankOf(int bit)
+	{
+		return Integer.numberOfTrailingZeros(bit);
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * HandStrength.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package poker.ai.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import poker.common.PokerError;
+
+
+/**
+ * Enumerates a hole pair against every opponent hole pair and every next
+ * board card, giving in one pass:
+ * <ul>
+ * <li>hand strength (HS): the chance of being ahead of one random hand now,
+ * ties counting half;</li>
+ * <li>positive potential (PPot): the chance that a hand behind (or tied) now
+ * is ahead after the next card;</li>
+ * <li>negative potential (NPot): the chance that a hand ahead (or tied) now
+ * is behind after the next card;</li>
+ * <li>effective hand strength: HS (1 - NPot) + (1 - HS) PPot.</li>
+ * </ul>
+ * Cards are ints and the board a set, as in CardSet, and hands are scored by
+ * HandEval. The opponent pairs are split across a fork/join pool; each leaf
+ * keeps its own counts, so leaves share nothing but the tables built before
+ * they start. On the river there is no next card and both potentials are
+ * zero.
+ * <p>
+ * With an EquityCache, each deal is looked up by its canonical form first,
+ * and stored after it is computed; cached values are floats.
+ * <p>
+ * An instance reuses its tables between calls, so it must not be used by
+ * more than one thread at a time.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class HandStrength
+{
+
+	/** opponent pairs per fork/join leaf */
+	private static final int	GRAIN	= 128;
+
+	/** ahead, behind and tied */
+	private static final int	AHEAD	= 0, BEHIND = 1, TIED = 2;
+
+	/** offset of the pair totals in a leaf's counts */
+	private static final int	PAIRS	= 9;
+
+	/** offset of the pair-and-card totals in a leaf's counts */
+	private static final int	CARDS	= 12;
+
+	/** pool to run on */
+	private ForkJoinPool		pool;
+
+	/** opponent pairs: first and second card */
+	private int[]				opp1, opp2;
+
+	/** number of opponent pairs */
+	private int					npairs;
+
+	/** cards which may come next */
+	private int[]				next;
+
+	/** number of cards which may come next */
+	private int					nnext;
+
+	/** value of our hand with each next card */
+	private int[]				later;
+
+	/** the board */
+	private long				board;
+
+	/** value of our hand now */
+	private int					now;
+
+	/**
+	 * counts of each leaf: our standing now by our standing after the next
+	 * card, then pairs by standing now, then pairs and next cards by standing
+	 * now
+	 */
+	private long[][]			part;
+
+	/** counts merged over the leaves */
+	private long[]				total;
+
+	/** results of the last call */
+	private double				hs, ppot, npot;
+
+	/** cache of results, or null */
+	private EquityCache			cache;
+
+	/** values read from the cache */
+	private double[]			cached;
+
+
+	/**
+	 * Enumerate on the common pool.
+	 */
+	public HandStrength()
+	{
+		this(ForkJoinPool.commonPool());
+	}
+
+
+	/**
+	 * @param pool
+	 *            fork/join pool to run on
+	 */
+	public HandStrength(ForkJoinPool pool)
+	{
+		this.pool = pool;
+		opp1 = new int[1326];
+		opp2 = new int[1326];
+		next = new int[CardSet.CARDS];
+		later = new int[CardSet.CARDS];
+		part = new long[(1326 + GRAIN - 1) / GRAIN][CARDS + 3];
+		total = new long[CARDS + 3];
+		cached = new double[3];
+	}
+
+
+	/**
+	 * @param cache
+	 *            cache of results, or null
+	 */
+	public void setCache(EquityCache cache)
+	{
+		this.cache = cache;
+	}
+
+
+	/**
+	 * @return cache of results, or null
+	 */
+	public EquityCache getCache()
+	{
+		return cache;
+	}
+
+
+	/**
+	 * Enumerate a hole pair against a board.
+	 *
+	 * @param c1
+	 *            first hole card
+	 * @param c2
+	 *            second hole card
+	 * @param board
+	 *            set of three to five board cards
+	 * @throws PokerError
+	 */
+	public void compute(int c1, int c2, long board) throws PokerError
+	{
+		int nb = CardSet.size(board);
+		long dead = board | CardSet.bit(c1) | CardSet.bit(c2);
+		if ((nb < 3) || (nb > 5))
+			throw new PokerError("board must hold 3 to 5 cards, not " + nb);
+		if ((c1 == c2) || (CardSet.size(dead) != nb + 2))
+			throw new PokerError("hole cards "
+					+ CardSet.toString(CardSet.of(c1, c2))
+					+ " overlap the board " + CardSet.toString(board));
+
+		long key = 0;
+		if (cache != null)
+		{
+			key = SuitIsomorphism.canonical(c1, c2, board);
+			if (cache.get(key, cached))
+			{
+				hs = cached[0];
+				ppot = cached[1];
+				npot = cached[2];
+				return;
+			}
+		}
+
+		this.board = board;
+		now = HandEval.eval(c1, c2, board);
+
+		npairs = nnext = 0;
+		for (int i = 0; i < CardSet.CARDS; i++)
+		{
+			if (CardSet.contains(dead, i))
+				continue;
+			for (int j = i + 1; j < CardSet.CARDS; j++)
+				if (!CardSet.contains(dead, j))
+				{
+					opp1[npairs] = i;
+					opp2[npairs++] = j;
+				}
+			if (nb < 5)
+			{
+				later[nnext] = HandEval.eval(c1, c2, board | CardSet.bit(i));
+				next[nnext++] = i;
+			}
+		}
+
+		int nleaves = (npairs + GRAIN - 1) / GRAIN;
+		if ((nleaves == 1) || (pool.getParallelism() == 1))
+		{
+			for (int l = 0; l < nleaves; l++)
+				leaf(l);
+		}
+		else
+			pool.invoke(new Leaves(0, nleaves));
+
+		for (int i = 0; i < total.length; i++)
+		{
+			total[i] = 0;
+			for (int l = 0; l < nleaves; l++)
+				total[i] += part[l][i];
+		}
+		summarize(total);
+
+		if (cache != null)
+			cache.put(key, hs, ppot, npot);
+	}
+
+
+	/**
+	 * Count one leaf's range of opponent pairs.
+	 *
+	 * @param l
+	 *            leaf
+	 */
+	private void leaf(int l)
+	{
+		long[] c = part[l];
+		for (int i = 0; i < c.length; i++)
+			c[i] = 0;
+
+		int hi = Math.min(npairs, (l + 1) * GRAIN);
+		for (int p = l * GRAIN; p < hi; p++)
+		{
+			int o1 = opp1[p];
+			int o2 = opp2[p];
+			int idx = standing(now, HandEval.eval(o1, o2, board));
+			c[PAIRS + idx]++;
+
+			for (int n = 0; n < nnext; n++)
+			{
+				int k = next[n];
+				if ((k == o1) || (k == o2))
+					continue;
+				int o = HandEval.eval(o1, o2, board | CardSet.bit(k));
+				c[(idx * 3) + standing(later[n], o)]++;
+				c[CARDS + idx]++;
+			}
+		}
+	}
+
+
+	/**
+	 * @return AHEAD, BEHIND or TIED
+	 */
+	private static int standing(int ours, int theirs)
+	{
+		return (ours > theirs) ? AHEAD : ((ours < theirs) ? BEHIND : TIED);
+	}
+
+
+	/**
+	 * Turn the merged counts into the three metrics.
+	 */
+	private void summarize(long[] c)
+	{
+		double ahead = c[PAIRS + AHEAD];
+		double behind = c[PAIRS + BEHIND];
+		double tied = c[PAIRS + TIED];
+		hs = (ahead + tied / 2) / (ahead + behind + tied);
+
+		double up = c[BEHIND * 3 + AHEAD] + c[BEHIND * 3 + TIED] / 2.0
+				+ c[TIED * 3 + AHEAD] / 2.0;
+		double upOf = c[CARDS + BEHIND] + c[CARDS + TIED] / 2.0;
+		ppot = (upOf > 0) ? up / upOf : 0.0;
+
+		double down = c[AHEAD * 3 + BEHIND] + c[AHEAD * 3 + TIED] / 2.0
+				+ c[TIED * 3 + BEHIND] / 2.0;
+		double downOf = c[CARDS + AHEAD] + c[CARDS + TIED] / 2.0;
+		npot = (downOf > 0) ? down / downOf : 0.0;
+	}
+
+
+	/**
+	 * @return hand strength found by the last call
+	 */
+	public double getStrength()
+	{
+		return hs;
+	}
+
+
+	/**
+	 * @return positive potential found by the last call
+	 */
+	public double getPositive()
+	{
+		return ppot;
+	}
+
+
+	/**
+	 * @return negative potential found by the last call
+	 */
+	public double getNegative()
+	{
+		return npot;
+	}
+
+
+	/**
+	 * @return effective hand strength found by the last call
+	 */
+	public double getEffective()
+	{
+		return hs * (1 - npot) + (1 - hs) * ppot;
+	}
+
+
+	/**
+	 * A range of leaves.
+	 */
+	private class Leaves extends RecursiveAction
+	{
+		private static final long	serialVersionUID	= 1L;
+
+		/** range of leaves */
+		private int					lo, hi;
+
+
+		Leaves(int lo, int hi)
+		{
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+
+		protected void compute()
+		{
+			if (hi - lo == 1)
+				leaf(lo);
+			else
+			{
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Leaves(lo, mid), new Leaves(mid, hi));
+			}
+		}
+	}
+}
@@ -0,0 +1,551 @@
+/*
+ * MultiwayEquity.java
+ * 
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package poker.ai.core;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import poker.common.PokerError;
+
+
+/**
+ * Monte Carlo showdown equity of a hole pair against any number of
+ * opponents. Each deal draws every opponent a hole pair from their range,
+ * then the rest of the board, and scores the hands with HandEval; our share
+ * of the pot is one if we win, 1/k if we split it k ways and zero if we
+ * lose.
+ * <p>
+ * A range is an array of 1326 weights, one per hole pair in the order of
+ * PokerNet.fullHoles (as in PreflopEquity and the table's hole
+ * distributions), or null for any hand. Weights need not be normalized;
+ * hands which share a card with ours or the board are dropped. The opponents
+ * with ranges are dealt first, each hand on its own, and redrawn together
+ * whenever two of them collide, so they are dealt from the joint
+ * distribution of their ranges. A deal which still collides after a thousand
+ * attempts is dropped and counted (see getFailures()); as dropped deals bias
+ * the estimate, compute() fails once they are more than one in a hundred.
+ * The opponents without ranges are then dealt from the cards left, which
+ * never fails and is exact, as the number of ways to deal them does not
+ * depend on which cards the others hold.
+ * <p>
+ * Deals are run in rounds on a fork/join pool, a batch per worker, each
+ * worker with its own SplittableRandom split from one root. After each round
+ * the 95% confidence interval of the mean share is checked, and dealing
+ * stops once it is narrower than the requested width or the time budget is
+ * spent; workers also check the time budget during a round.
+ * <p>
+ * An instance reuses its workers between calls, so it must not be used by
+ * more than one thread at a time.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class MultiwayEquity
+{
+
+	/** deals per worker per round */
+	private static final int	BATCH		= 1024;
+
+	/** normal quantile of a 95% confidence interval */
+	private static final double	Z			= 1.96;
+
+	/** attempts at dealing every opponent with a range a hand, per deal */
+	private static final int	TRIES		= 1000;
+
+	/** largest share of deals which may fail */
+	private static final double	MAX_FAILED	= 0.01;
+
+	/** deals between checks of the time budget, less one */
+	private static final int	CHECK		= 63;
+
+	/** largest number of opponents, so that a deal fits in the deck */
+	public static final int		MAX_OPP		= (CardSet.CARDS - 7) / 2;
+
+	/** pool to run on */
+	private ForkJoinPool		pool;
+
+	/** source of each worker's generator */
+	private SplittableRandom	root;
+
+	/** width of the confidence interval to stop at */
+	private double				width;
+
+	/** our hole cards */
+	private int					c1, c2;
+
+	/** the board */
+	private long				board;
+
+	/** board cards left to deal */
+	private int					left;
+
+	/** number of opponents */
+	private int					nopp;
+
+	/** cumulative weights of each opponent's range, or null for any hand */
+	private double[][]			cdf;
+
+	/** System.nanoTime() at which to stop dealing */
+	private long				deadline;
+
+	/** workers */
+	private Worker[]			workers;
+
+	/** results of the last call */
+	private double				equity, win, tie, error;
+
+	/** deals behind the results of the last call */
+	private long				samples;
+
+	/** deals of the last call which could not be made */
+	private long				failures;
+
+
+	/**
+	 * Deal on the common pool.
+	 */
+	public MultiwayEquity()
+	{
+		this(ForkJoinPool.commonPool());
+	}
+
+
+	/**
+	 * @param pool
+	 *            fork/join pool to run on
+	 */
+	public MultiwayEquity(ForkJoinPool pool)
+	{
+		this.pool = pool;
+		root = new SplittableRandom();
+		width = 0.01;
+		workers = new Worker[pool.getParallelism()];
+		for (int w = 0; w < workers.length; w++)
+			workers[w] = new Worker();
+	}
+
+
+	/**
+	 * @param seed
+	 *            seed of the workers' generators, for repeatable results
+	 */
+	public void setSeed(long seed)
+	{
+		root = new SplittableRandom(seed);
+	}
+
+
+	/**
+	 * @param width
+	 *            width of the 95% confidence interval of the equity at which
+	 *            to stop dealing
+	 */
+	public void setWidth(double width)
+	{
+		this.width = width;
+	}
+
+
+	/**
+	 * @return width of the confidence interval at which to stop dealing
+	 */
+	public double getWidth()
+	{
+		return width;
+	}
+
+
+	/**
+	 * Deal against opponents who may hold any hand.
+	 *
+	 * @param c1
+	 *            first hole card
+	 * @param c2
+	 *            second hole card
+	 * @param board
+	 *            set of zero to five board cards
+	 * @param opponents
+	 *            number of opponents
+	 * @param millis
+	 *            time budget, in milliseconds
+	 * @throws PokerError
+	 */
+	public void compute(int c1, int c2, long board, int opponents, long millis)
+			throws PokerError
+	{
+		if ((opponents < 1) || (opponents > MAX_OPP))
+			throw new PokerError("need 1 to " + MAX_OPP + " opponents, not "
+					+ opponents);
+		compute(c1, c2, board, new double[opponents][], millis);
+	}
+
+
+	/**
+	 * Deal against opponents with the given ranges.
+	 *
+	 * @param c1
+	 *            first hole card
+	 * @param c2
+	 *            second hole card
+	 * @param board
+	 *            set of zero to five board cards
+	 * @param ranges
+	 *            range of each opponent, or null for any hand
+	 * @param millis
+	 *            time budget, in milliseconds
+	 * @throws PokerError
+	 */
+	public void compute(int c1, int c2, long board, double[][] ranges,
+			long millis) throws PokerError
+	{
+		deadline = System.nanoTime() + (millis * 1000000L);
+		int nb = CardSet.size(board);
+		long dead = board | CardSet.bit(c1) | CardSet.bit(c2);
+		if (nb > 5)
+			throw new PokerError("board must hold at most 5 cards, not " + nb);
+		if ((c1 == c2) || (CardSet.size(dead) != nb + 2))
+			throw new PokerError("hole cards "
+					+ CardSet.toString(CardSet.of(c1, c2))
+					+ " overlap the board " + CardSet.toString(board));
+		if ((ranges.length < 1) || (ranges.length > MAX_OPP))
+			throw new PokerError("need 1 to " + MAX_OPP + " opponents, not "
+					+ ranges.length);
+
+		this.c1 = c1;
+		this.c2 = c2;
+		this.board = board;
+		left = 5 - nb;
+		nopp = ranges.length;
+		cdf = new double[nopp][];
+		for (int i = 0; i < nopp; i++)
+			if (ranges[i] != null)
+				cdf[i] = cumulate(ranges[i], dead, i);
+
+		for (Worker w : workers)
+			w.reset(root.split());
+
+		do
+		{
+			if (workers.length == 1)
+				workers[0].deal();
+			else
+				pool.invoke(new Batches(0, workers.length));
+			summarize();
+			if ((samples == 0)
+					|| (failures > MAX_FAILED * (samples + failures)))
+				throw new PokerError("opponent ranges cannot all be dealt at "
+						+ "once: " + failures + " of " + (samples + failures)
+						+ " deals failed");
+		}
+		while ((2 * error > width) && (System.nanoTime() < deadline));
+	}
+
+
+	/**
+	 * @return cumulative weights of a range, less the hands which hold a
+	 *         dead card
+	 */
+	private static double[] cumulate(double[] range, long dead, int opp)
+			throws PokerError
+	{
+		if (range.length != PreflopEquity.COMBOS)
+			throw new PokerError("range of opponent " + opp + " has "
+					+ range.length + " weights, not " + PreflopEquity.COMBOS);
+
+		double[] cdf = new double[PreflopEquity.COMBOS];
+		double sum = 0;
+		for (int h = 0; h < PreflopEquity.COMBOS; h++)
+		{
+			if (!CardSet.contains(dead, PreflopEquity.first(h))
+					&& !CardSet.contains(dead, PreflopEquity.second(h)))
+				sum += range[h];
+			cdf[h] = sum;
+		}
+		if (sum <= 0)
+			throw new PokerError("range of opponent " + opp
+					+ " holds no possible hand");
+		return cdf;
+	}
+
+
+	/**
+	 * Merge the workers' counts into the results.
+	 */
+	private void summarize()
+	{
+		long n = 0, wins = 0, ties = 0, failed = 0;
+		double sum = 0, sq = 0;
+		for (Worker w : workers)
+		{
+			n += w.n;
+			failed += w.failed;
+			wins += w.wins;
+			ties += w.ties;
+			sum += w.sum;
+			sq += w.sq;
+		}
+
+		samples = n;
+		failures = failed;
+		if (n == 0)
+		{
+			equity = win = tie = error = 0;
+			return;
+		}
+		equity = sum / n;
+		win = wins / (double) n;
+		tie = ties / (double) n;
+		double var = Math.max(0, (sq / n) - (equity * equity));
+		error = Z * Math.sqrt(var / n);
+	}
+
+
+	/**
+	 * @return our mean share of the pot found by the last call
+	 */
+	public double getEquity()
+	{
+		return equity;
+	}
+
+
+	/**
+	 * @return chance of winning the whole pot found by the last call
+	 */
+	public double getWin()
+	{
+		return win;
+	}
+
+
+	/**
+	 * @return chance of splitting the pot found by the last call
+	 */
+	public double getTie()
+	{
+		return tie;
+	}
+
+
+	/**
+	 * @return half the width of the 95% confidence interval of the equity
+	 *         found by the last call
+	 */
+	public double getError()
+	{
+		return error;
+	}
+
+
+	/**
+	 * @return number of deals behind the last call's results
+	 */
+	public long getSamples()
+	{
+		return samples;
+	}
+
+
+	/**
+	 * @return number of deals of the last call which could not be made
+	 *         within the attempts allowed, and were dropped
+	 */
+	public long getFailures()
+	{
+		return failures;
+	}
+
+
+	/**
+	 * One worker's generator and counts.
+	 */
+	private class Worker
+	{
+
+		/** generator */
+		private SplittableRandom	rand;
+
+		/** deals made, won outright and split, and deals which failed */
+		private long				n, wins, ties, failed;
+
+		/** each opponent's cards in the current deal */
+		private int[]				hole1	= new int[MAX_OPP];
+
+		private int[]				hole2	= new int[MAX_OPP];
+
+		/** sum of our shares and of their squares */
+		private double				sum, sq;
+
+
+		/**
+		 * Start a new call.
+		 */
+		void reset(SplittableRandom rand)
+		{
+			this.rand = rand;
+			n = wins = ties = failed = 0;
+			sum = sq = 0;
+		}
+
+
+		/**
+		 * Make a batch of deals, or as many as the time budget allows.
+		 */
+		void deal()
+		{
+			long dead = board | CardSet.bit(c1) | CardSet.bit(c2);
+			for (int b = 0; b < BATCH; b++)
+			{
+				if (((b & CHECK) == CHECK) && (System.nanoTime() > deadline))
+					return;
+
+				long used = 0;
+				boolean dealt = false;
+				for (int t = 0; (t < TRIES) && !dealt; t++)
+				{
+					used = dead;
+					dealt = true;
+					for (int i = 0; i < nopp; i++)
+					{
+						if (cdf[i] == null)
+							continue;
+						int h = pick(cdf[i]);
+						int o1 = PreflopEquity.first(h);
+						int o2 = PreflopEquity.second(h);
+						if (CardSet.contains(used, o1)
+								|| CardSet.contains(used, o2))
+						{
+							dealt = false;
+							break;
+						}
+						used |= CardSet.bit(o1) | CardSet.bit(o2);
+						hole1[i] = o1;
+						hole2[i] = o2;
+					}
+				}
+				if (!dealt)
+				{
+					failed++;
+					continue;
+				}
+
+				for (int i = 0; i < nopp; i++)
+				{
+					if (cdf[i] != null)
+						continue;
+					hole1[i] = draw(used);
+					used |= CardSet.bit(hole1[i]);
+					hole2[i] = draw(used);
+					used |= CardSet.bit(hole2[i]);
+				}
+
+				long full = board;
+				for (int k = 0; k < left; k++)
+				{
+					int c = draw(used);
+					used |= CardSet.bit(c);
+					full |= CardSet.bit(c);
+				}
+
+				int best = 0, tied = 0;
+				for (int i = 0; i < nopp; i++)
+				{
+					int v = HandEval.eval(hole1[i], hole2[i], full);
+					if (v > best)
+					{
+						best = v;
+						tied = 1;
+					}
+					else if (v == best)
+						tied++;
+				}
+				int ways = score(HandEval.eval(c1, c2, full), best, tied);
+				double share = (ways > 0) ? 1.0 / ways : 0.0;
+				n++;
+				sum += share;
+				sq += share * share;
+				if (ways == 1)
+					wins++;
+				else if (ways > 1)
+					ties++;
+			}
+		}
+
+
+		/**
+		 * @return the number of ways we split the pot, or zero if we lose
+		 */
+		private int score(int ours, int best, int tied)
+		{
+			return (ours > best) ? 1 : ((ours == best) ? tied + 1 : 0);
+		}
+
+
+		/**
+		 * @return a card, uniformly, which is not in the set
+		 */
+		private int draw(long used)
+		{
+			int c;
+			do
+				c = rand.nextInt(CardSet.CARDS);
+			while (CardSet.contains(used, c));
+			return c;
+		}
+
+
+		/**
+		 * @return a hole pair drawn from cumulative weights
+		 */
+		private int pick(double[] cdf)
+		{
+			double u = rand.nextDouble() * cdf[cdf.length - 1];
+			int lo = 0, hi = cdf.length - 1;
+			while (lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				if (cdf[mid] > u)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			return lo;
+		}
+	}
+
+
+	/**
+	 * A range of workers, each making a batch of deals.
+	 */
+	private class Batches extends RecursiveAction
+	{
+		private static final long	serialVersionUID	= 1L;
+
+		/** range of workers */
+		private int					lo, hi;
+
+
+		Batches(int lo, int hi)
+		{
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+
+		protected void compute()
+		{
+			if (hi - lo == 1)
+				workers[lo].deal();
+			else
+			{
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Batches(lo, mid), new Batches(mid, hi));
+			}
+		}
+	}
+}
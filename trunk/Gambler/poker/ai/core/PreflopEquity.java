@@ -0,0 +1,576 @@
+/*
+ * PreflopEquity.java
+ * 
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package poker.ai.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bayes.Distribution;
+
+
+/**
+ * Heads-up, all-in preflop equity of every hole pair against every other,
+ * read from a table bundled with this class. Equity is the chance of winning
+ * over a full five-card board, ties counting half.
+ * <p>
+ * Hole pairs are indexed in the order of PokerNet.fullHoles (the 1326
+ * "combos") and hole classes in the order of PokerNet.holePairs (the 169
+ * pairs, offsuit and suited hands). Ranges are arrays of weights in the same
+ * orders, such as the values of a HandDist distribution; they need not be
+ * normalized. Against a range, the opponent hands which share a card with
+ * ours are left out, so each equity is one dot product with a row of the
+ * matrix, less the weight of the 101 blocked hands.
+ * <p>
+ * The bundled table holds one equity per matchup up to a renaming of the
+ * suits and a swap of the players, as an unsigned short. It is generated by
+ * main(), which plays out every board for every matchup, so it is exact up
+ * to the rounding of the stored value; the table is expanded into the full
+ * matrices the first time it is needed.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public final class PreflopEquity
+{
+
+	/** number of hole pairs */
+	public static final int				COMBOS		= 1326;
+
+	/** number of hole classes */
+	public static final int				CLASSES		= 169;
+
+	/** name of the bundled table */
+	private static final String			RESOURCE	= "preflop.eq";
+
+	/** table magic: "PFE1" */
+	private static final int			MAGIC		= 0x50464531;
+
+	/** boards which complete a matchup: 48 choose 5 */
+	private static final int			BOARDS		= 1712304;
+
+	/** an equity of one, as stored; even, so that one half is exact */
+	private static final double			ONE			= 65534.0;
+
+	/** first and second card of each hole pair */
+	private static final int[]			card1		= new int[COMBOS];
+
+	private static final int[]			card2		= new int[COMBOS];
+
+	/** hole pairs which share a card with each hole pair, itself included */
+	private static final int[][]		blocked		= new int[COMBOS][];
+
+	/** equity of each hole pair against each other, by rows */
+	private static float[]				combo;
+
+	/** equity of each hole class against each other, by rows */
+	private static double[]				classes;
+
+	/**
+	 * fraction of the pairs of hands of two classes which share no card, by
+	 * rows
+	 */
+	private static double[]				live;
+
+	/* list the hole pairs and their blockers */
+	static
+	{
+		for (int i = 0, h = 0; i < CardSet.CARDS; i++)
+			for (int j = i + 1; j < CardSet.CARDS; j++, h++)
+			{
+				card1[h] = i;
+				card2[h] = j;
+			}
+
+		for (int h = 0; h < COMBOS; h++)
+		{
+			blocked[h] = new int[101];
+			for (int o = 0, k = 0; o < COMBOS; o++)
+				if (conflict(h, o))
+					blocked[h][k++] = o;
+		}
+	}
+
+
+	/**
+	 * Not instantiable.
+	 */
+	private PreflopEquity()
+	{
+	}
+
+
+	/**
+	 * @param c1
+	 *            first card
+	 * @param c2
+	 *            second card, not the first
+	 * @return index of the hole pair, as in PokerNet.fullHoles
+	 */
+	public static int combo(int c1, int c2)
+	{
+		int lo = Math.min(c1, c2);
+		int hi = Math.max(c1, c2);
+		return (lo * 51) - ((lo * (lo - 1)) / 2) + (hi - lo - 1);
+	}
+
+
+	/**
+	 * @param combo
+	 *            index of a hole pair
+	 * @return its lower card
+	 */
+	public static int first(int combo)
+	{
+		return card1[combo];
+	}
+
+
+	/**
+	 * @param combo
+	 *            index of a hole pair
+	 * @return its higher card
+	 */
+	public static int second(int combo)
+	{
+		return card2[combo];
+	}
+
+
+	/**
+	 * @param combo
+	 *            index of a hole pair
+	 * @return index of its hole class, as in PokerNet.holePairs
+	 */
+	public static int holeClass(int combo)
+	{
+		int lo = card1[combo] >> 2;
+		int hi = card2[combo] >> 2;
+		if (lo == hi)
+			return lo;
+		int idx = (lo * 12) - ((lo * (lo - 1)) / 2) + (hi - lo - 1);
+		boolean suited = (card1[combo] & 3) == (card2[combo] & 3);
+		return (suited ? 13 + 78 : 13) + idx;
+	}
+
+
+	/**
+	 * @param hero
+	 *            index of our hole pair
+	 * @param villain
+	 *            index of the opponent's hole pair
+	 * @return our equity, or zero if the pairs share a card
+	 */
+	public static double equity(int hero, int villain)
+	{
+		return matrix()[(hero * COMBOS) + villain];
+	}
+
+
+	/**
+	 * @param hero
+	 *            our hole class
+	 * @param villain
+	 *            the opponent's hole class
+	 * @return our equity, averaged over the pairs of hands of the classes
+	 *         which share no card
+	 */
+	public static double classEquity(int hero, int villain)
+	{
+		matrix();
+		return classes[(hero * CLASSES) + villain];
+	}
+
+
+	/**
+	 * @param hero
+	 *            index of our hole pair
+	 * @param range
+	 *            weight of each opponent hole pair
+	 * @return our equity against the range, or NaN if the range holds only
+	 *         hands which share a card with ours
+	 */
+	public static double equity(int hero, double[] range)
+	{
+		float[] m = matrix();
+		int row = hero * COMBOS;
+		double sum = 0, total = 0;
+		for (int o = 0; o < COMBOS; o++)
+		{
+			sum += m[row + o] * range[o];
+			total += range[o];
+		}
+		for (int o : blocked[hero])
+			total -= range[o];
+		return sum / total;
+	}
+
+
+	/**
+	 * @param hero
+	 *            index of our hole pair
+	 * @param range
+	 *            distribution of the opponent's hole pair
+	 * @return our equity against the range
+	 */
+	public static double equity(int hero, Distribution range)
+	{
+		return equity(hero, range.values);
+	}
+
+
+	/**
+	 * @param hero
+	 *            weight of each of our hole pairs
+	 * @param villain
+	 *            weight of each opponent hole pair
+	 * @return our equity, over the pairs of hands which share no card, or NaN
+	 *         if there are none
+	 */
+	public static double equity(double[] hero, double[] villain)
+	{
+		float[] m = matrix();
+		double vtotal = 0;
+		for (int o = 0; o < COMBOS; o++)
+			vtotal += villain[o];
+
+		double sum = 0, total = 0;
+		for (int h = 0; h < COMBOS; h++)
+		{
+			if (hero[h] == 0)
+				continue;
+			int row = h * COMBOS;
+			double s = 0, t = vtotal;
+			for (int o = 0; o < COMBOS; o++)
+				s += m[row + o] * villain[o];
+			for (int o : blocked[h])
+				t -= villain[o];
+			sum += hero[h] * s;
+			total += hero[h] * t;
+		}
+		return sum / total;
+	}
+
+
+	/**
+	 * Equity of a range of classes against another, each class's weight
+	 * spread evenly over its hands.
+	 *
+	 * @param hero
+	 *            weight of each of our hole classes
+	 * @param villain
+	 *            weight of each of the opponent's hole classes
+	 * @return our equity, over the pairs of hands which share no card, or NaN
+	 *         if there are none
+	 */
+	public static double classEquity(double[] hero, double[] villain)
+	{
+		matrix();
+		double sum = 0, total = 0;
+		for (int a = 0; a < CLASSES; a++)
+		{
+			if (hero[a] == 0)
+				continue;
+			int row = a * CLASSES;
+			double s = 0, t = 0;
+			for (int b = 0; b < CLASSES; b++)
+			{
+				double w = live[row + b] * villain[b];
+				s += classes[row + b] * w;
+				t += w;
+			}
+			sum += hero[a] * s;
+			total += hero[a] * t;
+		}
+		return sum / total;
+	}
+
+
+	/**
+	 * @return the equity matrix of the hole pairs, read and expanded on the
+	 *         first call
+	 */
+	private static synchronized float[] matrix()
+	{
+		if (combo != null)
+			return combo;
+
+		int[] matchups = matchups();
+		int[] keys = keys(matchups);
+		char[] stored = new char[keys.length];
+		InputStream in = PreflopEquity.class.getResourceAsStream(RESOURCE);
+		try
+		{
+			if (in == null)
+				throw new IOException("missing " + RESOURCE);
+			DataInputStream data = new DataInputStream(
+					new BufferedInputStream(in));
+			if ((data.readInt() != MAGIC) || (data.readInt() != keys.length))
+				throw new IOException("bad " + RESOURCE);
+			data.readInt();
+			for (int k = 0; k < stored.length; k++)
+				stored[k] = data.readChar();
+			data.close();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("no preflop equity table", e);
+		}
+
+		float[] m = new float[COMBOS * COMBOS];
+		for (int h = 0, i = 0; h < COMBOS; h++)
+			for (int o = h + 1; o < COMBOS; o++)
+			{
+				if (conflict(h, o))
+					continue;
+				int key = matchups[i++];
+				double e = stored[Arrays.binarySearch(keys, key >>> 1)] / ONE;
+				if ((key & 1) != 0)
+					e = 1 - e;
+				m[(h * COMBOS) + o] = (float) e;
+				m[(o * COMBOS) + h] = (float) (1 - e);
+			}
+
+		double[] sum = new double[CLASSES * CLASSES];
+		int[] pairs = new int[CLASSES * CLASSES];
+		int[] size = new int[CLASSES];
+		for (int h = 0; h < COMBOS; h++)
+		{
+			int a = holeClass(h);
+			size[a]++;
+			for (int o = 0; o < COMBOS; o++)
+				if (!conflict(h, o))
+				{
+					int c = (a * CLASSES) + holeClass(o);
+					sum[c] += m[(h * COMBOS) + o];
+					pairs[c]++;
+				}
+		}
+		classes = new double[CLASSES * CLASSES];
+		live = new double[CLASSES * CLASSES];
+		for (int a = 0; a < CLASSES; a++)
+			for (int b = 0; b < CLASSES; b++)
+			{
+				int c = (a * CLASSES) + b;
+				classes[c] = (pairs[c] > 0) ? sum[c] / pairs[c] : 0;
+				live[c] = pairs[c] / (double) (size[a] * size[b]);
+			}
+
+		combo = m;
+		return combo;
+	}
+
+
+	/**
+	 * @return whether two hole pairs share a card
+	 */
+	private static boolean conflict(int h, int o)
+	{
+		return (card1[h] == card1[o]) || (card1[h] == card2[o])
+				|| (card2[h] == card1[o]) || (card2[h] == card2[o]);
+	}
+
+
+	/**
+	 * The canonical form of a matchup is the least of its keys over every
+	 * renaming of the suits and both orders of the players. A key packs each
+	 * player's cards as SuitIsomorphism packs a hole pair, the first player
+	 * highest.
+	 *
+	 * @return the canonical key of the matchup, shifted left one bit; the low
+	 *         bit is set if the players are swapped in it
+	 */
+	private static int canonical(int h, int o)
+	{
+		int best = Integer.MAX_VALUE;
+		for (int[] p : SuitIsomorphism.perms)
+		{
+			int x = SuitIsomorphism.hole(SuitIsomorphism.permute(card1[h], p),
+					SuitIsomorphism.permute(card2[h], p));
+			int y = SuitIsomorphism.hole(SuitIsomorphism.permute(card1[o], p),
+					SuitIsomorphism.permute(card2[o], p));
+			best = Math.min(best, (((x << 12) | y) << 1));
+			best = Math.min(best, (((y << 12) | x) << 1) | 1);
+		}
+		return best;
+	}
+
+
+	/**
+	 * @return the canonical form (see canonical()) of every pair of hole
+	 *         pairs which share no card, the lower index first, in order
+	 */
+	private static int[] matchups()
+	{
+		int[] all = new int[(COMBOS * (COMBOS - 1)) / 2];
+		int n = 0;
+		for (int h = 0; h < COMBOS; h++)
+			for (int o = h + 1; o < COMBOS; o++)
+				if (!conflict(h, o))
+					all[n++] = canonical(h, o);
+		return Arrays.copyOf(all, n);
+	}
+
+
+	/**
+	 * @return the distinct canonical keys of the matchups, sorted
+	 */
+	private static int[] keys(int[] matchups)
+	{
+		int[] all = new int[matchups.length];
+		for (int i = 0; i < all.length; i++)
+			all[i] = matchups[i] >>> 1;
+		Arrays.sort(all);
+
+		int k = 0;
+		for (int i = 0; i < all.length; i++)
+			if ((k == 0) || (all[i] != all[k - 1]))
+				all[k++] = all[i];
+		return Arrays.copyOf(all, k);
+	}
+
+
+	/**
+	 * Generate the table: play out every board for every canonical matchup.
+	 * Each board is scored once for all the hole pairs it leaves live, and
+	 * then for all the matchups between them.
+	 *
+	 * @param args
+	 *            output file
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length != 1)
+		{
+			System.err.println("usage: PreflopEquity <file>");
+			System.exit(1);
+		}
+
+		try
+		{
+			int[] keys = keys(matchups());
+			int[] xs = new int[keys.length];
+			int[] ys = new int[keys.length];
+			for (int k = 0; k < keys.length; k++)
+			{
+				int key = keys[k];
+				xs[k] = combo(key >>> 18, (key >>> 12) & 0x3f);
+				ys[k] = combo((key >>> 6) & 0x3f, key & 0x3f);
+			}
+			Boards all = new Boards(xs, ys, 0, CardSet.CARDS - 4);
+			ForkJoinPool.commonPool().invoke(all);
+
+			char[] stored = new char[keys.length];
+			for (int k = 0; k < keys.length; k++)
+				stored[k] = (char) Math.round(all.wins[k] * ONE
+						/ (2.0 * BOARDS));
+
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(args[0])));
+			out.writeInt(MAGIC);
+			out.writeInt(keys.length);
+			out.writeInt(BOARDS);
+			for (char c : stored)
+				out.writeChar(c);
+			out.close();
+			System.out.printf("%d matchups, %d boards each\n", keys.length,
+					BOARDS);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * The boards whose lowest card lies in a range, played out for every
+	 * matchup.
+	 */
+	private static class Boards extends RecursiveAction
+	{
+		private static final long	serialVersionUID	= 1L;
+
+		/** hole pair of the first and second player of each matchup */
+		private int[]				xs, ys;
+
+		/** range of lowest board cards */
+		private int					lo, hi;
+
+		/** twice the first player's wins, plus ties, in each matchup */
+		long[]						wins;
+
+
+		Boards(int[] xs, int[] ys, int lo, int hi)
+		{
+			this.xs = xs;
+			this.ys = ys;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+
+		protected void compute()
+		{
+			if (hi - lo > 1)
+			{
+				int mid = (lo + hi) >>> 1;
+				Boards a = new Boards(xs, ys, lo, mid);
+				Boards b = new Boards(xs, ys, mid, hi);
+				invokeAll(a, b);
+				wins = a.wins;
+				for (int k = 0; k < wins.length; k++)
+					wins[k] += b.wins[k];
+				return;
+			}
+
+			wins = new long[xs.length];
+			int[] value = new int[COMBOS];
+			final int n = CardSet.CARDS;
+			for (int a = lo, b = a + 1; b < n; b++)
+				for (int c = b + 1; c < n; c++)
+					for (int d = c + 1; d < n; d++)
+						for (int e = d + 1; e < n; e++)
+						{
+							long board = CardSet.of(a, b, c, d, e);
+							for (int h = 0; h < COMBOS; h++)
+								value[h] = CardSet.contains(board, card1[h])
+										|| CardSet.contains(board, card2[h])
+										? -1 : HandEval.eval(card1[h],
+												card2[h], board);
+							score(value);
+						}
+		}
+
+
+		/**
+		 * Add one board to the matchups in which neither hole pair holds a
+		 * card of it.
+		 *
+		 * @param value
+		 *            value of each hole pair with the board, or -1 if it
+		 *            shares a card with it
+		 */
+		private void score(int[] value)
+		{
+			for (int k = 0; k < wins.length; k++)
+			{
+				int x = value[xs[k]], y = value[ys[k]];
+				if ((x | y) >= 0)
+					wins[k] += Integer.signum(x - y) + 1;
+			}
+		}
+	}
+}
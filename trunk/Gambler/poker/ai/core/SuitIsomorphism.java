@@ -0,0 +1,158 @@
+/*
+ * SuitIsomorphism.java
+ * 
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package poker.ai.core;
+
+
+/**
+ * Canonical form of a hole pair and board under renaming of the suits. Two
+ * deals which differ only by a permutation of the suits have the same hand
+ * strength, potential and equity, and map to the same key.
+ * <p>
+ * A key packs the board's card set (see CardSet) into the low 52 bits and
+ * the hole pair, lower card first, into the top 12 (six bits per card). The
+ * canonical key is the least such key, unsigned, over all 24 suit
+ * permutations, so it orders by hole pair first. Keys are never zero.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public final class SuitIsomorphism
+{
+
+	/** the clubs of every rank: every fourth bit of a card set */
+	private static final long	LANE	= 0x1111111111111L;
+
+	/** bit position of the hole pair in a key */
+	private static final int	HOLE	= 52;
+
+	/** every permutation of the four suits (also used by PreflopEquity) */
+	static final int[][]			perms	= new int[24][4];
+
+	/* enumerate the permutations */
+	static
+	{
+		int n = 0;
+		for (int a = 0; a < 4; a++)
+			for (int b = 0; b < 4; b++)
+				for (int c = 0; c < 4; c++)
+					for (int d = 0; d < 4; d++)
+						if ((a != b) && (a != c) && (a != d) && (b != c)
+								&& (b != d) && (c != d))
+							perms[n++] = new int[] { a, b, c, d };
+	}
+
+
+	/**
+	 * Not instantiable.
+	 */
+	private SuitIsomorphism()
+	{
+	}
+
+
+	/**
+	 * @param c1
+	 *            first hole card
+	 * @param c2
+	 *            second hole card
+	 * @param board
+	 *            set of board cards
+	 * @return the key of the deal, not canonicalized
+	 */
+	public static long key(int c1, int c2, long board)
+	{
+		return (((long) hole(c1, c2)) << HOLE) | board;
+	}
+
+
+	/**
+	 * @param c1
+	 *            first hole card
+	 * @param c2
+	 *            second hole card
+	 * @param board
+	 *            set of board cards
+	 * @return the least key of the deal over all suit permutations
+	 */
+	public static long canonical(int c1, int c2, long board)
+	{
+		long best = -1L;
+		for (int[] p : perms)
+		{
+			long b = ((board & LANE) << p[0])
+					| (((board >>> 1) & LANE) << p[1])
+					| (((board >>> 2) & LANE) << p[2])
+					| (((board >>> 3) & LANE) << p[3]);
+			long k = key(permute(c1, p), permute(c2, p), b);
+			if (Long.compareUnsigned(k, best) < 0)
+				best = k;
+		}
+		return best;
+	}
+
+
+	/**
+	 * @param key
+	 *            key of a deal
+	 * @return whether the key is its deal's canonical key
+	 */
+	public static boolean isCanonical(long key)
+	{
+		return canonical(hole1(key), hole2(key), board(key)) == key;
+	}
+
+
+	/**
+	 * @param key
+	 *            key of a deal
+	 * @return the lower hole card
+	 */
+	public static int hole1(long key)
+	{
+		return (int) (key >>> (HOLE + 6));
+	}
+
+
+	/**
+	 * @param key
+	 *            key of a deal
+	 * @return the higher hole card
+	 */
+	public static int hole2(long key)
+	{
+		return (int) (key >>> HOLE) & 0x3f;
+	}
+
+
+	/**
+	 * @param key
+	 *            key of a deal
+	 * @return set of board cards
+	 */
+	public static long board(long key)
+	{
+		return key & CardSet.DECK;
+	}
+
+
+	/**
+	 * @return two cards packed into twelve bits, lower first, as in a key
+	 */
+	static int hole(int c1, int c2)
+	{
+		return (Math.min(c1, c2) << 6) | Math.max(c1, c2);
+	}
+
+
+	/**
+	 * @return the card with its suit renamed by the permutation
+	 */
+	static int permute(int card, int[] p)
+	{
+		return (card & ~3) | p[card & 3];
+	}
+}
@@ -24,7 +24,6 @@ import poker.server.base.Move;
 import poker.server.base.Player;
 import bayes.BayesError;
 import bayes.Distribution;
-import bayes.ProbFunction;
 
 /**
  * Uses nets from poker.ai.bnet.loose to track Poker state.
@@ -211,13 +210,9 @@ public class LoosePokerNetTable extends StateTable
 	{
 		super(tableName, playerName, sbBet, bbBet, earlyBet, lateBet, rake);
 
-		preflop = new SPreflopNet();
-		postflop = new SPostflopNet();
-
-		preflop.buildNetwork();
-		preflop.buildQueries();
-		postflop.buildNetwork();
-		postflop.buildQueries();
+		/* every table shares one compiled copy of each network */
+		preflop = SPreflopNet.shared();
+		postflop = SPostflopNet.shared();
 
 		omap = new HashMap<String, String>();
 		pmap = new HashMap<String, Distribution>();
@@ -800,39 +795,57 @@ public class LoosePokerNetTable extends StateTable
 	{
 		Replay r = replays[player];
 		int num = r.numStates();
+
+		/* one batch per network; each state's tables ride along as priors */
+		List<Map<String, String>> preObs, postObs;
+		List<Map<String, Distribution>> prePri, postPri;
+		preObs = new ArrayList<Map<String, String>>();
+		prePri = new ArrayList<Map<String, Distribution>>();
+		postObs = new ArrayList<Map<String, String>>();
+		postPri = new ArrayList<Map<String, Distribution>>();
 		for (int i = 0; i < num; i++)
 		{
-			clearMaps();
-			omap.putAll(r.getObsMap(i));
-			pmap.putAll(r.getPriorMap(i));
-			pmap.remove("hole");
-			pmap.remove("style");
+			Map<String, String> o = new HashMap<String, String>(r.getObsMap(i));
+			Map<String, Distribution> p = new HashMap<String, Distribution>(
+					r.getPriorMap(i));
+			p.remove("style");
 			boolean pre = r.getPreflop(i);
-			pmap.put("hole", convertDistTo(dist, pre));
+			p.put("hole", convertDistTo(dist, pre));
 
 			if (pre)
 			{
-				qmap.put("style", null);
-				preflop.compute("style", omap, pmap, qmap);
-				updateProjectedStyle(player, qmap.get("style"));
+				preObs.add(o);
+				prePri.add(p);
 			}
 			else
 			{
-				qmap.put("style", null);
 				double[][] wh = r.getPostflopDists(i);
-				try
-				{
-					postflop.initProfitTable(wh[0]);
-					postflop.initHandTable(wh[1]);
-				}
-				catch (BayesError e)
-				{
-					throw new RemoteException("could not replay player", e);
-				}
-				postflop.compute("style", omap, pmap, qmap);
-				updateProjectedStyle(player, qmap.get("style"));
+				p.put("profit", new Distribution("profit", null, wh[0]));
+				p.put("hand", new Distribution("hand", null, wh[1]));
+				postObs.add(o);
+				postPri.add(p);
 			}
 		}
+
+		List<Map<String, Distribution>> preRes = null, postRes = null;
+		try
+		{
+			if (!preObs.isEmpty())
+				preRes = preflop.computeBatch(preObs, prePri, "style");
+			if (!postObs.isEmpty())
+				postRes = postflop.computeBatch(postObs, postPri, "style");
+		}
+		catch (BayesError e)
+		{
+			throw new RemoteException("could not replay player", e);
+		}
+
+		for (int i = 0, a = 0, b = 0; i < num; i++)
+		{
+			Map<String, Distribution> res = r.getPreflop(i) ? preRes.get(a++)
+					: postRes.get(b++);
+			updateProjectedStyle(player, res.get("style"));
+		}
 	}
 
 
@@ -1439,7 +1452,15 @@ public class LoosePokerNetTable extends StateTable
 	 */
 	private void removeCardsFromHolePool(Hand cards)
 	{
-		ProbFunction f = postflop.getHoleNode().getFunction();
+		double[] table;
+		try
+		{
+			table = postflop.getHoleTable();
+		}
+		catch (BayesError e)
+		{
+			throw new IllegalStateException("no hole prior", e);
+		}
 
 		for (Card c : cards.getCards())
 		{
@@ -1462,7 +1483,7 @@ public class LoosePokerNetTable extends StateTable
 			for (int j = 0; j < allHoles[0].length; j++)
 			{
 				if (allHoles[0][j].equals(c) || allHoles[1][j].equals(c))
-					f.getData()[j] = 0.0;
+					table[j] = 0.0;
 			}
 		}
 
@@ -1470,7 +1491,15 @@ public class LoosePokerNetTable extends StateTable
 			if (!folded[i])
 				updateDraws(i);
 
-		f.normalize();
+		new Distribution("", PokerNet.fullHoles, table).normalize();
+		try
+		{
+			postflop.setHoleTable(table);
+		}
+		catch (BayesError e)
+		{
+			throw new IllegalStateException("no hole prior", e);
+		}
 	}
 
 
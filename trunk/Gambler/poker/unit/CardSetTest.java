@@ -0,0 +1,129 @@
+
+package poker.unit;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import poker.ai.core.Card;
+import poker.ai.core.CardSet;
+import poker.ai.core.Hand;
+import poker.ai.core.HandEval;
+import poker.common.PokerError;
+
+
+public class CardSetTest extends TestCase
+{
+
+	public void testCardSet()
+	{
+		try
+		{
+			long s = CardSet.parse("Tc", "3s", "Ah");
+			assertEquals(3, CardSet.size(s));
+			assertTrue(CardSet.contains(s, Card.fromString("3s", false)
+					.getIndex()));
+			assertFalse(CardSet.contains(s, Card.fromString("3c", false)
+					.getIndex()));
+			assertEquals(CardSet.card(8, 0), Card.fromString("Tc", false)
+					.getIndex());
+			assertEquals("3s Tc Ah", CardSet.toString(s));
+			assertEquals(s, CardSet.of(new Hand("Ah", "Tc", "3s")));
+			assertEquals(s, CardSet.of(CardSet.toHand(s)));
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testFiveCardClasses()
+	{
+		int[] counts = new int[9];
+		Set<Integer> values = new HashSet<Integer>();
+		for (int a = 0; a < 52; a++)
+			for (int b = a + 1; b < 52; b++)
+				for (int c = b + 1; c < 52; c++)
+					for (int d = c + 1; d < 52; d++)
+						for (int e = d + 1; e < 52; e++)
+						{
+							int v = HandEval.eval(CardSet.of(a, b, c, d, e));
+							counts[HandEval.handClass(v)]++;
+							values.add(v);
+						}
+
+		int[] known = { 1302540, 1098240, 123552, 54912, 10200, 5108, 3744,
+				624, 40 };
+		for (int i = 0; i < known.length; i++)
+			assertEquals(known[i], counts[i]);
+		assertEquals(7462, values.size());
+	}
+
+
+	public void testOrdering()
+	{
+		try
+		{
+			assertTrue(eval("Ac", "2d", "3h", "4s", "5c") < eval("2d", "3h",
+					"4s", "5c", "6d"));
+			assertTrue(eval("Ac", "Kc", "Qc", "Jc", "9c") > eval("Ad", "Kd",
+					"Qd", "Jd", "Ts", "2c", "3c"));
+			assertTrue(eval("Ac", "Ad", "Kc", "Kd", "Qs", "Qh", "Js") > eval(
+					"Ac", "Ad", "Kc", "Kd", "Ts", "Th", "9s"));
+			assertEquals(eval("Ac", "Ad", "5c", "6d", "9s", "Th", "Js"), eval(
+					"Ah", "As", "5d", "6c", "9h", "Ts", "Jc"));
+			assertTrue(eval("7c", "7d", "7h", "5c", "5d", "5h", "2s") > eval(
+					"6c", "6d", "6h", "Ac", "Ad", "Kh", "Ks"));
+			assertEquals(HandEval.STRAIGHT, HandEval.handClass(eval("9c",
+					"9d", "9h", "Tc", "Jd", "Qh", "Ks")));
+			assertEquals(HandEval.SFLUSH, HandEval.handClass(eval("Ac", "2c",
+					"3c", "4c", "5c", "6d", "7h")));
+			assertTrue(eval("2c", "3c", "4c", "5c", "6c") > eval("Ac", "2c",
+					"3c", "4c", "5c"));
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testBestOfSeven()
+	{
+		Random r = new Random(5);
+		int[] cards = new int[7];
+		for (int n = 0; n < 20000; n++)
+		{
+			long set = 0;
+			for (int i = 0; i < 7; i++)
+			{
+				int c;
+				do
+					c = r.nextInt(52);
+				while (CardSet.contains(set, c));
+				cards[i] = c;
+				set |= CardSet.bit(c);
+			}
+
+			int best = -1;
+			for (int i = 0; i < 7; i++)
+				for (int j = i + 1; j < 7; j++)
+				{
+					long five = set & ~CardSet.bit(cards[i])
+							& ~CardSet.bit(cards[j]);
+					best = Math.max(best, HandEval.eval(five));
+				}
+			assertEquals(best, HandEval.eval(set));
+		}
+	}
+
+
+	private int eval(String... cards) throws PokerError
+	{
+		return HandEval.eval(CardSet.parse(cards));
+	}
+}
@@ -0,0 +1,195 @@
+
+package poker.unit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import poker.ai.core.CardSet;
+import poker.ai.core.EquityCache;
+import poker.ai.core.HandStrength;
+import poker.ai.core.SuitIsomorphism;
+import poker.common.PokerError;
+
+
+public class EquityCacheTest extends TestCase
+{
+
+	public void testCanonicalCounts()
+	{
+		Set<Long> holes = new HashSet<Long>();
+		int flops = 0;
+		for (int c1 = 0; c1 < 52; c1++)
+			for (int c2 = c1 + 1; c2 < 52; c2++)
+			{
+				holes.add(SuitIsomorphism.canonical(c1, c2, 0));
+				for (int a = 0; a < 52; a++)
+					for (int b = a + 1; b < 52; b++)
+						for (int c = b + 1; c < 52; c++)
+						{
+							long board = CardSet.of(a, b, c);
+							if (CardSet.contains(board, c1)
+									|| CardSet.contains(board, c2))
+								continue;
+							if (SuitIsomorphism.isCanonical(SuitIsomorphism
+									.key(c1, c2, board)))
+								flops++;
+						}
+			}
+		assertEquals(169, holes.size());
+		assertEquals(1286792, flops);
+	}
+
+
+	public void testIsomorphicDeals()
+	{
+		Random r = new Random(11);
+		HandStrength hs = new HandStrength();
+		try
+		{
+			for (int n = 0; n < 20; n++)
+			{
+				int[] deal = deal(r, 6);
+				int[] perm = permutation(r);
+				int[] other = new int[deal.length];
+				for (int i = 0; i < deal.length; i++)
+					other[i] = (deal[i] & ~3) | perm[deal[i] & 3];
+
+				long k1 = SuitIsomorphism.canonical(deal[0], deal[1],
+						board(deal));
+				long k2 = SuitIsomorphism.canonical(other[0], other[1],
+						board(other));
+				assertEquals(k1, k2);
+				assertTrue(SuitIsomorphism.isCanonical(k1));
+
+				hs.compute(deal[0], deal[1], board(deal));
+				double s1 = hs.getStrength();
+				double p1 = hs.getPositive();
+				hs.compute(other[0], other[1], board(other));
+				assertEquals(s1, hs.getStrength(), 0.0);
+				assertEquals(p1, hs.getPositive(), 0.0);
+			}
+
+			/* a flush draw is not a rainbow */
+			assertFalse(SuitIsomorphism.canonical(CardSet.card(12, 0), CardSet
+					.card(11, 0), CardSet.parse("2c", "7c", "9d")) == SuitIsomorphism
+					.canonical(CardSet.card(12, 0), CardSet.card(11, 0), CardSet
+							.parse("2h", "7c", "9d")));
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testCacheFile()
+	{
+		File f = null;
+		try
+		{
+			f = File.createTempFile("equity", ".cache");
+			f.delete();
+			EquityCache cache = new EquityCache(f, 4);
+			HandStrength hs = new HandStrength();
+			hs.setCache(cache);
+
+			long board = CardSet.parse("Tc", "3s", "5d");
+			int c1 = CardSet.card(12, 0);
+			int c2 = CardSet.card(11, 1);
+			hs.compute(c1, c2, board);
+			double s = hs.getStrength();
+			double p = hs.getPositive();
+			assertEquals(1, cache.size());
+
+			/* same deal with clubs and hearts swapped */
+			hs.compute(CardSet.card(12, 2), c2, CardSet.parse("Th", "3s",
+					"5d"));
+			assertEquals(1, cache.size());
+			assertEquals(s, hs.getStrength(), 1e-6);
+			assertEquals(p, hs.getPositive(), 1e-6);
+
+			cache.close();
+			cache = new EquityCache(f, 0);
+			assertEquals(1, cache.size());
+			double[] v = new double[3];
+			assertTrue(cache.get(SuitIsomorphism.canonical(c1, c2, board), v));
+			assertEquals(s, v[0], 1e-6);
+
+			/* a second opener, as another process would */
+			EquityCache other = new EquityCache(f, 0);
+			long key = SuitIsomorphism.key(0, 1, 1L << 40);
+			assertTrue(other.put(key, 0.5, 0, 0));
+			assertEquals(2, cache.size());
+			assertTrue(cache.get(key, v));
+			assertEquals(0.5, v[0], 1e-6);
+
+			/* three quarters of 16 slots, counted over both */
+			for (int i = 0; i < 20; i++)
+				cache.put(SuitIsomorphism.key(0, 1, 1L << (i + 8)), 0, 0, 0);
+			assertEquals(12, cache.size());
+			assertEquals(12, other.size());
+			assertFalse(other.put(SuitIsomorphism.key(0, 1, 1L << 41), 0, 0,
+					0));
+			other.close();
+			cache.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+		finally
+		{
+			if (f != null)
+				f.delete();
+		}
+	}
+
+
+	private int[] deal(Random r, int n)
+	{
+		int[] c = new int[n];
+		long dealt = 0;
+		for (int i = 0; i < n; i++)
+		{
+			do
+				c[i] = r.nextInt(52);
+			while (CardSet.contains(dealt, c[i]));
+			dealt |= CardSet.bit(c[i]);
+		}
+		return c;
+	}
+
+
+	private long board(int[] deal)
+	{
+		long b = 0;
+		for (int i = 2; i < deal.length; i++)
+			b |= CardSet.bit(deal[i]);
+		return b;
+	}
+
+
+	private int[] permutation(Random r)
+	{
+		int[] p = { 0, 1, 2, 3 };
+		for (int i = 3; i > 0; i--)
+		{
+			int j = r.nextInt(i + 1);
+			int t = p[i];
+			p[i] = p[j];
+			p[j] = t;
+		}
+		return p;
+	}
+}
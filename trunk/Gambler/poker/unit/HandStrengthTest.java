@@ -0,0 +1,154 @@
+
+package poker.unit;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import poker.ai.core.Card;
+import poker.ai.core.CardSet;
+import poker.ai.core.HandEval;
+import poker.ai.core.HandStrength;
+import poker.common.PokerError;
+
+
+public class HandStrengthTest extends TestCase
+{
+
+	public void testAgainstEnumeration()
+	{
+		Random r = new Random(3);
+		HandStrength serial = new HandStrength(new ForkJoinPool(1));
+		HandStrength parallel = new HandStrength(new ForkJoinPool(4));
+
+		try
+		{
+			for (int nb = 3; nb <= 5; nb++)
+				for (int n = 0; n < 4; n++)
+				{
+					long dealt = 0;
+					int[] c = new int[nb + 2];
+					for (int i = 0; i < c.length; i++)
+					{
+						do
+							c[i] = r.nextInt(52);
+						while (CardSet.contains(dealt, c[i]));
+						dealt |= CardSet.bit(c[i]);
+					}
+					long board = dealt & ~CardSet.bit(c[0]) & ~CardSet.bit(c[1]);
+
+					double[] want = enumerate(c[0], c[1], board);
+					serial.compute(c[0], c[1], board);
+					parallel.compute(c[0], c[1], board);
+					for (HandStrength hs : new HandStrength[] { serial,
+							parallel })
+					{
+						assertEquals(want[0], hs.getStrength(), 1e-12);
+						assertEquals(want[1], hs.getPositive(), 1e-12);
+						assertEquals(want[2], hs.getNegative(), 1e-12);
+					}
+					if (nb == 5)
+						assertEquals(0.0, serial.getPositive());
+				}
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testNuts()
+	{
+		try
+		{
+			HandStrength hs = new HandStrength();
+			hs.compute(card("Ac"), card("Kc"), CardSet.parse("Qc", "Jc", "Tc"));
+			assertEquals(1.0, hs.getStrength());
+			assertEquals(0.0, hs.getNegative());
+			assertEquals(1.0, hs.getEffective());
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testBadBoard()
+	{
+		HandStrength hs = new HandStrength();
+		try
+		{
+			hs.compute(card("Ac"), card("Kc"), CardSet.parse("Ac", "Jc", "Tc"));
+			fail();
+		}
+		catch (PokerError e)
+		{
+		}
+		try
+		{
+			hs.compute(card("Ac"), card("Kc"), CardSet.parse("Qc", "Jc"));
+			fail();
+		}
+		catch (PokerError e)
+		{
+		}
+	}
+
+
+	/**
+	 * Hand strength and potentials by plain nested loops.
+	 */
+	private double[] enumerate(int c1, int c2, long board)
+	{
+		long dead = board | CardSet.bit(c1) | CardSet.bit(c2);
+		double[][] hp = new double[3][3];
+		double[] hpt = new double[3];
+		double[] cards = new double[3];
+		int ours = HandEval.eval(c1, c2, board);
+
+		for (int i = 0; i < 52; i++)
+			for (int j = i + 1; j < 52; j++)
+			{
+				if (CardSet.contains(dead, i) || CardSet.contains(dead, j))
+					continue;
+				int idx = standing(ours, HandEval.eval(i, j, board));
+				hpt[idx]++;
+				if (CardSet.size(board) == 5)
+					continue;
+				for (int k = 0; k < 52; k++)
+				{
+					if ((k == i) || (k == j) || CardSet.contains(dead, k))
+						continue;
+					long b = board | CardSet.bit(k);
+					hp[idx][standing(HandEval.eval(c1, c2, b), HandEval.eval(
+							i, j, b))]++;
+					cards[idx]++;
+				}
+			}
+
+		double hs = (hpt[0] + hpt[2] / 2) / (hpt[0] + hpt[1] + hpt[2]);
+		double up = cards[1] + cards[2] / 2;
+		double down = cards[0] + cards[2] / 2;
+		double ppot = (up > 0) ? (hp[1][0] + hp[1][2] / 2 + hp[2][0] / 2)
+				/ up : 0;
+		double npot = (down > 0) ? (hp[0][1] + hp[0][2] / 2 + hp[2][1] / 2)
+				/ down : 0;
+		return new double[] { hs, ppot, npot };
+	}
+
+
+	private int standing(int ours, int theirs)
+	{
+		return (ours > theirs) ? 0 : ((ours < theirs) ? 1 : 2);
+	}
+
+
+	private int card(String c) throws PokerError
+	{
+		return Card.fromString(c, false).getIndex();
+	}
+}
@@ -0,0 +1,250 @@
+
+package poker.unit;
+
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import poker.ai.core.Card;
+import poker.ai.core.CardSet;
+import poker.ai.core.HandEval;
+import poker.ai.core.MultiwayEquity;
+import poker.ai.core.PreflopEquity;
+import poker.common.PokerError;
+
+
+public class MultiwayEquityTest extends TestCase
+{
+
+	public void testAgainstEnumeration()
+	{
+		try
+		{
+			MultiwayEquity mc = new MultiwayEquity(new ForkJoinPool(2));
+			mc.setSeed(1);
+			mc.setWidth(0.004);
+
+			int c1 = card("Jh"), c2 = card("Th");
+			long board = CardSet.parse("9h", "8c", "2h", "Ks", "4d");
+			mc.compute(c1, c2, board, 2, 60000);
+			assertEquals(enumerate(c1, c2, board), mc.getEquity(), 3 * mc
+					.getError());
+			assertTrue(2 * mc.getError() <= 0.004);
+
+			c1 = card("As");
+			c2 = card("Qd");
+			board = CardSet.parse("Qc", "7s", "3s");
+			mc.compute(c1, c2, board, 1, 60000);
+			assertEquals(enumerate(c1, c2, board), mc.getEquity(), 3 * mc
+					.getError());
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testBoardPlays()
+	{
+		try
+		{
+			MultiwayEquity mc = new MultiwayEquity();
+			mc.compute(card("2c"), card("3d"), CardSet.parse("Ah", "Kh", "Qh",
+					"Jh", "Th"), 4, 1000);
+			assertEquals(0.2, mc.getEquity(), 1e-12);
+			assertEquals(1.0, mc.getTie());
+			assertEquals(0.0, mc.getError(), 1e-6);
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testRanges()
+	{
+		try
+		{
+			MultiwayEquity mc = new MultiwayEquity();
+			double[] aces = new double[PreflopEquity.COMBOS];
+			double[] kings = new double[PreflopEquity.COMBOS];
+			for (int h = 0; h < PreflopEquity.COMBOS; h++)
+			{
+				int c = PreflopEquity.holeClass(h);
+				aces[h] = (c == 12) ? 1 : 0;
+				kings[h] = (c == 11) ? 1 : 0;
+			}
+
+			long board = CardSet.parse("2c", "7d", "9h", "Js", "3c");
+			mc.compute(card("Qc"), card("Qd"), board, new double[][] { kings,
+					kings }, 1000);
+			assertEquals(0.0, mc.getEquity());
+
+			mc.compute(card("Qc"), card("Qd"), board, new double[][] { aces,
+					null, kings }, 1000);
+			assertEquals(0.0, mc.getEquity());
+			assertTrue(mc.getSamples() > 0);
+
+			assertEquals(0, mc.getFailures());
+
+			try
+			{
+				mc.compute(card("Ac"), card("Ad"), board, new double[][] {
+						aces, aces }, 1000);
+				fail();
+			}
+			catch (PokerError e)
+			{
+				assertTrue(mc.getFailures() > 0);
+			}
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testFailures()
+	{
+		try
+		{
+			MultiwayEquity mc = new MultiwayEquity();
+			long board = CardSet.parse("2c", "7d", "9h");
+			int ah = card("Ah"), as = card("As");
+			double[] one = new double[PreflopEquity.COMBOS];
+			double[] rare = new double[PreflopEquity.COMBOS];
+			one[PreflopEquity.combo(ah, as)] = 1;
+			rare[PreflopEquity.combo(ah, as)] = 1;
+			rare[PreflopEquity.combo(card("Kh"), card("Ks"))] = 1e-3;
+
+			/* a third of the deals fail, which is too many to trust */
+			try
+			{
+				mc.compute(card("Qc"), card("Qd"), board, new double[][] {
+						rare, one }, 1000);
+				fail();
+			}
+			catch (PokerError e)
+			{
+				assertTrue(mc.getSamples() > 0);
+				assertTrue(mc.getFailures() > 0);
+			}
+
+			/* opponents without ranges are kept off each other's cards too */
+			mc.compute(card("Qc"), card("Qd"), board, new double[][] { one,
+					null, null }, 1000);
+			assertEquals(0, mc.getFailures());
+			assertTrue(mc.getEquity() < 0.1);
+
+			/* opponents without ranges never fail, even at a full table */
+			mc.compute(card("Qc"), card("Qd"), 0L, 11, 200);
+			assertEquals(0, mc.getFailures());
+			assertTrue(mc.getSamples() > 0);
+			mc.compute(card("Qc"), card("Qd"), board, MultiwayEquity.MAX_OPP,
+					200);
+			assertEquals(0, mc.getFailures());
+			assertTrue(mc.getSamples() > 0);
+			mc.compute(card("Qc"), card("Qd"), board, new double[][] { one,
+					null, null, null, null, null, null, null, null, null,
+					null, null }, 200);
+			assertEquals(0, mc.getFailures());
+			assertTrue(mc.getEquity() < 0.1);
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	public void testDeadline()
+	{
+		try
+		{
+			MultiwayEquity mc = new MultiwayEquity();
+			mc.setWidth(0);
+			long start = System.currentTimeMillis();
+			mc.compute(card("Ac"), card("Kc"), 0, 6, 50);
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			assertTrue(mc.getSamples() > 0);
+			assertTrue(mc.getError() > 0);
+		}
+		catch (PokerError e)
+		{
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+
+	/**
+	 * Equity against one or two random hands by plain nested loops.
+	 */
+	private double enumerate(int c1, int c2, long board)
+	{
+		long dead = board | CardSet.bit(c1) | CardSet.bit(c2);
+		double sum = 0;
+		long n = 0;
+		if (CardSet.size(board) == 5)
+		{
+			int ours = HandEval.eval(c1, c2, board);
+			for (int a = 0; a < 52; a++)
+				for (int b = a + 1; b < 52; b++)
+				{
+					if (CardSet.contains(dead, a) || CardSet.contains(dead, b))
+						continue;
+					int x = HandEval.eval(a, b, board);
+					for (int c = 0; c < 52; c++)
+						for (int d = c + 1; d < 52; d++)
+						{
+							if ((c == a) || (c == b) || (d == a) || (d == b)
+									|| CardSet.contains(dead, c)
+									|| CardSet.contains(dead, d))
+								continue;
+							int y = HandEval.eval(c, d, board);
+							int best = Math.max(x, y);
+							int ways = 1 + ((x == best) ? 1 : 0)
+									+ ((y == best) ? 1 : 0);
+							sum += (ours > best) ? 1.0
+									: ((ours == best) ? 1.0 / ways : 0.0);
+							n++;
+						}
+				}
+			return sum / n;
+		}
+
+		for (int a = 0; a < 52; a++)
+			for (int b = a + 1; b < 52; b++)
+			{
+				if (CardSet.contains(dead, a) || CardSet.contains(dead, b))
+					continue;
+				for (int c = 0; c < 52; c++)
+					for (int d = c + 1; d < 52; d++)
+					{
+						if ((c == a) || (c == b) || (d == a) || (d == b)
+								|| CardSet.contains(dead, c)
+								|| CardSet.contains(dead, d))
+							continue;
+						long full = board | CardSet.bit(c) | CardSet.bit(d);
+						int ours = HandEval.eval(c1, c2, full);
+						int theirs = HandEval.eval(a, b, full);
+						sum += (ours > theirs) ? 1.0
+								: ((ours == theirs) ? 0.5 : 0.0);
+						n++;
+					}
+			}
+		return sum / n;
+	}
+
+
+	private int card(String c) throws PokerError
+	{
+		return Card.fromString(c, false).getIndex();
+	}
+}
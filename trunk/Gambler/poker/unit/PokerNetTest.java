@@ -0,0 +1,81 @@
+
+package poker.unit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import poker.ai.bnet.PokerNet;
+import poker.ai.bnet.loose.SPreflopNet;
+import bayes.BayesError;
+import bayes.BayesNode;
+import bayes.Distribution;
+import bayes.EMLearner;
+
+
+public class PokerNetTest extends TestCase
+{
+
+	public void testRefit()
+	{
+		try
+		{
+			SPreflopNet net = new SPreflopNet();
+			net.buildNetwork();
+			net.buildQueries();
+			double before = holeChance(net, "AA");
+
+			/* a corpus in which whoever raises early holds aces */
+			EMLearner enc = new EMLearner(net.getNetwork());
+			Map<String, String> ev = evidence();
+			ev.put("hole", "AA");
+			List<int[]> hands = new ArrayList<int[]>();
+			for (int i = 0; i < 200; i++)
+				hands.add(enc.encode(ev));
+			net.refit(hands, 5, 1e-6);
+			double after = holeChance(net, "AA");
+			assertTrue(after > before + 0.1);
+
+			/* a fresh network with the refit tables agrees */
+			SPreflopNet fresh = new SPreflopNet();
+			fresh.buildNetwork();
+			BayesNode[] vars = net.getNetwork().getVars();
+			for (BayesNode v : vars)
+				fresh.getNetwork().getNode(v.getVariable()).setConditional(
+						v.getConditional().clone());
+			fresh.buildQueries();
+			assertEquals(holeChance(fresh, "AA"), after, 1e-9);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * @return chance of a hole pair behind an early, unraised raise
+	 */
+	private double holeChance(PokerNet net, String hole)
+	{
+		Map<String, Distribution> qmap = new HashMap<String, Distribution>();
+		qmap.put("hole", null);
+		net.compute("hole", evidence(), new HashMap<String, Distribution>(),
+				qmap);
+		return qmap.get("hole").values[PokerNet.holeIndex(hole)];
+	}
+
+
+	private Map<String, String> evidence()
+	{
+		Map<String, String> ev = new HashMap<String, String>();
+		ev.put("pos", "E");
+		ev.put("action", "NR");
+		ev.put("in_pot", "not_3");
+		ev.put("strat", "R");
+		return ev;
+	}
+}
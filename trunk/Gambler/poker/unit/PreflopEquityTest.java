@@ -0,0 +1,164 @@
+
+package poker.unit;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import poker.ai.bnet.PokerNet;
+import poker.ai.core.Card;
+import poker.ai.core.PreflopEquity;
+import poker.common.PokerError;
+
+
+public class PreflopEquityTest extends TestCase
+{
+
+	public void testIndexes()
+	{
+		for (int h = 0; h < PreflopEquity.COMBOS; h++)
+		{
+			String s = PokerNet.fullHoles[h];
+			int c1 = index(s.substring(2)), c2 = index(s.substring(0, 2));
+			assertEquals(h, PreflopEquity.combo(c1, c2));
+			assertEquals(h, PreflopEquity.combo(c2, c1));
+			assertEquals(c1, PreflopEquity.first(h));
+			assertEquals(c2, PreflopEquity.second(h));
+
+			String name;
+			if (s.charAt(0) == s.charAt(2))
+				name = s.substring(0, 1) + s.substring(0, 1);
+			else
+				name = s.substring(0, 1) + s.substring(2, 3)
+						+ ((s.charAt(1) == s.charAt(3)) ? "s" : "u");
+			assertEquals(name, PokerNet.holePairs[PreflopEquity.holeClass(h)]);
+		}
+	}
+
+
+	public void testKnownMatchups()
+	{
+		assertEquals(0.8126, equity("Ah", "As", "Kc", "Kd"), 1e-4);
+		assertEquals(0.8126, equity("Ac", "Ad", "Kh", "Ks"), 1e-4);
+		assertEquals(0.8264, equity("Ac", "Ad", "Kc", "Kd"), 1e-4);
+		assertEquals(0.9257, equity("Ah", "As", "Ad", "Kc"), 1e-4);
+		assertEquals(0.5, equity("Ah", "Kh", "Ac", "Kc"), 0.0);
+		assertEquals(0.5, equity("7h", "2c", "7d", "2s"), 0.0);
+		assertEquals(0.88, PreflopEquity.classEquity(PokerNet
+				.holeIndex("AA"), PokerNet.holeIndex("72u")), 0.01);
+	}
+
+
+	public void testSymmetry()
+	{
+		Random r = new Random(7);
+		for (int n = 0; n < 10000; n++)
+		{
+			int h = r.nextInt(PreflopEquity.COMBOS);
+			int o = r.nextInt(PreflopEquity.COMBOS);
+			int[] a = cards(h), b = cards(o);
+			if ((a[0] == b[0]) || (a[0] == b[1]) || (a[1] == b[0])
+					|| (a[1] == b[1]))
+			{
+				assertEquals(0.0, PreflopEquity.equity(h, o));
+				continue;
+			}
+
+			assertEquals(1.0, PreflopEquity.equity(h, o)
+					+ PreflopEquity.equity(o, h), 1e-6);
+			int[] p = { 3, 1, 0, 2 };
+			int h2 = PreflopEquity.combo(permute(a[0], p), permute(a[1], p));
+			int o2 = PreflopEquity.combo(permute(b[0], p), permute(b[1], p));
+			assertEquals(PreflopEquity.equity(h, o), PreflopEquity.equity(h2,
+					o2), 1e-6);
+		}
+	}
+
+
+	public void testRanges()
+	{
+		Random r = new Random(11);
+		double[] hero = new double[PreflopEquity.COMBOS];
+		double[] villain = new double[PreflopEquity.COMBOS];
+		for (int h = 0; h < PreflopEquity.COMBOS; h++)
+		{
+			hero[h] = (r.nextInt(4) == 0) ? r.nextDouble() : 0;
+			villain[h] = (r.nextInt(3) == 0) ? r.nextDouble() : 0;
+		}
+
+		double sum = 0, total = 0;
+		for (int h = 0; h < PreflopEquity.COMBOS; h++)
+		{
+			double s = 0, t = 0;
+			int[] a = cards(h);
+			for (int o = 0; o < PreflopEquity.COMBOS; o++)
+			{
+				int[] b = cards(o);
+				if ((a[0] == b[0]) || (a[0] == b[1]) || (a[1] == b[0])
+						|| (a[1] == b[1]))
+					continue;
+				s += villain[o] * PreflopEquity.equity(h, o);
+				t += villain[o];
+			}
+			if (h % 97 == 0)
+				assertEquals(s / t, PreflopEquity.equity(h, villain), 1e-9);
+			sum += hero[h] * s;
+			total += hero[h] * t;
+		}
+		assertEquals(sum / total, PreflopEquity.equity(hero, villain), 1e-9);
+	}
+
+
+	public void testClassRanges()
+	{
+		double[] hero = new double[PreflopEquity.COMBOS];
+		double[] all = new double[PreflopEquity.COMBOS];
+		double[] aces = new double[PreflopEquity.CLASSES];
+		double[] sizes = new double[PreflopEquity.CLASSES];
+		for (int h = 0; h < PreflopEquity.COMBOS; h++)
+		{
+			int c = PreflopEquity.holeClass(h);
+			hero[h] = (c == 12) ? 1 : 0;
+			all[h] = 1;
+			sizes[c]++;
+		}
+		aces[12] = 1;
+
+		assertEquals(PreflopEquity.equity(hero, all), PreflopEquity
+				.classEquity(aces, sizes), 1e-6);
+		assertEquals(0.5, PreflopEquity.classEquity(sizes, sizes), 1e-6);
+		assertEquals(0.5, PreflopEquity.equity(all, all), 1e-6);
+	}
+
+
+	private double equity(String a1, String a2, String b1, String b2)
+	{
+		return PreflopEquity.equity(PreflopEquity.combo(index(a1), index(a2)),
+				PreflopEquity.combo(index(b1), index(b2)));
+	}
+
+
+	private int[] cards(int combo)
+	{
+		return new int[] { PreflopEquity.first(combo),
+				PreflopEquity.second(combo) };
+	}
+
+
+	private int permute(int card, int[] p)
+	{
+		return (card & ~3) | p[card & 3];
+	}
+
+
+	private int index(String c)
+	{
+		try
+		{
+			return Card.fromString(c, false).getIndex();
+		}
+		catch (PokerError e)
+		{
+			throw new IllegalArgumentException(c);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * EliminateBench.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bayes.BayesError;
+import bayes.BayesNet;
+import bayes.BayesNode;
+import bayes.BucketTree;
+import bayes.Distribution;
+import bayes.EliminationPlan;
+import bayes.Ordering;
+import bayes.ProbFunction;
+import bayes.Query;
+
+
+/**
+ * Bucket elimination of each fixed network's forward query, the way
+ * Query.solve() runs it: once interpreted by BucketTree, once through a
+ * compiled EliminationPlan, and as a whole solve whose plan and solution
+ * are cached except for the evidence, which changes on every call.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EliminateBench
+{
+
+	/** network, one of Nets.NAMES */
+	@Param( { "medical", "preflop", "postflop" })
+	public String			net;
+
+	/** whether densities are sliced at the evidence first */
+	@Param( { "false", "true" })
+	public boolean			slice;
+
+	/** the interpreted elimination */
+	private BucketTree		tree;
+
+	/** the compiled elimination */
+	private EliminationPlan	plan;
+
+	/** the forward query */
+	private Query			query;
+
+	/** network of the query */
+	private BayesNet		qnet;
+
+	/** query variable whose marginal solve() returns */
+	private String			marginal;
+
+	/** observed variable solve() changes, and the states it alternates */
+	private String			flip;
+
+	/** states of the changed variable */
+	private String[]		flipStates;
+
+	/** number of solves so far */
+	private int				calls;
+
+
+	/**
+	 * Order the network and build the elimination.
+	 *
+	 * @throws BayesError
+	 */
+	@Setup
+	public void setup() throws BayesError
+	{
+		BayesNet n = Nets.named(net);
+		String[] qvars = Nets.observeForward(n);
+		Ordering ord = new Ordering(n);
+		ord.order(qvars);
+		tree = new BucketTree(n, ord, qvars.length, slice);
+		plan = new EliminationPlan(n, ord, qvars.length, slice);
+
+		qnet = Nets.named(net);
+		qvars = Nets.observeForward(qnet);
+		String[] obs = observed(qnet);
+		query = new Query("fwd", qnet, qvars);
+		query.setObserved(obs);
+		query.setQueried(qvars);
+		query.setPrior();
+		query.setEvidenceSlicing(slice);
+		marginal = qvars[0];
+		flip = obs[0];
+		flipStates = qnet.getNode(flip).getDistribution().states;
+	}
+
+
+	/**
+	 * @return names of the observed variables of a network
+	 */
+	private static String[] observed(BayesNet net)
+	{
+		int n = 0;
+		for (BayesNode v : net.getVars())
+			if (v.isObserved())
+				n++;
+		String[] obs = new String[n];
+		n = 0;
+		for (BayesNode v : net.getVars())
+			if (v.isObserved())
+				obs[n++] = v.getVariable();
+		return obs;
+	}
+
+
+	/**
+	 * @return solution density of the interpreted elimination
+	 * @throws BayesError
+	 */
+	@Benchmark
+	public ProbFunction eliminate() throws BayesError
+	{
+		return tree.eliminate();
+	}
+
+
+	/**
+	 * @return solution density of the compiled elimination, every bucket
+	 *         re-run (the plan would otherwise skip them all as unchanged)
+	 * @throws BayesError
+	 */
+	@Benchmark
+	public ProbFunction execute() throws BayesError
+	{
+		plan.invalidate();
+		return plan.execute();
+	}
+
+
+	/**
+	 * @return marginal of a query variable, after a change of evidence
+	 * @throws BayesError
+	 */
+	@Benchmark
+	public Distribution solve() throws BayesError
+	{
+		qnet.getNode(flip).observe(flipStates[calls++ & 1]);
+		query.solve();
+		return query.getMarginal(marginal);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * FactorBench.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bayes.BayesError;
+import bayes.BayesNode;
+import bayes.ProbFunction;
+
+
+/**
+ * Factor products and marginals over factors of growing arity. Two factors
+ * of the given arity share half their variables, as the densities pooled in
+ * one bucket usually do; the product thus spans one and a half times the
+ * arity. Variables are binary, so the product of arity 12 has 2^18 cells.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactorBench
+{
+
+	/** number of variables of each factor */
+	@Param( { "2", "4", "6", "8", "10", "12" })
+	public int				arity;
+
+	/** first factor */
+	private ProbFunction	f;
+
+	/** second factor, sharing the last half of f's variables */
+	private ProbFunction	g;
+
+	/** the variable f and g share first */
+	private BayesNode		shared;
+
+	/** the first half of f's variables */
+	private BayesNode[]		half;
+
+
+	/**
+	 * Build the factors.
+	 *
+	 * @throws BayesError
+	 */
+	@Setup
+	public void setup() throws BayesError
+	{
+		int nv = arity + arity / 2;
+		BayesNode[] v = new BayesNode[nv];
+		for (int i = 0; i < nv; i++)
+			v[i] = new BayesNode("v" + i, "T", "F");
+
+		int lo = arity / 2;
+		Random r = new Random(1);
+		f = factor(r, v, 0, arity);
+		g = factor(r, v, lo, nv);
+		shared = v[lo];
+		half = new BayesNode[lo];
+		System.arraycopy(v, 0, half, 0, lo);
+	}
+
+
+	/**
+	 * @return a random factor over v[from..to)
+	 */
+	private static ProbFunction factor(Random r, BayesNode[] v, int from,
+			int to)
+	{
+		List<BayesNode> vars = new ArrayList<BayesNode>();
+		int len = 1;
+		for (int i = from; i < to; i++)
+		{
+			vars.add(v[i]);
+			len *= v[i].numStates();
+		}
+		double[] dist = new double[len];
+		for (int i = 0; i < len; i++)
+			dist[i] = r.nextDouble();
+		return new ProbFunction(vars, dist);
+	}
+
+
+	/**
+	 * @return product of the two factors
+	 */
+	@Benchmark
+	public ProbFunction multiply()
+	{
+		return ProbFunction.multiply(f, g);
+	}
+
+
+	/**
+	 * @return product of the two factors with a shared variable summed out
+	 */
+	@Benchmark
+	public ProbFunction multiplySumOut()
+	{
+		return ProbFunction.multiplySumOut(shared, f, g);
+	}
+
+
+	/**
+	 * @return first factor with half its variables summed out
+	 * @throws BayesError
+	 */
+	@Benchmark
+	public ProbFunction sumOut() throws BayesError
+	{
+		return f.sumOut(half);
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * GibbsBench.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bayes.BayesError;
+import bayes.BayesNet;
+import bayes.RunOnceControl;
+
+
+/**
+ * Gibbs (Markov blanket) sampling throughput, in iterations per second. An
+ * iteration samples every unobserved node once; with several chains, the
+ * iterations are split across them.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GibbsBench
+{
+
+	/** iterations per benchmark call */
+	private static final int	ITERATIONS	= 10000;
+
+	/** network, one of Nets.NAMES */
+	@Param( { "medical", "preflop", "postflop" })
+	public String				net;
+
+	/** whether the forward query's evidence is observed */
+	@Param( { "false", "true" })
+	public boolean				evidence;
+
+	/** the network */
+	private BayesNet			bn;
+
+	/** controller running ITERATIONS iterations */
+	private RunOnceControl		ctl;
+
+
+	/**
+	 * Build the network.
+	 *
+	 * @throws BayesError
+	 */
+	@Setup
+	public void setup() throws BayesError
+	{
+		bn = Nets.named(net);
+		if (evidence)
+			Nets.observeForward(bn);
+		ctl = new RunOnceControl(ITERATIONS, false);
+	}
+
+
+	/**
+	 * @return the network, sampled
+	 * @throws BayesError
+	 */
+	@Benchmark
+	@OperationsPerInvocation(ITERATIONS)
+	public BayesNet gibbs() throws BayesError
+	{
+		bn.markovBlanket(ctl);
+		return bn;
+	}
+
+
+	/**
+	 * @return the network, sampled by four parallel chains
+	 * @throws BayesError
+	 */
+	@Benchmark
+	@OperationsPerInvocation(ITERATIONS)
+	public BayesNet parallelGibbs() throws BayesError
+	{
+		bn.markovBlanket(ctl, 4);
+		return bn;
+	}
+}
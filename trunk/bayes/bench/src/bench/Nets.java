@@ -0,0 +1,200 @@
+/*
+ * Nets.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bench;
+
+import java.util.Random;
+
+import poker.ai.bnet.PokerNet;
+import poker.ai.bnet.loose.SPostflopNet;
+import poker.ai.bnet.loose.SPreflopNet;
+import bayes.BayesError;
+import bayes.BayesNet;
+import bayes.BayesNode;
+
+
+/**
+ * Networks the benchmarks run on: the five-node medical network of the unit
+ * tests, the Sklansky preflop and postflop poker networks, and random DAGs.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class Nets
+{
+
+	/** names of the fixed networks, as taken by named() */
+	public static final String[]	NAMES	= { "medical", "preflop",
+			"postflop"						};
+
+
+	/**
+	 * @param name
+	 *            one of NAMES
+	 * @return a freshly built network of that name
+	 * @throws BayesError
+	 */
+	public static BayesNet named(String name) throws BayesError
+	{
+		if (name.equals("medical"))
+			return medical();
+		if (name.equals("preflop"))
+			return preflop();
+		if (name.equals("postflop"))
+			return postflop();
+		throw new BayesError("no benchmark network '" + name + "'");
+	}
+
+
+	/**
+	 * @return the medical network: b,c depend on a; d on b,c; e on c
+	 * @throws BayesError
+	 */
+	public static BayesNet medical() throws BayesError
+	{
+		BayesNet net = new BayesNet("medical");
+		BayesNode a = new BayesNode("a", "T", "F");
+		BayesNode b = new BayesNode("b", "T", "F");
+		BayesNode c = new BayesNode("c", "T", "F");
+		BayesNode d = new BayesNode("d", "T", "F");
+		BayesNode e = new BayesNode("e", "T", "F");
+		b.addParent(a);
+		c.addParent(a);
+		d.addParent(c);
+		d.addParent(b);
+		e.addParent(c);
+		a.setPrior(.2, .8);
+		b.setConditional(new double[] { .8, .2, .2, .8 });
+		c.setConditional(new double[] { .2, .05, .8, .95 });
+		d.setConditional(new double[] { .8, .8, .8, .05, .2, .2, .2, .95 });
+		e.setConditional(new double[] { .8, .6, .2, .4 });
+		net.addNode(a);
+		net.addNode(b);
+		net.addNode(c);
+		net.addNode(d);
+		net.addNode(e);
+		return net;
+	}
+
+
+	/**
+	 * @return the preflop network, with the tables it is built with
+	 * @throws BayesError
+	 */
+	public static BayesNet preflop() throws BayesError
+	{
+		SPreflopNet n = new SPreflopNet();
+		n.buildNetwork();
+		return n.getNetwork();
+	}
+
+
+	/**
+	 * @return the postflop network, with the tables it is built with
+	 * @throws BayesError
+	 */
+	public static BayesNet postflop() throws BayesError
+	{
+		SPostflopNet n = new SPostflopNet();
+		n.buildNetwork();
+		return n.getNetwork();
+	}
+
+
+	/**
+	 * Observe the evidence of a fixed network's forward (strategy) query.
+	 *
+	 * @param net
+	 *            network built by named()
+	 * @return variables the forward query asks for
+	 * @throws BayesError
+	 */
+	public static String[] observeForward(BayesNet net) throws BayesError
+	{
+		String name = net.getName();
+		if (name.equals("medical"))
+		{
+			net.getNode("a").observe("T");
+			return new String[] { "d", "e" };
+		}
+		if (name.equals("sklansky_preflop"))
+		{
+			net.getNode("hole").observe(PokerNet.holePairs[0]);
+			net.getNode("pos").observe("L");
+			net.getNode("action").observe("R");
+			net.getNode("in_pot").observe("not_4");
+			return new String[] { "strat" };
+		}
+		net.getNode("hole").observe(PokerNet.fullHoles[0]);
+		net.getNode("action").observe("B");
+		return new String[] { "strat" };
+	}
+
+
+	/**
+	 * Build a random DAG. Each node picks its parents uniformly among the
+	 * nodes before it, and each column of its table is a random density.
+	 *
+	 * @param nodes
+	 *            number of nodes
+	 * @param parents
+	 *            largest number of parents of a node
+	 * @param states
+	 *            number of states of every node
+	 * @param seed
+	 *            random seed
+	 * @return network
+	 * @throws BayesError
+	 */
+	public static BayesNet randomDag(int nodes, int parents, int states,
+			long seed) throws BayesError
+	{
+		Random r = new Random(seed);
+		String[] names = new String[states];
+		for (int i = 0; i < states; i++)
+			names[i] = "s" + i;
+
+		BayesNet net = new BayesNet("random_" + nodes + "_" + parents);
+		BayesNode[] n = new BayesNode[nodes];
+		for (int i = 0; i < nodes; i++)
+		{
+			n[i] = new BayesNode("n" + i, names);
+			int np = Math.min(i, r.nextInt(parents + 1));
+			for (int k = 0; k < np; k++)
+			{
+				BayesNode p = n[r.nextInt(i)];
+				if (!n[i].getParents().contains(p))
+					n[i].addParent(p);
+			}
+
+			int cols = 1;
+			for (BayesNode p : n[i].getParents())
+				cols *= p.numStates();
+			n[i].setConditional(randomTable(r, states, cols));
+			net.addNode(n[i]);
+		}
+		return net;
+	}
+
+
+	/**
+	 * @return a conditional table of random column densities, laid out with
+	 *         the node's states slowest
+	 */
+	private static double[] randomTable(Random r, int states, int cols)
+	{
+		double[] t = new double[states * cols];
+		for (int c = 0; c < cols; c++)
+		{
+			double sum = 0.0;
+			for (int s = 0; s < states; s++)
+				sum += (t[s * cols + c] = 0.05 + r.nextDouble());
+			for (int s = 0; s < states; s++)
+				t[s * cols + c] /= sum;
+		}
+		return t;
+	}
+}
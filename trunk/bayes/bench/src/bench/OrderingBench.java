@@ -0,0 +1,101 @@
+/*
+ * OrderingBench.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bayes.BayesError;
+import bayes.BayesNet;
+import bayes.BayesNode;
+import bayes.Ordering;
+
+
+/**
+ * Elimination orderings of random DAGs under each heuristic. The ordering
+ * cache is cleared before every call, so each call orders from scratch; a
+ * fifth of the nodes are observed and two are queried.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderingBench
+{
+
+	/** number of nodes */
+	@Param( { "20", "50", "100" })
+	public int			nodes;
+
+	/** largest number of parents of a node */
+	@Param( { "2", "4" })
+	public int			parents;
+
+	/** MIN_WEIGHT, MIN_FILL or MIN_DEGREE */
+	@Param( { "0", "1", "2" })
+	public int			heuristic;
+
+	/** the ordering */
+	private Ordering	ord;
+
+	/** queried variables */
+	private String[]	qvars;
+
+
+	/**
+	 * Build the DAG and pick the evidence.
+	 *
+	 * @throws BayesError
+	 */
+	@Setup
+	public void setup() throws BayesError
+	{
+		BayesNet net = Nets.randomDag(nodes, parents, 3, 17);
+		BayesNode[] vars = net.getVars();
+		Random r = new Random(17);
+		for (int i = 0; i < vars.length / 5; i++)
+			vars[r.nextInt(vars.length)].observe("s0");
+
+		qvars = new String[] { vars[vars.length - 1].getVariable(),
+				vars[vars.length / 2].getVariable() };
+		vars[vars.length - 1].setObserved(false);
+		vars[vars.length / 2].setObserved(false);
+
+		ord = new Ordering(net);
+		ord.setHeuristic(heuristic);
+	}
+
+
+	/**
+	 * @return the elimination order
+	 * @throws BayesError
+	 */
+	@Benchmark
+	public BayesNode[] order() throws BayesError
+	{
+		ord.clearCache();
+		ord.order(qvars);
+		return ord.getOrder();
+	}
+}
@@ -0,0 +1,504 @@
+/*
+ * BatchPlan.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A compiled bucket elimination over a batch of K evidence and density sets,
+ * solved in one pass. The batch is an extra variable of K states, placed
+ * innermost in every density that varies over the batch, so each factor
+ * kernel multiplies and sums K entries as one contiguous run instead of
+ * being run K times.
+ * <p>
+ * Evidence is not sliced out of the densities (the entries may observe
+ * different states, or different variables): each variable observed in any
+ * entry gets an indicator density over its states and the batch, which is
+ * all ones for the entries that leave it unobserved. A node's density varies
+ * over the batch only if some entry replaces it; others are shared by every
+ * entry as they are.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class BatchPlan
+{
+
+	/** network nodes */
+	private BayesNode[]				vars;
+
+	/** index of each node by variable name */
+	private Map<String, Integer>	index;
+
+	/** number of batch entries */
+	private int						size;
+
+	/** pseudo-variable indexing the batch entries */
+	private BayesNode				batch;
+
+	/** query nodes, by index */
+	private int[]					query;
+
+	/** whether each node's density varies over the batch */
+	private boolean[]				batched;
+
+	/** nodes observed in some entry, by index */
+	private int[]					evid;
+
+	/** data length of each density at compile time */
+	private int[]					dataLen;
+
+	/** elimination steps, root last */
+	private Step[]					steps;
+
+	/** kernels summing the root down to each query variable and the batch */
+	private FactorKernel[]			marg;
+
+	/** output of each marginal kernel */
+	private double[][]				margOut;
+
+	/** batched densities and evidence indicators, interleaved by entry */
+	private double[][]				data;
+
+
+	/**
+	 * A single bucket: multiply the input densities and sum out the bucket
+	 * variable (if any) into the output buffer.
+	 */
+	private static class Step
+	{
+
+		/** input sources; >= 0 is a density, < 0 is step (-src - 1) */
+		int[]			src;
+
+		/** input data arrays, filled in at execution time */
+		double[][]		in;
+
+		/** fused product / sum-out kernel */
+		FactorKernel	kernel;
+
+		/** output buffer */
+		double[]		out;
+	}
+
+
+	/**
+	 * Compile a batch plan.
+	 *
+	 * @param vars
+	 *            network nodes
+	 * @param ord
+	 *            ordering to compute the elimination order with
+	 * @param query
+	 *            names of the query variables
+	 * @param obs
+	 *            observed states of each entry
+	 * @param dens
+	 *            replaced densities of each entry, or null for none
+	 * @throws BayesError
+	 *             if a variable does not exist, or the batch is empty
+	 */
+	BatchPlan(BayesNode[] vars, Ordering ord, String[] query,
+			List<Map<String, String>> obs, List<Map<String, Distribution>> dens)
+			throws BayesError
+	{
+		int n = vars.length;
+		this.vars = vars.clone();
+		this.size = obs.size();
+		if (size == 0)
+			throw new BayesError("empty batch");
+
+		index = new HashMap<String, Integer>();
+		for (int i = 0; i < n; i++)
+			index.put(vars[i].getVariable(), i);
+
+		boolean[] qmap = new boolean[n];
+		this.query = new int[query.length];
+		int nq = 0;
+		for (int i = 0; i < query.length; i++)
+		{
+			this.query[i] = indexOf(query[i]);
+			if (!qmap[this.query[i]])
+				nq++;
+			qmap[this.query[i]] = true;
+		}
+
+		boolean[] observed = new boolean[n];
+		for (Map<String, String> m : obs)
+			for (String v : m.keySet())
+				observed[indexOf(v)] = true;
+
+		batched = new boolean[n];
+		if (dens != null)
+			for (Map<String, Distribution> m : dens)
+				for (String v : m.keySet())
+					batched[indexOf(v)] = true;
+
+		int ne = 0;
+		for (boolean b : observed)
+			if (b)
+				ne++;
+		evid = new int[ne];
+		for (int i = 0, j = 0; i < n; i++)
+			if (observed[i])
+				evid[j++] = i;
+
+		String[] names = new String[size];
+		for (int b = 0; b < size; b++)
+			names[b] = Integer.toString(b);
+		batch = new BayesNode("(batch)", names);
+
+		/* the pool: node densities, then evidence indicators */
+		List<List<BayesNode>> pool = new LinkedList<List<BayesNode>>();
+		List<Integer> psrc = new LinkedList<Integer>();
+		dataLen = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			ProbFunction f = vars[i].getFunction();
+			dataLen[i] = f.getData().length;
+			List<BayesNode> l = new ArrayList<BayesNode>(f.getVariables());
+			if (batched[i])
+				l.add(batch);
+			pool.add(l);
+			psrc.add(i);
+		}
+		for (int j = 0; j < ne; j++)
+		{
+			List<BayesNode> l = new ArrayList<BayesNode>();
+			l.add(vars[evid[j]]);
+			l.add(batch);
+			pool.add(l);
+			psrc.add(n + j);
+		}
+
+		/* nothing is sliced, so every non-query node is eliminated */
+		BayesNode[] order = ord.order(this.vars, qmap, new boolean[n]);
+		int N = n - nq;
+		List<BayesNode> qvars = new ArrayList<BayesNode>();
+		for (int i = N; i < n; i++)
+			qvars.add(order[i]);
+
+		steps = new Step[N + 1];
+		for (int i = 0; i < N; i++)
+		{
+			List<List<BayesNode>> sub = new ArrayList<List<BayesNode>>();
+			List<Integer> ssrc = new ArrayList<Integer>();
+			EliminationPlan.take(pool, psrc, sub, ssrc, order[i], null);
+
+			List<BayesNode> sep = new ArrayList<BayesNode>();
+			steps[i] = compile(sub, ssrc, order[i], sep, false);
+			pool.add(sep);
+			psrc.add(-i - 1);
+		}
+
+		/* root keeps the batch even if no input varies over it */
+		List<List<BayesNode>> sub = new ArrayList<List<BayesNode>>();
+		List<Integer> ssrc = new ArrayList<Integer>();
+		EliminationPlan.take(pool, psrc, sub, ssrc, null, qvars);
+		List<BayesNode> rootVars = new ArrayList<BayesNode>();
+		steps[N] = compile(sub, ssrc, null, rootVars, true);
+
+		List<List<BayesNode>> root = new ArrayList<List<BayesNode>>();
+		root.add(rootVars);
+		marg = new FactorKernel[query.length];
+		margOut = new double[query.length][];
+		for (int q = 0; q < query.length; q++)
+		{
+			List<BayesNode> out = new ArrayList<BayesNode>();
+			out.add(vars[this.query[q]]);
+			out.add(batch);
+			marg[q] = new FactorKernel(root, rootVars, out);
+			margOut[q] = new double[marg[q].outputSize()];
+		}
+
+		data = new double[n + ne][];
+		for (int i = 0; i < n; i++)
+			if (batched[i])
+				data[i] = new double[dataLen[i] * size];
+		for (int j = 0; j < ne; j++)
+			data[n + j] = new double[vars[evid[j]].numStates() * size];
+	}
+
+
+	/**
+	 * Build the kernel of one bucket.
+	 *
+	 * @param sub
+	 *            variables of input densities
+	 * @param ssrc
+	 *            sources of input densities
+	 * @param var
+	 *            variable to sum out, or null for the root
+	 * @param outVars
+	 *            receives the output variables
+	 * @param keep
+	 *            whether the output has the batch even if no input does
+	 * @return compiled step
+	 */
+	private Step compile(List<List<BayesNode>> sub, List<Integer> ssrc,
+			BayesNode var, List<BayesNode> outVars, boolean keep)
+	{
+		Step s = new Step();
+		int nf = sub.size();
+
+		/* product variables, with the batch innermost */
+		List<BayesNode> pvars = new ArrayList<BayesNode>();
+		boolean hasBatch = keep;
+		for (List<BayesNode> f : sub)
+			for (BayesNode n : f)
+				if (n == batch)
+					hasBatch = true;
+				else if (!pvars.contains(n))
+					pvars.add(n);
+		if (hasBatch)
+			pvars.add(batch);
+
+		for (BayesNode n : pvars)
+			if (n != var)
+				outVars.add(n);
+
+		s.src = new int[nf];
+		for (int k = 0; k < nf; k++)
+			s.src[k] = ssrc.get(k);
+		s.in = new double[nf][];
+		s.kernel = new FactorKernel(sub, pvars, outVars);
+		s.out = new double[s.kernel.outputSize()];
+		return s;
+	}
+
+
+	/**
+	 * @return index of a variable
+	 * @throws BayesError
+	 *             if there is no such variable
+	 */
+	private int indexOf(String var) throws BayesError
+	{
+		Integer i = index.get(var);
+		if (i == null)
+			throw new BayesError("network does not contain variable '" + var
+					+ "'");
+		return i;
+	}
+
+
+	/**
+	 * Whether the plan can solve a batch: same nodes and table sizes, same
+	 * query, the same number of entries, and the same sets of observed and
+	 * replaced variables.
+	 *
+	 * @param vars
+	 *            network nodes
+	 * @param query
+	 *            names of the query variables
+	 * @param obs
+	 *            observed states of each entry
+	 * @param dens
+	 *            replaced densities of each entry, or null for none
+	 * @return whether the plan fits
+	 */
+	boolean fits(BayesNode[] vars, String[] query,
+			List<Map<String, String>> obs, List<Map<String, Distribution>> dens)
+	{
+		if ((vars.length != this.vars.length) || (obs.size() != size)
+				|| (query.length != this.query.length))
+			return false;
+
+		for (int i = 0; i < vars.length; i++)
+			if ((vars[i] != this.vars[i])
+					|| (vars[i].getFunction().getData().length != dataLen[i]))
+				return false;
+
+		for (int q = 0; q < query.length; q++)
+			if (!vars[this.query[q]].getVariable().equals(query[q]))
+				return false;
+
+		boolean[] observed = new boolean[vars.length];
+		for (Map<String, String> m : obs)
+			for (String v : m.keySet())
+			{
+				Integer i = index.get(v);
+				if (i == null)
+					return false;
+				observed[i] = true;
+			}
+		int ne = 0;
+		for (int i = 0; i < vars.length; i++)
+			if (observed[i])
+				if ((ne == evid.length) || (evid[ne++] != i))
+					return false;
+		if (ne != evid.length)
+			return false;
+
+		boolean[] replaced = new boolean[vars.length];
+		if (dens != null)
+			for (Map<String, Distribution> m : dens)
+				for (String v : m.keySet())
+				{
+					Integer i = index.get(v);
+					if (i == null)
+						return false;
+					replaced[i] = true;
+				}
+		for (int i = 0; i < vars.length; i++)
+			if (replaced[i] != batched[i])
+				return false;
+
+		return true;
+	}
+
+
+	/**
+	 * Solve the batch.
+	 *
+	 * @param base
+	 *            density of each node, used by entries which do not replace it
+	 * @param obs
+	 *            observed states of each entry
+	 * @param dens
+	 *            replaced densities of each entry, or null for none
+	 * @return marginal of each query variable, for each entry
+	 * @throws BayesError
+	 *             if a state does not exist, or a replaced density has the
+	 *             wrong size
+	 */
+	List<Map<String, Distribution>> solve(double[][] base,
+			List<Map<String, String>> obs, List<Map<String, Distribution>> dens)
+			throws BayesError
+	{
+		int n = vars.length;
+
+		/* interleave replaced densities by entry */
+		for (int i = 0; i < n; i++)
+		{
+			if (!batched[i])
+			{
+				data[i] = base[i];
+				continue;
+			}
+
+			double[] d = data[i];
+			for (int b = 0; b < size; b++)
+			{
+				Distribution r = dens.get(b).get(vars[i].getVariable());
+				double[] t = (r == null) ? base[i] : r.getData();
+				if (t.length != dataLen[i])
+					throw new BayesError("density of '"
+							+ vars[i].getVariable() + "' has wrong size ("
+							+ t.length + " should be " + dataLen[i] + ")");
+				for (int c = 0, o = b; c < t.length; c++, o += size)
+					d[o] = t[c];
+			}
+		}
+
+		/* evidence indicators; all ones where an entry does not observe */
+		for (int j = 0; j < evid.length; j++)
+		{
+			BayesNode v = vars[evid[j]];
+			String[] states = v.getMarginal().states;
+			double[] d = data[n + j];
+			for (int b = 0; b < size; b++)
+			{
+				String st = obs.get(b).get(v.getVariable());
+				int s = -1;
+				if (st != null)
+				{
+					for (s = 0; s < states.length; s++)
+						if (states[s].equals(st))
+							break;
+					if (s == states.length)
+						throw new BayesError("no state '" + st
+								+ "' of variable '" + v.getVariable()
+								+ "' exists");
+				}
+				for (int c = 0, o = b; c < states.length; c++, o += size)
+					d[o] = ((s == -1) || (s == c)) ? 1.0 : 0.0;
+			}
+		}
+
+		for (Step s : steps)
+		{
+			for (int k = 0; k < s.src.length; k++)
+			{
+				int src = s.src[k];
+				s.in[k] = (src >= 0) ? data[src] : steps[-src - 1].out;
+			}
+			s.kernel.run(s.in, null, s.out);
+		}
+
+		/* one marginal per query variable and entry */
+		List<Map<String, Distribution>> res;
+		res = new ArrayList<Map<String, Distribution>>(size);
+		for (int b = 0; b < size; b++)
+			res.add(new HashMap<String, Distribution>());
+
+		double[][] in = new double[][] { steps[steps.length - 1].out };
+		for (int q = 0; q < query.length; q++)
+		{
+			marg[q].run(in, null, margOut[q]);
+			BayesNode v = vars[query[q]];
+			int ns = v.numStates();
+			for (int b = 0; b < size; b++)
+			{
+				double[] p = new double[ns];
+				double sum = 0.0;
+				for (int s = 0, o = b; s < ns; s++, o += size)
+				{
+					p[s] = margOut[q][o];
+					sum += p[s];
+				}
+				if (sum > 0.0)
+					for (int s = 0; s < ns; s++)
+						p[s] /= sum;
+				res.get(b).put(v.getVariable(), new Distribution(v
+						.getVariable(), v.getMarginal().states, p));
+			}
+		}
+
+		return res;
+	}
+
+
+	/**
+	 * @return number of batch entries
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+
+	/**
+	 * @return number of product cells a solve visits
+	 */
+	public long cells()
+	{
+		long n = 0;
+		for (Step s : steps)
+			n += s.kernel.cells();
+		for (FactorKernel k : marg)
+			n += k.cells();
+		return n;
+	}
+
+
+	/**
+	 * @return number of cells of the largest bucket output
+	 */
+	public int maxFactor()
+	{
+		int m = 0;
+		for (Step s : steps)
+			m = Math.max(m, s.kernel.outputSize());
+		return m;
+	}
+}
@@ -7,20 +7,20 @@
 
 package bayes;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
@@ -53,7 +53,13 @@ public class BayesNet
 	private Random					rand;
 
 	/** incremental data log */
-	private ArrayList<double[][]>	incrLog;
+	private IncrementalLog			incrLog;
+
+	/** recorded posterior snapshots, or null until the first record */
+	private SnapshotArena			snapshots;
+
+	/** maximum number of snapshots kept */
+	private int						snapshotCapacity;
 
 	/** whether net is being read (suppresses ordering of dag on getNode() */
 	private boolean					reading;
@@ -67,7 +73,8 @@ public class BayesNet
 		nodes = new HashSet<BayesNode>();
 		nodeMap = new HashMap<String, BayesNode>();
 		rand = new Random(System.currentTimeMillis());
-		incrLog = new ArrayList<double[][]>();
+		incrLog = new IncrementalLog();
+		snapshotCapacity = SnapshotArena.DEFAULT_CAPACITY;
 	}
 
 
@@ -144,11 +151,12 @@ public class BayesNet
 	 * 
 	 * @param logname
 	 *            name of log
+	 * @return handle of the snapshot, for recall without a name lookup
+	 * @throws BayesError
 	 */
-	public void record(String logname)
+	public long record(String logname) throws BayesError
 	{
-		for (BayesNode n : nodes)
-			n.record(logname);
+		return getSnapshots().record(logname);
 	}
 
 
@@ -161,8 +169,66 @@ public class BayesNet
 	 */
 	public void recall(String logname) throws BayesError
 	{
-		for (BayesNode n : nodes)
-			n.recall(logname);
+		SnapshotArena a = getSnapshots();
+		a.recall(a.handle(logname));
+	}
+
+
+	/**
+	 * Reload the saved state of all nodes.
+	 * 
+	 * @param handle
+	 *            handle returned by record()
+	 * @throws BayesError
+	 *             if the snapshot was evicted or released
+	 */
+	public void recall(long handle) throws BayesError
+	{
+		getSnapshots().recall(handle);
+	}
+
+
+	/**
+	 * Drop a log.
+	 * 
+	 * @param logname
+	 *            name of log
+	 */
+	public void release(String logname)
+	{
+		if (snapshots != null)
+			snapshots.release(logname);
+	}
+
+
+	/**
+	 * Set the maximum number of logs kept; beyond it, the least recently used
+	 * log is evicted.
+	 * 
+	 * @param capacity
+	 *            maximum number of logs
+	 */
+	public void setSnapshotCapacity(int capacity)
+	{
+		snapshotCapacity = capacity;
+		if (snapshots != null)
+			snapshots.setCapacity(capacity);
+	}
+
+
+	/**
+	 * Get the snapshot arena, laying out a new one (and dropping all logs) if
+	 * the network's nodes or states changed since the last.
+	 * 
+	 * @return snapshot arena
+	 * @throws BayesError
+	 */
+	public SnapshotArena getSnapshots() throws BayesError
+	{
+		order();
+		if ((snapshots == null) || !snapshots.matches(topo))
+			snapshots = new SnapshotArena(topo, snapshotCapacity);
+		return snapshots;
 	}
 
 
@@ -174,12 +240,23 @@ public class BayesNet
 	public void incRecord() throws BayesError
 	{
 		order();
-		double[][] data = new double[topo.length][];
+		incrLog.record(topo);
+	}
 
-		for (int i = 0; i < topo.length; i++)
-			data[i] = topo[i].getPosterior().clone();
 
-		incrLog.add(data);
+	/**
+	 * Switch the incremental log to streaming mode: keep only a window of
+	 * recent iterations, plus running means and variances of every logged
+	 * iteration. Clears the log.
+	 * 
+	 * @param window
+	 *            most recent iterations to keep, or 0 to keep all
+	 * @param thin
+	 *            log only every thin-th call to incRecord()
+	 */
+	public void setIncStreaming(int window, int thin)
+	{
+		incrLog = new IncrementalLog(window, thin);
 	}
 
 
@@ -218,22 +295,62 @@ public class BayesNet
 	 * @throws BayesError
 	 */
 	public double[][][] incDump(String... vars) throws BayesError
+	{
+		return incrLog.dump(getTopologicalIndexes(vars));
+	}
+
+
+	/**
+	 * Get the mean posterior distributions of variables over every logged
+	 * iteration, including those no longer kept in a streaming log.
+	 * 
+	 * @param vars
+	 *            variables to return
+	 * @return mean posterior distributions, in order of arguments
+	 * @throws BayesError
+	 */
+	public double[][] incAverages(String... vars) throws BayesError
 	{
 		int[] idxs = getTopologicalIndexes(vars);
+		double[][] data = new double[vars.length][];
 
-		/* now retrieve the data in a new order */
-		double[][][] data = new double[incrLog.size()][vars.length][];
-		for (int i = 0; i < incrLog.size(); i++)
-		{
-			double[][] log = incrLog.get(i);
-			for (int j = 0; j < vars.length; j++)
-				data[i][j] = log[idxs[j]];
-		}
+		for (int i = 0; i < vars.length; i++)
+			data[i] = incrLog.getMean(idxs[i]);
+
+		return data;
+	}
+
+
+	/**
+	 * Get the variance of each state's posterior over every logged
+	 * iteration.
+	 * 
+	 * @param vars
+	 *            variables to return
+	 * @return per-state variances, in order of arguments
+	 * @throws BayesError
+	 */
+	public double[][] incVariances(String... vars) throws BayesError
+	{
+		int[] idxs = getTopologicalIndexes(vars);
+		double[][] data = new double[vars.length][];
+
+		for (int i = 0; i < vars.length; i++)
+			data[i] = incrLog.getVariance(idxs[i]);
 
 		return data;
 	}
 
 
+	/**
+	 * @return number of iterations in the incremental log's averages
+	 */
+	public long incCount()
+	{
+		return incrLog.count();
+	}
+
+
 	/**
 	 * Clear the incremental log.
 	 */
@@ -412,6 +529,7 @@ public class BayesNet
 	 */
 	public void markovBlanket(SimControl ctl) throws BayesError
 	{
+		long t = InferenceStats.start();
 		order();
 
 		/* initialize nodes from prior probabilities */
@@ -436,6 +554,65 @@ public class BayesNet
 			Thread.yield();
 		}
 		ctl.end();
+		InferenceStats.forNet(name).record(InferenceStats.MARKOV, t, 0, 0);
+	}
+
+
+	/**
+	 * Perform Markov Blanket simulation with several independent chains run
+	 * in parallel (see ParallelGibbs). The controller's iterations are split
+	 * across the chains. Afterwards, each node's counters and posterior hold
+	 * the average over all chains.
+	 *
+	 * @param ctl
+	 *            simulation controller
+	 * @param chains
+	 *            number of chains
+	 * @return the sampler, for per-chain counts
+	 * @throws BayesError
+	 */
+	public ParallelGibbs markovBlanket(SimControl ctl, int chains)
+			throws BayesError
+	{
+		long t = InferenceStats.start();
+		order();
+
+		ParallelGibbs g = new ParallelGibbs(topo, chains, ForkJoinPool
+				.commonPool(), rand.nextLong());
+		g.run(ctl, this);
+		InferenceStats.forNet(name).record(InferenceStats.MARKOV, t, 0, 0);
+		return g;
+	}
+
+
+	/**
+	 * Approximate the posteriors by likelihood weighting, or by adaptive
+	 * importance sampling, with several independent sample streams run in
+	 * parallel (see ImportanceSampler). The controller's iterations are
+	 * samples, split across the streams. Afterwards, each node's counters and
+	 * posterior hold the weighted estimate.
+	 *
+	 * @param ctl
+	 *            simulation controller
+	 * @param streams
+	 *            number of sample streams
+	 * @param adaptive
+	 *            whether to learn the importance tables
+	 * @return the sampler, for the raw weights
+	 * @throws BayesError
+	 *             if every sample contradicted the evidence
+	 */
+	public ImportanceSampler likelihoodWeighting(SimControl ctl, int streams,
+			boolean adaptive) throws BayesError
+	{
+		long t = InferenceStats.start();
+		order();
+
+		ImportanceSampler s = new ImportanceSampler(topo, streams, adaptive,
+				ForkJoinPool.commonPool(), rand.nextLong());
+		s.run(ctl, this);
+		InferenceStats.forNet(name).record(InferenceStats.SAMPLE, t, 0, 0);
+		return s;
 	}
 
 
@@ -466,13 +643,30 @@ public class BayesNet
 	public void queryDist(String logname, Map<String, Distribution> results)
 			throws BayesError
 	{
+		if (logname == null)
+		{
+			for (String name : results.keySet())
+			{
+				BayesNode n = nodeMap.get(name);
+				if (n == null)
+					throw new BayesError("variable not in network: " + name);
+
+				results.put(name, n.getMarginal());
+			}
+			return;
+		}
+
+		SnapshotArena a = getSnapshots();
+		long handle = a.handle(logname);
 		for (String name : results.keySet())
 		{
 			BayesNode n = nodeMap.get(name);
 			if (n == null)
 				throw new BayesError("variable not in network: " + name);
 
-			results.put(name, n.getMarginal(logname));
+			Distribution d = n.getMarginal();
+			results.put(name, new Distribution(d.variable, d.states, a.get(
+					handle, n.getTopologicalIndex())));
 		}
 	}
 
@@ -544,7 +738,8 @@ public class BayesNet
 
 
 	/**
-	 * Read a network from a file.
+	 * Read a network from a file, either a mapped network file (see NetFile)
+	 * or the plain stream format.
 	 * 
 	 * @param fname
 	 *            name of file
@@ -556,15 +751,29 @@ public class BayesNet
 			BayesError
 	{
 		File file = new File(fname);
-		DataInputStream stream = new DataInputStream(new FileInputStream(file));
-		BayesNet net = readNet(stream);
+		BayesNet net;
+		if (NetFile.isNetFile(file))
+			net = readNet(new NetFile(file));
+		else
+		{
+			DataInputStream stream = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				net = readNet(stream);
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
 		net.file = file;
 		return net;
 	}
 
 
 	/**
-	 * Write a network to a file.
+	 * Write a network to a file, in the mapped network file format.
 	 * 
 	 * @param fname
 	 *            name of file
@@ -574,9 +783,8 @@ public class BayesNet
 	public void writeToFile(String fname) throws BayesError, IOException
 	{
 		file = new File(fname);
-		DataOutputStream stream;
-		stream = new DataOutputStream(new FileOutputStream(file));
-		write(stream);
+		order();
+		NetFile.write(file, name, topo);
 	}
 
 
@@ -592,17 +800,16 @@ public class BayesNet
 		if (file == null)
 			return false;
 
-		DataOutputStream stream;
+		order();
 		try
 		{
-			stream = new DataOutputStream(new FileOutputStream(file));
+			NetFile.write(file, name, topo);
 		}
 		catch (FileNotFoundException e)
 		{
 			return false;
 		}
 
-		write(stream);
 		return true;
 	}
 
@@ -640,6 +847,38 @@ public class BayesNet
 	}
 
 
+	/**
+	 * Read a network from a mapped network file. Each conditional table is
+	 * copied out of the mapping in bulk.
+	 * 
+	 * @param f
+	 *            opened network file
+	 * @return network object
+	 * @throws IOException
+	 * @throws BayesError
+	 */
+	public static BayesNet readNet(NetFile f) throws IOException, BayesError
+	{
+		BayesNet net = new BayesNet();
+		net.reading = true;
+
+		DataInputStream stream = f.metadata();
+		net.name = stream.readUTF();
+
+		net.topo = new BayesNode[f.numNodes()];
+		for (int i = 0; i < net.topo.length; i++)
+		{
+			BayesNode n = BayesNode.readNode(net, stream, i, f.getTable(i));
+			net.topo[i] = n;
+			net.nodes.add(n);
+			net.nodeMap.put(n.getVariable(), n);
+		}
+
+		net.reading = false;
+		return net;
+	}
+
+
 	/**
 	 * Write the network to the output stream.
 	 * 
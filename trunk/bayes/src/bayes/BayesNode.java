@@ -10,6 +10,7 @@ package bayes;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Random;
@@ -60,6 +61,18 @@ public class BayesNode
 	/** child object pointers */
 	private BayesNode[] mb_child_obj;
 
+	/** number of columns of each child's dist[x] */
+	private int[] mb_child_cols;
+
+	/** each child's dist[x], gathered before sampling */
+	private double[][] mb_child_cpt;
+
+	/** column weight scratch for local inference */
+	private double[] inf_weight;
+
+	/** non-zero column scratch for local inference */
+	private int[] inf_cols;
+
 	/** counts number of times each state is sampled on this node */
 	private int[] stateCounter;
 
@@ -163,29 +176,6 @@ public class BayesNode
 		return observed;
 	}
 
-	/**
-	 * Log the current posterior distribution.
-	 * 
-	 * @param logname
-	 *            name of log
-	 */
-	public void record(String logname)
-	{
-		dist.record(logname);
-	}
-
-	/**
-	 * Reload the saved state.
-	 * 
-	 * @param logname
-	 *            name of log
-	 * @throws BayesError
-	 */
-	public void recall(String logname) throws BayesError
-	{
-		dist.recall(logname);
-	}
-
 	/**
 	 * Add a parent node. The distributions are copied for each of the parents'
 	 * states (the parent is being added to the beginning).
@@ -329,7 +319,15 @@ public class BayesNode
 			dist.copy(func);
 
 		else
-			Inference.conditional(func, dist);
+		{
+			int cols = func.getData().length / numStates();
+			if ((inf_weight == null) || (inf_weight.length != cols))
+			{
+				inf_weight = new double[cols];
+				inf_cols = new int[cols];
+			}
+			Inference.conditional(func, dist, inf_weight, inf_cols);
+		}
 	}
 
 	/**
@@ -352,9 +350,12 @@ public class BayesNode
 		mb_child_base = new int[children.size()];
 		mb_child_idx = new int[children.size()];
 		mb_child_obj = new BayesNode[children.size()];
+		mb_child_cols = new int[children.size()];
+		mb_child_cpt = new double[children.size()][];
 		for (int i = 0; i < mb_child_base.length; i++)
 		{
 			BayesNode c = mb_child_obj[i] = children.get(i);
+			mb_child_cols[i] = c.func.getData().length / c.numStates();
 			mb_child_base[i] = 1;
 			for (int j = c.parents.size(); j >= 1; j--)
 				if (c.func.getVar(j) == this)
@@ -382,13 +383,12 @@ public class BayesNode
 		for (int j = 0; j < mb_child_idx.length; j++)
 		{
 			BayesNode c = mb_child_obj[j];
-			int off = (c.getConditional().length / c.numStates()) * c.state;
-			int idx = c.distIndex();
-			mb_child_idx[j] = idx + off;
+			mb_child_idx[j] = c.distIndex() + mb_child_cols[j] * c.state;
+			mb_child_cpt[j] = c.func.getData();
 		}
 
-		state = Inference.blanket(r, func, dist, mb_child_obj, mb_child_base,
-				mb_child_idx, pt);
+		state = Inference.blanket(r, func.getData(), pt, dist, mb_child_cpt,
+				mb_child_idx, mb_child_base);
 		stateCounter[state]++;
 	}
 
@@ -412,28 +412,10 @@ public class BayesNode
 
 	/**
 	 * @return posterior distribution
-	 * @throws BayesError
 	 */
 	public Distribution getMarginal()
 	{
-		try
-		{
-			return getMarginal(null);
-		} catch (BayesError e)
-		{
-			return null;
-		}
-	}
-
-	/**
-	 * @param logname
-	 *            name of saved node to query, or null if current
-	 * @return posterior distribution
-	 * @throws BayesError
-	 */
-	public Distribution getMarginal(String logname) throws BayesError
-	{
-		return dist.retrieve(logname);
+		return dist;
 	}
 
 	/**
@@ -460,6 +442,51 @@ public class BayesNode
 	 */
 	public static BayesNode readNode(BayesNet net, DataInputStream stream,
 			int index) throws IOException, BayesError
+	{
+		BayesNode n = readHeader(net, stream, index);
+		n.func = new ProbFunction(stream, n, n.parents);
+		return n;
+	}
+
+	/**
+	 * Read a node from a network file: the metadata comes from the stream,
+	 * and the conditional table is bulk-copied out of the given view.
+	 * 
+	 * @param net
+	 *            network being loaded
+	 * @param stream
+	 *            metadata stream
+	 * @param index
+	 *            topological index
+	 * @param table
+	 *            view of the conditional table
+	 * @return reconstructed bayes node
+	 * @throws IOException
+	 * @throws BayesError
+	 */
+	public static BayesNode readNode(BayesNet net, DataInputStream stream,
+			int index, DoubleBuffer table) throws IOException, BayesError
+	{
+		BayesNode n = readHeader(net, stream, index);
+		n.func = new ProbFunction(table, n, n.parents);
+		return n;
+	}
+
+	/**
+	 * Read everything about a node but its conditional table.
+	 * 
+	 * @param net
+	 *            network being loaded
+	 * @param stream
+	 *            input stream
+	 * @param index
+	 *            topological index
+	 * @return node without a probability function
+	 * @throws IOException
+	 * @throws BayesError
+	 */
+	private static BayesNode readHeader(BayesNet net, DataInputStream stream,
+			int index) throws IOException, BayesError
 	{
 		int nparents;
 		BayesNode n = new BayesNode();
@@ -484,7 +511,6 @@ public class BayesNode
 		}
 
 		n.dist = new Distribution(stream, n.variable);
-		n.func = new ProbFunction(stream, n, n.parents);
 
 		n.stateCounter = new int[n.dist.states.length];
 
@@ -499,6 +525,19 @@ public class BayesNode
 	 * @throws IOException
 	 */
 	public void write(DataOutputStream stream) throws IOException
+	{
+		writeHeader(stream);
+		func.write(stream);
+	}
+
+	/**
+	 * Write everything about this node but its conditional table.
+	 * 
+	 * @param stream
+	 *            output stream
+	 * @throws IOException
+	 */
+	void writeHeader(DataOutputStream stream) throws IOException
 	{
 		stream.writeUTF(variable);
 		stream.writeBoolean(observed);
@@ -509,7 +548,6 @@ public class BayesNode
 			stream.writeInt(p.topoIndex);
 
 		dist.write(stream);
-		func.write(stream);
 	}
 
 	/**
@@ -641,6 +679,28 @@ public class BayesNode
 		return avg;
 	}
 
+	/**
+	 * Replace the state counters with counts sampled elsewhere (e.g. merged
+	 * from several chains), and make the posterior distribution their
+	 * average, as the blanket function leaves it query-able.
+	 *
+	 * @param counts
+	 *            number of samples of each state
+	 */
+	public void setCounts(long[] counts)
+	{
+		double sum = 0.0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			stateCounter[i] = (int) counts[i];
+			sum += (double) counts[i];
+		}
+
+		if (sum > 0.0)
+			for (int i = 0; i < counts.length; i++)
+				dist.values[i] = counts[i] / sum;
+	}
+
 	/**
 	 * @param b
 	 */
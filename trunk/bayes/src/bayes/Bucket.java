@@ -76,13 +76,15 @@ public class Bucket
 
 
 	/**
-	 * Eliminate the bucket variable from the cluster to obtain the separator.
+	 * Eliminate the bucket variable to obtain the separator. The product and
+	 * the sum are fused, so the cluster is never materialized.
 	 * 
 	 * @throws BayesError
 	 */
 	public void eliminate() throws BayesError
 	{
-		cluster = ProbFunction.multiply(pool.toArray(new ProbFunction[0]));
-		separator = cluster.sumOut(variable);
+		cluster = null;
+		separator = ProbFunction.multiplySumOut(variable, pool
+				.toArray(new ProbFunction[0]));
 	}
 }
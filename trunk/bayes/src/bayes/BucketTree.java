@@ -39,6 +39,9 @@ public class BucketTree
 	/** query variables */
 	private List<BayesNode>		qvars;
 
+	/** whether densities are restricted to observed states before pooling */
+	private boolean				slice;
+
 
 	/**
 	 * Constructor.
@@ -48,8 +51,26 @@ public class BucketTree
 	 * @param numQuery
 	 */
 	public BucketTree(BayesNet net, Ordering ord, int numQuery)
+	{
+		this(net, ord, numQuery, false);
+	}
+
+
+	/**
+	 * Constructor. When slicing, every density is restricted to the observed
+	 * states of its observed variables before it enters the pool, so no
+	 * intermediate product is sized over the evidence.
+	 * 
+	 * @param ord
+	 *            ordering
+	 * @param numQuery
+	 * @param slice
+	 *            whether to slice evidence before elimination
+	 */
+	public BucketTree(BayesNet net, Ordering ord, int numQuery, boolean slice)
 	{
 		this.net = net;
+		this.slice = slice;
 		this.ord = ord;
 		this.numQuery = numQuery;
 
@@ -69,11 +90,24 @@ public class BucketTree
 	 */
 	public ProbFunction eliminate() throws BayesError
 	{
-		/* add all network densities to pool */
+		long t = InferenceStats.start();
+		int largest = 0;
+
+		/* add the network densities the query needs to the pool */
 		pool = new LinkedList<ProbFunction>();
 		BayesNode[] vars = net.getVars();
-		for (BayesNode n : vars)
-			pool.add(n.getFunction());
+		boolean[] queried = new boolean[vars.length];
+		boolean[] observed = new boolean[vars.length];
+		for (int i = 0; i < vars.length; i++)
+		{
+			queried[i] = qvars.contains(vars[i]);
+			observed[i] = vars[i].isObserved();
+		}
+		boolean[] keep = Relevance.densities(vars, queried, observed);
+		for (int i = 0; i < vars.length; i++)
+			if (keep[i])
+				pool.add(slice ? vars[i].getFunction().sliceObserved()
+						: vars[i].getFunction());
 
 		/* get requisite, non-observed, non-query nodes */
 		int nObs = net.numObserved();
@@ -88,9 +122,12 @@ public class BucketTree
 
 			/* v-densities into new bucket, reinsert separator */
 			List<ProbFunction> sub = remove(v);
+			if (sub.isEmpty())
+				continue;
 			Bucket b = new Bucket(v, sub);
 			b.eliminate();
 			pool.add(b.getSeparator());
+			largest = Math.max(largest, b.getSeparator().getData().length);
 		}
 
 		/* last bucket contains query-densities */
@@ -98,7 +135,11 @@ public class BucketTree
 		root = new Bucket(qsub);
 		root.sumOutEvidence();
 
-		return root.getSeparator();
+		ProbFunction sep = root.getSeparator();
+		largest = Math.max(largest, sep.getData().length);
+		InferenceStats.forNet(net.getName()).record(
+				InferenceStats.ELIMINATE, t, largest, 0);
+		return sep;
 	}
 
 
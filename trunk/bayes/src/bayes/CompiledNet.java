@@ -0,0 +1,159 @@
+/*
+ * CompiledNet.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ * Immutable snapshot of a network's structure and densities. Evidence, prior
+ * overrides and posteriors do not live in a compiled network but in the
+ * NetContext objects created from it, so one compiled network can be shared
+ * by any number of contexts, each queried from its own thread, while the
+ * conditional tables are held in memory only once.
+ * <p>
+ * The compiled network keeps private copies of the source network's nodes,
+ * which are never observed or changed; later changes to the source network
+ * are not seen.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class CompiledNet
+{
+
+	/** network name */
+	private String					name;
+
+	/** copies of the network's nodes, in network order */
+	private BayesNode[]				nodes;
+
+	/** index of each node by variable name */
+	private Map<String, Integer>	index;
+
+
+	/**
+	 * Compile a network. Its current densities are copied; its evidence and
+	 * posteriors are ignored.
+	 *
+	 * @param net
+	 *            network to compile
+	 * @throws BayesError
+	 *             if a node has a parent outside the network
+	 */
+	public CompiledNet(BayesNet net) throws BayesError
+	{
+		BayesNode[] vars = net.getVars();
+		Map<BayesNode, BayesNode> copy;
+		copy = new IdentityHashMap<BayesNode, BayesNode>();
+
+		name = net.getName();
+		nodes = new BayesNode[vars.length];
+		index = new HashMap<String, Integer>();
+		for (int i = 0; i < vars.length; i++)
+		{
+			nodes[i] = new BayesNode(vars[i].getVariable(), vars[i]
+					.getMarginal().states.clone());
+			copy.put(vars[i], nodes[i]);
+			index.put(vars[i].getVariable(), i);
+		}
+
+		/* same parents in the same order gives the same table layout */
+		for (int i = 0; i < vars.length; i++)
+		{
+			ProbFunction f = vars[i].getFunction();
+			for (int j = 1; j < f.numVars(); j++)
+			{
+				BayesNode p = copy.get(f.getVar(j));
+				if (p == null)
+					throw new BayesError("parent '"
+							+ f.getVar(j).getVariable() + "' of '"
+							+ vars[i].getVariable() + "' is not in network");
+				nodes[i].addParent(p);
+			}
+			nodes[i].setConditional(f.getData().clone());
+			nodes[i].getFunction().setSparse(f.isSparse());
+		}
+	}
+
+
+	/**
+	 * @return a new context with no evidence and the compiled densities
+	 */
+	public NetContext newContext()
+	{
+		return new NetContext(this);
+	}
+
+
+	/**
+	 * @return network name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+
+	/**
+	 * @return number of nodes
+	 */
+	public int numNodes()
+	{
+		return nodes.length;
+	}
+
+
+	/**
+	 * @param var
+	 *            variable name
+	 * @return index of the variable's node
+	 * @throws BayesError
+	 *             if there is no such variable
+	 */
+	public int indexOf(String var) throws BayesError
+	{
+		Integer i = index.get(var);
+		if (i == null)
+			throw new BayesError("network does not contain variable '" + var
+					+ "'");
+		return i;
+	}
+
+
+	/**
+	 * @param var
+	 *            variable name
+	 * @return copy of the variable's state names
+	 * @throws BayesError
+	 *             if there is no such variable
+	 */
+	public String[] getStates(String var) throws BayesError
+	{
+		return nodes[indexOf(var)].getMarginal().states.clone();
+	}
+
+
+	/**
+	 * @return the compiled nodes; callers must not change them
+	 */
+	BayesNode[] nodes()
+	{
+		return nodes;
+	}
+
+
+	/**
+	 * @return a node's compiled density; callers must not change it
+	 */
+	double[] table(int idx)
+	{
+		return nodes[idx].getFunction().getData();
+	}
+}
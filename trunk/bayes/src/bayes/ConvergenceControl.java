@@ -0,0 +1,202 @@
+/*
+ * ConvergenceControl.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+/**
+ * Simulation controller which stops once the running marginal estimates reach
+ * a target precision, or at a maximum number of iterations, whichever comes
+ * first. The sampler hands it every chain's state counts between batches of
+ * iterations (see ParallelGibbs); subclasses decide from those whether the
+ * estimates have converged, and what error bound they achieved.
+ * <p>
+ * Only the multi-chain sampler reports counts; used with the single-chain
+ * markov blanket simulation, a convergence control only caps iterations.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public abstract class ConvergenceControl implements SimControl
+{
+
+	/** maximum number of iterations */
+	private int			maxIterations;
+
+	/** whether to log */
+	private boolean		log;
+
+	/** current iteration, or -1 if not running */
+	private int			current;
+
+	/** number of iterations the last run took */
+	private int			last;
+
+	/** whether the target precision was reached */
+	private boolean		converged;
+
+	/** error bound of the current estimates */
+	protected double	bound;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxIterations
+	 *            iterations after which to stop regardless
+	 * @param log
+	 *            whether to log
+	 */
+	protected ConvergenceControl(int maxIterations, boolean log)
+	{
+		this.maxIterations = maxIterations;
+		this.log = log;
+		this.current = -1;
+		this.last = 0;
+		this.bound = Double.NaN;
+	}
+
+
+	/**
+	 * Take the current counts of every chain, and re-check convergence.
+	 *
+	 * @param counts
+	 *            state counts by chain, node and state
+	 */
+	public void update(long[][][] counts)
+	{
+		if (current == -1)
+			return;
+		converged = converged(counts);
+	}
+
+
+	/**
+	 * Update the running statistics and the error bound from the chains'
+	 * counts. Nodes which were never sampled (observed nodes) have all-zero
+	 * counts and should be skipped.
+	 *
+	 * @param counts
+	 *            state counts by chain, node and state
+	 * @return whether the target precision is reached
+	 */
+	protected abstract boolean converged(long[][][] counts);
+
+
+	/**
+	 * Clear the running statistics before a run.
+	 */
+	protected abstract void reset();
+
+
+	/**
+	 * @return error bound of the current (or last) estimates, or NaN if none
+	 *         was measured
+	 */
+	public double getErrorBound()
+	{
+		return bound;
+	}
+
+
+	/**
+	 * @return whether the last run reached the target precision
+	 */
+	public boolean isConverged()
+	{
+		return converged;
+	}
+
+
+	/**
+	 * @return number of iterations the last run took
+	 */
+	public int getIterations()
+	{
+		return last;
+	}
+
+
+	/**
+	 * @return current iteration
+	 */
+	protected int iteration()
+	{
+		return current;
+	}
+
+
+	/**
+	 * @param c
+	 *            counts of one node
+	 * @return number of samples
+	 */
+	protected static long total(long[] c)
+	{
+		long n = 0;
+		for (long x : c)
+			n += x;
+		return n;
+	}
+
+
+	/**
+	 * @see bayes.SimControl#stop()
+	 */
+	public boolean stop()
+	{
+		return converged || (current >= maxIterations);
+	}
+
+
+	/**
+	 * @see bayes.SimControl#done()
+	 */
+	public boolean done()
+	{
+		return stop();
+	}
+
+
+	/**
+	 * @see bayes.SimControl#log()
+	 */
+	public boolean log()
+	{
+		return log;
+	}
+
+
+	/**
+	 * @see bayes.SimControl#iterDone()
+	 */
+	public void iterDone()
+	{
+		current++;
+	}
+
+
+	/**
+	 * @see bayes.SimControl#begin()
+	 */
+	public void begin()
+	{
+		current = 0;
+		converged = false;
+		bound = Double.NaN;
+		reset();
+	}
+
+
+	/**
+	 * @see bayes.SimControl#end()
+	 */
+	public void end()
+	{
+		last = current;
+		current = -1;
+	}
+
+}
@@ -14,8 +14,6 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 
 /**
@@ -41,16 +39,12 @@ public class Distribution implements Serializable
 	/** distribution */
 	public double[]					values;
 
-	/** to record/recall states */
-	private transient Map<String, double[]>	log;
-
 	
 	/**
 	 * Constructor.
 	 */
 	public Distribution()
 	{
-		log = new HashMap<String, double[]>();
 	}
 
 
@@ -134,56 +128,6 @@ public class Distribution implements Serializable
 	}
 
 
-	/**
-	 * Record distribution.
-	 * 
-	 * @param logname
-	 */
-	public void record(String logname)
-	{
-		log.put(logname, values.clone());
-	}
-
-
-	/**
-	 * Return copy of distribution from log.
-	 * 
-	 * @param logname
-	 * @return
-	 * @throws BayesError
-	 */
-	public Distribution retrieve(String logname) throws BayesError
-	{
-		if (logname == null)
-			return this;
-
-		if (!log.containsKey(logname))
-			throw new BayesError("no log '" + logname + "' for var '"
-					+ variable + "'");
-
-		return new Distribution(variable, states, log.get(logname));
-	}
-
-
-	/**
-	 * Recall distribution from log.
-	 * 
-	 * @param logname
-	 * @throws BayesError
-	 */
-	public void recall(String logname) throws BayesError
-	{
-		if (logname == null)
-			return;
-
-		if (!log.containsKey(logname))
-			throw new BayesError("no log '" + logname + "' for var '"
-					+ variable + "'");
-
-		values = log.get(logname);
-	}
-
-
 	/**
 	 * @param name
 	 *            new state name
@@ -447,7 +391,6 @@ public class Distribution implements Serializable
 	
 	public void readObject(ObjectInputStream stream) throws IOException
 	{
-		log = new HashMap<String, double[]>();
 		int size = stream.readInt();
 		states = new String[size];
 		values = new double[size];
@@ -0,0 +1,539 @@
+/*
+ * EMLearner.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Expectation-maximization learner for the conditional densities of a
+ * network, from records of partially observed evidence. A record holds the
+ * observed state index of every node, in the order of the network's
+ * getVars(), or -1 where the node is hidden.
+ * <p>
+ * The corpus is streamed in chunks, so it need not fit in memory. Recorded
+ * evidence repeats a lot (there are few distinct preflop situations), so
+ * each chunk is sorted and equal records are calibrated once, weighted by
+ * their number. The distinct records are split on a fork/join pool down to
+ * a grain; every worker owns a junction tree and a table of expected counts,
+ * and adds the posterior of each node's family for each record it
+ * calibrates. The counts of all
+ * workers are merged once the corpus is read, and the new densities are
+ * written back through BayesNode.setConditional(). Cells which are zero stay
+ * zero, so deterministic densities survive learning.
+ * <p>
+ * Queries on the network cache their solutions, so they must be invalidated
+ * after learning.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class EMLearner
+{
+
+	/** distinct records per fork/join leaf */
+	private static final int			GRAIN		= 32;
+
+	/** records read from the corpus at once */
+	private static final int			CHUNK		= 1 << 18;
+
+	/** lexicographic order of records */
+	private static final Comparator<int[]>	ORDER		= new RecordOrder();
+
+	/** network to learn */
+	private BayesNet					net;
+
+	/** network nodes, in the order of the records */
+	private BayesNode[]					vars;
+
+	/** whether each node's density is learned */
+	private boolean[]					learned;
+
+	/** pseudo-count added to every nonzero cell */
+	private double						prior		= 1.0;
+
+	/** pool to run on */
+	private ForkJoinPool				pool;
+
+	/** workers not running a leaf */
+	private ConcurrentLinkedQueue<Worker>	idle;
+
+	/** every worker created */
+	private List<Worker>				workers;
+
+	/** first error a worker hit in this pass, or null */
+	private volatile BayesError			failure;
+
+	/** log-likelihood of the corpus before the last pass's update */
+	private double						loglik;
+
+	/** records used by the last pass */
+	private long						records;
+
+	/** records of the last pass with zero probability */
+	private long						rejected;
+
+
+	/**
+	 * Learn every density of the network on the common pool.
+	 *
+	 * @param net
+	 *            network
+	 */
+	public EMLearner(BayesNet net)
+	{
+		this(net, ForkJoinPool.commonPool());
+	}
+
+
+	/**
+	 * Learn every density of the network.
+	 *
+	 * @param net
+	 *            network
+	 * @param pool
+	 *            fork/join pool to run on
+	 */
+	public EMLearner(BayesNet net, ForkJoinPool pool)
+	{
+		this.net = net;
+		this.pool = pool;
+		vars = net.getVars();
+		learned = new boolean[vars.length];
+		Arrays.fill(learned, true);
+		idle = new ConcurrentLinkedQueue<Worker>();
+		workers = new ArrayList<Worker>();
+	}
+
+
+	/**
+	 * Learn only the given densities; the others are held fixed.
+	 *
+	 * @param names
+	 *            variables whose densities are learned
+	 * @throws BayesError
+	 */
+	public void setLearned(String... names) throws BayesError
+	{
+		Arrays.fill(learned, false);
+		for (String name : names)
+			learned[indexOf(name)] = true;
+	}
+
+
+	/**
+	 * @param prior
+	 *            pseudo-count added to every nonzero cell of a learned density
+	 *            (0 gives maximum likelihood estimates)
+	 */
+	public void setPseudoCount(double prior)
+	{
+		this.prior = prior;
+	}
+
+
+	/**
+	 * Encode evidence as a record.
+	 *
+	 * @param evidence
+	 *            map of variable name to observed state name
+	 * @return record, with -1 for variables not in the map
+	 * @throws BayesError
+	 */
+	public int[] encode(Map<String, String> evidence) throws BayesError
+	{
+		int[] rec = new int[vars.length];
+		Arrays.fill(rec, -1);
+		for (Map.Entry<String, String> e : evidence.entrySet())
+		{
+			int v = indexOf(e.getKey());
+			String[] states = vars[v].getMarginal().states;
+			int s;
+			for (s = 0; s < states.length; s++)
+				if (states[s].equals(e.getValue()))
+					break;
+			if (s == states.length)
+				throw new BayesError("no state '" + e.getValue()
+						+ "' of variable '" + e.getKey() + "' exists");
+			rec[v] = s;
+		}
+		return rec;
+	}
+
+
+	/**
+	 * Run passes until the log-likelihood improves by less than the
+	 * tolerance (relative to its magnitude), or the pass limit is reached.
+	 *
+	 * @param corpus
+	 *            evidence records; iterated once per pass
+	 * @param maxIter
+	 *            largest number of passes
+	 * @param tol
+	 *            relative improvement of the log-likelihood to stop at
+	 * @return number of passes run
+	 * @throws BayesError
+	 */
+	public int learn(Iterable<int[]> corpus, int maxIter, double tol)
+			throws BayesError
+	{
+		double last = Double.NEGATIVE_INFINITY;
+		for (int i = 1; i <= maxIter; i++)
+		{
+			double ll = iterate(corpus);
+			if ((ll - last) <= tol * Math.abs(ll))
+				return i;
+			last = ll;
+		}
+		return maxIter;
+	}
+
+
+	/**
+	 * Run one pass: take the expected counts of the corpus under the current
+	 * densities, then replace the learned densities by their normalized
+	 * counts.
+	 *
+	 * @param corpus
+	 *            evidence records; each is copied as it is read, so an
+	 *            iterator may fill the same array every time
+	 * @return log-likelihood of the corpus under the densities before the
+	 *         update, over the records with nonzero probability
+	 * @throws BayesError
+	 */
+	public double iterate(Iterable<int[]> corpus) throws BayesError
+	{
+		for (Worker w : workers)
+			w.reset();
+		failure = null;
+
+		Iterator<int[]> it = corpus.iterator();
+		int[][] chunk = new int[CHUNK][];
+		double[] weight = new double[CHUNK];
+		while (it.hasNext())
+		{
+			int n = 0;
+			while ((n < CHUNK) && it.hasNext())
+				chunk[n++] = check(it.next());
+
+			/* collapse equal records into one, weighted */
+			Arrays.sort(chunk, 0, n, ORDER);
+			int m = 0;
+			for (int i = 0; i < n; i++)
+				if ((m > 0) && (ORDER.compare(chunk[m - 1], chunk[i]) == 0))
+					weight[m - 1]++;
+				else
+				{
+					chunk[m] = chunk[i];
+					weight[m++] = 1.0;
+				}
+
+			pool.invoke(new Slice(chunk, weight, 0, m));
+			if (failure != null)
+				throw failure;
+		}
+
+		double[][] sum = new double[vars.length][];
+		loglik = 0.0;
+		records = rejected = 0;
+		for (int i = 0; i < vars.length; i++)
+			if (learned[i])
+				sum[i] = new double[vars[i].getConditional().length];
+		for (Worker w : workers)
+		{
+			for (int i = 0; i < vars.length; i++)
+				if (sum[i] != null)
+					for (int j = 0; j < sum[i].length; j++)
+						sum[i][j] += w.counts[i][j];
+			loglik += w.loglik;
+			records += w.records;
+			rejected += w.rejected;
+		}
+
+		for (int i = 0; i < vars.length; i++)
+			if (sum[i] != null)
+				vars[i].setConditional(maximize(vars[i], sum[i]));
+		for (Worker w : workers)
+			w.tree.invalidate();
+
+		return loglik;
+	}
+
+
+	/**
+	 * @param node
+	 *            network node
+	 * @param counts
+	 *            expected counts of its density's cells
+	 * @return new density: each column of counts and pseudo-counts,
+	 *         normalized; a column with no mass keeps its old values
+	 */
+	private double[] maximize(BayesNode node, double[] counts)
+	{
+		double[] old = node.getConditional();
+		double[] data = new double[old.length];
+		int ns = node.numStates();
+		int cols = old.length / ns;
+
+		for (int c = 0; c < cols; c++)
+		{
+			double total = 0.0;
+			for (int s = 0; s < ns; s++)
+			{
+				int i = s * cols + c;
+				if (old[i] != 0.0)
+					data[i] = counts[i] + prior;
+				total += data[i];
+			}
+			for (int s = 0; s < ns; s++)
+			{
+				int i = s * cols + c;
+				data[i] = (total > 0.0) ? data[i] / total : old[i];
+			}
+		}
+		return data;
+	}
+
+
+	/**
+	 * @param rec
+	 *            record from the corpus
+	 * @return copy of the record, if it fits the network; the corpus may
+	 *         reuse its arrays
+	 * @throws BayesError
+	 */
+	private int[] check(int[] rec) throws BayesError
+	{
+		if (rec.length != vars.length)
+			throw new BayesError("record has " + rec.length
+					+ " states, network '" + net.getName() + "' has "
+					+ vars.length + " nodes");
+		for (int i = 0; i < rec.length; i++)
+			if ((rec[i] < -1) || (rec[i] >= vars[i].numStates()))
+				throw new BayesError("record state " + rec[i]
+						+ " out of range for variable '"
+						+ vars[i].getVariable() + "'");
+		return rec.clone();
+	}
+
+
+	/**
+	 * @param name
+	 *            variable name
+	 * @return index of the node in the records
+	 * @throws BayesError
+	 */
+	private int indexOf(String name) throws BayesError
+	{
+		for (int i = 0; i < vars.length; i++)
+			if (vars[i].getVariable().equals(name))
+				return i;
+		throw new BayesError("network '" + net.getName()
+				+ "' has no variable '" + name + "'");
+	}
+
+
+	/**
+	 * @return an idle worker, or a new one
+	 * @throws BayesError
+	 */
+	private Worker checkout() throws BayesError
+	{
+		Worker w = idle.poll();
+		return (w != null) ? w : newWorker();
+	}
+
+
+	/**
+	 * @return a new worker, registered for merging
+	 * @throws BayesError
+	 */
+	private synchronized Worker newWorker() throws BayesError
+	{
+		Worker w = new Worker();
+		workers.add(w);
+		return w;
+	}
+
+
+	/**
+	 * @return log-likelihood of the corpus found by the last pass
+	 */
+	public double getLogLikelihood()
+	{
+		return loglik;
+	}
+
+
+	/**
+	 * @return number of records the last pass learned from
+	 */
+	public long getRecords()
+	{
+		return records;
+	}
+
+
+	/**
+	 * @return number of records of the last pass which had zero probability
+	 *         under the network, and were skipped
+	 */
+	public long getRejected()
+	{
+		return rejected;
+	}
+
+
+	/**
+	 * Lexicographic order of records of equal length.
+	 */
+	private static class RecordOrder implements Comparator<int[]>
+	{
+
+		public int compare(int[] a, int[] b)
+		{
+			for (int i = 0; i < a.length; i++)
+				if (a[i] != b[i])
+					return (a[i] < b[i]) ? -1 : 1;
+			return 0;
+		}
+	}
+
+
+	/**
+	 * A range of distinct records of one chunk.
+	 */
+	private class Slice extends RecursiveAction
+	{
+		private static final long	serialVersionUID	= 1L;
+
+		/** distinct records of the chunk */
+		private int[][]				chunk;
+
+		/** number of times each record was seen */
+		private double[]			weight;
+
+		/** range of records */
+		private int					lo, hi;
+
+
+		Slice(int[][] chunk, double[] weight, int lo, int hi)
+		{
+			this.chunk = chunk;
+			this.weight = weight;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+
+		protected void compute()
+		{
+			if (hi - lo > GRAIN)
+			{
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Slice(chunk, weight, lo, mid), new Slice(chunk,
+						weight, mid, hi));
+				return;
+			}
+
+			if (failure != null)
+				return;
+			try
+			{
+				Worker w = checkout();
+				for (int i = lo; i < hi; i++)
+					w.add(chunk[i], weight[i]);
+				idle.add(w);
+			}
+			catch (BayesError e)
+			{
+				failure = e;
+			}
+		}
+	}
+
+
+	/**
+	 * A junction tree and the expected counts it has added up.
+	 */
+	private class Worker
+	{
+
+		/** tree compiled for the network */
+		JunctionTree	tree;
+
+		/** expected counts of each learned density, or null */
+		double[][]		counts;
+
+		/** log-likelihood of the records added */
+		double			loglik;
+
+		/** records added */
+		long			records;
+
+		/** records with zero probability */
+		long			rejected;
+
+
+		Worker() throws BayesError
+		{
+			tree = new JunctionTree(net);
+			counts = new double[vars.length][];
+			for (int i = 0; i < vars.length; i++)
+				if (learned[i])
+					counts[i] = new double[vars[i].getConditional().length];
+		}
+
+
+		/**
+		 * Clear the counts, and make room for newly learned densities.
+		 */
+		void reset()
+		{
+			for (int i = 0; i < vars.length; i++)
+				if (!learned[i])
+					counts[i] = null;
+				else if (counts[i] == null)
+					counts[i] = new double[vars[i].getConditional().length];
+				else
+					Arrays.fill(counts[i], 0.0);
+			loglik = 0.0;
+			records = rejected = 0;
+		}
+
+
+		/**
+		 * Add the expected counts of a record.
+		 *
+		 * @param rec
+		 *            record
+		 * @param n
+		 *            number of times it was seen
+		 * @throws BayesError
+		 */
+		void add(int[] rec, double n) throws BayesError
+		{
+			tree.setEvidence(rec);
+			double z = tree.addFamilyCounts(counts, n);
+			if (z > 0.0)
+			{
+				loglik += n * Math.log(z);
+				records += (long) n;
+			}
+			else
+				rejected += (long) n;
+		}
+	}
+}
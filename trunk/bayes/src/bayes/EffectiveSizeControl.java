@@ -0,0 +1,169 @@
+/*
+ * EffectiveSizeControl.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+/**
+ * Convergence control on effective sample size. Each batch of sweeps of each
+ * chain gives one batch mean per node state; the spread of the batch means
+ * estimates the Monte Carlo standard error of the marginals, autocorrelation
+ * included. The run stops when the 95% half-width (two standard errors) of
+ * every sampled marginal is within the target precision.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class EffectiveSizeControl extends ConvergenceControl
+{
+
+	/** batches needed per chain before the spread is trusted */
+	private static final int	MIN_BATCHES	= 10;
+
+	/** target half-width of every marginal */
+	private double				precision;
+
+	/** counts at the previous update, by chain, node and state */
+	private long[][][]			prev;
+
+	/** sum of batch means, by node and state */
+	private double[][]			sum;
+
+	/** sum of squared batch means, by node and state */
+	private double[][]			sumSq;
+
+	/** number of batches seen (over all chains) */
+	private int					batches;
+
+	/** smallest effective sample size over all sampled states */
+	private double				ess;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param precision
+	 *            target 95% half-width of every marginal
+	 * @param maxIterations
+	 *            iterations after which to stop regardless
+	 * @param log
+	 *            whether to log
+	 */
+	public EffectiveSizeControl(double precision, int maxIterations,
+			boolean log)
+	{
+		super(maxIterations, log);
+		this.precision = precision;
+	}
+
+
+	/**
+	 * @see bayes.ConvergenceControl#reset()
+	 */
+	protected void reset()
+	{
+		prev = null;
+		sum = null;
+		sumSq = null;
+		batches = 0;
+		ess = 0.0;
+	}
+
+
+	/**
+	 * @see bayes.ConvergenceControl#converged(long[][][])
+	 */
+	protected boolean converged(long[][][] counts)
+	{
+		int m = counts.length;
+		int n = counts[0].length;
+
+		if (prev == null)
+		{
+			prev = new long[m][n][];
+			sum = new double[n][];
+			sumSq = new double[n][];
+			for (int i = 0; i < n; i++)
+			{
+				for (int c = 0; c < m; c++)
+					prev[c][i] = new long[counts[c][i].length];
+				sum[i] = new double[counts[0][i].length];
+				sumSq[i] = new double[counts[0][i].length];
+			}
+		}
+
+		/* one batch mean per chain, from the counts since the last update */
+		boolean any = false;
+		for (int c = 0; c < m; c++)
+		{
+			boolean batch = false;
+			for (int i = 0; i < n; i++)
+			{
+				long[] now = counts[c][i];
+				long[] was = prev[c][i];
+				long len = total(now) - total(was);
+				if (len > 0)
+				{
+					batch = true;
+					for (int s = 0; s < now.length; s++)
+					{
+						double mean = (double) (now[s] - was[s]) / len;
+						sum[i][s] += mean;
+						sumSq[i][s] += mean * mean;
+					}
+				}
+				System.arraycopy(now, 0, was, 0, now.length);
+			}
+			if (batch)
+			{
+				batches++;
+				any = true;
+			}
+		}
+
+		if (!any || (batches < MIN_BATCHES * m))
+			return false;
+
+		/* standard error of the grand mean from the spread of batch means */
+		double worst = 0.0;
+		ess = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < n; i++)
+		{
+			long N = 0;
+			for (int c = 0; c < m; c++)
+				N += total(counts[c][i]);
+			if (N == 0)
+				continue;
+
+			for (int s = 0; s < sum[i].length; s++)
+			{
+				double mean = sum[i][s] / batches;
+				double var = (sumSq[i][s] - batches * mean * mean)
+						/ (batches - 1);
+				double se = Math.sqrt(Math.max(var, 0.0) / batches);
+				if (se > worst)
+					worst = se;
+
+				double p = mean * (1.0 - mean);
+				if ((var > 0.0) && (p > 0.0))
+					ess = Math.min(ess, p / (se * se));
+			}
+		}
+
+		bound = 2.0 * worst;
+		return bound <= precision;
+	}
+
+
+	/**
+	 * @return smallest effective sample size over the sampled states, as of
+	 *         the last update
+	 */
+	public double getEffectiveSize()
+	{
+		return ess;
+	}
+
+}
@@ -0,0 +1,626 @@
+/*
+ * EliminationPlan.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A compiled bucket elimination. The bucket structure that BucketTree builds
+ * on every solve depends only on the network structure, the ordering, and the
+ * set of query and observed variables; the plan walks that structure once,
+ * records which densities enter which bucket, and precomputes every stride
+ * table and output buffer. Executing the plan then only runs the numeric
+ * kernel, so changing priors or evidence values costs no re-planning.
+ * <p>
+ * When compiled with evidence slicing, observed variables never enter the
+ * product tables: each density is read at the offset of the observed states,
+ * so every bucket is sized over unobserved variables only.
+ * <p>
+ * Densities which cannot change the query's solution (of barren nodes, and
+ * of nodes d-separated from the query by the evidence; see Relevance) are
+ * left out when the plan is compiled, along with the buckets of their
+ * variables.
+ * <p>
+ * A plan can also be compiled for explicitly given evidence and executed over
+ * explicitly given densities and observed states, leaving the nodes' own
+ * evidence and densities untouched (see NetContext).
+ * <p>
+ * Every bucket keeps its output between executions, and is only run again
+ * when one of its inputs changed: a density was replaced or its version
+ * moved, an observed state it is sliced at moved, or a bucket feeding it
+ * was run again. Changing one observation thus only re-runs the buckets on
+ * the path from that variable's densities to the root.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class EliminationPlan
+{
+
+	/** network the plan was compiled for, if compiled from its evidence */
+	private BayesNet		net;
+
+	/** network variables, in the order their densities entered the pool */
+	private BayesNode[]		vars;
+
+	/** index of each variable in vars (at compile time only) */
+	private Map<BayesNode, Integer>	index;
+
+	/** whether each variable was observed at compile time */
+	private boolean[]		observed;
+
+	/** densities of the network's nodes, filled in by execute() */
+	private double[][]		data;
+
+	/** observed states of the network's nodes, filled in by execute() */
+	private int[]			states;
+
+	/** versions of the network's densities, filled in by execute() */
+	private int[]			versions;
+
+	/** number of function variables of each density at compile time */
+	private int[]			numVars;
+
+	/** data length of each density at compile time */
+	private int[]			dataLen;
+
+	/** support of each sparse density at compile time */
+	private Support[]		support;
+
+	/** whether observed variables are sliced out of the densities */
+	private boolean			slice;
+
+	/** elimination steps, root last */
+	private Step[]			steps;
+
+	/** variables of the solution density */
+	private List<BayesNode>	rootVars;
+
+	/** number of buckets the last execution ran */
+	private int				ran;
+
+	/** number of product cells the last execution visited */
+	private long			cells;
+
+
+	/**
+	 * A single bucket: multiply the input densities and sum out the bucket
+	 * variable (if any) into the output buffer.
+	 */
+	private static class Step
+	{
+
+		/** input density sources; >= 0 is a node, < 0 is step (-src - 1) */
+		int[]		src;
+
+		/** input data arrays, filled in at execution time */
+		double[][]		in;
+
+		/** fused product / sum-out kernel */
+		Kernel			kernel;
+
+		/** observed variables of each input, by index (sliced plans only) */
+		int[][]			evar;
+
+		/** stride of each observed variable in each input */
+		int[][]			estride;
+
+		/** starting offset into each input */
+		int[]			off;
+
+		/** version of each input when the output was computed */
+		int[]			ver;
+
+		/** version of the output, moved on every run */
+		int				version;
+
+		/** whether the output is computed */
+		boolean			valid;
+
+		/** output buffer */
+		double[]		out;
+	}
+
+
+	/**
+	 * Compile a plan. The network's nodes must already be marked observed or
+	 * not, and the ordering must have been computed for the query.
+	 *
+	 * @param net
+	 *            network
+	 * @param ord
+	 *            computed ordering
+	 * @param numQuery
+	 *            number of query variables
+	 */
+	public EliminationPlan(BayesNet net, Ordering ord, int numQuery)
+	{
+		this(net, ord, numQuery, false);
+	}
+
+
+	/**
+	 * Compile a plan, optionally slicing evidence out of every density before
+	 * it enters the pool.
+	 *
+	 * @param net
+	 *            network
+	 * @param ord
+	 *            computed ordering
+	 * @param numQuery
+	 *            number of query variables
+	 * @param slice
+	 *            whether to restrict densities to the observed states
+	 */
+	public EliminationPlan(BayesNet net, Ordering ord, int numQuery,
+			boolean slice)
+	{
+		this(net.getVars(), observed(net.getVars()), ord.getOrder(),
+				numQuery, slice);
+		this.net = net;
+	}
+
+
+	/**
+	 * Compile a plan for the given evidence, ignoring the nodes' own observed
+	 * flags. Observed query variables must not be counted as queries.
+	 *
+	 * @param vars
+	 *            network nodes
+	 * @param observed
+	 *            which nodes are observed
+	 * @param order
+	 *            ordering computed for the query and evidence
+	 * @param numQuery
+	 *            number of unobserved query variables
+	 * @param slice
+	 *            whether to restrict densities to the observed states
+	 */
+	EliminationPlan(BayesNode[] vars, boolean[] observed, BayesNode[] order,
+			int numQuery, boolean slice)
+	{
+		this.slice = slice;
+		this.vars = vars.clone();
+		this.observed = observed.clone();
+		this.numVars = new int[vars.length];
+		this.dataLen = new int[vars.length];
+		this.support = new Support[vars.length];
+		this.data = new double[vars.length][];
+		this.states = new int[vars.length];
+		this.versions = new int[vars.length];
+
+		index = new IdentityHashMap<BayesNode, Integer>(vars.length);
+		for (int i = 0; i < vars.length; i++)
+			index.put(vars[i], i);
+
+		BayesNode[] req = order;
+		int nObs = 0;
+		for (boolean b : observed)
+			if (b)
+				nObs++;
+		int N = req.length - numQuery - nObs;
+		List<BayesNode> qvars = new ArrayList<BayesNode>();
+		boolean[] queried = new boolean[vars.length];
+		for (int i = req.length - numQuery; i < req.length; i++)
+		{
+			qvars.add(req[i]);
+			queried[index.get(req[i])] = true;
+		}
+
+		/*
+		 * the pool holds the variables and source of each density the query
+		 * needs; barren and d-separated nodes never enter it
+		 */
+		boolean[] keep = Relevance.densities(vars, queried, observed);
+		boolean[] pooled = new boolean[vars.length];
+		List<List<BayesNode>> pool = new LinkedList<List<BayesNode>>();
+		List<Integer> psrc = new LinkedList<Integer>();
+		for (int i = 0; i < vars.length; i++)
+		{
+			ProbFunction f = vars[i].getFunction();
+			numVars[i] = f.numVars();
+			dataLen[i] = f.getData().length;
+			support[i] = f.getSupport();
+			if (!keep[i])
+				continue;
+			pool.add(new ArrayList<BayesNode>(f.getVariables()));
+			psrc.add(i);
+			for (BayesNode n : f.getVariables())
+				pooled[index.get(n)] = true;
+		}
+
+		/* same schedule as BucketTree.eliminate(), less the pruned nodes */
+		List<Step> sl = new ArrayList<Step>();
+		for (int i = 0; i < N; i++)
+		{
+			BayesNode v = req[i + nObs];
+			if (!pooled[index.get(v)])
+				continue;
+			List<List<BayesNode>> sub = new ArrayList<List<BayesNode>>();
+			List<Integer> ssrc = new ArrayList<Integer>();
+			take(pool, psrc, sub, ssrc, v, null);
+
+			List<BayesNode> sep = new ArrayList<BayesNode>();
+			sl.add(compile(sub, ssrc, v, sep, slice));
+			pool.add(sep);
+			psrc.add(-sl.size());
+		}
+
+		/* root contains every density mentioning a query variable */
+		List<List<BayesNode>> sub = new ArrayList<List<BayesNode>>();
+		List<Integer> ssrc = new ArrayList<Integer>();
+		take(pool, psrc, sub, ssrc, null, qvars);
+		rootVars = new ArrayList<BayesNode>();
+		sl.add(compile(sub, ssrc, null, rootVars, slice));
+		steps = sl.toArray(new Step[sl.size()]);
+		index = null;
+	}
+
+
+	/**
+	 * @return whether each node is observed
+	 */
+	private static boolean[] observed(BayesNode[] vars)
+	{
+		boolean[] obs = new boolean[vars.length];
+		for (int i = 0; i < vars.length; i++)
+			obs[i] = vars[i].isObserved();
+		return obs;
+	}
+
+
+	/**
+	 * Move densities out of the pool: those containing 'var', or if it is
+	 * null, those containing any of 'any'.
+	 *
+	 * @param pool
+	 *            pool of density variables
+	 * @param psrc
+	 *            pool of density sources
+	 * @param sub
+	 *            receives removed density variables
+	 * @param ssrc
+	 *            receives removed density sources
+	 * @param var
+	 *            bucket variable
+	 * @param any
+	 *            query variables
+	 */
+	static void take(List<List<BayesNode>> pool, List<Integer> psrc,
+			List<List<BayesNode>> sub, List<Integer> ssrc, BayesNode var,
+			List<BayesNode> any)
+	{
+		Iterator<Integer> s = psrc.iterator();
+		for (Iterator<List<BayesNode>> i = pool.iterator(); i.hasNext();)
+		{
+			List<BayesNode> f = i.next();
+			Integer src = s.next();
+
+			boolean hit = false;
+			if (var != null)
+				hit = f.contains(var);
+			else
+				for (BayesNode n : f)
+					if (any.contains(n))
+					{
+						hit = true;
+						break;
+					}
+
+			if (hit)
+			{
+				i.remove();
+				s.remove();
+				sub.add(f);
+				ssrc.add(src);
+			}
+		}
+	}
+
+
+	/**
+	 * Build the kernel and evidence offset tables for one bucket.
+	 *
+	 * @param sub
+	 *            variables of input densities
+	 * @param ssrc
+	 *            sources of input densities
+	 * @param var
+	 *            variable to sum out, or null for the root
+	 * @param outVars
+	 *            receives the output variables
+	 * @param slice
+	 *            whether observed variables are sliced out
+	 * @return compiled step
+	 */
+	private Step compile(List<List<BayesNode>> sub, List<Integer> ssrc,
+			BayesNode var, List<BayesNode> outVars, boolean slice)
+	{
+		Step s = new Step();
+		int nf = sub.size();
+
+		/* product variables, in the order ProbFunction.multiply() uses */
+		List<BayesNode> pvars = new ArrayList<BayesNode>();
+		for (List<BayesNode> f : sub)
+			for (BayesNode n : f)
+				if (!pvars.contains(n)
+						&& !(slice && observed[index.get(n)]))
+					pvars.add(n);
+
+		for (BayesNode n : pvars)
+			if (n != var)
+				outVars.add(n);
+
+		/* observed variables are positioned by offset, not by the kernel */
+		s.src = new int[nf];
+		s.in = new double[nf][];
+		s.evar = new int[nf][];
+		s.estride = new int[nf][];
+		for (int k = 0; k < nf; k++)
+		{
+			List<BayesNode> f = sub.get(k);
+			List<Integer> ev = new ArrayList<Integer>();
+			List<Integer> es = new ArrayList<Integer>();
+			s.src[k] = ssrc.get(k);
+			int mult = 1;
+			for (int j = f.size() - 1; j >= 0; j--)
+			{
+				BayesNode n = f.get(j);
+				if (!pvars.contains(n))
+				{
+					ev.add(index.get(n));
+					es.add(mult);
+				}
+				mult *= n.numStates();
+			}
+
+			s.evar[k] = new int[ev.size()];
+			s.estride[k] = new int[es.size()];
+			for (int j = 0; j < s.estride[k].length; j++)
+			{
+				s.evar[k][j] = ev.get(j);
+				s.estride[k][j] = es.get(j);
+			}
+		}
+
+		/* a sparse density may drive the product */
+		Support[] sup = new Support[nf];
+		for (int k = 0; k < nf; k++)
+			if (s.src[k] >= 0)
+				sup[k] = support[s.src[k]];
+
+		s.kernel = SparseKernel.compile(sub, pvars, outVars, sup);
+		s.out = new double[s.kernel.outputSize()];
+		s.off = new int[nf];
+		s.ver = new int[nf];
+		return s;
+	}
+
+
+	/**
+	 * Whether the network still has the shape this plan was compiled for.
+	 * Priors and conditional values may change; variables, parents, states
+	 * and the support of sparse densities may not.
+	 *
+	 * @return whether the plan can be executed (always, for a plan compiled
+	 *         for explicit evidence)
+	 */
+	public boolean matches()
+	{
+		if (net == null)
+			return true;
+
+		if (net.numVars() != vars.length)
+			return false;
+
+		for (int i = 0; i < vars.length; i++)
+		{
+			ProbFunction f = vars[i].getFunction();
+			if ((f.numVars() != numVars[i])
+					|| (f.getData().length != dataLen[i])
+					|| (f.getSupport() != support[i]))
+				return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Run the numeric kernel over the current densities, re-running only the
+	 * buckets whose inputs changed since the last execution. Densities
+	 * written in place must be marked with ProbFunction.dataChanged(). The
+	 * returned function shares the plan's root buffer, which is overwritten
+	 * by the next execution.
+	 *
+	 * @return denormalized solution density
+	 */
+	public ProbFunction execute()
+	{
+		for (int i = 0; i < vars.length; i++)
+		{
+			ProbFunction f = vars[i].getFunction();
+			data[i] = f.getData();
+			versions[i] = f.getVersion();
+			states[i] = vars[i].getStateIdx();
+		}
+
+		return execute(data, versions, states);
+	}
+
+
+	/**
+	 * Run the numeric kernel over the given densities and observed states,
+	 * re-running every bucket. The returned function shares the plan's root
+	 * buffer, which is overwritten by the next execution.
+	 *
+	 * @param data
+	 *            density of each node, laid out as the node's function
+	 * @param states
+	 *            observed state of each node (others are ignored)
+	 * @return denormalized solution density
+	 */
+	ProbFunction execute(double[][] data, int[] states)
+	{
+		return execute(data, null, states);
+	}
+
+
+	/**
+	 * Run the numeric kernel over the given densities and observed states,
+	 * re-running only the buckets whose inputs changed. A density counts as
+	 * changed when its array or its version differs from the last execution.
+	 * The returned function shares the plan's root buffer, which is
+	 * overwritten by the next execution.
+	 *
+	 * @param data
+	 *            density of each node, laid out as the node's function
+	 * @param versions
+	 *            version of each node's density, or null if every density
+	 *            is to be taken as changed
+	 * @param states
+	 *            observed state of each node (others are ignored)
+	 * @return denormalized solution density
+	 */
+	ProbFunction execute(double[][] data, int[] versions, int[] states)
+	{
+		if (versions == null)
+			invalidate();
+
+		ran = 0;
+		cells = 0;
+		for (Step s : steps)
+			if (run(s, data, versions, states))
+			{
+				ran++;
+				cells += s.kernel.cells();
+			}
+
+		return new ProbFunction(new ArrayList<BayesNode>(rootVars),
+				steps[steps.length - 1].out);
+	}
+
+
+	/**
+	 * Multiply a bucket's inputs and sum into its output buffer, unless its
+	 * output is computed and no input changed.
+	 *
+	 * @param s
+	 *            step to run
+	 * @param data
+	 *            density of each node
+	 * @param versions
+	 *            version of each node's density, or null
+	 * @param states
+	 *            observed state of each node
+	 * @return whether the bucket was run
+	 */
+	private boolean run(Step s, double[][] data, int[] versions, int[] states)
+	{
+		boolean dirty = !s.valid;
+
+		/* inputs start at the offset of their observed states */
+		for (int k = 0; k < s.src.length; k++)
+		{
+			int src = s.src[k];
+			double[] in;
+			int ver;
+			if (src >= 0)
+			{
+				in = data[src];
+				ver = (versions == null) ? 0 : versions[src];
+			}
+			else
+			{
+				in = steps[-src - 1].out;
+				ver = steps[-src - 1].version;
+			}
+
+			int off = 0;
+			for (int e = 0; e < s.evar[k].length; e++)
+				off += s.estride[k][e] * states[s.evar[k][e]];
+
+			if ((in != s.in[k]) || (ver != s.ver[k]) || (off != s.off[k]))
+				dirty = true;
+			s.in[k] = in;
+			s.ver[k] = ver;
+			s.off[k] = off;
+		}
+
+		if (!dirty)
+			return false;
+
+		s.kernel.run(s.in, s.off, s.out);
+		s.version++;
+		s.valid = true;
+		return true;
+	}
+
+
+	/**
+	 * Drop every bucket's output, so the next execution runs them all.
+	 */
+	public void invalidate()
+	{
+		for (Step s : steps)
+			s.valid = false;
+	}
+
+
+	/**
+	 * @return whether observed variables are sliced out of the densities
+	 */
+	public boolean isSliced()
+	{
+		return slice;
+	}
+
+
+	/**
+	 * @return number of buckets, including the root
+	 */
+	public int numSteps()
+	{
+		return steps.length;
+	}
+
+
+	/**
+	 * @return number of buckets the last execution ran
+	 */
+	public int stepsRun()
+	{
+		return ran;
+	}
+
+
+	/**
+	 * @return number of product cells the last execution visited
+	 */
+	public long cells()
+	{
+		return cells;
+	}
+
+
+	/**
+	 * @return number of cells of the largest bucket output
+	 */
+	public int maxFactor()
+	{
+		int m = 0;
+		for (Step s : steps)
+			m = Math.max(m, s.kernel.outputSize());
+		return m;
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * FactorKernel.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Precompiled factor product and marginalization. A kernel is built once for
+ * a fixed layout: the variables of each input density, the variables of the
+ * product, and the variables kept in the output. Running it multiplies the
+ * inputs cell by cell and sums the product into the output, so a plain
+ * multiply keeps every product variable and a fused multiply-and-sum-out
+ * simply leaves the summed variables out of the output; the full product is
+ * never materialized.
+ * <p>
+ * Strides are resolved at construction. Adjacent product variables which are
+ * laid out contiguously in every input and in the output are merged into one
+ * dimension, and the innermost dimension is processed as a run, one input at a
+ * time. Running a kernel allocates nothing; the scratch it uses is owned by
+ * the kernel, so one kernel must not be run by two threads at once.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class FactorKernel implements Kernel
+{
+
+	/** number of inputs */
+	private int			nf;
+
+	/** number of (merged) dimensions */
+	private int			nd;
+
+	/** length of each dimension */
+	private int[]		len;
+
+	/** stride of each dimension in each input */
+	private int[][]		istride;
+
+	/** stride of each dimension in the output */
+	private int[]		ostride;
+
+	/** number of runs (product of all but the innermost dimension) */
+	private int			outer;
+
+	/** length of the innermost run */
+	private int			inner;
+
+	/** number of output cells */
+	private int			outSize;
+
+	/** odometer over outer dimensions */
+	private int[]		ctr;
+
+	/** current index into each input */
+	private int[]		fidx;
+
+	/** product of the current run */
+	private double[]	run;
+
+
+	/**
+	 * Compile a kernel. Input variables which are not product variables are
+	 * ignored (the caller positions the input on their state with an offset,
+	 * e.g. for observed variables).
+	 *
+	 * @param inputs
+	 *            variables of each input, last varying fastest
+	 * @param prod
+	 *            product variables
+	 * @param out
+	 *            output variables, a subset of the product variables, last
+	 *            varying fastest
+	 */
+	public FactorKernel(List<? extends List<BayesNode>> inputs,
+			List<BayesNode> prod, List<BayesNode> out)
+	{
+		nf = inputs.size();
+		int np = prod.size();
+
+		int[] plen = new int[np];
+		for (int j = 0; j < np; j++)
+			plen[j] = prod.get(j).numStates();
+
+		/* raw strides over product variables */
+		int[][] is = new int[nf][np];
+		for (int k = 0; k < nf; k++)
+		{
+			List<BayesNode> f = inputs.get(k);
+			int mult = 1;
+			for (int j = f.size() - 1; j >= 0; j--)
+			{
+				BayesNode n = f.get(j);
+				int p = prod.indexOf(n);
+				if (p != -1)
+					is[k][p] = mult;
+				mult *= n.numStates();
+			}
+		}
+
+		int[] os = new int[np];
+		outSize = 1;
+		for (int j = out.size() - 1; j >= 0; j--)
+		{
+			os[prod.indexOf(out.get(j))] = outSize;
+			outSize *= out.get(j).numStates();
+		}
+
+		/* drop unit dimensions, then merge contiguous neighbours */
+		int[] dl = new int[np];
+		int[][] ds = new int[nf][np];
+		int[] dos = new int[np];
+		nd = 0;
+		for (int j = 0; j < np; j++)
+		{
+			if (plen[j] == 1)
+				continue;
+
+			if ((nd > 0) && mergeable(is, os, j, plen[j], ds, dos, nd - 1))
+			{
+				/* previous dimension becomes the outer part of a wider one */
+				for (int k = 0; k < nf; k++)
+					ds[k][nd - 1] = is[k][j];
+				dos[nd - 1] = os[j];
+				dl[nd - 1] *= plen[j];
+				continue;
+			}
+
+			dl[nd] = plen[j];
+			for (int k = 0; k < nf; k++)
+				ds[k][nd] = is[k][j];
+			dos[nd] = os[j];
+			nd++;
+		}
+
+		len = Arrays.copyOf(dl, nd);
+		ostride = Arrays.copyOf(dos, nd);
+		istride = new int[nf][];
+		for (int k = 0; k < nf; k++)
+			istride[k] = Arrays.copyOf(ds[k], nd);
+
+		inner = (nd == 0) ? 1 : len[nd - 1];
+		outer = 1;
+		for (int j = 0; j < nd - 1; j++)
+			outer *= len[j];
+
+		ctr = new int[nd];
+		fidx = new int[nf];
+		run = new double[inner];
+	}
+
+
+	/**
+	 * Whether product variable j (of length l) can be folded into dimension d
+	 * as its new innermost part: in every input and in the output, d's stride
+	 * must be j's stride times l.
+	 */
+	private boolean mergeable(int[][] is, int[] os, int j, int l, int[][] ds,
+			int[] dos, int d)
+	{
+		for (int k = 0; k < nf; k++)
+			if (ds[k][d] != is[k][j] * l)
+				return false;
+		return dos[d] == os[j] * l;
+	}
+
+
+	/**
+	 * @return number of output cells
+	 */
+	public int outputSize()
+	{
+		return outSize;
+	}
+
+
+	/**
+	 * @return number of product cells a run visits
+	 */
+	public long cells()
+	{
+		return (long) outer * inner;
+	}
+
+
+	/**
+	 * Multiply the inputs and sum the product into the output, which is
+	 * cleared first.
+	 *
+	 * @param in
+	 *            input data, one array per input
+	 * @param off
+	 *            starting offset into each input, or null for none
+	 * @param out
+	 *            output buffer of at least outputSize() cells
+	 */
+	public void run(double[][] in, int[] off, double[] out)
+	{
+		Arrays.fill(out, 0, outSize, 0.0);
+
+		for (int k = 0; k < nf; k++)
+			fidx[k] = (off == null) ? 0 : off[k];
+		for (int j = 0; j < nd; j++)
+			ctr[j] = 0;
+
+		/* scalar product: no dimensions at all */
+		if (nd == 0)
+		{
+			double p = 1.0;
+			for (int k = 0; k < nf; k++)
+				p *= in[k][fidx[k]];
+			out[0] = p;
+			return;
+		}
+
+		int last = nd - 1;
+		int os = ostride[last];
+		int oidx = 0;
+
+		for (int r = 0; r < outer; r++)
+		{
+			/* product of the innermost run, one input at a time */
+			if (nf == 0)
+				Arrays.fill(run, 1.0);
+			else
+			{
+				double[] d = in[0];
+				int f = fidx[0];
+				int s = istride[0][last];
+				if (s == 1)
+					System.arraycopy(d, f, run, 0, inner);
+				else if (s == 0)
+					Arrays.fill(run, d[f]);
+				else
+					for (int t = 0; t < inner; t++, f += s)
+						run[t] = d[f];
+			}
+			for (int k = 1; k < nf; k++)
+			{
+				double[] d = in[k];
+				int f = fidx[k];
+				int s = istride[k][last];
+				if (s == 0)
+				{
+					double x = d[f];
+					for (int t = 0; t < inner; t++)
+						run[t] *= x;
+				}
+				else
+					for (int t = 0; t < inner; t++, f += s)
+						run[t] *= d[f];
+			}
+
+			/* sum the run into the output */
+			if (os == 0)
+			{
+				double sum = 0.0;
+				for (int t = 0; t < inner; t++)
+					sum += run[t];
+				out[oidx] += sum;
+			}
+			else
+				for (int t = 0, o = oidx; t < inner; t++, o += os)
+					out[o] += run[t];
+
+			/* advance odometer over the outer dimensions */
+			int j = last - 1;
+			while (j >= 0)
+			{
+				if (++ctr[j] == len[j])
+				{
+					int back = len[j] - 1;
+					for (int k = 0; k < nf; k++)
+						fidx[k] -= back * istride[k][j];
+					oidx -= back * ostride[j];
+					ctr[j--] = 0;
+				}
+				else
+				{
+					for (int k = 0; k < nf; k++)
+						fidx[k] += istride[k][j];
+					oidx += ostride[j];
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * GelmanRubinControl.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+/**
+ * Convergence control on the Gelman-Rubin statistic. Chains start from
+ * dispersed states, so while they have not mixed, their estimates of each
+ * marginal disagree by more than the spread within a chain explains. The
+ * run stops when the potential scale reduction factor of every sampled
+ * state is within the target, and the marginals are within the target
+ * precision by the batch means estimate (see EffectiveSizeControl), which is
+ * also the reported error bound. The chains' own estimates are too few to
+ * bound the error by themselves. At least two chains are needed; with one the
+ * run goes to its maximum.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class GelmanRubinControl extends EffectiveSizeControl
+{
+
+	/** samples needed per chain before the statistic is trusted */
+	private static final int	MIN_SAMPLES	= 500;
+
+	/** target scale reduction factor, e.g. 1.01 */
+	private double				target;
+
+	/** largest scale reduction factor, as of the last update */
+	private double				rhat;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param target
+	 *            largest acceptable scale reduction factor (above 1.0)
+	 * @param precision
+	 *            target 95% half-width of every marginal
+	 * @param maxIterations
+	 *            iterations after which to stop regardless
+	 * @param log
+	 *            whether to log
+	 */
+	public GelmanRubinControl(double target, double precision,
+			int maxIterations, boolean log)
+	{
+		super(precision, maxIterations, log);
+		this.target = target;
+	}
+
+
+	/**
+	 * @see bayes.ConvergenceControl#reset()
+	 */
+	protected void reset()
+	{
+		super.reset();
+		rhat = Double.NaN;
+	}
+
+
+	/**
+	 * @see bayes.ConvergenceControl#converged(long[][][])
+	 */
+	protected boolean converged(long[][][] counts)
+	{
+		boolean precise = super.converged(counts);
+
+		int m = counts.length;
+		int n = counts[0].length;
+		if (m < 2)
+			return false;
+
+		double worst = 1.0;
+		double[] p = new double[m];
+
+		for (int i = 0; i < n; i++)
+		{
+			/* every chain has run the same number of sweeps */
+			long len = total(counts[0][i]);
+			if (len == 0)
+				continue;
+			if (len < MIN_SAMPLES)
+				return false;
+
+			for (int s = 0; s < counts[0][i].length; s++)
+			{
+				double mean = 0.0;
+				double W = 0.0;
+				for (int c = 0; c < m; c++)
+				{
+					p[c] = (double) counts[c][i][s] / total(counts[c][i]);
+					mean += p[c];
+					W += p[c] * (1.0 - p[c]);
+				}
+				mean /= m;
+				W = W / m * len / (len - 1);
+
+				double B = 0.0;
+				for (int c = 0; c < m; c++)
+					B += (p[c] - mean) * (p[c] - mean);
+				B /= (m - 1);
+
+				/* states every chain agrees never (or always) occur */
+				if (W == 0.0)
+				{
+					if (B > 0.0)
+						worst = Double.POSITIVE_INFINITY;
+					continue;
+				}
+
+				double V = (len - 1.0) / len * W + B;
+				double R = Math.sqrt(V / W);
+				if (R > worst)
+					worst = R;
+			}
+		}
+
+		rhat = worst;
+		return precise && (rhat <= target);
+	}
+
+
+	/**
+	 * @return largest scale reduction factor over the sampled states, as of
+	 *         the last update
+	 */
+	public double getScaleReduction()
+	{
+		return rhat;
+	}
+
+}
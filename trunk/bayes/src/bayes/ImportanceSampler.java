@@ -0,0 +1,591 @@
+/*
+ * ImportanceSampler.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Likelihood weighting and adaptive importance sampling. Every sample is
+ * drawn forward in DAG order: an observed node keeps its state and multiplies
+ * the sample's weight by its likelihood, and an unobserved node is drawn from
+ * an importance table laid out as its density. The estimate of a marginal is
+ * the weight of each state over the total weight.
+ * <p>
+ * For likelihood weighting the importance tables are the densities
+ * themselves. Samples never mix, so deterministic (0/1) densities, on which
+ * a Markov blanket chain gets stuck, cost nothing but the samples that
+ * contradict the evidence.
+ * <p>
+ * The adaptive variant starts from the densities as well, then for the first
+ * few batches moves each column of the importance tables toward the weighted
+ * frequencies of its samples, with a decreasing learning rate, so sampling
+ * follows the posterior rather than the prior. After each update, each table
+ * is mixed with a share of the density, which keeps the tails heavy enough
+ * to bound the weights; unlike a fixed floor on every entry, it does not
+ * flatten the tables of nodes with hundreds of states. Entries of zero
+ * probability stay zero, so deterministic densities are sampled exactly.
+ * Learning samples count toward the estimates, as each is weighted against
+ * the table it was drawn from.
+ * <p>
+ * Samples are drawn by independent streams on a fork/join pool, each with
+ * its own tables, weights and random stream. Each controller iteration
+ * counts as one sample, and streams advance in batches between checks of the
+ * controller. A ConvergenceControl is handed each stream's weighted
+ * frequencies scaled to its number of samples, in place of counts.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class ImportanceSampler
+{
+
+	/** samples per stream between checks of the controller */
+	private static final int	BATCH		= 64;
+
+	/** batches between updates of the importance tables */
+	private static final int	LEARN_EVERY	= 8;
+
+	/** number of updates of the importance tables */
+	private static final int	LEARN_STEPS	= 10;
+
+	/** learning rate of the first update */
+	private static final double	RATE_START	= 0.4;
+
+	/** learning rate of the last update */
+	private static final double	RATE_END	= 0.14;
+
+	/** share of the density mixed into each learned importance table */
+	private static final double	MIX			= 0.1;
+
+	/** network nodes, in DAG order */
+	private BayesNode[]			topo;
+
+	/** number of states of each node */
+	private int[]				ns;
+
+	/** number of columns (parent combinations) of each node's density */
+	private int[]				cols;
+
+	/** conditional density of each node */
+	private double[][]			cpt;
+
+	/** parents of each node, in density order */
+	private int[][]				par;
+
+	/** column stride of each parent in the node's density */
+	private int[][]				parStride;
+
+	/** observed state of each node, or -1 */
+	private int[]				evidence;
+
+	/** whether the importance tables are learned */
+	private boolean				adaptive;
+
+	/** sampling streams */
+	private Stream[]			streams;
+
+	/** pool to run on */
+	private ForkJoinPool		pool;
+
+
+	/**
+	 * Compile the sampler from the network's current densities and evidence.
+	 *
+	 * @param topo
+	 *            network nodes in DAG order
+	 * @param nstreams
+	 *            number of independent sample streams
+	 * @param adaptive
+	 *            whether to learn the importance tables (otherwise this is
+	 *            plain likelihood weighting)
+	 * @param pool
+	 *            fork/join pool to run on
+	 * @param seed
+	 *            seed of the random streams
+	 */
+	public ImportanceSampler(BayesNode[] topo, int nstreams, boolean adaptive,
+			ForkJoinPool pool, long seed)
+	{
+		this.topo = topo;
+		this.adaptive = adaptive;
+		this.pool = pool;
+
+		int n = topo.length;
+		ns = new int[n];
+		cols = new int[n];
+		cpt = new double[n][];
+		par = new int[n][];
+		parStride = new int[n][];
+		evidence = new int[n];
+
+		for (int i = 0; i < n; i++)
+			topo[i].setOrderingIdx(i);
+
+		for (int i = 0; i < n; i++)
+		{
+			BayesNode v = topo[i];
+			ProbFunction f = v.getFunction();
+			ns[i] = v.numStates();
+			cpt[i] = f.getData();
+			cols[i] = cpt[i].length / ns[i];
+			evidence[i] = v.isObserved() ? v.getStateIdx() : -1;
+
+			int np = f.numVars() - 1;
+			par[i] = new int[np];
+			parStride[i] = new int[np];
+			int mult = 1;
+			for (int j = np; j >= 1; j--)
+			{
+				int p = f.getVar(j).getOrderingIdx();
+				par[i][j - 1] = p;
+				parStride[i][j - 1] = mult;
+				mult *= ns[p];
+			}
+		}
+
+		SplittableRandom root = new SplittableRandom(seed);
+		streams = new Stream[Math.max(1, nstreams)];
+		for (int c = 0; c < streams.length; c++)
+			streams[c] = new Stream(root.split());
+	}
+
+
+	/**
+	 * Draw samples until the controller is done.
+	 *
+	 * @param ctl
+	 *            simulation controller
+	 * @param net
+	 *            network to record incremental logs in, or null
+	 * @throws BayesError
+	 *             if every sample contradicted the evidence
+	 */
+	public void run(SimControl ctl, BayesNet net) throws BayesError
+	{
+		for (Stream s : streams)
+			s.initialize();
+
+		ctl.begin();
+		while (true)
+		{
+			while (!ctl.stop())
+			{
+				pool.invoke(new Batch());
+
+				for (int i = 0; i < BATCH * streams.length; i++)
+				{
+					ctl.iterDone();
+					if (ctl.stop())
+						break;
+				}
+
+				if (ctl instanceof ConvergenceControl)
+					((ConvergenceControl) ctl).update(streamCounts());
+
+				if (ctl.log() && (net != null))
+				{
+					publish();
+					net.incRecord();
+				}
+			}
+			if (ctl.done())
+				break;
+			Thread.yield();
+		}
+		ctl.end();
+
+		if (getTotalWeight() == 0.0)
+			throw new BayesError("every sample contradicted the evidence");
+		publish();
+	}
+
+
+	/**
+	 * Make the estimates the nodes' posterior distributions (through their
+	 * state counters, scaled to the number of samples).
+	 */
+	public void publish()
+	{
+		long[][] counts = getCounts();
+		for (int i = 0; i < topo.length; i++)
+			if (evidence[i] == -1)
+				topo[i].setCounts(counts[i]);
+	}
+
+
+	/**
+	 * @return weight of each state summed over all streams, by DAG index
+	 */
+	public double[][] getWeights()
+	{
+		double[][] sum = new double[topo.length][];
+		for (int i = 0; i < topo.length; i++)
+		{
+			sum[i] = new double[ns[i]];
+			for (Stream c : streams)
+				for (int s = 0; s < ns[i]; s++)
+					sum[i][s] += c.weights[i][s];
+		}
+		return sum;
+	}
+
+
+	/**
+	 * @return total weight of the samples of all streams
+	 */
+	public double getTotalWeight()
+	{
+		double w = 0.0;
+		for (Stream c : streams)
+			w += c.total;
+		return w;
+	}
+
+
+	/**
+	 * @return number of samples drawn by all streams
+	 */
+	public long getSamples()
+	{
+		long n = 0;
+		for (Stream c : streams)
+			n += c.samples;
+		return n;
+	}
+
+
+	/**
+	 * @return estimated marginals over all streams, by DAG index (null for
+	 *         observed nodes)
+	 */
+	public double[][] getMarginals()
+	{
+		double[][] w = getWeights();
+		double total = getTotalWeight();
+		for (int i = 0; i < topo.length; i++)
+		{
+			if (evidence[i] != -1)
+			{
+				w[i] = null;
+				continue;
+			}
+			for (int s = 0; s < ns[i]; s++)
+				w[i][s] = (total > 0.0) ? w[i][s] / total : 0.0;
+		}
+		return w;
+	}
+
+
+	/**
+	 * @return estimates over all streams as state counts, by DAG index
+	 */
+	public long[][] getCounts()
+	{
+		return counts(getWeights(), getTotalWeight(), getSamples());
+	}
+
+
+	/**
+	 * @return estimates of every stream as state counts, by stream and DAG
+	 *         index
+	 */
+	private long[][][] streamCounts()
+	{
+		long[][][] counts = new long[streams.length][][];
+		for (int c = 0; c < streams.length; c++)
+			counts[c] = counts(streams[c].weights, streams[c].total,
+					streams[c].samples);
+		return counts;
+	}
+
+
+	/**
+	 * Scale state weights to a number of samples. Observed nodes, and every
+	 * node while the total weight is zero, get all-zero counts.
+	 */
+	private long[][] counts(double[][] weights, double total, long samples)
+	{
+		long[][] counts = new long[topo.length][];
+		for (int i = 0; i < topo.length; i++)
+		{
+			counts[i] = new long[ns[i]];
+			if ((evidence[i] != -1) || (total == 0.0))
+				continue;
+			for (int s = 0; s < ns[i]; s++)
+				counts[i][s] = Math.round(weights[i][s] / total * samples);
+		}
+		return counts;
+	}
+
+
+	/**
+	 * @return importance tables averaged over all streams, by DAG index,
+	 *         laid out as the densities
+	 */
+	public double[][] getImportance()
+	{
+		double[][] avg = new double[topo.length][];
+		for (int i = 0; i < topo.length; i++)
+		{
+			avg[i] = new double[cpt[i].length];
+			for (Stream c : streams)
+				for (int x = 0; x < avg[i].length; x++)
+					avg[i][x] += c.icpt[i][x] / streams.length;
+		}
+		return avg;
+	}
+
+
+	/**
+	 * @return number of streams
+	 */
+	public int numStreams()
+	{
+		return streams.length;
+	}
+
+
+	/**
+	 * @return whether the importance tables are learned
+	 */
+	public boolean isAdaptive()
+	{
+		return adaptive;
+	}
+
+
+	/**
+	 * One batch of samples on every stream.
+	 */
+	private class Batch extends RecursiveAction
+	{
+		private static final long	serialVersionUID	= 1L;
+
+
+		protected void compute()
+		{
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for (final Stream c : streams)
+				tasks.add(new RecursiveAction()
+				{
+					private static final long	serialVersionUID	= 1L;
+
+
+					protected void compute()
+					{
+						c.batch();
+					}
+				});
+			invokeAll(tasks);
+		}
+	}
+
+
+	/**
+	 * A single stream: its own importance tables, weights, learning
+	 * statistics and random stream.
+	 */
+	private class Stream
+	{
+
+		/** current sample */
+		int[]				state;
+
+		/** importance table of each node; the density unless adaptive */
+		double[][]			icpt;
+
+		/** weight of each state */
+		double[][]			weights;
+
+		/** weight of each density entry since the last update */
+		double[][]			learn;
+
+		/** total weight */
+		double				total;
+
+		/** number of samples */
+		long				samples;
+
+		/** batches drawn */
+		int					batches;
+
+		/** updates of the importance tables done */
+		int					steps;
+
+		/** random stream */
+		SplittableRandom	rand;
+
+
+		Stream(SplittableRandom r)
+		{
+			int n = topo.length;
+			state = new int[n];
+			icpt = new double[n][];
+			weights = new double[n][];
+			learn = adaptive ? new double[n][] : null;
+			rand = r;
+			for (int i = 0; i < n; i++)
+			{
+				weights[i] = new double[ns[i]];
+				if (adaptive && (evidence[i] == -1))
+					learn[i] = new double[cpt[i].length];
+			}
+			initialize();
+		}
+
+
+		/**
+		 * Clear the weights and go back to the densities.
+		 */
+		void initialize()
+		{
+			for (int i = 0; i < topo.length; i++)
+			{
+				Arrays.fill(weights[i], 0.0);
+				if (adaptive && (evidence[i] == -1))
+				{
+					icpt[i] = cpt[i].clone();
+					Arrays.fill(learn[i], 0.0);
+				}
+				else
+					icpt[i] = cpt[i];
+			}
+			total = 0.0;
+			samples = 0;
+			batches = 0;
+			steps = 0;
+		}
+
+
+		/**
+		 * Draw a batch of samples, then update the importance tables if one
+		 * is due.
+		 */
+		void batch()
+		{
+			for (int k = 0; k < BATCH; k++)
+				sample();
+
+			if (adaptive && (steps < LEARN_STEPS)
+					&& (++batches % LEARN_EVERY == 0))
+				update();
+		}
+
+
+		/**
+		 * @return column of node i's density given its parents' states
+		 */
+		int column(int i)
+		{
+			int col = 0;
+			for (int j = 0; j < par[i].length; j++)
+				col += parStride[i][j] * state[par[i][j]];
+			return col;
+		}
+
+
+		/**
+		 * Draw one weighted sample and add it to the weights.
+		 */
+		void sample()
+		{
+			double w = 1.0;
+			int n = topo.length;
+
+			for (int i = 0; i < n; i++)
+			{
+				int c = cols[i];
+				int col = column(i);
+				double[] f = cpt[i];
+
+				if (evidence[i] != -1)
+				{
+					state[i] = evidence[i];
+					w *= f[evidence[i] * c + col];
+					if (w == 0.0)
+						break;
+					continue;
+				}
+
+				double[] g = icpt[i];
+				double q = rand.nextDouble();
+				double p = 0.0;
+				int s;
+				for (s = 0; s < ns[i] - 1; s++)
+				{
+					p += g[s * c + col];
+					if (p > q)
+						break;
+				}
+				state[i] = s;
+				if (g != f)
+					w *= f[s * c + col] / g[s * c + col];
+			}
+
+			samples++;
+			if (w == 0.0)
+				return;
+
+			total += w;
+			for (int i = 0; i < n; i++)
+				if (evidence[i] == -1)
+				{
+					weights[i][state[i]] += w;
+					if (learn != null)
+						learn[i][state[i] * cols[i] + column(i)] += w;
+				}
+		}
+
+
+		/**
+		 * Move each importance table toward the weighted frequencies of the
+		 * samples since the last update.
+		 */
+		void update()
+		{
+			double rate = RATE_START
+					* Math.pow(RATE_END / RATE_START, (double) steps
+							/ (LEARN_STEPS - 1));
+			steps++;
+
+			for (int i = 0; i < topo.length; i++)
+			{
+				if (evidence[i] != -1)
+					continue;
+
+				double[] g = icpt[i];
+				double[] f = cpt[i];
+				double[] l = learn[i];
+				int c = cols[i];
+				for (int col = 0; col < c; col++)
+				{
+					double sum = 0.0;
+					for (int s = 0; s < ns[i]; s++)
+						sum += l[s * c + col];
+					if (sum == 0.0)
+						continue;
+
+					/* columns stay normalized, and zero entries zero */
+					for (int s = 0; s < ns[i]; s++)
+					{
+						int x = s * c + col;
+						g[x] += rate * (l[x] / sum - g[x]);
+						g[x] = (1.0 - MIX) * g[x] + MIX * f[x];
+					}
+				}
+				Arrays.fill(l, 0.0);
+			}
+		}
+	}
+}
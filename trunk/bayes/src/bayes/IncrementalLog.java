@@ -0,0 +1,256 @@
+/*
+ * IncrementalLog.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Log of posterior distributions over the iterations of a simulation. Every
+ * logged iteration (after thinning) is folded into running per-state means
+ * and variances, and its posteriors are kept in a ring of recent iterations.
+ * By default the ring is unbounded, so every iteration is kept; in streaming
+ * mode it holds a fixed number of the most recent ones, and the log's memory
+ * stays constant however long the simulation runs.
+ * <p>
+ * Each kept iteration is one flat array, with each node's posterior at a
+ * fixed offset.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class IncrementalLog
+{
+
+	/** number of states of each node, in DAG order */
+	private int[]			states;
+
+	/** offset of each node in an iteration */
+	private int[]			offset;
+
+	/** doubles per iteration */
+	private int				width;
+
+	/** most iterations kept, or 0 for all */
+	private int				window;
+
+	/** log every thin-th iteration */
+	private int				thin;
+
+	/** iterations offered since the last clear */
+	private long			offered;
+
+	/** iterations accumulated */
+	private long			count;
+
+	/** kept iterations; a ring once the window is full */
+	private List<double[]>	ring;
+
+	/** ring index of the oldest kept iteration */
+	private int				head;
+
+	/** running mean of each state */
+	private double[]		mean;
+
+	/** running sum of squared deviations of each state */
+	private double[]		m2;
+
+
+	/**
+	 * Unbounded log which keeps every iteration.
+	 */
+	public IncrementalLog()
+	{
+		this(0, 1);
+	}
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param window
+	 *            most recent iterations to keep, or 0 to keep all
+	 * @param thin
+	 *            log only every thin-th iteration
+	 */
+	public IncrementalLog(int window, int thin)
+	{
+		this.window = Math.max(0, window);
+		this.thin = Math.max(1, thin);
+		this.ring = new ArrayList<double[]>();
+		this.states = new int[0];
+		this.offset = new int[0];
+		this.mean = new double[0];
+		this.m2 = new double[0];
+	}
+
+
+	/**
+	 * Log the current posteriors of the nodes. If the nodes' layout changed
+	 * since the last iteration, the log is cleared first.
+	 *
+	 * @param topo
+	 *            network nodes in DAG order
+	 */
+	public void record(BayesNode[] topo)
+	{
+		if (!matches(topo))
+			layout(topo);
+
+		if (offered++ % thin != 0)
+			return;
+
+		/* reuse the oldest slot once the window is full */
+		double[] it;
+		if ((window > 0) && (ring.size() == window))
+		{
+			it = ring.get(head);
+			head = (head + 1) % window;
+		}
+		else
+		{
+			it = new double[width];
+			ring.add(it);
+		}
+
+		for (int i = 0; i < topo.length; i++)
+			System.arraycopy(topo[i].getPosterior(), 0, it, offset[i],
+					states[i]);
+
+		/* Welford's update */
+		count++;
+		for (int j = 0; j < width; j++)
+		{
+			double d = it[j] - mean[j];
+			mean[j] += d / count;
+			m2[j] += d * (it[j] - mean[j]);
+		}
+	}
+
+
+	/**
+	 * @return whether the layout fits the nodes
+	 */
+	private boolean matches(BayesNode[] topo)
+	{
+		if (topo.length != states.length)
+			return false;
+		for (int i = 0; i < topo.length; i++)
+			if (topo[i].numStates() != states[i])
+				return false;
+		return true;
+	}
+
+
+	/**
+	 * Lay out iterations for the nodes, and clear the log.
+	 */
+	private void layout(BayesNode[] topo)
+	{
+		states = new int[topo.length];
+		offset = new int[topo.length];
+		width = 0;
+		for (int i = 0; i < topo.length; i++)
+		{
+			states[i] = topo[i].numStates();
+			offset[i] = width;
+			width += states[i];
+		}
+		clear();
+	}
+
+
+	/**
+	 * Forget every iteration and reset the accumulators.
+	 */
+	public void clear()
+	{
+		ring.clear();
+		head = 0;
+		offered = 0;
+		count = 0;
+		mean = new double[width];
+		m2 = new double[width];
+	}
+
+
+	/**
+	 * Dump the kept iterations, oldest first.
+	 *
+	 * @param idxs
+	 *            DAG indices of nodes to dump
+	 * @return array indexed by [iter][var][state]
+	 */
+	public double[][][] dump(int[] idxs)
+	{
+		int n = ring.size();
+		double[][][] data = new double[n][idxs.length][];
+		for (int i = 0; i < n; i++)
+		{
+			double[] it = ring.get((head + i) % n);
+			for (int j = 0; j < idxs.length; j++)
+				data[i][j] = slice(it, idxs[j]);
+		}
+		return data;
+	}
+
+
+	/**
+	 * @param idx
+	 *            DAG index of node
+	 * @return mean posterior of the node over all accumulated iterations
+	 */
+	public double[] getMean(int idx)
+	{
+		return slice(mean, idx);
+	}
+
+
+	/**
+	 * @param idx
+	 *            DAG index of node
+	 * @return sample variance of each state's posterior over all accumulated
+	 *         iterations (0 with fewer than two)
+	 */
+	public double[] getVariance(int idx)
+	{
+		double[] v = slice(m2, idx);
+		for (int s = 0; s < v.length; s++)
+			v[s] = (count > 1) ? v[s] / (count - 1) : 0.0;
+		return v;
+	}
+
+
+	/**
+	 * @return number of iterations accumulated (after thinning)
+	 */
+	public long count()
+	{
+		return count;
+	}
+
+
+	/**
+	 * @return number of iterations kept
+	 */
+	public int size()
+	{
+		return ring.size();
+	}
+
+
+	/**
+	 * @return copy of a node's part of a flat iteration
+	 */
+	private double[] slice(double[] it, int idx)
+	{
+		double[] d = new double[states[idx]];
+		System.arraycopy(it, offset[idx], d, 0, d.length);
+		return d;
+	}
+}
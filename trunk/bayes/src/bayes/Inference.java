@@ -21,7 +21,7 @@ public class Inference
 	/**
 	 * Calculate marginal probability of a node given the state of its
 	 * conditioning variables and its conditional probability given those
-	 * variables.
+	 * variables. Allocates its scratch; see the overload which doesn't.
 	 * 
 	 * @param func
 	 *            conditional probability function
@@ -32,46 +32,61 @@ public class Inference
 	public static void conditional(ProbFunction func, Distribution dist)
 			throws BayesError
 	{
-		double x, y;
-		int t, i, j, k;
+		int cols = func.getData().length / dist.values.length;
+		conditional(func, dist, new double[cols], new int[cols]);
+	}
 
-		int idx[] = new int[func.numVars() - 1];
-		int len[] = func.getLengths();
 
+	/**
+	 * Calculate marginal probability of a node given the posteriors of its
+	 * conditioning variables and its conditional probability given those
+	 * variables. The weight of each column (parent combination) is built once
+	 * as the outer product of the parents' posteriors, and only columns of
+	 * non-zero weight are visited for each state.
+	 * 
+	 * @param func
+	 *            conditional probability function
+	 * @param dist
+	 *            marginal distribution (holder)
+	 * @param weight
+	 *            scratch of at least one cell per column
+	 * @param nz
+	 *            scratch of at least one cell per column
+	 * @throws BayesError
+	 */
+	public static void conditional(ProbFunction func, Distribution dist,
+			double[] weight, int[] nz) throws BayesError
+	{
 		double[] cond = func.getData();
-		double[][] prev = new double[idx.length][];
-		int dlen = cond.length / len[0];
-
-		for (i = 0; i < idx.length; i++)
-			prev[i] = func.getVar(i + 1).getPosterior();
+		int np = func.numVars() - 1;
+		int len = 1;
 
-		t = 0;
-		for (k = 0; k < len[0]; k++)
+		/* outer product of parent posteriors, last parent fastest */
+		weight[0] = 1.0;
+		for (int i = 1; i <= np; i++)
 		{
-			y = 0.0;
-
-			for (j = 0; j < idx.length; j++)
-				idx[j] = 0;
-
-			for (int u = 0; u < dlen; u++)
+			double[] prev = func.getVar(i).getPosterior();
+			int n = prev.length;
+			for (int a = len - 1; a >= 0; a--)
 			{
-				x = 1.0;
-				for (i = 0; i < idx.length; i++)
-					x *= prev[i][idx[i]];
-
-				j = idx.length - 1;
-				while (j >= 0)
-					if (++idx[j] == len[j + 1])
-					{
-						idx[j] = 0;
-						j--;
-					}
-					else
-						break;
-
-				y += x * cond[t++];
+				double x = weight[a];
+				for (int s = n - 1; s >= 0; s--)
+					weight[a * n + s] = x * prev[s];
 			}
+			len *= n;
+		}
 
+		/* zero-weight columns contribute nothing */
+		int nnz = 0;
+		for (int u = 0; u < len; u++)
+			if (weight[u] != 0.0)
+				nz[nnz++] = u;
+
+		for (int k = 0, base = 0; k < dist.values.length; k++, base += len)
+		{
+			double y = 0.0;
+			for (int t = 0; t < nnz; t++)
+				y += weight[nz[t]] * cond[base + nz[t]];
 			dist.values[k] = y;
 		}
 
@@ -79,33 +94,78 @@ public class Inference
 	}
 
 
+	/**
+	 * Sample a node from its Markov blanket. Allocates its scratch; see the
+	 * overload which doesn't.
+	 * 
+	 * @param r
+	 *            random object
+	 * @param func
+	 *            conditional probability function of the node
+	 * @param dist
+	 *            receives the blanket distribution
+	 * @param mb_child_obj
+	 *            children
+	 * @param mb_child_base
+	 *            stride of the node in each child's density
+	 * @param mb_child_idx
+	 *            index into each child's density with the node at state 0
+	 * @param pt
+	 *            column of the node's density given its parents
+	 * @return sampled state
+	 * @throws BayesError
+	 */
 	public static int blanket(Random r, ProbFunction func, Distribution dist,
 			BayesNode[] mb_child_obj, int[] mb_child_base, int[] mb_child_idx,
 			int pt) throws BayesError
 	{
-		double p, q, sum = 0.0;
-		double[] cond = func.getData();
 		double[][] cpri = new double[mb_child_obj.length][];
-		int jump = cond.length / dist.states.length;
-		int base = 0;
-
-		/* get children's conditional distributions */
 		for (int i = 0; i < cpri.length; i++)
 			cpri[i] = mb_child_obj[i].getConditional();
 
+		return blanket(r, func.getData(), pt, dist, cpri, mb_child_idx,
+				mb_child_base);
+	}
+
+
+	/**
+	 * Sample a node from its Markov blanket: the node's conditional
+	 * probability given its parents times each child's conditional
+	 * probability given its own parents. States the parents rule out skip
+	 * the children.
+	 * 
+	 * @param r
+	 *            random object
+	 * @param cond
+	 *            conditional density of the node
+	 * @param pt
+	 *            column of the node's density given its parents
+	 * @param dist
+	 *            receives the blanket distribution
+	 * @param cpri
+	 *            conditional density of each child
+	 * @param cidx
+	 *            index into each child's density with the node at state 0
+	 * @param cstride
+	 *            stride of the node in each child's density
+	 * @return sampled state
+	 */
+	public static int blanket(Random r, double[] cond, int pt,
+			Distribution dist, double[][] cpri, int[] cidx, int[] cstride)
+	{
+		double p, q, sum = 0.0;
+		int ns = dist.values.length;
+		int jump = cond.length / ns;
+
 		/* iterate possible states */
-		for (int i = 0; i < dist.states.length; i++)
+		for (int i = 0, base = pt; i < ns; i++, base += jump)
 		{
 			/* conditional probability of node given parents */
-			p = cond[base + pt];
-			base += jump;
+			p = cond[base];
 
 			/* conditional probability of children given node */
-			for (int j = 0; j < mb_child_idx.length; j++)
-			{
-				p *= cpri[j][mb_child_idx[j]];
-				mb_child_idx[j] += mb_child_base[j];
-			}
+			for (int j = 0; (j < cpri.length) && (p != 0.0); j++)
+				p *= cpri[j][cidx[j] + i * cstride[j]];
 
 			/* save to posterior dist; can be queried */
 			dist.values[i] = p;
@@ -114,13 +174,13 @@ public class Inference
 
 		/* normalize */
 		if (sum > 0.0)
-			for (int i = 0; i < dist.values.length; i++)
+			for (int i = 0; i < ns; i++)
 				dist.values[i] /= sum;
 
 		/* now choose the next state */
 		q = r.nextDouble();
 		p = 0.0;
-		for (int i = 0; i < dist.values.length; i++)
+		for (int i = 0; i < ns; i++)
 		{
 			p += dist.values[i];
 			if (p > q)
@@ -128,6 +188,6 @@ public class Inference
 		}
 
 		/* float error got us here */
-		return dist.states.length - 1;
+		return ns - 1;
 	}
 }
@@ -0,0 +1,546 @@
+/*
+ * InferenceStats.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * Counters and latency histograms of the inference operations. There is one
+ * instance per network name, per query name (within a network), and one for
+ * the factor kernels of ProbFunction, shared by every object of that name;
+ * each is registered with the platform MBean server when first used (as
+ * bayes:type=BayesNet,name=..., bayes:type=Query,net=...,name=... and
+ * bayes:type=Kernels), and can be read directly through snapshot().
+ * <p>
+ * For each operation, the counters are the number of calls, their wall time
+ * (total, longest, and a histogram in powers of two of microseconds), the
+ * largest factor produced, the factor cells visited, and the hits and misses
+ * of the operation's plan or ordering cache. Recording a call costs two
+ * clock reads and a few uncontended atomic adds, and nothing at all while
+ * measurement is disabled.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class InferenceStats implements InferenceStatsMBean
+{
+
+	/** Query.solve() and NetContext.query() */
+	public static final int						SOLVE		= 0;
+
+	/** batched solves */
+	public static final int						BATCH		= 1;
+
+	/** Query.approx() and approxWeighted() */
+	public static final int						APPROX		= 2;
+
+	/** BucketTree.eliminate() */
+	public static final int						ELIMINATE	= 3;
+
+	/** Ordering.order() */
+	public static final int						ORDER		= 4;
+
+	/** ProbFunction.multiply() and multiplySumOut() */
+	public static final int						MULTIPLY	= 5;
+
+	/** ProbFunction.sumOut() */
+	public static final int						SUM_OUT		= 6;
+
+	/** Markov blanket simulation */
+	public static final int						MARKOV		= 7;
+
+	/** likelihood weighting and importance sampling */
+	public static final int						SAMPLE		= 8;
+
+	/** names of the operations, by index */
+	public static final String[]				OPS			= { "solve", "batch",
+			"approx", "eliminate", "order", "multiply", "sumOut", "markov",
+			"sample"										};
+
+	/** start time returned while measurement is disabled */
+	private static final long					DISABLED	= Long.MIN_VALUE;
+
+	/** number of histogram buckets */
+	private static final int					BUCKETS		= 32;
+
+	/** whether calls are measured */
+	private static volatile boolean				enabled		= true;
+
+	/** instances by object name */
+	private static Map<String, InferenceStats>	registry;
+
+	/** kernel instance */
+	private static InferenceStats				kernels;
+
+	/** object name */
+	private String								name;
+
+	/** counters of each operation */
+	private Op[]								ops;
+
+	static
+	{
+		registry = new LinkedHashMap<String, InferenceStats>();
+	}
+
+
+	/**
+	 * Counters of one operation.
+	 */
+	private static class Op
+	{
+		LongAdder		count	= new LongAdder();
+
+		LongAdder		nanos	= new LongAdder();
+
+		AtomicLong		max		= new AtomicLong();
+
+		AtomicLongArray	hist	= new AtomicLongArray(BUCKETS);
+
+		AtomicLong		factor	= new AtomicLong();
+
+		LongAdder		cells	= new LongAdder();
+
+		LongAdder		hits	= new LongAdder();
+
+		LongAdder		misses	= new LongAdder();
+
+
+		void reset()
+		{
+			count.reset();
+			nanos.reset();
+			max.set(0);
+			for (int i = 0; i < BUCKETS; i++)
+				hist.set(i, 0);
+			factor.set(0);
+			cells.reset();
+			hits.reset();
+			misses.reset();
+		}
+	}
+
+
+	/**
+	 * Counters of one operation, as of a snapshot.
+	 */
+	public static class OpStats
+	{
+
+		/** operation name */
+		public final String	name;
+
+		/** number of calls */
+		public final long	count;
+
+		/** total wall time, in nanoseconds */
+		public final long	nanos;
+
+		/** longest wall time, in nanoseconds */
+		public final long	maxNanos;
+
+		/** calls by wall time (see InferenceStatsMBean.getHistogram()) */
+		public final long[]	histogram;
+
+		/** largest factor produced, in cells */
+		public final long	maxFactor;
+
+		/** factor cells visited */
+		public final long	cells;
+
+		/** calls which found their plan or ordering cached */
+		public final long	hits;
+
+		/** calls which compiled their plan or ordering */
+		public final long	misses;
+
+
+		OpStats(String name, Op op)
+		{
+			this.name = name;
+			this.count = op.count.sum();
+			this.nanos = op.nanos.sum();
+			this.maxNanos = op.max.get();
+			this.histogram = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+				histogram[i] = op.hist.get(i);
+			this.maxFactor = op.factor.get();
+			this.cells = op.cells.sum();
+			this.hits = op.hits.sum();
+			this.misses = op.misses.sum();
+		}
+
+
+		/**
+		 * @return mean wall time of a call, in nanoseconds
+		 */
+		public double meanNanos()
+		{
+			return (count == 0) ? 0.0 : (double) nanos / count;
+		}
+
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString()
+		{
+			return String.format("%s: %d calls, mean %.3f ms, max %.3f ms, "
+					+ "max factor %d, %d cells, cache %d/%d", name, count,
+					meanNanos() / 1e6, maxNanos / 1e6, maxFactor, cells, hits,
+					hits + misses);
+		}
+	}
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *            object name
+	 */
+	private InferenceStats(String name)
+	{
+		this.name = name;
+		this.ops = new Op[OPS.length];
+		for (int i = 0; i < ops.length; i++)
+			ops[i] = new Op();
+	}
+
+
+	/**
+	 * @param net
+	 *            network name
+	 * @return statistics of the networks of that name
+	 */
+	public static InferenceStats forNet(String net)
+	{
+		return lookup("bayes:type=BayesNet,name=" + quote(net));
+	}
+
+
+	/**
+	 * @param net
+	 *            network name
+	 * @param query
+	 *            query name
+	 * @return statistics of the queries of that name on that network
+	 */
+	public static InferenceStats forQuery(String net, String query)
+	{
+		return lookup("bayes:type=Query,net=" + quote(net) + ",name="
+				+ quote(query));
+	}
+
+
+	/**
+	 * @return statistics of the ProbFunction factor kernels
+	 */
+	public static synchronized InferenceStats kernels()
+	{
+		if (kernels == null)
+			kernels = lookup("bayes:type=Kernels");
+		return kernels;
+	}
+
+
+	/**
+	 * @return every instance in use, by object name
+	 */
+	public static synchronized Map<String, InferenceStats> all()
+	{
+		return new LinkedHashMap<String, InferenceStats>(registry);
+	}
+
+
+	/**
+	 * Turn measurement on or off, for every instance.
+	 *
+	 * @param on
+	 *            whether to measure calls
+	 */
+	public static void setEnabled(boolean on)
+	{
+		enabled = on;
+	}
+
+
+	/**
+	 * @return whether calls are measured
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+
+	/**
+	 * Find or create (and register) the instance of an object name.
+	 */
+	private static synchronized InferenceStats lookup(String name)
+	{
+		InferenceStats s = registry.get(name);
+		if (s != null)
+			return s;
+
+		s = new InferenceStats(name);
+		registry.put(name, s);
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(s,
+					new ObjectName(name));
+		}
+		catch (JMException e)
+		{
+			/* still readable through snapshot() */
+		}
+		catch (SecurityException e)
+		{
+		}
+		return s;
+	}
+
+
+	/**
+	 * @return a name quoted for use as an object name value
+	 */
+	private static String quote(String s)
+	{
+		return ObjectName.quote((s == null) ? "" : s);
+	}
+
+
+	/**
+	 * @return start time of a call, to pass to record()
+	 */
+	public static long start()
+	{
+		return enabled ? System.nanoTime() : DISABLED;
+	}
+
+
+	/**
+	 * Record a finished call.
+	 *
+	 * @param op
+	 *            operation index
+	 * @param start
+	 *            start time from start()
+	 * @param factor
+	 *            largest factor the call produced, in cells
+	 * @param cells
+	 *            factor cells the call visited
+	 */
+	public void record(int op, long start, long factor, long cells)
+	{
+		if (start == DISABLED)
+			return;
+
+		long t = System.nanoTime() - start;
+		Op o = ops[op];
+		o.count.increment();
+		o.nanos.add(t);
+		raise(o.max, t);
+		raise(o.factor, factor);
+		if (cells != 0)
+			o.cells.add(cells);
+
+		long us = t / 1000;
+		int b = 64 - Long.numberOfLeadingZeros(us);
+		o.hist.incrementAndGet(Math.min(b, BUCKETS - 1));
+	}
+
+
+	/**
+	 * Record whether a call found its plan or ordering cached.
+	 *
+	 * @param op
+	 *            operation index
+	 * @param hit
+	 *            whether it was cached
+	 */
+	public void cache(int op, boolean hit)
+	{
+		if (!enabled)
+			return;
+		if (hit)
+			ops[op].hits.increment();
+		else
+			ops[op].misses.increment();
+	}
+
+
+	/**
+	 * Raise a running maximum.
+	 */
+	private static void raise(AtomicLong max, long x)
+	{
+		long m;
+		while (x > (m = max.get()))
+			if (max.compareAndSet(m, x))
+				break;
+	}
+
+
+	/**
+	 * @return object name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+
+	/**
+	 * @return counters of every operation, by operation name
+	 */
+	public Map<String, OpStats> snapshot()
+	{
+		Map<String, OpStats> m = new LinkedHashMap<String, OpStats>();
+		for (int i = 0; i < ops.length; i++)
+			m.put(OPS[i], new OpStats(OPS[i], ops[i]));
+		return m;
+	}
+
+
+	/**
+	 * @param op
+	 *            operation index
+	 * @return counters of the operation
+	 */
+	public OpStats snapshot(int op)
+	{
+		return new OpStats(OPS[op], ops[op]);
+	}
+
+
+	/**
+	 * @return counters of an operation by name
+	 * @throws IllegalArgumentException
+	 *             if there is no such operation
+	 */
+	private OpStats snapshot(String op)
+	{
+		for (int i = 0; i < OPS.length; i++)
+			if (OPS[i].equals(op))
+				return snapshot(i);
+		throw new IllegalArgumentException("no operation '" + op + "'");
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getOperations()
+	 */
+	public String[] getOperations()
+	{
+		return OPS.clone();
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getSummary()
+	 */
+	public String getSummary()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (OpStats s : snapshot().values())
+			if (s.count > 0)
+				sb.append(s).append('\n');
+		return sb.toString();
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getCount(java.lang.String)
+	 */
+	public long getCount(String op)
+	{
+		return snapshot(op).count;
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getMeanMillis(java.lang.String)
+	 */
+	public double getMeanMillis(String op)
+	{
+		return snapshot(op).meanNanos() / 1e6;
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getMaxMillis(java.lang.String)
+	 */
+	public double getMaxMillis(String op)
+	{
+		return snapshot(op).maxNanos / 1e6;
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getHistogram(java.lang.String)
+	 */
+	public long[] getHistogram(String op)
+	{
+		return snapshot(op).histogram;
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getMaxFactor(java.lang.String)
+	 */
+	public long getMaxFactor(String op)
+	{
+		return snapshot(op).maxFactor;
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getCells(java.lang.String)
+	 */
+	public long getCells(String op)
+	{
+		return snapshot(op).cells;
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getCacheHits(java.lang.String)
+	 */
+	public long getCacheHits(String op)
+	{
+		return snapshot(op).hits;
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#getCacheMisses(java.lang.String)
+	 */
+	public long getCacheMisses(String op)
+	{
+		return snapshot(op).misses;
+	}
+
+
+	/**
+	 * @see bayes.InferenceStatsMBean#reset()
+	 */
+	public void reset()
+	{
+		for (Op o : ops)
+			o.reset();
+	}
+}
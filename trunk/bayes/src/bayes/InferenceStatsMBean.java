@@ -0,0 +1,101 @@
+/*
+ * InferenceStatsMBean.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+/**
+ * Management interface of InferenceStats. Operations are named as in
+ * InferenceStats.OPS.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public interface InferenceStatsMBean
+{
+
+	/**
+	 * @return names of the operations measured
+	 */
+	String[] getOperations();
+
+
+	/**
+	 * @return one line per operation which was called
+	 */
+	String getSummary();
+
+
+	/**
+	 * @param op
+	 *            operation name
+	 * @return number of calls
+	 */
+	long getCount(String op);
+
+
+	/**
+	 * @param op
+	 *            operation name
+	 * @return mean wall time of a call, in milliseconds
+	 */
+	double getMeanMillis(String op);
+
+
+	/**
+	 * @param op
+	 *            operation name
+	 * @return longest wall time of a call, in milliseconds
+	 */
+	double getMaxMillis(String op);
+
+
+	/**
+	 * @param op
+	 *            operation name
+	 * @return number of calls by wall time; bucket i counts calls of under
+	 *         2^i microseconds (and at least 2^(i-1))
+	 */
+	long[] getHistogram(String op);
+
+
+	/**
+	 * @param op
+	 *            operation name
+	 * @return largest factor (in cells) any call produced
+	 */
+	long getMaxFactor(String op);
+
+
+	/**
+	 * @param op
+	 *            operation name
+	 * @return factor cells visited by all calls
+	 */
+	long getCells(String op);
+
+
+	/**
+	 * @param op
+	 *            operation name
+	 * @return number of calls which found their plan or ordering cached
+	 */
+	long getCacheHits(String op);
+
+
+	/**
+	 * @param op
+	 *            operation name
+	 * @return number of calls which compiled their plan or ordering
+	 */
+	long getCacheMisses(String op);
+
+
+	/**
+	 * Clear every counter.
+	 */
+	void reset();
+
+}
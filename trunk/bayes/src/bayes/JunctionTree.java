@@ -0,0 +1,844 @@
+/*
+ * JunctionTree.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Clique tree inference (Hugin architecture). The network is moralized and
+ * triangulated along a heuristic elimination ordering, and the resulting
+ * cliques are joined into a tree. Calibration is one collect and one
+ * distribute pass; afterwards the posterior marginal of every node can be read
+ * off its smallest clique. New evidence is absorbed incrementally by a single
+ * distribute pass from a clique containing the observed node; retracting or
+ * changing evidence, or changing densities, recalibrates from scratch.
+ * <p>
+ * Evidence is held by the tree, not by the network's nodes, so observing a
+ * node here does not affect queries on the network. The product of the
+ * densities in each clique is kept between calibrations, so changing only
+ * evidence does not read the densities again.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class JunctionTree
+{
+
+	/** network the tree was compiled for */
+	private BayesNet				net;
+
+	/** network variables; index is the variable id used below */
+	private BayesNode[]				vars;
+
+	/** map of variable name to id */
+	private Map<String, Integer>	varMap;
+
+	/** variable ids of each clique */
+	private int[][]					cliques;
+
+	/** potential of each clique */
+	private double[][]				pot;
+
+	/** product of the densities assigned to each clique */
+	private double[][]				init;
+
+	/** index of each variable in the network's getVars() */
+	private int[]					netIdx;
+
+	/** stride of each variable in each clique (0 if not a member) */
+	private int[][]					cstride;
+
+	/** clique each variable's density is assigned to */
+	private int[]					home;
+
+	/** map from home clique cell to density cell, for each variable */
+	private int[][]					cptMap;
+
+	/** smallest clique containing each variable */
+	private int[]					smallest;
+
+	/** tree edges: endpoint cliques */
+	private int[]					edgeA, edgeB;
+
+	/** map from endpoint clique cells to separator cells */
+	private int[][]					mapA, mapB;
+
+	/** separator potentials */
+	private double[][]				sep;
+
+	/** scratch buffers, one per separator */
+	private double[][]				scratch;
+
+	/** edges incident to each clique */
+	private int[][]					adj;
+
+	/** observed state of each variable, or -1 */
+	private int[]					evidence;
+
+	/** whether potentials must be rebuilt from the densities */
+	private boolean					dirty;
+
+	/** whether the densities changed since init was built */
+	private boolean					stale;
+
+
+	/**
+	 * Compile a junction tree for the network. The densities are read at
+	 * calibration time, so priors may be changed afterwards (followed by a
+	 * call to invalidate()).
+	 *
+	 * @param net
+	 *            network
+	 * @throws BayesError
+	 */
+	public JunctionTree(BayesNet net) throws BayesError
+	{
+		this.net = net;
+
+		if (net.numVars() == 0)
+			throw new BayesError("network '" + net.getName() + "' is empty");
+
+		/* triangulate along the heuristic ordering */
+		Ordering ord = new Ordering(net);
+		ord.orderAll();
+		BayesNode[] order = ord.getOrder();
+
+		vars = order.clone();
+		varMap = new HashMap<String, Integer>();
+		for (int i = 0; i < vars.length; i++)
+			varMap.put(vars[i].getVariable(), i);
+
+		int n = vars.length;
+		boolean[][] moral = new boolean[n][n];
+		for (BayesNode v : vars)
+		{
+			List<BayesNode> fam = new ArrayList<BayesNode>(v.getFunction()
+					.getVariables());
+			for (int i = 0; i < fam.size(); i++)
+				for (int j = i + 1; j < fam.size(); j++)
+				{
+					int a = varMap.get(fam.get(i).getVariable());
+					int b = varMap.get(fam.get(j).getVariable());
+					moral[a][b] = moral[b][a] = true;
+				}
+		}
+
+		buildCliques(moral);
+		buildTree();
+		buildMaps();
+
+		BayesNode[] all = net.getVars();
+		netIdx = new int[n];
+		for (int v = 0; v < n; v++)
+			for (int i = 0; i < all.length; i++)
+				if (all[i] == vars[v])
+					netIdx[v] = i;
+
+		evidence = new int[n];
+		Arrays.fill(evidence, -1);
+		dirty = true;
+		stale = true;
+	}
+
+
+	/**
+	 * Simulate elimination over the moral graph (in ordering order) and keep
+	 * the maximal elimination cliques.
+	 *
+	 * @param g
+	 *            moral graph adjacency; destroyed
+	 */
+	private void buildCliques(boolean[][] g)
+	{
+		int n = vars.length;
+		boolean[] gone = new boolean[n];
+		List<int[]> found = new ArrayList<int[]>();
+
+		for (int v = 0; v < n; v++)
+		{
+			int sz = 1;
+			for (int u = 0; u < n; u++)
+				if (!gone[u] && g[v][u])
+					sz++;
+
+			int[] c = new int[sz];
+			c[0] = v;
+			for (int u = 0, k = 1; u < n; u++)
+				if (!gone[u] && g[v][u])
+					c[k++] = u;
+
+			/* fill in: interconnect remaining neighbors */
+			for (int i = 1; i < sz; i++)
+				for (int j = i + 1; j < sz; j++)
+					g[c[i]][c[j]] = g[c[j]][c[i]] = true;
+			gone[v] = true;
+
+			/* keep only maximal cliques */
+			boolean sub = false;
+			for (int[] f : found)
+				if (contains(f, c))
+				{
+					sub = true;
+					break;
+				}
+			if (!sub)
+				found.add(c);
+		}
+
+		/* sort each clique's members so tables are laid out by variable id */
+		cliques = found.toArray(new int[0][]);
+		for (int[] c : cliques)
+			Arrays.sort(c);
+	}
+
+
+	/**
+	 * Join cliques into a maximum-weight spanning tree over separator sizes
+	 * (Prim). Disconnected components are joined by empty separators.
+	 */
+	private void buildTree()
+	{
+		int nc = cliques.length;
+		boolean[] in = new boolean[nc];
+		int[] best = new int[nc];
+		int[] from = new int[nc];
+		Arrays.fill(best, -1);
+
+		edgeA = new int[nc - 1];
+		edgeB = new int[nc - 1];
+
+		in[0] = true;
+		for (int j = 1; j < nc; j++)
+		{
+			best[j] = overlap(cliques[0], cliques[j]);
+			from[j] = 0;
+		}
+
+		for (int e = 0; e < nc - 1; e++)
+		{
+			int pick = -1;
+			for (int j = 0; j < nc; j++)
+				if (!in[j] && ((pick == -1) || (best[j] > best[pick])))
+					pick = j;
+
+			in[pick] = true;
+			edgeA[e] = from[pick];
+			edgeB[e] = pick;
+
+			for (int j = 0; j < nc; j++)
+				if (!in[j])
+				{
+					int w = overlap(cliques[pick], cliques[j]);
+					if (w > best[j])
+					{
+						best[j] = w;
+						from[j] = pick;
+					}
+				}
+		}
+
+		int[] deg = new int[nc];
+		for (int e = 0; e < nc - 1; e++)
+		{
+			deg[edgeA[e]]++;
+			deg[edgeB[e]]++;
+		}
+		adj = new int[nc][];
+		for (int c = 0; c < nc; c++)
+			adj[c] = new int[deg[c]];
+		Arrays.fill(deg, 0);
+		for (int e = 0; e < nc - 1; e++)
+		{
+			adj[edgeA[e]][deg[edgeA[e]]++] = e;
+			adj[edgeB[e]][deg[edgeB[e]]++] = e;
+		}
+	}
+
+
+	/**
+	 * Allocate potentials and precompute every index map: clique to
+	 * separator, clique to assigned density, and variable to smallest clique.
+	 */
+	private void buildMaps()
+	{
+		int n = vars.length;
+		int nc = cliques.length;
+
+		/* clique strides, last member fastest */
+		pot = new double[nc][];
+		init = new double[nc][];
+		cstride = new int[nc][n];
+		for (int c = 0; c < nc; c++)
+		{
+			int mult = 1;
+			for (int j = cliques[c].length - 1; j >= 0; j--)
+			{
+				cstride[c][cliques[c][j]] = mult;
+				mult *= vars[cliques[c][j]].numStates();
+			}
+			pot[c] = new double[mult];
+			init[c] = new double[mult];
+		}
+
+		/* separators */
+		int ne = edgeA.length;
+		sep = new double[ne][];
+		scratch = new double[ne][];
+		mapA = new int[ne][];
+		mapB = new int[ne][];
+		for (int e = 0; e < ne; e++)
+		{
+			int[] s = intersect(cliques[edgeA[e]], cliques[edgeB[e]]);
+			int[] sstride = new int[n];
+			int mult = 1;
+			for (int j = s.length - 1; j >= 0; j--)
+			{
+				sstride[s[j]] = mult;
+				mult *= vars[s[j]].numStates();
+			}
+			sep[e] = new double[mult];
+			scratch[e] = new double[mult];
+			mapA[e] = indexMap(edgeA[e], sstride);
+			mapB[e] = indexMap(edgeB[e], sstride);
+		}
+
+		/* assign each density to the smallest clique holding its family */
+		home = new int[n];
+		cptMap = new int[n][];
+		smallest = new int[n];
+		for (int v = 0; v < n; v++)
+		{
+			List<BayesNode> fam = new ArrayList<BayesNode>(vars[v]
+					.getFunction().getVariables());
+			int[] f = new int[fam.size()];
+			for (int j = 0; j < f.length; j++)
+				f[j] = varMap.get(fam.get(j).getVariable());
+
+			home[v] = smallest[v] = -1;
+			for (int c = 0; c < nc; c++)
+			{
+				if (contains(cliques[c], f)
+						&& ((home[v] == -1) || (pot[c].length < pot[home[v]].length)))
+					home[v] = c;
+				if (contains(cliques[c], new int[] { v })
+						&& ((smallest[v] == -1) || (pot[c].length < pot[smallest[v]].length)))
+					smallest[v] = c;
+			}
+
+			int[] fstride = new int[n];
+			int mult = 1;
+			for (int j = f.length - 1; j >= 0; j--)
+			{
+				fstride[f[j]] = mult;
+				mult *= vars[f[j]].numStates();
+			}
+			cptMap[v] = indexMap(home[v], fstride);
+		}
+	}
+
+
+	/**
+	 * Map every cell of a clique to a cell of a table over a subset of the
+	 * clique's variables.
+	 *
+	 * @param c
+	 *            clique
+	 * @param tstride
+	 *            stride of each variable in the table (0 if absent)
+	 * @return map of clique cell to table cell
+	 */
+	private int[] indexMap(int c, int[] tstride)
+	{
+		int[] mem = cliques[c];
+		int[] map = new int[pot[c].length];
+		int[] ctr = new int[mem.length];
+		int t = 0;
+
+		for (int i = 0; i < map.length; i++)
+		{
+			map[i] = t;
+			int j = mem.length - 1;
+			while (j >= 0)
+			{
+				int v = mem[j];
+				if (++ctr[j] == vars[v].numStates())
+				{
+					t -= (ctr[j] - 1) * tstride[v];
+					ctr[j--] = 0;
+				}
+				else
+				{
+					t += tstride[v];
+					break;
+				}
+			}
+		}
+
+		return map;
+	}
+
+
+	/**
+	 * Observe a node in the given state. If the tree is calibrated and the
+	 * node had no evidence, the evidence is absorbed incrementally.
+	 *
+	 * @param var
+	 *            variable name
+	 * @param state
+	 *            state name
+	 * @throws BayesError
+	 */
+	public void observe(String var, String state) throws BayesError
+	{
+		int v = varId(var);
+		String[] states = vars[v].getMarginal().states;
+		int s;
+		for (s = 0; s < states.length; s++)
+			if (states[s].equals(state))
+				break;
+		if (s == states.length)
+			throw new BayesError("no state '" + state + "' of variable '"
+					+ var + "' exists");
+		observe(v, s);
+	}
+
+
+	/**
+	 * Observe variable id v in state s.
+	 *
+	 * @param v
+	 *            variable id
+	 * @param s
+	 *            state index
+	 */
+	private void observe(int v, int s)
+	{
+		if (evidence[v] == s)
+			return;
+
+		if (evidence[v] != -1)
+			dirty = true;
+		evidence[v] = s;
+
+		if (!dirty)
+		{
+			int c = smallest[v];
+			enterEvidence(c, v, s);
+			distribute(c, -1);
+		}
+	}
+
+
+	/**
+	 * Remove evidence from a node.
+	 *
+	 * @param var
+	 *            variable name
+	 * @throws BayesError
+	 */
+	public void retract(String var) throws BayesError
+	{
+		int v = varId(var);
+		if (evidence[v] != -1)
+		{
+			evidence[v] = -1;
+			dirty = true;
+		}
+	}
+
+
+	/**
+	 * Remove all evidence.
+	 */
+	public void clearEvidence()
+	{
+		Arrays.fill(evidence, -1);
+		dirty = true;
+	}
+
+
+	/**
+	 * Replace the tree's evidence with the network's current evidence (the
+	 * nodes' observed flags and states).
+	 */
+	public void loadEvidence()
+	{
+		for (int v = 0; v < vars.length; v++)
+		{
+			if (vars[v].isObserved())
+				observe(v, vars[v].getStateIdx());
+			else if (evidence[v] != -1)
+			{
+				evidence[v] = -1;
+				dirty = true;
+			}
+		}
+	}
+
+
+	/**
+	 * Replace the tree's evidence with the given observed states.
+	 *
+	 * @param states
+	 *            observed state of each node, indexed as the network's
+	 *            getVars(), or -1
+	 */
+	void setEvidence(int[] states)
+	{
+		for (int v = 0; v < vars.length; v++)
+		{
+			int s = states[netIdx[v]];
+			if (evidence[v] != s)
+			{
+				evidence[v] = s;
+				dirty = true;
+			}
+		}
+	}
+
+
+	/**
+	 * Densities have changed; the next calibration rebuilds all potentials.
+	 */
+	public void invalidate()
+	{
+		dirty = true;
+		stale = true;
+	}
+
+
+	/**
+	 * Calibrate the tree, if it isn't already: load densities and evidence
+	 * into the clique potentials, then collect to and distribute from the
+	 * root clique.
+	 *
+	 * @throws BayesError
+	 */
+	public void calibrate() throws BayesError
+	{
+		if (!dirty)
+			return;
+
+		if (net.numVars() != vars.length)
+			throw new BayesError("network '" + net.getName()
+					+ "' changed shape since junction tree was built");
+
+		/* the density products only change with the densities */
+		if (stale)
+		{
+			for (double[] p : init)
+				Arrays.fill(p, 1.0);
+			for (int v = 0; v < vars.length; v++)
+			{
+				double[] cpt = vars[v].getFunction().getData();
+				double[] p = init[home[v]];
+				int[] map = cptMap[v];
+				for (int i = 0; i < p.length; i++)
+					p[i] *= cpt[map[i]];
+			}
+			stale = false;
+		}
+
+		for (int c = 0; c < pot.length; c++)
+			System.arraycopy(init[c], 0, pot[c], 0, pot[c].length);
+		for (double[] s : sep)
+			Arrays.fill(s, 1.0);
+
+		for (int v = 0; v < vars.length; v++)
+			if (evidence[v] != -1)
+				enterEvidence(smallest[v], v, evidence[v]);
+
+		collect(0, -1);
+		distribute(0, -1);
+		dirty = false;
+	}
+
+
+	/**
+	 * Zero clique cells inconsistent with the observed state.
+	 *
+	 * @param c
+	 *            clique containing v
+	 * @param v
+	 *            variable id
+	 * @param s
+	 *            observed state
+	 */
+	private void enterEvidence(int c, int v, int s)
+	{
+		double[] p = pot[c];
+		int stride = cstride[c][v];
+		int len = vars[v].numStates();
+		for (int i = 0; i < p.length; i++)
+			if (((i / stride) % len) != s)
+				p[i] = 0.0;
+	}
+
+
+	/**
+	 * Collect messages toward clique c.
+	 *
+	 * @param c
+	 *            clique
+	 * @param via
+	 *            edge we came from, or -1
+	 */
+	private void collect(int c, int via)
+	{
+		for (int e : adj[c])
+			if (e != via)
+			{
+				int o = (edgeA[e] == c) ? edgeB[e] : edgeA[e];
+				collect(o, e);
+				pass(e, o);
+			}
+	}
+
+
+	/**
+	 * Distribute messages outward from clique c.
+	 *
+	 * @param c
+	 *            clique
+	 * @param via
+	 *            edge we came from, or -1
+	 */
+	private void distribute(int c, int via)
+	{
+		for (int e : adj[c])
+			if (e != via)
+			{
+				int o = (edgeA[e] == c) ? edgeB[e] : edgeA[e];
+				pass(e, c);
+				distribute(o, e);
+			}
+	}
+
+
+	/**
+	 * Hugin message over edge e from clique 'from' to the other endpoint:
+	 * marginalize onto the separator, then scale the receiver by the ratio of
+	 * new to old separator potential.
+	 *
+	 * @param e
+	 *            edge
+	 * @param from
+	 *            sending clique
+	 */
+	private void pass(int e, int from)
+	{
+		boolean fwd = (edgeA[e] == from);
+		int to = fwd ? edgeB[e] : edgeA[e];
+		int[] fmap = fwd ? mapA[e] : mapB[e];
+		int[] tmap = fwd ? mapB[e] : mapA[e];
+		double[] fp = pot[from];
+		double[] tp = pot[to];
+		double[] old = sep[e];
+		double[] nsep = scratch[e];
+
+		Arrays.fill(nsep, 0.0);
+		for (int i = 0; i < fp.length; i++)
+			nsep[fmap[i]] += fp[i];
+
+		/* ratio goes in old; 0/0 is taken to be 0 */
+		for (int i = 0; i < old.length; i++)
+			old[i] = (old[i] == 0.0) ? 0.0 : nsep[i] / old[i];
+		for (int i = 0; i < tp.length; i++)
+			tp[i] *= old[tmap[i]];
+
+		sep[e] = nsep;
+		scratch[e] = old;
+	}
+
+
+	/**
+	 * Posterior marginal of a variable given the tree's evidence.
+	 * Calibrates if needed.
+	 *
+	 * @param var
+	 *            variable name
+	 * @return normalized marginal distribution
+	 * @throws BayesError
+	 */
+	public Distribution getMarginal(String var) throws BayesError
+	{
+		calibrate();
+
+		int v = varId(var);
+		int c = smallest[v];
+		double[] p = pot[c];
+		int stride = cstride[c][v];
+		int len = vars[v].numStates();
+		double[] m = new double[len];
+		for (int i = 0; i < p.length; i++)
+			m[(i / stride) % len] += p[i];
+
+		Distribution d = new Distribution(vars[v].getVariable(), vars[v]
+				.getMarginal().states, m);
+		d.normalize();
+		return d;
+	}
+
+
+	/**
+	 * Fill the map with the posterior marginal of every key variable.
+	 *
+	 * @param results
+	 *            results map where every key should be an existing variable
+	 * @throws BayesError
+	 */
+	public void queryDist(Map<String, Distribution> results) throws BayesError
+	{
+		for (String name : results.keySet())
+			results.put(name, getMarginal(name));
+	}
+
+
+	/**
+	 * @return probability of the evidence
+	 * @throws BayesError
+	 */
+	public double evidenceProbability() throws BayesError
+	{
+		calibrate();
+
+		double s = 0.0;
+		for (double x : pot[0])
+			s += x;
+		return s;
+	}
+
+
+	/**
+	 * Add the posterior of every node's family (the node and its parents,
+	 * laid out as its density) to a table of expected counts. Calibrates if
+	 * needed.
+	 *
+	 * @param counts
+	 *            expected counts of each node's density, indexed as the
+	 *            network's getVars(); nodes with a null table are skipped
+	 * @param weight
+	 *            number of times the evidence was seen
+	 * @return probability of the evidence; if it is zero, nothing was added
+	 * @throws BayesError
+	 */
+	double addFamilyCounts(double[][] counts, double weight) throws BayesError
+	{
+		calibrate();
+
+		double z = 0.0;
+		for (double x : pot[0])
+			z += x;
+		if (z <= 0.0)
+			return 0.0;
+
+		double scale = weight / z;
+		for (int v = 0; v < vars.length; v++)
+		{
+			double[] n = counts[netIdx[v]];
+			if (n == null)
+				continue;
+			double[] p = pot[home[v]];
+			int[] map = cptMap[v];
+			for (int i = 0; i < p.length; i++)
+				if (p[i] != 0.0)
+					n[map[i]] += p[i] * scale;
+		}
+		return z;
+	}
+
+
+	/**
+	 * @return number of cliques
+	 */
+	public int numCliques()
+	{
+		return cliques.length;
+	}
+
+
+	/**
+	 * @return number of cells in the largest clique
+	 */
+	public int maxCliqueSize()
+	{
+		int max = 0;
+		for (double[] p : pot)
+			if (p.length > max)
+				max = p.length;
+		return max;
+	}
+
+
+	/**
+	 * @param var
+	 *            variable name
+	 * @return variable id
+	 * @throws BayesError
+	 */
+	private int varId(String var) throws BayesError
+	{
+		Integer v = varMap.get(var);
+		if (v == null)
+			throw new BayesError("no variable '" + var + "' in network '"
+					+ net.getName() + "'");
+		return v;
+	}
+
+
+	/**
+	 * @return whether set a contains every element of set b
+	 */
+	private static boolean contains(int[] a, int[] b)
+	{
+		for (int x : b)
+		{
+			boolean hit = false;
+			for (int y : a)
+				if (x == y)
+				{
+					hit = true;
+					break;
+				}
+			if (!hit)
+				return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * @return number of common elements
+	 */
+	private static int overlap(int[] a, int[] b)
+	{
+		return intersect(a, b).length;
+	}
+
+
+	/**
+	 * @return sorted common elements
+	 */
+	private static int[] intersect(int[] a, int[] b)
+	{
+		int n = 0;
+		int[] t = new int[Math.min(a.length, b.length)];
+		for (int x : a)
+			for (int y : b)
+				if (x == y)
+					t[n++] = x;
+		int[] r = new int[n];
+		System.arraycopy(t, 0, r, 0, n);
+		Arrays.sort(r);
+		return r;
+	}
+}
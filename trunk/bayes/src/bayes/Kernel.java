@@ -0,0 +1,44 @@
+/*
+ * Kernel.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+/**
+ * A compiled factor product and marginalization over a fixed layout (see
+ * FactorKernel for the dense kernel, SparseKernel for the sparse one).
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public interface Kernel
+{
+
+	/**
+	 * @return number of output cells
+	 */
+	int outputSize();
+
+
+	/**
+	 * Multiply the inputs and sum the product into the output, which is
+	 * cleared first.
+	 *
+	 * @param in
+	 *            input data, one array per input
+	 * @param off
+	 *            starting offset into each input, or null for none
+	 * @param out
+	 *            output buffer of at least outputSize() cells
+	 */
+	void run(double[][] in, int[] off, double[] out);
+
+
+	/**
+	 * @return number of product cells the last run visited
+	 */
+	long cells();
+
+}
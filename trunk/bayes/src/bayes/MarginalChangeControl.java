@@ -0,0 +1,108 @@
+/*
+ * MarginalChangeControl.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+/**
+ * Convergence control on the change of the marginals. Once per window of
+ * iterations, the marginals merged over all chains are compared against
+ * those of the previous window; the run stops when no state moved by more
+ * than the target precision. The largest change is reported as the error
+ * bound. This is the cheapest check, but also the loosest: a slowly mixing
+ * chain can move little per window and still be far off.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class MarginalChangeControl extends ConvergenceControl
+{
+
+	/** target largest change per window */
+	private double		precision;
+
+	/** iterations per window */
+	private int			window;
+
+	/** iteration of the last comparison */
+	private int			mark;
+
+	/** merged marginals at the last comparison, by node and state */
+	private double[][]	prev;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param precision
+	 *            largest acceptable change of any marginal per window
+	 * @param window
+	 *            iterations between comparisons
+	 * @param maxIterations
+	 *            iterations after which to stop regardless
+	 * @param log
+	 *            whether to log
+	 */
+	public MarginalChangeControl(double precision, int window,
+			int maxIterations, boolean log)
+	{
+		super(maxIterations, log);
+		this.precision = precision;
+		this.window = window;
+	}
+
+
+	/**
+	 * @see bayes.ConvergenceControl#reset()
+	 */
+	protected void reset()
+	{
+		mark = 0;
+		prev = null;
+	}
+
+
+	/**
+	 * @see bayes.ConvergenceControl#converged(long[][][])
+	 */
+	protected boolean converged(long[][][] counts)
+	{
+		if ((prev != null) && (iteration() - mark < window))
+			return false;
+
+		int m = counts.length;
+		int n = counts[0].length;
+		double[][] now = new double[n][];
+		for (int i = 0; i < n; i++)
+		{
+			now[i] = new double[counts[0][i].length];
+			long N = 0;
+			for (int c = 0; c < m; c++)
+			{
+				N += total(counts[c][i]);
+				for (int s = 0; s < now[i].length; s++)
+					now[i][s] += counts[c][i][s];
+			}
+			if (N > 0)
+				for (int s = 0; s < now[i].length; s++)
+					now[i][s] /= N;
+		}
+
+		double[][] was = prev;
+		prev = now;
+		mark = iteration();
+		if (was == null)
+			return false;
+
+		double worst = 0.0;
+		for (int i = 0; i < n; i++)
+			for (int s = 0; s < now[i].length; s++)
+				worst = Math.max(worst, Math.abs(now[i][s] - was[i][s]));
+
+		bound = worst;
+		return bound <= precision;
+	}
+
+}
@@ -0,0 +1,370 @@
+/*
+ * NetContext.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Evidence and priors over a shared CompiledNet. A context holds everything a
+ * query changes (observed states, replaced densities, and the compiled
+ * elimination plans with their buffers), and only reads the compiled network,
+ * so any number of contexts over the same network may be queried at once from
+ * different threads. A single context must not be used by two threads at
+ * once.
+ * <p>
+ * Densities which are not replaced are the compiled network's own tables;
+ * replacing one gives the context a private copy. Plans are compiled per set
+ * of query and observed variables and kept, so repeated queries under the
+ * same kind of evidence only run the numeric kernel, and only over the
+ * buckets the changed observations and densities reach.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class NetContext
+{
+
+	/** network this context is over */
+	private CompiledNet						net;
+
+	/** compiled nodes */
+	private BayesNode[]						nodes;
+
+	/** observed state of each node, or -1 */
+	private int[]							states;
+
+	/** density of each node; the compiled one unless replaced */
+	private double[][]						tables;
+
+	/** number of changes to each density, for the plans' stale checks */
+	private int[]							versions;
+
+	/** orderings for this context's plans */
+	private Ordering						ord;
+
+	/** elimination plans by query/evidence signature */
+	private Map<BitSet, EliminationPlan>	plans;
+
+	/** last compiled batch plan */
+	private BatchPlan						batchPlan;
+
+	/** statistics of the compiled network */
+	private InferenceStats					stats;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param net
+	 *            compiled network
+	 */
+	NetContext(CompiledNet net)
+	{
+		this.net = net;
+		this.nodes = net.nodes();
+		this.states = new int[nodes.length];
+		this.tables = new double[nodes.length][];
+		this.versions = new int[nodes.length];
+		this.stats = InferenceStats.forNet(net.getName());
+		this.ord = new Ordering(stats);
+		this.plans = new HashMap<BitSet, EliminationPlan>();
+
+		Arrays.fill(states, -1);
+		for (int i = 0; i < nodes.length; i++)
+			tables[i] = net.table(i);
+	}
+
+
+	/**
+	 * @return network this context is over
+	 */
+	public CompiledNet getNetwork()
+	{
+		return net;
+	}
+
+
+	/**
+	 * Observe a variable.
+	 *
+	 * @param var
+	 *            variable name
+	 * @param state
+	 *            observed state
+	 * @throws BayesError
+	 *             if there is no such variable or state
+	 */
+	public void observe(String var, String state) throws BayesError
+	{
+		int i = net.indexOf(var);
+		String[] names = nodes[i].getMarginal().states;
+		for (int s = 0; s < names.length; s++)
+			if (names[s].equals(state))
+			{
+				states[i] = s;
+				return;
+			}
+
+		throw new BayesError("no state '" + state + "' of variable '" + var
+				+ "' exists");
+	}
+
+
+	/**
+	 * Remove the evidence of a variable.
+	 *
+	 * @param var
+	 *            variable name
+	 * @throws BayesError
+	 *             if there is no such variable
+	 */
+	public void unobserve(String var) throws BayesError
+	{
+		states[net.indexOf(var)] = -1;
+	}
+
+
+	/**
+	 * Remove all evidence.
+	 */
+	public void clearEvidence()
+	{
+		Arrays.fill(states, -1);
+	}
+
+
+	/**
+	 * @param var
+	 *            variable name
+	 * @return whether the variable is observed
+	 * @throws BayesError
+	 *             if there is no such variable
+	 */
+	public boolean isObserved(String var) throws BayesError
+	{
+		return states[net.indexOf(var)] != -1;
+	}
+
+
+	/**
+	 * Replace a variable's prior distribution, in this context only.
+	 *
+	 * @param var
+	 *            variable name
+	 * @param dist
+	 *            prior distribution
+	 * @throws BayesError
+	 *             if there is no such variable, or it has parents
+	 */
+	public void setPrior(String var, double... dist) throws BayesError
+	{
+		int i = net.indexOf(var);
+		if (nodes[i].getFunction().numVars() != 1)
+			throw new BayesError("node '" + var
+					+ "' has a conditional distribution");
+		setConditional(var, dist);
+	}
+
+
+	/**
+	 * Replace a variable's conditional distribution, in this context only.
+	 * The table is laid out as the compiled node's function. A sparse
+	 * density may only be replaced by one with the same zero cells or more.
+	 *
+	 * @param var
+	 *            variable name
+	 * @param dist
+	 *            conditional distribution
+	 * @throws BayesError
+	 *             if there is no such variable, the table has the wrong size,
+	 *             or it has mass outside a sparse density's support
+	 */
+	public void setConditional(String var, double[] dist) throws BayesError
+	{
+		int i = net.indexOf(var);
+		if (dist.length != tables[i].length)
+			throw new BayesError(
+					"new distribution has wrong number of dimensions ("
+							+ dist.length + " should be " + tables[i].length
+							+ ")");
+
+		Support sup = nodes[i].getFunction().getSupport();
+		if ((sup != null) && !sup.covers(dist))
+			throw new BayesError("new distribution of '" + var
+					+ "' has mass outside its sparse support");
+
+		if (tables[i] == net.table(i))
+			tables[i] = dist.clone();
+		else
+			System.arraycopy(dist, 0, tables[i], 0, dist.length);
+		versions[i]++;
+	}
+
+
+	/**
+	 * @param var
+	 *            variable name
+	 * @return copy of the variable's density in this context
+	 * @throws BayesError
+	 *             if there is no such variable
+	 */
+	public double[] getConditional(String var) throws BayesError
+	{
+		return tables[net.indexOf(var)].clone();
+	}
+
+
+	/**
+	 * Go back to the compiled densities.
+	 */
+	public void clearPriors()
+	{
+		for (int i = 0; i < nodes.length; i++)
+			if (tables[i] != net.table(i))
+			{
+				tables[i] = net.table(i);
+				versions[i]++;
+			}
+	}
+
+
+	/**
+	 * Compute the marginal of one variable.
+	 *
+	 * @param var
+	 *            variable name
+	 * @return posterior distribution
+	 * @throws BayesError
+	 */
+	public Distribution query(String var) throws BayesError
+	{
+		Map<String, Distribution> qmap = new HashMap<String, Distribution>();
+		qmap.put(var, null);
+		query(qmap);
+		return qmap.get(var);
+	}
+
+
+	/**
+	 * Compute the marginal of each variable in the query map, and put it in
+	 * the map. An observed variable's marginal is its observed state.
+	 *
+	 * @param qmap
+	 *            map of variable name to receive the distribution
+	 * @throws BayesError
+	 *             if a variable does not exist
+	 */
+	public void query(Map<String, Distribution> qmap) throws BayesError
+	{
+		int n = nodes.length;
+		boolean[] qmask = new boolean[n];
+		boolean[] omask = new boolean[n];
+		int nq = 0;
+
+		for (String var : qmap.keySet())
+		{
+			int i = net.indexOf(var);
+			if (states[i] != -1)
+				qmap.put(var, new Distribution(var,
+						nodes[i].getMarginal().states, states[i]));
+			else if (!qmask[i])
+			{
+				qmask[i] = true;
+				nq++;
+			}
+		}
+
+		if (nq == 0)
+			return;
+
+		long t = InferenceStats.start();
+
+		/* query set in the low bits, evidence set in the high bits */
+		BitSet key = new BitSet(2 * n);
+		for (int i = 0; i < n; i++)
+		{
+			omask[i] = (states[i] != -1);
+			if (qmask[i])
+				key.set(i);
+			if (omask[i])
+				key.set(n + i);
+		}
+
+		EliminationPlan plan = plans.get(key);
+		stats.cache(InferenceStats.SOLVE, plan != null);
+		if (plan == null)
+		{
+			BayesNode[] order = ord.order(nodes, qmask, omask);
+			plan = new EliminationPlan(nodes, omask, order, nq, true);
+			plans.put(key, plan);
+		}
+
+		ProbFunction solution = plan.execute(tables, versions, states);
+		for (String var : qmap.keySet())
+		{
+			int i = net.indexOf(var);
+			if (!qmask[i])
+				continue;
+			ProbFunction f = solution.sumOutExcept(nodes[i]);
+			f.normalizeConditional();
+			qmap.put(var, new Distribution(f));
+		}
+		stats.record(InferenceStats.SOLVE, t, plan.maxFactor(), plan.cells());
+	}
+
+
+	/**
+	 * Compute marginals for a batch of evidence and density sets in one pass
+	 * (see Query.solveBatch()). The context's own evidence is ignored; its
+	 * densities are used by the entries which do not replace them.
+	 *
+	 * @param query
+	 *            names of the query variables
+	 * @param obs
+	 *            observed state of each variable, one map per entry
+	 * @param dens
+	 *            replaced density of each variable, one map per entry; or null
+	 *            for none
+	 * @return marginal of each query variable, one map per entry
+	 * @throws BayesError
+	 */
+	public List<Map<String, Distribution>> queryBatch(String[] query,
+			List<Map<String, String>> obs, List<Map<String, Distribution>> dens)
+			throws BayesError
+	{
+		if ((dens != null) && (dens.size() != obs.size()))
+			throw new BayesError("batch has " + obs.size()
+					+ " observation maps but " + dens.size() + " density maps");
+
+		long t = InferenceStats.start();
+		boolean hit = (batchPlan != null)
+				&& batchPlan.fits(nodes, query, obs, dens);
+		stats.cache(InferenceStats.BATCH, hit);
+		if (!hit)
+			batchPlan = new BatchPlan(nodes, ord, query, obs, dens);
+
+		List<Map<String, Distribution>> res;
+		res = batchPlan.solve(tables, obs, dens);
+		stats.record(InferenceStats.BATCH, t, batchPlan.maxFactor(),
+				batchPlan.cells());
+		return res;
+	}
+
+
+	/**
+	 * @return number of plans compiled by this context
+	 */
+	public int numPlans()
+	{
+		return plans.size();
+	}
+}
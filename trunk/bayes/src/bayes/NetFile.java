@@ -0,0 +1,312 @@
+/*
+ * NetFile.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+
+/**
+ * Versioned binary network file, laid out to be memory mapped. A fixed
+ * prologue and a table of contents are followed by the node metadata (names,
+ * states, parents, evidence and posteriors, in the stream encoding of
+ * BayesNode), and then one page-aligned block per conditional table, stored
+ * in native byte order. Opening a file maps it once and parses only the
+ * metadata; each table is a DoubleBuffer view over the mapping, paged in by
+ * the OS on first use, and loading a network copies every table in a single
+ * bulk get instead of one stream call per double.
+ * <p>
+ * A file is written to a temporary file beside it and renamed over it, never
+ * rewritten in place, so a network read from a file may be saved back over
+ * it while the old file is still mapped.
+ * <p>
+ * Prologue (big-endian ints): magic, version, byte order of the tables (0
+ * big, 1 little), page size, number of nodes, metadata length. Then, for
+ * each node in DAG order: table offset (long) and length in doubles (int).
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class NetFile
+{
+
+	/** file magic: "BNET" */
+	public static final int		MAGIC		= 0x424e4554;
+
+	/** current format version */
+	public static final int		VERSION		= 1;
+
+	/** alignment of table blocks */
+	public static final int		PAGE		= 4096;
+
+	/** bytes in the fixed prologue */
+	private static final int	PROLOGUE	= 24;
+
+	/** bytes per table of contents entry */
+	private static final int	TOC_ENTRY	= 12;
+
+	/** mapped file */
+	private MappedByteBuffer	map;
+
+	/** format version of the file */
+	private int					version;
+
+	/** number of nodes */
+	private int					numNodes;
+
+	/** node metadata, in stream encoding */
+	private byte[]				meta;
+
+	/** table views, by DAG index */
+	private DoubleBuffer[]		tables;
+
+
+	/**
+	 * Open and map a network file, and parse its prologue and table of
+	 * contents. No table data is read.
+	 *
+	 * @param file
+	 *            file to open
+	 * @throws IOException
+	 * @throws BayesError
+	 *             if the file is not a network file of a known version
+	 */
+	public NetFile(File file) throws IOException, BayesError
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel ch = raf.getChannel();
+			if (ch.size() > Integer.MAX_VALUE)
+				throw new BayesError("'" + file + "' is too large");
+			map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		if ((map.capacity() < PROLOGUE) || (map.getInt(0) != MAGIC))
+			throw new BayesError("'" + file + "' is not a network file");
+
+		version = map.getInt(4);
+		if ((version < 1) || (version > VERSION))
+			throw new BayesError("network file version " + version
+					+ " is not 1 to " + VERSION);
+
+		ByteOrder order = (map.getInt(8) == 0) ? ByteOrder.BIG_ENDIAN
+				: ByteOrder.LITTLE_ENDIAN;
+		numNodes = map.getInt(16);
+		int metaLen = map.getInt(20);
+
+		tables = new DoubleBuffer[numNodes];
+		for (int i = 0; i < numNodes; i++)
+		{
+			int entry = PROLOGUE + i * TOC_ENTRY;
+			long off = map.getLong(entry);
+			int len = map.getInt(entry + 8);
+			if (off + 8L * len > map.capacity())
+				throw new BayesError("table of node " + i
+						+ " runs past end of file");
+
+			ByteBuffer b = map.duplicate();
+			b.position((int) off);
+			b.limit((int) off + 8 * len);
+			tables[i] = b.slice().order(order).asDoubleBuffer();
+		}
+
+		meta = new byte[metaLen];
+		ByteBuffer b = map.duplicate();
+		b.position(PROLOGUE + numNodes * TOC_ENTRY);
+		b.get(meta);
+	}
+
+
+	/**
+	 * Whether a file starts with the network file magic (as opposed to the
+	 * plain stream format of BayesNet.write()).
+	 *
+	 * @param file
+	 *            file to check
+	 * @return whether the file is a network file
+	 * @throws IOException
+	 */
+	public static boolean isNetFile(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			return (file.length() >= PROLOGUE) && (in.readInt() == MAGIC);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+
+	/**
+	 * @return format version of the file
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+
+
+	/**
+	 * @return number of nodes
+	 */
+	public int numNodes()
+	{
+		return numNodes;
+	}
+
+
+	/**
+	 * Get a node's conditional table as a view over the mapped file. The view
+	 * is read-only; its pages are loaded when first touched.
+	 *
+	 * @param idx
+	 *            DAG index of node
+	 * @return table view
+	 */
+	public DoubleBuffer getTable(int idx)
+	{
+		return tables[idx].duplicate();
+	}
+
+
+	/**
+	 * @return stream over the node metadata
+	 */
+	DataInputStream metadata()
+	{
+		return new DataInputStream(new ByteArrayInputStream(meta));
+	}
+
+
+	/**
+	 * Write a network. Nodes are written in DAG order, to a temporary file
+	 * which then replaces the file.
+	 *
+	 * @param file
+	 *            file to write
+	 * @param name
+	 *            network name
+	 * @param topo
+	 *            nodes in DAG order
+	 * @throws IOException
+	 */
+	static void write(File file, String name, BayesNode[] topo)
+			throws IOException
+	{
+		int n = topo.length;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(name);
+		for (BayesNode node : topo)
+			node.writeHeader(out);
+		out.flush();
+		byte[] metaBytes = bytes.toByteArray();
+
+		/* lay out the table blocks after the metadata */
+		long[] off = new long[n];
+		int[] len = new int[n];
+		long pos = align(PROLOGUE + n * TOC_ENTRY + metaBytes.length);
+		for (int i = 0; i < n; i++)
+		{
+			off[i] = pos;
+			len[i] = topo[i].getFunction().getData().length;
+			pos = align(pos + 8L * len[i]);
+		}
+
+		ByteBuffer head = ByteBuffer.allocate(PROLOGUE + n * TOC_ENTRY
+				+ metaBytes.length);
+		head.putInt(MAGIC);
+		head.putInt(VERSION);
+		head.putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 0 : 1);
+		head.putInt(PAGE);
+		head.putInt(n);
+		head.putInt(metaBytes.length);
+		for (int i = 0; i < n; i++)
+		{
+			head.putLong(off[i]);
+			head.putInt(len[i]);
+		}
+		head.put(metaBytes);
+		head.flip();
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		boolean done = false;
+		try
+		{
+			FileChannel ch = raf.getChannel();
+			writeFully(ch, head, 0);
+
+			for (int i = 0; i < n; i++)
+			{
+				ByteBuffer b = ByteBuffer.allocate(8 * len[i]).order(
+						ByteOrder.nativeOrder());
+				b.asDoubleBuffer().put(topo[i].getFunction().getData());
+				writeFully(ch, b, off[i]);
+			}
+
+			/* pad the last block out to a whole page */
+			if (ch.size() < pos)
+				writeFully(ch, ByteBuffer.allocate(1), pos - 1);
+			raf.close();
+
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			done = true;
+		}
+		finally
+		{
+			raf.close();
+			if (!done)
+				tmp.delete();
+		}
+	}
+
+
+	/**
+	 * @return position rounded up to the next page
+	 */
+	private static long align(long pos)
+	{
+		return (pos + PAGE - 1) / PAGE * PAGE;
+	}
+
+
+	/**
+	 * Write a whole buffer at a file position.
+	 */
+	private static void writeFully(FileChannel ch, ByteBuffer b, long pos)
+			throws IOException
+	{
+		while (b.hasRemaining())
+			pos += ch.write(b, pos);
+	}
+}
@@ -1,45 +1,128 @@
 /*
  * Ordering.java
- * 
+ *
  * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
  * All rights reserved.
  */
 
 package bayes;
 
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Contains heuristic methods for ordering network variables for variable/bucket
  * elimination algorithms.
- * 
+ * <p>
+ * The interaction graph is kept as one bitset of neighbors per node, and the
+ * candidates in a priority queue keyed on their heuristic score, so each
+ * elimination only rescores the nodes whose neighborhood it changed. Orderings
+ * are memoized by the set of query and observed variables, and recomputed only
+ * when the network's structure changes; at most CACHE_SIZE are kept, the least
+ * recently used being dropped first.
+ *
  * @author Nathan Matthews <lowentropy@gmail.com>
  */
 public class Ordering
 {
 
+	/** eliminate the node with the smallest product of neighborhood states */
+	public static final int				MIN_WEIGHT		= 0;
+
+	/** eliminate the node whose elimination adds the fewest fill edges */
+	public static final int				MIN_FILL		= 1;
+
+	/** eliminate the node with the fewest neighbors */
+	public static final int				MIN_DEGREE		= 2;
+
+	/** largest number of orderings memoized */
+	public static final int				CACHE_SIZE		= 256;
+
 	/** ordering of variables */
-	private BayesNode[] ord;
+	private BayesNode[]					ord;
 
 	/** network we order for */
-	private BayesNet net;
+	private BayesNet					net;
+
+	/** whether evidence is ignored (every node is ordered) */
+	private boolean						ignoreEvidence	= false;
+
+	/** heuristic used to pick the next node */
+	private int							heuristic		= MIN_WEIGHT;
+
+	/** orderings by query/evidence signature */
+	private Map<BitSet, BayesNode[]>	cache;
+
+	/** nodes the cache was computed for */
+	private BayesNode[]					nodes;
+
+	/** number of variables of each node's function */
+	private int[]						numVars;
+
+	/** length of each node's function table */
+	private int[]						dataLen;
+
+	/** statistics to record orderings in */
+	private InferenceStats				stats;
 
 	/**
 	 * Constructor
-	 * 
+	 *
 	 * @param net
 	 *            network
 	 */
 	public Ordering(BayesNet net)
 	{
 		this.net = net;
+		this.cache = new OrderCache();
+		this.stats = InferenceStats.forNet(net.getName());
+	}
+
+	/**
+	 * Constructor for orderings of explicitly given nodes and evidence (see
+	 * order(BayesNode[], boolean[], boolean[])).
+	 *
+	 * @param stats
+	 *            statistics to record orderings in
+	 */
+	Ordering(InferenceStats stats)
+	{
+		this.cache = new OrderCache();
+		this.stats = stats;
+	}
+
+	/**
+	 * Set the heuristic used to pick the next node to eliminate. Cached
+	 * orderings are dropped.
+	 *
+	 * @param heuristic
+	 *            MIN_WEIGHT (the default), MIN_FILL or MIN_DEGREE
+	 * @throws BayesError
+	 *             if the heuristic is unknown
+	 */
+	public void setHeuristic(int heuristic) throws BayesError
+	{
+		if ((heuristic < MIN_WEIGHT) || (heuristic > MIN_DEGREE))
+			throw new BayesError("unknown ordering heuristic " + heuristic);
+		if (heuristic != this.heuristic)
+			cache.clear();
+		this.heuristic = heuristic;
+	}
+
+	/**
+	 * @return heuristic used to pick the next node to eliminate
+	 */
+	public int getHeuristic()
+	{
+		return heuristic;
 	}
 
 	/**
 	 * Order network's nodes.
-	 * 
+	 *
 	 * @param qvars
 	 *            name of variables to query
 	 * @throws BayesError
@@ -70,157 +153,332 @@ public class Ordering
 		order(vars, qmap);
 	}
 
+	/**
+	 * Order all of the network's nodes, as if none were observed and none
+	 * were queried. Used to triangulate the network for a junction tree.
+	 */
+	public void orderAll()
+	{
+		BayesNode[] vars = net.getVars();
+		ignoreEvidence = true;
+		try
+		{
+			order(vars, new boolean[vars.length]);
+		}
+		finally
+		{
+			ignoreEvidence = false;
+		}
+	}
+
+	/**
+	 * @param n
+	 *            node
+	 * @return whether node counts as observed for this ordering
+	 */
+	private boolean observed(BayesNode n)
+	{
+		return !ignoreEvidence && n.isObserved();
+	}
+
 	/**
 	 * Order network's nodes and store to net's heuristic ordering array.
-	 * 
-	 * @param net
-	 *            network
+	 *
+	 * @param vars
+	 *            network nodes
 	 * @param qmap
 	 *            map of query variables
 	 */
 	private void order(BayesNode[] vars, boolean[] qmap)
 	{
-		boolean doq = false;
-		int nvto, nq, n, idx, min, val;
-		int[] ridx;
-		BayesNode[] vto;
-		List[] links;
-
-		/* get # of non-evidence vars */
-		ord = new BayesNode[vars.length];
-		nvto = nq = n = 0;
+		boolean[] omap = new boolean[vars.length];
 		for (int i = 0; i < vars.length; i++)
+			omap[i] = observed(vars[i]);
+		order(vars, qmap, omap);
+	}
+
+	/**
+	 * Order nodes under the given evidence, ignoring the nodes' own observed
+	 * flags, and store to the heuristic ordering array. The ordering is taken
+	 * from the cache if the same query and evidence sets were ordered before.
+	 *
+	 * @param vars
+	 *            nodes to order
+	 * @param qmap
+	 *            map of query variables
+	 * @param omap
+	 *            map of observed variables
+	 * @return ordering (a copy of the cached one)
+	 */
+	BayesNode[] order(BayesNode[] vars, boolean[] qmap, boolean[] omap)
+	{
+		long t = InferenceStats.start();
+		int n = vars.length;
+
+		if (!matches(vars))
+			layout(vars);
+
+		/* query set in the low bits, evidence set in the high bits */
+		BitSet key = new BitSet(2 * n);
+		for (int i = 0; i < n; i++)
 		{
 			if (qmap[i])
-				nq++;
-			if (!vars[i].isObserved())
-				nvto++;
-			else
-				ord[n++] = vars[i];
+				key.set(i);
+			if (omap[i])
+				key.set(n + i);
 		}
 
-		/* get array of non-evidence vars */
-		vto = new BayesNode[nvto];
-		ridx = new int[nvto];
-		nvto = 0;
-		for (int i = 0; i < vars.length; i++)
-			if (!vars[i].isObserved())
-			{
-				ridx[nvto] = i;
-				vars[i].setOrderingIdx(nvto);
-				vto[nvto++] = vars[i];
-			}
+		BayesNode[] hit = cache.get(key);
+		stats.cache(InferenceStats.ORDER, hit != null);
+		if (hit == null)
+		{
+			hit = compute(vars, qmap, omap);
+			cache.put(key, hit);
+		}
+		ord = hit.clone();
+		stats.record(InferenceStats.ORDER, t, 0, 0);
+		return ord;
+	}
 
-		/* initialize links list */
-		links = new List[vars.length];
-		for (int i = 0; i < nvto; i++)
+	/**
+	 * Compute an ordering: observed nodes first, then the unobserved
+	 * non-query nodes in heuristic order, then the query nodes in heuristic
+	 * order. Ties go to the node first in the network.
+	 *
+	 * @param vars
+	 *            network nodes
+	 * @param qmap
+	 *            map of query variables
+	 * @param omap
+	 *            map of observed variables
+	 * @return ordering
+	 */
+	private BayesNode[] compute(BayesNode[] vars, boolean[] qmap,
+			boolean[] omap)
+	{
+		int n = vars.length;
+		int words = (n + 63) >>> 6;
+		BayesNode[] order = new BayesNode[n];
+		long[][] adj = new long[n][words];
+		int[] states = new int[n];
+		boolean[] live = new boolean[n];
+		Map<BayesNode, Integer> index = new IdentityHashMap<BayesNode, Integer>(
+				n);
+		int k = 0;
+
+		for (int i = 0; i < n; i++)
 		{
-			List<BayesNode> tmp = new LinkedList<BayesNode>();
-			tmp.add(vto[i]);
-			links[ridx[i]] = tmp;
+			index.put(vars[i], i);
+			states[i] = vars[i].numStates();
+			live[i] = !omap[i];
+			if (!live[i])
+				order[k++] = vars[i];
 		}
 
-		/* interlink neighborhoods */
-		for (int i = 0; i < nvto; i++)
-			link(links, ridx, vto[i].getFunction().getVariables());
+		/* interlink each unobserved node's family */
+		int[] fam = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			if (!live[i])
+				continue;
+			ProbFunction f = vars[i].getFunction();
+			int m = 0;
+			for (int j = 0; j < f.numVars(); j++)
+			{
+				int v = index.get(f.getVar(j));
+				if (live[v])
+					fam[m++] = v;
+			}
+			for (int a = 0; a < m; a++)
+				for (int b = 0; b < m; b++)
+					if (fam[a] != fam[b])
+						set(adj[fam[a]], fam[b]);
+		}
 
-		/* order nodes heuristically, non-query nodes first */
-		while (n < vars.length)
+		/* non-query nodes first, then query nodes */
+		Heap heap = new Heap(n);
+		for (int phase = 0; phase < 2; phase++)
 		{
-			/* find minimum weight node */
-			min = 0;
-			idx = -1;
-			for (int i = 0; i < vto.length; i++)
+			for (int i = 0; i < n; i++)
+				if (live[i] && (qmap[i] == (phase == 1)))
+					heap.add(i, score(adj, states, i));
+
+			while (!heap.isEmpty())
 			{
-				int j = ridx[i];
-				if ((links[j] == null) || (!doq && qmap[j]))
-					continue;
-				val = weight(links[j]);
-				if ((idx == -1) || (val < min))
-				{
-					idx = i;
-					min = val;
-				}
+				int v = heap.poll();
+				order[k++] = vars[v];
+				eliminate(adj, v);
+
+				/* rescore the nodes whose neighborhood changed */
+				long[] nb = adj[v];
+				long[] touched = nb.clone();
+				if (heuristic == MIN_FILL)
+					for (int j = next(nb, 0); j >= 0; j = next(nb, j + 1))
+						for (int w = 0; w < words; w++)
+							touched[w] |= adj[j][w];
+				for (int j = next(touched, 0); j >= 0; j = next(touched,
+						j + 1))
+					if (heap.contains(j))
+						heap.update(j, score(adj, states, j));
+				adj[v] = new long[words];
 			}
+		}
+
+		return order;
+	}
+
+	/**
+	 * Eliminate a node: connect its neighbors with each other and remove it
+	 * from their neighborhoods. The node's own neighborhood is left as it was.
+	 *
+	 * @param adj
+	 *            neighbor sets
+	 * @param v
+	 *            node to eliminate
+	 */
+	private static void eliminate(long[][] adj, int v)
+	{
+		long[] nb = adj[v];
+		for (int j = next(nb, 0); j >= 0; j = next(nb, j + 1))
+		{
+			long[] a = adj[j];
+			for (int w = 0; w < a.length; w++)
+				a[w] |= nb[w];
+			clear(a, j);
+			clear(a, v);
+		}
+	}
+
+	/**
+	 * Score a node under the current heuristic; lower is eliminated first.
+	 *
+	 * @param adj
+	 *            neighbor sets
+	 * @param states
+	 *            number of states of each node
+	 * @param v
+	 *            node to score
+	 * @return score
+	 */
+	private long score(long[][] adj, int[] states, int v)
+	{
+		long[] nb = adj[v];
+		long s;
+		switch (heuristic)
+		{
+		case MIN_DEGREE:
+			s = 0;
+			for (long w : nb)
+				s += Long.bitCount(w);
+			return s;
 
-			if (idx != -1)
+		case MIN_FILL:
+			/* neighbor pairs not yet linked; each is counted from both ends */
+			s = 0;
+			for (int j = next(nb, 0); j >= 0; j = next(nb, j + 1))
 			{
-				/* interconnect neighbors and clear link list; order node */
-				for (int i = 0; i < links.length; i++)
-					if (links[i] != null)
-						links[i].remove(vto[idx]);
-				ord[n++] = vto[idx];
-				link(links, ridx, links[ridx[idx]]);
-				links[ridx[idx]] = null;
+				long[] a = adj[j];
+				for (int w = 0; w < nb.length; w++)
+					s += Long.bitCount(nb[w] & ~a[w]);
+				s--;
 			}
+			return s / 2;
+
+		default:
+			/* product of states of the node and its neighbors, saturating */
+			s = states[v];
+			for (int j = next(nb, 0); j >= 0; j = next(nb, j + 1))
+				s = (s > Long.MAX_VALUE / states[j]) ? Long.MAX_VALUE : s
+						* states[j];
+			return s;
+		}
+	}
+
+	/**
+	 * @return whether the cache was computed for the network's current
+	 *         structure
+	 */
+	private boolean matches(BayesNode[] vars)
+	{
+		if ((nodes == null) || (nodes.length != vars.length))
+			return false;
+
+		for (int i = 0; i < vars.length; i++)
+		{
+			ProbFunction f = vars[i].getFunction();
+			if ((vars[i] != nodes[i]) || (f.numVars() != numVars[i])
+					|| (f.getData().length != dataLen[i]))
+				return false;
+		}
 
-			/* move to next phase */
-			if (n == (vars.length - nq))
-				doq = true;
+		return true;
+	}
+
+	/**
+	 * Remember the network's structure, and drop every cached ordering.
+	 */
+	private void layout(BayesNode[] vars)
+	{
+		nodes = vars.clone();
+		numVars = new int[vars.length];
+		dataLen = new int[vars.length];
+		for (int i = 0; i < vars.length; i++)
+		{
+			numVars[i] = vars[i].getFunction().numVars();
+			dataLen[i] = vars[i].getFunction().getData().length;
 		}
+		cache.clear();
 	}
 
 	/**
-	 * Interconnect group of nodes, each with each.
-	 * 
-	 * @param links
-	 *            array of link vectors, one for each variable in network
-	 * @param ridx
-	 *            mapping of vto[*] to vars[*]
-	 * @param group
-	 *            group of nodes to interlink
+	 * Drop every cached ordering.
 	 */
-	private void link(List[] links, int[] ridx, Collection group)
+	public void clearCache()
 	{
-		Object[] arr = group.toArray();
-		for (int i = 0; i < (arr.length - 1); i++)
-			for (int j = i + 1; j < arr.length; j++)
-				link(links, ridx, (BayesNode) arr[i], (BayesNode) arr[j]);
+		cache.clear();
 	}
 
 	/**
-	 * Interlink two nodes by adding each to the other's link vector.
-	 * 
-	 * @param links
-	 *            array of link vectors, one for each variable in network
-	 * @param ridx
-	 *            mapping of vto[*] to vars[*]
-	 * @param n1
-	 *            first node to link
-	 * @param n2
-	 *            second node to link
+	 * @return number of cached orderings
 	 */
-	@SuppressWarnings("unchecked")
-	private void link(List[] links, int[] ridx, BayesNode n1, BayesNode n2)
+	public int cacheSize()
 	{
-		List<BayesNode> l1 = n1.isObserved() ? null
-				: (List<BayesNode>) links[ridx[n1.getOrderingIdx()]];
-		List<BayesNode> l2 = n2.isObserved() ? null
-				: (List<BayesNode>) links[ridx[n2.getOrderingIdx()]];
+		return cache.size();
+	}
 
-		if ((l1 == null) || (l2 == null))
-			return;
+	/**
+	 * Set a bit in a word array.
+	 */
+	private static void set(long[] bits, int i)
+	{
+		bits[i >>> 6] |= 1L << i;
+	}
 
-		if (!l1.contains(n2))
-			l1.add(n2);
-		if (!l2.contains(n1))
-			l2.add(n1);
+	/**
+	 * Clear a bit in a word array.
+	 */
+	private static void clear(long[] bits, int i)
+	{
+		bits[i >>> 6] &= ~(1L << i);
 	}
 
 	/**
-	 * Weight of a node is geometric sum of number of states of variables in
-	 * neighborhood of node.
-	 * 
-	 * @param links
-	 *            neighborhood of node
-	 * @return weight of node
+	 * @return index of the first set bit at or after i, or -1 if none
 	 */
-	private int weight(List links)
+	private static int next(long[] bits, int i)
 	{
-		int w = 1;
-		for (Object o : links)
-			w *= ((BayesNode) o).numStates();
-		return w;
+		int w = i >>> 6;
+		if (w >= bits.length)
+			return -1;
+		long word = bits[w] & (-1L << i);
+		while (true)
+		{
+			if (word != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			if (++w == bits.length)
+				return -1;
+			word = bits[w];
+		}
 	}
 
 	/**
@@ -242,4 +500,162 @@ public class Ordering
 	{
 		return ord;
 	}
+
+	/**
+	 * Indexed binary min-heap of nodes, keyed on score and then node index.
+	 */
+	private static class Heap
+	{
+
+		/** nodes, in heap order */
+		private int[]	heap;
+
+		/** heap position of each node, or -1 */
+		private int[]	pos;
+
+		/** score of each node */
+		private long[]	key;
+
+		/** number of nodes in the heap */
+		private int		size;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param n
+		 *            number of nodes
+		 */
+		Heap(int n)
+		{
+			heap = new int[n];
+			pos = new int[n];
+			key = new long[n];
+			Arrays.fill(pos, -1);
+		}
+
+		/**
+		 * @return whether the heap is empty
+		 */
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		/**
+		 * @return whether a node is in the heap
+		 */
+		boolean contains(int v)
+		{
+			return pos[v] >= 0;
+		}
+
+		/**
+		 * Add a node with a score.
+		 */
+		void add(int v, long k)
+		{
+			key[v] = k;
+			heap[size] = v;
+			pos[v] = size;
+			up(size++);
+		}
+
+		/**
+		 * Change the score of a node in the heap.
+		 */
+		void update(int v, long k)
+		{
+			long old = key[v];
+			key[v] = k;
+			if (k < old)
+				up(pos[v]);
+			else if (k > old)
+				down(pos[v]);
+		}
+
+		/**
+		 * @return node with the lowest score, removed from the heap
+		 */
+		int poll()
+		{
+			int v = heap[0];
+			pos[v] = -1;
+			if (--size > 0)
+			{
+				heap[0] = heap[size];
+				pos[heap[0]] = 0;
+				down(0);
+			}
+			return v;
+		}
+
+		/**
+		 * @return whether node a comes before node b
+		 */
+		private boolean less(int a, int b)
+		{
+			return (key[a] < key[b]) || ((key[a] == key[b]) && (a < b));
+		}
+
+		/**
+		 * Sift the node at a heap position up.
+		 */
+		private void up(int i)
+		{
+			int v = heap[i];
+			while (i > 0)
+			{
+				int p = (i - 1) >>> 1;
+				if (!less(v, heap[p]))
+					break;
+				heap[i] = heap[p];
+				pos[heap[i]] = i;
+				i = p;
+			}
+			heap[i] = v;
+			pos[v] = i;
+		}
+
+		/**
+		 * Sift the node at a heap position down.
+		 */
+		private void down(int i)
+		{
+			int v = heap[i];
+			while (true)
+			{
+				int c = 2 * i + 1;
+				if (c >= size)
+					break;
+				if ((c + 1 < size) && less(heap[c + 1], heap[c]))
+					c++;
+				if (!less(heap[c], v))
+					break;
+				heap[i] = heap[c];
+				pos[heap[i]] = i;
+				i = c;
+			}
+			heap[i] = v;
+			pos[v] = i;
+		}
+	}
+
+	/**
+	 * Memoized orderings, least recently used first, dropping the eldest past
+	 * CACHE_SIZE.
+	 */
+	private static class OrderCache extends LinkedHashMap<BitSet, BayesNode[]>
+	{
+		private static final long	serialVersionUID	= 1L;
+
+		OrderCache()
+		{
+			super(16, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<BitSet, BayesNode[]> e)
+		{
+			return size() > CACHE_SIZE;
+		}
+	}
 }
@@ -0,0 +1,544 @@
+/*
+ * ParallelGibbs.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Multi-chain Markov blanket (Gibbs) sampler. The network is compiled into
+ * flat index tables once; each chain then owns its own node states, state
+ * counters, scratch and random streams, so chains run independently on a
+ * fork/join pool and their counts are merged at the end.
+ * <p>
+ * Within a chain, nodes are swept color by color over a greedy coloring of
+ * the moral graph. Nodes of one color share no Markov blanket, so a large
+ * color class is sampled concurrently; small classes (the usual case) are
+ * swept in order, since forking would cost more than sampling.
+ * <p>
+ * Each controller iteration counts as one sweep of one chain, so a fixed
+ * iteration budget is split across the chains rather than multiplied by
+ * them. Chains advance in batches between checks of the controller, and may
+ * overshoot its stopping point by less than one batch. A ConvergenceControl
+ * is handed every chain's counts after each batch.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class ParallelGibbs
+{
+
+	/** smallest color class which is sampled concurrently */
+	private static final int	PARALLEL_COLOR	= 256;
+
+	/** sweeps per chain between checks of the controller */
+	private static final int	BATCH			= 64;
+
+	/** network nodes, in DAG order */
+	private BayesNode[]			topo;
+
+	/** number of states of each node */
+	private int[]				ns;
+
+	/** number of columns (parent combinations) of each node's density */
+	private int[]				cols;
+
+	/** conditional density of each node */
+	private double[][]			cpt;
+
+	/** parents of each node, in density order */
+	private int[][]				par;
+
+	/** column stride of each parent in the node's density */
+	private int[][]				parStride;
+
+	/** children of each node */
+	private int[][]				ch;
+
+	/** column stride of the node in each child's density */
+	private int[][]				chStride;
+
+	/** observed state of each node, or -1 */
+	private int[]				evidence;
+
+	/** unobserved nodes of each color */
+	private int[][]				colors;
+
+	/** sampling chains */
+	private Chain[]				chains;
+
+	/** pool to run on */
+	private ForkJoinPool		pool;
+
+
+	/**
+	 * Compile the sampler from the network's current densities and evidence.
+	 *
+	 * @param topo
+	 *            network nodes in DAG order
+	 * @param nchains
+	 *            number of independent chains
+	 * @param pool
+	 *            fork/join pool to run on
+	 * @param seed
+	 *            seed of the random streams
+	 */
+	public ParallelGibbs(BayesNode[] topo, int nchains, ForkJoinPool pool,
+			long seed)
+	{
+		this.topo = topo;
+		this.pool = pool;
+
+		int n = topo.length;
+		ns = new int[n];
+		cols = new int[n];
+		cpt = new double[n][];
+		par = new int[n][];
+		parStride = new int[n][];
+		evidence = new int[n];
+
+		for (int i = 0; i < n; i++)
+			topo[i].setOrderingIdx(i);
+
+		List<List<Integer>> chl = new ArrayList<List<Integer>>();
+		List<List<Integer>> chs = new ArrayList<List<Integer>>();
+		for (int i = 0; i < n; i++)
+		{
+			chl.add(new ArrayList<Integer>());
+			chs.add(new ArrayList<Integer>());
+		}
+
+		for (int i = 0; i < n; i++)
+		{
+			BayesNode v = topo[i];
+			ProbFunction f = v.getFunction();
+			ns[i] = v.numStates();
+			cpt[i] = f.getData();
+			cols[i] = cpt[i].length / ns[i];
+			evidence[i] = v.isObserved() ? v.getStateIdx() : -1;
+
+			int np = f.numVars() - 1;
+			par[i] = new int[np];
+			parStride[i] = new int[np];
+			int mult = 1;
+			for (int j = np; j >= 1; j--)
+			{
+				int p = f.getVar(j).getOrderingIdx();
+				par[i][j - 1] = p;
+				parStride[i][j - 1] = mult;
+				chl.get(p).add(i);
+				chs.get(p).add(mult);
+				mult *= ns[p];
+			}
+		}
+
+		ch = new int[n][];
+		chStride = new int[n][];
+		for (int i = 0; i < n; i++)
+		{
+			ch[i] = toArray(chl.get(i));
+			chStride[i] = toArray(chs.get(i));
+		}
+
+		buildColors();
+
+		SplittableRandom root = new SplittableRandom(seed);
+		chains = new Chain[Math.max(1, nchains)];
+		for (int c = 0; c < chains.length; c++)
+			chains[c] = new Chain(root.split());
+	}
+
+
+	/**
+	 * Greedy coloring of the unobserved nodes over the moral graph (parents,
+	 * children and co-parents are neighbors).
+	 */
+	private void buildColors()
+	{
+		int n = topo.length;
+		int[] color = new int[n];
+		int ncolors = 0;
+		boolean[] used = new boolean[n + 1];
+
+		for (int i = 0; i < n; i++)
+		{
+			color[i] = -1;
+			if (evidence[i] != -1)
+				continue;
+
+			Arrays.fill(used, false);
+			for (int p : par[i])
+				mark(used, color, p);
+			for (int c : ch[i])
+			{
+				mark(used, color, c);
+				for (int q : par[c])
+					if (q != i)
+						mark(used, color, q);
+			}
+
+			int k = 0;
+			while (used[k])
+				k++;
+			color[i] = k;
+			if (k + 1 > ncolors)
+				ncolors = k + 1;
+		}
+
+		int[] size = new int[ncolors];
+		for (int i = 0; i < n; i++)
+			if (color[i] != -1)
+				size[color[i]]++;
+		colors = new int[ncolors][];
+		for (int k = 0; k < ncolors; k++)
+			colors[k] = new int[size[k]];
+		Arrays.fill(size, 0);
+		for (int i = 0; i < n; i++)
+			if (color[i] != -1)
+				colors[color[i]][size[color[i]]++] = i;
+	}
+
+
+	/**
+	 * Mark a neighbor's color as used.
+	 */
+	private static void mark(boolean[] used, int[] color, int v)
+	{
+		if (color[v] != -1)
+			used[color[v]] = true;
+	}
+
+
+	/**
+	 * @return array of list's elements
+	 */
+	private static int[] toArray(List<Integer> l)
+	{
+		int[] a = new int[l.size()];
+		for (int i = 0; i < a.length; i++)
+			a[i] = l.get(i);
+		return a;
+	}
+
+
+	/**
+	 * Run the chains until the controller is done.
+	 *
+	 * @param ctl
+	 *            simulation controller
+	 * @param net
+	 *            network to record incremental logs in, or null
+	 * @throws BayesError
+	 */
+	public void run(SimControl ctl, BayesNet net) throws BayesError
+	{
+		for (Chain c : chains)
+			c.initialize();
+
+		ctl.begin();
+		while (true)
+		{
+			while (!ctl.stop())
+			{
+				pool.invoke(new Batch());
+
+				for (int i = 0; i < BATCH * chains.length; i++)
+				{
+					ctl.iterDone();
+					if (ctl.stop())
+						break;
+				}
+
+				if (ctl instanceof ConvergenceControl)
+					((ConvergenceControl) ctl).update(chainCounts());
+
+				if (ctl.log() && (net != null))
+				{
+					publish();
+					net.incRecord();
+				}
+			}
+			if (ctl.done())
+				break;
+			Thread.yield();
+		}
+		ctl.end();
+
+		publish();
+	}
+
+
+	/**
+	 * Copy the merged state counts into the network's nodes, whose posterior
+	 * distributions become the sampled averages.
+	 */
+	public void publish()
+	{
+		long[][] counts = getCounts();
+		for (int i = 0; i < topo.length; i++)
+			if (evidence[i] == -1)
+				topo[i].setCounts(counts[i]);
+	}
+
+
+	/**
+	 * @return state counts merged over all chains, by DAG index
+	 */
+	public long[][] getCounts()
+	{
+		long[][] sum = new long[topo.length][];
+		for (int i = 0; i < topo.length; i++)
+		{
+			sum[i] = new long[ns[i]];
+			for (Chain c : chains)
+				for (int s = 0; s < ns[i]; s++)
+					sum[i][s] += c.counts[i][s];
+		}
+		return sum;
+	}
+
+
+	/**
+	 * @return live state counts of every chain, by chain and DAG index
+	 */
+	private long[][][] chainCounts()
+	{
+		long[][][] counts = new long[chains.length][][];
+		for (int c = 0; c < chains.length; c++)
+			counts[c] = chains[c].counts;
+		return counts;
+	}
+
+
+	/**
+	 * @param chain
+	 *            chain index
+	 * @return that chain's state counts, by DAG index (live, not a copy)
+	 */
+	public long[][] getChainCounts(int chain)
+	{
+		return chains[chain].counts;
+	}
+
+
+	/**
+	 * @return number of chains
+	 */
+	public int numChains()
+	{
+		return chains.length;
+	}
+
+
+	/**
+	 * One batch of sweeps on every chain.
+	 */
+	private class Batch extends RecursiveAction
+	{
+		private static final long	serialVersionUID	= 1L;
+
+
+		protected void compute()
+		{
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for (final Chain c : chains)
+				tasks.add(new RecursiveAction()
+				{
+					private static final long	serialVersionUID	= 1L;
+
+
+					protected void compute()
+					{
+						for (int i = 0; i < BATCH; i++)
+							c.sweep();
+					}
+				});
+			invokeAll(tasks);
+		}
+	}
+
+
+	/**
+	 * A single chain: its own states, counters, scratch and random streams
+	 * (one per node, so nodes of one color can be sampled concurrently).
+	 */
+	private class Chain
+	{
+
+		/** current state of each node */
+		int[]				state;
+
+		/** number of times each state was sampled */
+		long[][]			counts;
+
+		/** blanket distribution scratch for each node */
+		double[][]			scratch;
+
+		/** random stream of each node */
+		SplittableRandom[]	rand;
+
+
+		Chain(SplittableRandom r)
+		{
+			int n = topo.length;
+			state = new int[n];
+			counts = new long[n][];
+			scratch = new double[n][];
+			rand = new SplittableRandom[n];
+			for (int i = 0; i < n; i++)
+			{
+				counts[i] = new long[ns[i]];
+				scratch[i] = new double[ns[i]];
+				rand[i] = r.split();
+			}
+		}
+
+
+		/**
+		 * Forward-sample a starting state (so chains start dispersed), and
+		 * clear the counters.
+		 */
+		void initialize()
+		{
+			for (int i = 0; i < topo.length; i++)
+			{
+				Arrays.fill(counts[i], 0);
+				if (evidence[i] != -1)
+				{
+					state[i] = evidence[i];
+					continue;
+				}
+
+				int col = column(i);
+				double q = rand[i].nextDouble();
+				double p = 0.0;
+				int s;
+				for (s = 0; s < ns[i] - 1; s++)
+				{
+					p += cpt[i][s * cols[i] + col];
+					if (p > q)
+						break;
+				}
+				state[i] = s;
+			}
+		}
+
+
+		/**
+		 * One sweep over all unobserved nodes, color by color.
+		 */
+		void sweep()
+		{
+			for (final int[] cls : colors)
+			{
+				if (cls.length < PARALLEL_COLOR)
+					for (int i : cls)
+						sample(i);
+				else
+				{
+					int half = cls.length / 2;
+					ForkJoinTask.invokeAll(new Part(cls, 0, half), new Part(
+							cls, half, cls.length));
+				}
+			}
+		}
+
+
+		/**
+		 * A slice of a color class, sampled concurrently.
+		 */
+		private class Part extends RecursiveAction
+		{
+			private static final long	serialVersionUID	= 1L;
+
+			private int[]				cls;
+
+			private int					lo, hi;
+
+
+			Part(int[] cls, int lo, int hi)
+			{
+				this.cls = cls;
+				this.lo = lo;
+				this.hi = hi;
+			}
+
+
+			protected void compute()
+			{
+				if (hi - lo < PARALLEL_COLOR)
+				{
+					for (int i = lo; i < hi; i++)
+						sample(cls[i]);
+					return;
+				}
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Part(cls, lo, mid), new Part(cls, mid, hi));
+			}
+		}
+
+
+		/**
+		 * @return column of node i's density given its parents' states
+		 */
+		int column(int i)
+		{
+			int col = 0;
+			for (int j = 0; j < par[i].length; j++)
+				col += parStride[i][j] * state[par[i][j]];
+			return col;
+		}
+
+
+		/**
+		 * Sample node i from its Markov blanket.
+		 */
+		void sample(int i)
+		{
+			double[] d = scratch[i];
+			double[] f = cpt[i];
+			int col = column(i);
+			int nc = ch[i].length;
+			double sum = 0.0;
+
+			for (int s = 0; s < ns[i]; s++)
+				d[s] = f[s * cols[i] + col];
+
+			for (int k = 0; k < nc; k++)
+			{
+				int c = ch[i][k];
+				int str = chStride[i][k];
+				double[] g = cpt[c];
+				int base = state[c] * cols[c] + column(c) - str * state[i];
+				for (int s = 0; s < ns[i]; s++)
+					d[s] *= g[base + str * s];
+			}
+
+			for (int s = 0; s < ns[i]; s++)
+				sum += d[s];
+
+			double q = rand[i].nextDouble() * sum;
+			double p = 0.0;
+			int s;
+			for (s = 0; s < ns[i] - 1; s++)
+			{
+				p += d[s];
+				if (p > q)
+					break;
+			}
+
+			state[i] = s;
+			counts[i][s]++;
+		}
+	}
+}
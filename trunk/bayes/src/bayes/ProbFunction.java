@@ -12,13 +12,12 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 
 /**
@@ -39,10 +38,20 @@ public class ProbFunction
 	/** conditional distribution */
 	private double[]			dist;
 
+	/** non-zero cells, if declared sparse; otherwise null */
+	private Support				support;
+
+	/** number of changes to the data, to detect stale products */
+	private int					version;
+
+	/** statistics of the factor kernels */
+	private static InferenceStats	stats;
+
 	static
 	{
 		sWriter = new StringWriter();
 		pWriter = new PrintWriter(sWriter);
+		stats = InferenceStats.kernels();
 	}
 
 
@@ -99,6 +108,42 @@ public class ProbFunction
 	}
 
 
+	/**
+	 * Copy a density out of a table view (e.g. of a mapped network file) in
+	 * one bulk get.
+	 * 
+	 * @param table
+	 *            table view, positioned at the first value
+	 * @param firstVar
+	 *            density variable
+	 * @param otherVars
+	 *            conditioning variables
+	 * @throws IOException
+	 *             if the table has the wrong size
+	 */
+	public ProbFunction(DoubleBuffer table, BayesNode firstVar,
+			Collection<BayesNode> otherVars) throws IOException
+	{
+		vars = new ArrayList<BayesNode>();
+		vars.add(firstVar);
+
+		int mult = firstVar.numStates();
+		for (BayesNode n : otherVars)
+		{
+			vars.add(n);
+			mult *= n.numStates();
+		}
+
+		if (table.remaining() != mult)
+			throw new IOException("table of '" + firstVar.getVariable()
+					+ "' has " + table.remaining() + " values, expected "
+					+ mult);
+
+		dist = new double[mult];
+		table.get(dist);
+	}
+
+
 	/**
 	 * Create a probability density out of a marginal distribution.
 	 * 
@@ -128,6 +173,7 @@ public class ProbFunction
 
 		dist = ndist;
 		vars.add(p);
+		resupport();
 	}
 
 
@@ -171,6 +217,7 @@ public class ProbFunction
 
 		dist = ndist;
 		vars.remove(idx);
+		resupport();
 	}
 
 
@@ -211,6 +258,7 @@ public class ProbFunction
 		}
 
 		dist = ndist;
+		resupport();
 	}
 
 
@@ -256,6 +304,7 @@ public class ProbFunction
 
 		dist = ndist;
 		normalizeConditional();
+		resupport();
 	}
 
 
@@ -318,11 +367,14 @@ public class ProbFunction
 							+ ndist.length + " should be " + dist.length + ")");
 
 		dist = ndist;
+		version++;
+		resupport();
 	}
 
 
 	/**
-	 * @return raw distribution data
+	 * @return raw distribution data; after writing into it, call
+	 *         dataChanged()
 	 */
 	public double[] getData()
 	{
@@ -330,6 +382,106 @@ public class ProbFunction
 	}
 
 
+	/**
+	 * Note that the data array was written in place. Compiled eliminations
+	 * recompute the products of a density only when its array or version
+	 * changes (see EliminationPlan.execute()).
+	 */
+	public void dataChanged()
+	{
+		version++;
+	}
+
+
+	/**
+	 * @return number of changes to the data so far
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+
+
+	/**
+	 * Declare whether the density is sparse. A sparse density's zero cells
+	 * are taken to be structural: products and sums through it visit only
+	 * its non-zero cells (see SparseKernel). Its support is found again when
+	 * new data is set, but not when the data array is written in place, so
+	 * a density should be filled before it is declared sparse.
+	 * 
+	 * @param sparse
+	 *            whether the density is sparse
+	 */
+	public void setSparse(boolean sparse)
+	{
+		support = sparse ? new Support(dist, vars.get(0).numStates()) : null;
+	}
+
+
+	/**
+	 * Make the density a deterministic function of its parents, and declare
+	 * it sparse.
+	 * 
+	 * @param map
+	 *            state of the node for each column (parent combination)
+	 * @throws BayesError
+	 *             if the map has the wrong number of columns, or a state is
+	 *             out of range
+	 */
+	public void setFunctional(int... map) throws BayesError
+	{
+		int ns = vars.get(0).numStates();
+		int cols = dist.length / ns;
+		if (map.length != cols)
+			throw new BayesError("functional map has " + map.length
+					+ " columns, should be " + cols);
+
+		double[] ndist = new double[dist.length];
+		for (int c = 0; c < cols; c++)
+		{
+			if ((map[c] < 0) || (map[c] >= ns))
+				throw new BayesError("functional map state " + map[c]
+						+ " out of range");
+			ndist[map[c] * cols + c] = 1.0;
+		}
+		dist = ndist;
+		version++;
+		setSparse(true);
+	}
+
+
+	/**
+	 * @return whether the density is declared sparse
+	 */
+	public boolean isSparse()
+	{
+		return support != null;
+	}
+
+
+	/**
+	 * @return non-zero cells of a sparse density, or null if not sparse
+	 */
+	public Support getSupport()
+	{
+		return support;
+	}
+
+
+	/**
+	 * Find the support again after the data or layout changed, keeping the
+	 * same object if the non-zero cells did not move.
+	 */
+	private void resupport()
+	{
+		if (support == null)
+			return;
+		Support s = new Support(dist, vars.get(0).numStates());
+		if (!s.equals(support))
+			support = s;
+	}
+
+
 	/**
 	 * Set raw (prior) distribution data.
 	 * 
@@ -412,6 +564,7 @@ public class ProbFunction
 		int n = vars.get(0).numStates();
 		int j = dist.length / n;
 
+		version++;
 		for (int i = 0; i < j; i++)
 		{
 			s = 0.0;
@@ -461,6 +614,7 @@ public class ProbFunction
 	public void normalize()
 	{
 		double s = 0.0;
+		version++;
 		for (int i = 0; i < dist.length; i++)
 			s += dist[i];
 		if (s > 0.0)
@@ -487,82 +641,80 @@ public class ProbFunction
 	 */
 	public static ProbFunction multiply(ProbFunction... funcs)
 	{
-		/* these are the fields of the new distribution */
-		double[] dist;
-		List<BayesNode> vars = new ArrayList<BayesNode>();
+		List<BayesNode> vars = productVars(funcs);
+		return kernelOf(funcs, vars, vars, InferenceStats.MULTIPLY);
+	}
 
-		/* collect all variables into list */
-		int mult = 1;
+
+	/**
+	 * Multiply many distributions together and sum out a variable, without
+	 * materializing the full product.
+	 * 
+	 * @param var
+	 *            variable to sum out
+	 * @param funcs
+	 *            distributions to multiply
+	 * @return denormalized distribution over the other product variables
+	 */
+	public static ProbFunction multiplySumOut(BayesNode var,
+			ProbFunction... funcs)
+	{
+		List<BayesNode> vars = productVars(funcs);
+		List<BayesNode> outs = new ArrayList<BayesNode>(vars);
+		outs.remove(var);
+		return kernelOf(funcs, vars, outs, InferenceStats.MULTIPLY);
+	}
+
+
+	/**
+	 * @param funcs
+	 *            distributions
+	 * @return all variables of the distributions, in order of appearance
+	 */
+	private static List<BayesNode> productVars(ProbFunction... funcs)
+	{
+		List<BayesNode> vars = new ArrayList<BayesNode>();
 		for (ProbFunction f : funcs)
 			for (BayesNode n : f.vars)
 				if (!vars.contains(n))
-				{
-					mult *= n.numStates();
 					vars.add(n);
-				}
-
-		/* initialize var array and distribution */
-		BayesNode[] vara = vars.toArray(new BayesNode[0]);
-		dist = new double[mult];
+		return vars;
+	}
 
-		/* map vars into indexes to facilitate next step */
-		Map<String, Integer> vmap = new HashMap<String, Integer>();
-		for (int i = 0; i < vara.length; i++)
-			vmap.put(vara[i].getVariable(), i);
 
-		/* set up function base/idx to speed up mult loop */
-		int[] fidx = new int[funcs.length];
-		int[][] fbase = new int[funcs.length][vara.length];
+	/**
+	 * Run a one-shot factor kernel over the given distributions.
+	 * 
+	 * @param funcs
+	 *            input distributions
+	 * @param prod
+	 *            product variables
+	 * @param outs
+	 *            variables to keep
+	 * @param op
+	 *            operation to record the kernel as
+	 * @return denormalized result
+	 */
+	private static ProbFunction kernelOf(ProbFunction[] funcs,
+			List<BayesNode> prod, List<BayesNode> outs, int op)
+	{
+		long t = InferenceStats.start();
+		List<List<BayesNode>> inputs = new ArrayList<List<BayesNode>>(
+				funcs.length);
+		double[][] in = new double[funcs.length][];
+		Support[] sup = new Support[funcs.length];
 		for (int i = 0; i < funcs.length; i++)
 		{
-			mult = 1;
-			for (int j = funcs[i].vars.size() - 1; j >= 0; j--)
-			{
-				int idx = vmap.get(funcs[i].vars.get(j).getVariable());
-				fbase[i][idx] = mult;
-				mult *= vara[idx].numStates();
-			}
-		}
-
-		/* initialize state counter as array of indices, lengths */
-		int[] idx = new int[vars.size()];
-		int[] len = new int[vars.size()];
-		mult = 1;
-		for (int i = 0; i < len.length; i++)
-			mult *= len[i] = vara[i].numStates();
-
-		/* iterate possible states of idx */
-		for (int i = 0; i < mult; i++)
-		{
-			double p = 1.0;
-
-			/* multiply p by each function's sub-index of 'idx' */
-			for (int j = 0; j < funcs.length; j++)
-				p *= funcs[j].dist[fidx[j]];
-			dist[i] = p;
-
-			/* iterate index from least to greatest */
-			int j = idx.length - 1;
-			while (j >= 0)
-			{
-				/* recursive update of index */
-				if (++idx[j] == len[j])
-				{
-					for (int k = 0; k < funcs.length; k++)
-						fidx[k] -= ((idx[j] - 1) * fbase[k][j]);
-					idx[j--] = 0;
-				}
-				else
-				{
-					for (int k = 0; k < funcs.length; k++)
-						fidx[k] += fbase[k][j];
-					break;
-				}
-			}
+			inputs.add(funcs[i].vars);
+			in[i] = funcs[i].dist;
+			sup[i] = funcs[i].support;
 		}
 
-		/* return new distribution */
-		return new ProbFunction(vars, dist);
+		Kernel k = SparseKernel.compile(inputs, prod, outs, sup);
+		double[] dist = new double[k.outputSize()];
+		k.run(in, null, dist);
+		stats.record(op, t, dist.length, k.cells());
+		return new ProbFunction(outs, dist);
 	}
 
 
@@ -622,90 +774,13 @@ public class ProbFunction
 				throw new BayesError("can't sum out '" + n.getVariable()
 						+ "', not in distribution");
 
-		int imult = 1, omult = 1;
-		int num_out = outs.size();
-		int num_in = vars.size() - num_out;
-		List<BayesNode> ins = new ArrayList<BayesNode>(num_in);
-
-		/* get lengths and idx bases */
-		int[] len = getLengths();
-		int[] base = new int[len.length];
-		System.arraycopy(len, 1, base, 0, len.length - 1);
-		base[len.length - 1] = 1;
-		for (int i = base.length - 2; i >= 0; i--)
-			base[i] *= base[i + 1];
-
-		/* get ins/outs indexes */
-		int vi = 0, ii = 0, oo = 0;
-		int[] iidx = new int[num_in];
-		int[] oidx = new int[num_out];
+		List<BayesNode> ins = new ArrayList<BayesNode>(vars.size());
 		for (BayesNode n : vars)
-			if (outs.contains(n))
-			{
-				oidx[oo++] = vi++;
-				omult *= n.numStates();
-			}
-			else
-			{
-				iidx[ii++] = vi++;
-				imult *= n.numStates();
+			if (!outs.contains(n))
 				ins.add(n);
-			}
-
-		/* initialize positions */
-		int ictr = 0, octr;
-		int[] ipos = new int[num_in];
-		int[] opos = new int[num_out];
-		double[] ndist = new double[imult];
-
-		/* iterate left-in states */
-		for (int i = 0; i < imult; i++)
-		{
-			double sum = 0.0;
-			octr = ictr;
-
-			/* sum left-out states */
-			for (int j = 0; j < omult; j++)
-			{
-				sum += dist[octr];
-
-				/* increment 'out' index-array and counter */
-				int k = opos.length - 1;
-				while (k >= 0)
-				{
-					if (++opos[k] == len[oidx[k]])
-					{
-						octr = octr - ((opos[k] - 1) * base[oidx[k]]);
-						opos[k--] = 0;
-					}
-					else
-					{
-						octr += base[oidx[k]];
-						break;
-					}
-				}
-			}
-
-			ndist[i] = sum; // store sum
-
-			/* increment 'in' index-array and counter */
-			int k = ipos.length - 1;
-			while (k >= 0)
-			{
-				if (++ipos[k] == len[iidx[k]])
-				{
-					ictr = ictr - ((ipos[k] - 1) * base[iidx[k]]);
-					ipos[k--] = 0;
-				}
-				else
-				{
-					ictr += base[iidx[k]];
-					break;
-				}
-			}
-		}
 
-		return new ProbFunction(ins, ndist);
+		return kernelOf(new ProbFunction[] { this }, vars, ins,
+				InferenceStats.SUM_OUT);
 	}
 
 
@@ -726,6 +801,20 @@ public class ProbFunction
 	}
 
 
+	/**
+	 * Restrict the function to the observed states of its observed variables,
+	 * leaving this function untouched.
+	 * 
+	 * @return copy of distribution over unobserved variables only
+	 */
+	public ProbFunction sliceObserved()
+	{
+		ProbFunction f = copy();
+		f.removeObserved();
+		return f;
+	}
+
+
 	/**
 	 * @return copy of distribution
 	 */
@@ -735,7 +824,9 @@ public class ProbFunction
 		for (BayesNode n : vars)
 			nvars.add(n);
 
-		return new ProbFunction(nvars, dist.clone());
+		ProbFunction f = new ProbFunction(nvars, dist.clone());
+		f.support = support;
+		return f;
 	}
 
 
@@ -992,6 +1083,7 @@ public class ProbFunction
 		System.arraycopy(data, 0, dist, 0, data.length);
 		for (int i = 0; i < data.length; i++)
 			dist[data.length + i] = 1.0 - data[i];
+		version++;
 	}
 
 
@@ -1023,6 +1115,7 @@ public class ProbFunction
 
 		for (int i = 0, base = off; i < data.length; i++, base += mult)
 			dist[base] = data[i];
+		version++;
 	}
 
 
@@ -8,6 +8,7 @@
 package bayes;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -36,8 +37,11 @@ public class Query
 	/** set of priors-changed variables */
 	private String[] priors;
 
-	/** bucket tree used to solve network */
-	private BucketTree					tree;
+	/** compiled elimination; kept until the query or observed set changes */
+	private EliminationPlan				plan		= null;
+
+	/** compiled batch elimination; kept while batches have the same shape */
+	private BatchPlan					batchPlan	= null;
 
 	/** solution distribution; contains evidence */
 	private ProbFunction				solution	= null;
@@ -54,8 +58,17 @@ public class Query
 	/** whether an approximation has been generated */
 	private boolean						approx		= false;
 
+	/** error bound of the approximation, or NaN if unknown */
+	private double						bound		= Double.NaN;
+
+	/** whether evidence is sliced out of densities before elimination */
+	private boolean						slice		= true;
+
 	private String	name;
 
+	/** statistics of this query's name */
+	private InferenceStats				stats;
+
 
 	/**
 	 * Constructor.
@@ -69,6 +82,7 @@ public class Query
 		this.name = name;
 		this.net = net;
 		this.ord = new Ordering(net);
+		this.stats = InferenceStats.forQuery(net.getName(), name);
 		this.setQueried(query);
 	}
 
@@ -86,7 +100,7 @@ public class Query
 		qmap.clear();
 		for (String s : query)
 			qmap.put(s, null);
-		invalidate();
+		invalidatePlan();
 	}
 
 
@@ -97,49 +111,242 @@ public class Query
 	 */
 	public void solve() throws BayesError
 	{
+		long t = InferenceStats.start();
+
 		for (BayesNode node : net.getVars())
 			node.setObserved(false);
 		for (String var : obs)
 			net.getNode(var).setObserved(true);
 		
-		if (!cached)
+		boolean hit = (plan != null) && plan.matches();
+		stats.cache(InferenceStats.SOLVE, hit);
+		if (!hit)
 		{
 			ord.order(query);
-			tree = new BucketTree(net, ord, query.length);
-			solution = tree.eliminate();
-			cached = true;
+			plan = new EliminationPlan(net, ord, query.length, slice);
 		}
+
+		/* only the buckets reached by changed evidence or densities run */
+		solution = plan.execute();
+		cached = true;
 		
 		result = solution.copy();
 		result.removeObserved();
 		result.normalize();
 		queryResult();
+		stats.record(InferenceStats.SOLVE, t, plan.maxFactor(), plan.cells());
 	}
 
 
 	/**
-	 * Invalidate the solution; the structure of the network, or the set of
-	 * observed variables, has changed.
+	 * Solve the query for a batch of evidence and density sets in one pass.
+	 * The network's own evidence and densities are left as they are: each
+	 * entry observes only what its observation map names, and uses the
+	 * network's densities except those its density map replaces. The compiled
+	 * batch is kept, so the next batch of the same shape (number of entries,
+	 * observed and replaced variables) only runs the numeric pass.
+	 * 
+	 * @param obs
+	 *            observed state of each variable, one map per entry
+	 * @param dens
+	 *            replaced density (prior or conditional table) of each
+	 *            variable, one map per entry; or null for none
+	 * @return marginal of each query variable, one map per entry
+	 * @throws BayesError
+	 */
+	public List<Map<String, Distribution>> solveBatch(
+			List<Map<String, String>> obs, List<Map<String, Distribution>> dens)
+			throws BayesError
+	{
+		if ((dens != null) && (dens.size() != obs.size()))
+			throw new BayesError("batch has " + obs.size()
+					+ " observation maps but " + dens.size() + " density maps");
+
+		long t = InferenceStats.start();
+		BayesNode[] vars = net.getVars();
+		boolean hit = (batchPlan != null)
+				&& batchPlan.fits(vars, query, obs, dens);
+		stats.cache(InferenceStats.BATCH, hit);
+		if (!hit)
+			batchPlan = new BatchPlan(vars, ord, query, obs, dens);
+
+		double[][] base = new double[vars.length][];
+		for (int i = 0; i < vars.length; i++)
+			base[i] = vars[i].getFunction().getData();
+
+		List<Map<String, Distribution>> res;
+		res = batchPlan.solve(base, obs, dens);
+		stats.record(InferenceStats.BATCH, t, batchPlan.maxFactor(),
+				batchPlan.cells());
+		return res;
+	}
+
+
+	/**
+	 * Invalidate the solution; priors or conditional values have changed. The
+	 * compiled plan is kept, so the next solve only re-runs the numeric pass.
+	 * Changes to the network's structure are detected by the plan itself.
 	 */
 	public void invalidate()
+	{
+		if (plan != null)
+			plan.invalidate();
+		dropSolution();
+	}
+
+
+	/**
+	 * Invalidate the solution; the densities of the given variables have
+	 * changed. The next solve only re-runs the buckets those densities reach.
+	 * Densities replaced through setPrior() or setConditional() are noticed
+	 * without this call; it is needed after writing into a density in place.
+	 * 
+	 * @param vars
+	 *            variables whose densities changed
+	 * @throws BayesError
+	 *             if there is no such variable
+	 */
+	public void invalidate(String... vars) throws BayesError
+	{
+		for (String v : vars)
+			net.getNode(v).getFunction().dataChanged();
+		dropSolution();
+	}
+
+
+	/**
+	 * Forget the exact and approximate solutions.
+	 */
+	private void dropSolution()
 	{
 		cached = false;
 		approx = false;
+		bound = Double.NaN;
 	}
 
 
 	/**
-	 * Approximate a solution to the network.
+	 * Invalidate the solution and the compiled plan; the set of query or
+	 * observed variables has changed.
+	 */
+	public void invalidatePlan()
+	{
+		plan = null;
+		batchPlan = null;
+		invalidate();
+	}
+
+
+	/**
+	 * Set whether evidence is sliced out of each density before elimination
+	 * (the default). Unsliced elimination keeps observed variables in every
+	 * intermediate product, but its solution is valid for any evidence value.
+	 * 
+	 * @param slice
+	 *            whether to slice evidence
+	 */
+	public void setEvidenceSlicing(boolean slice)
+	{
+		this.slice = slice;
+		invalidatePlan();
+	}
+
+
+	/**
+	 * Set the heuristic used to order nodes for elimination.
 	 * 
+	 * @param heuristic
+	 *            Ordering.MIN_WEIGHT (the default), MIN_FILL or MIN_DEGREE
+	 * @throws BayesError
+	 *             if the heuristic is unknown
+	 */
+	public void setOrderingHeuristic(int heuristic) throws BayesError
+	{
+		ord.setHeuristic(heuristic);
+		invalidatePlan();
+	}
+
+
+	/**
+	 * Approximate a solution to the network, with one sampling chain per
+	 * available processor. Sampling stops once every marginal is within 0.01
+	 * (at 95%), or after 100000 iterations.
+	 *
 	 * @throws BayesError
 	 */
 	public void approx() throws BayesError
 	{
-		SimControl ctl = new RunOnceControl(100000, false);
-		net.markovBlanket(ctl);
+		approx(new EffectiveSizeControl(0.01, 100000, false), Runtime
+				.getRuntime().availableProcessors());
+	}
+
+
+	/**
+	 * Approximate a solution to the network.
+	 *
+	 * @param ctl
+	 *            simulation controller; its iterations are split across chains
+	 * @param chains
+	 *            number of parallel sampling chains
+	 * @throws BayesError
+	 */
+	public void approx(SimControl ctl, int chains) throws BayesError
+	{
+		long t = InferenceStats.start();
+		net.markovBlanket(ctl, chains);
+		approxDone(ctl, t);
+	}
+
+
+	/**
+	 * Approximate a solution to the network by likelihood weighting or
+	 * adaptive importance sampling, which unlike the Markov blanket chains
+	 * stay accurate on deterministic densities.
+	 *
+	 * @param ctl
+	 *            simulation controller; its iterations are samples, split
+	 *            across streams
+	 * @param streams
+	 *            number of parallel sample streams
+	 * @param adaptive
+	 *            whether to learn the importance tables
+	 * @throws BayesError
+	 *             if every sample contradicted the evidence
+	 */
+	public void approxWeighted(SimControl ctl, int streams, boolean adaptive)
+			throws BayesError
+	{
+		long t = InferenceStats.start();
+		net.likelihoodWeighting(ctl, streams, adaptive);
+		approxDone(ctl, t);
+	}
+
+
+	/**
+	 * Take the approximate posteriors left in the network, and record the
+	 * approximation begun at time t.
+	 */
+	private void approxDone(SimControl ctl, long t) throws BayesError
+	{
 		net.queryDist(qmap);
 		combineQueries();
 		approx = true;
+
+		if (ctl instanceof ConvergenceControl)
+			bound = ((ConvergenceControl) ctl).getErrorBound();
+		else
+			bound = Double.NaN;
+		stats.record(InferenceStats.APPROX, t, 0, 0);
+	}
+
+
+	/**
+	 * @return error bound achieved by the last approximation (as measured by
+	 *         its ConvergenceControl), or NaN if it is unknown
+	 */
+	public double getErrorBound()
+	{
+		return bound;
 	}
 
 
@@ -178,7 +385,8 @@ public class Query
 
 
 	/**
-	 * Show the solution, with evidence still in the distribution.
+	 * Show the solution, with evidence still in the distribution (unless
+	 * evidence is sliced).
 	 */
 	public void showSolution()
 	{
@@ -300,7 +508,7 @@ public class Query
 	public void setObserved(String... vars)
 	{
 		obs = vars;
-		invalidate();
+		invalidatePlan();
 	}
 
 
@@ -312,7 +520,7 @@ public class Query
 		for (String s : query)
 			qmap.put(s, null);
 		
-		invalidate();
+		invalidatePlan();
 	}
 
 
@@ -0,0 +1,141 @@
+/*
+ * Relevance.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ * Finds the densities a query actually needs, given which variables are
+ * observed (not their states). Two kinds of nodes are dropped:
+ * <ul>
+ * <li>barren nodes: unobserved nodes which are not queried and have no
+ * observed or queried descendant. Their densities sum to one.</li>
+ * <li>nodes d-separated from the query by the evidence. With their barren
+ * descendants gone, their densities only scale the solution, which is
+ * normalized away.</li>
+ * </ul>
+ * The first is the ancestral set of the query and evidence. The second is
+ * the part of its moral graph which the evidence cuts off from the query.
+ * Only the observed or queried variables matter, so the result holds for
+ * any observed states and any density values.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public final class Relevance
+{
+
+	/**
+	 * Not instantiable.
+	 */
+	private Relevance()
+	{
+	}
+
+
+	/**
+	 * @param vars
+	 *            network nodes
+	 * @param queried
+	 *            which nodes are queried
+	 * @param observed
+	 *            which nodes are observed
+	 * @return which nodes' densities can change the query's normalized
+	 *         solution
+	 */
+	public static boolean[] densities(BayesNode[] vars, boolean[] queried,
+			boolean[] observed)
+	{
+		int n = vars.length;
+		Map<BayesNode, Integer> index = new IdentityHashMap<BayesNode, Integer>(
+				n);
+		for (int i = 0; i < n; i++)
+			index.put(vars[i], i);
+
+		int[][] par = new int[n][];
+		for (int i = 0; i < n; i++)
+		{
+			par[i] = new int[vars[i].getParents().size()];
+			int k = 0;
+			for (BayesNode p : vars[i].getParents())
+				par[i][k++] = index.get(p);
+		}
+
+		/* ancestral set: everything else is barren */
+		boolean[] anc = new boolean[n];
+		int[] stack = new int[n];
+		int top = 0;
+		for (int i = 0; i < n; i++)
+			if (queried[i] || observed[i])
+			{
+				anc[i] = true;
+				stack[top++] = i;
+			}
+		while (top > 0)
+			for (int p : par[stack[--top]])
+				if (!anc[p])
+				{
+					anc[p] = true;
+					stack[top++] = p;
+				}
+
+		/* moral graph of the ancestral set */
+		boolean[][] adj = new boolean[n][n];
+		for (int i = 0; i < n; i++)
+		{
+			if (!anc[i])
+				continue;
+			for (int a = 0; a < par[i].length; a++)
+			{
+				int p = par[i][a];
+				adj[i][p] = adj[p][i] = true;
+				for (int b = a + 1; b < par[i].length; b++)
+					adj[p][par[i][b]] = adj[par[i][b]][p] = true;
+			}
+		}
+
+		/* what the query reaches without passing through evidence */
+		boolean[] reach = new boolean[n];
+		for (int i = 0; i < n; i++)
+			if (queried[i])
+			{
+				reach[i] = true;
+				stack[top++] = i;
+			}
+		while (top > 0)
+		{
+			int v = stack[--top];
+			if (observed[v] && !queried[v])
+				continue;
+			for (int w = 0; w < n; w++)
+				if (adj[v][w] && anc[w] && !reach[w])
+				{
+					reach[w] = true;
+					stack[top++] = w;
+				}
+		}
+
+		/*
+		 * a density is needed if an unobserved member of its family is
+		 * reached; a family is a clique of the moral graph, so those members
+		 * are all reached or all not
+		 */
+		boolean[] keep = new boolean[n];
+		for (int i = 0; i < n; i++)
+		{
+			if (!anc[i])
+				continue;
+			keep[i] = reach[i] && (!observed[i] || queried[i]);
+			for (int p : par[i])
+				if (reach[p] && (!observed[p] || queried[p]))
+					keep[i] = true;
+		}
+		return keep;
+	}
+}
@@ -0,0 +1,416 @@
+/*
+ * SnapshotArena.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Named snapshots of a network's posterior distributions. Each snapshot is a
+ * single contiguous slot holding every node's posterior at a precomputed
+ * offset, so recording or recalling is one bulk copy per node into or out of
+ * one array, with no per-node maps and, once the pool of slots is warm, no
+ * allocation.
+ * <p>
+ * Names resolve to handles, and handles to slots. Snapshots are immutable
+ * and shared copy-on-write: aliasing a name to an existing handle costs
+ * nothing, and re-recording a name whose slot is shared moves it to a fresh
+ * slot. Re-recording an unshared name reuses its slot, but as a new
+ * generation: the name gets a new handle and the old one fails, so no handle
+ * ever sees its snapshot change. A handle is the slot and its generation in
+ * a long, so generations do not wrap.
+ * <p>
+ * The arena holds at most a fixed number of slots. When a new slot is needed
+ * and none is free, the least recently used slot (by record or recall) is
+ * evicted along with every name bound to it; its handles then fail.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class SnapshotArena
+{
+
+	/** default maximum number of slots */
+	public static final int				DEFAULT_CAPACITY	= 64;
+
+	/** slot bits of a handle; the rest is the slot's generation */
+	private static final int			SLOT_BITS			= 16;
+
+	/** nodes, in DAG order */
+	private BayesNode[]					nodes;
+
+	/** number of states of each node when the arena was laid out */
+	private int[]						states;
+
+	/** offset of each node's posterior in a slot */
+	private int[]						offset;
+
+	/** doubles per slot */
+	private int							width;
+
+	/** maximum number of slots */
+	private int							capacity;
+
+	/** slot data */
+	private List<double[]>				slots;
+
+	/**
+	 * generation of each slot, bumped when it is evicted, freed or
+	 * overwritten
+	 */
+	private List<Long>					gen;
+
+	/** names bound to each slot */
+	private List<List<String>>			bound;
+
+	/** last use of each slot */
+	private List<Long>					used;
+
+	/** free slots */
+	private List<Integer>				free;
+
+	/** current handle of each name */
+	private Map<String, Long>			names;
+
+	/** use counter */
+	private long						tick;
+
+
+	/**
+	 * Lay out an arena for a network.
+	 *
+	 * @param nodes
+	 *            network nodes in DAG order
+	 * @param capacity
+	 *            maximum number of snapshots kept
+	 */
+	public SnapshotArena(BayesNode[] nodes, int capacity)
+	{
+		this.nodes = nodes.clone();
+		this.states = new int[nodes.length];
+		this.offset = new int[nodes.length];
+		this.capacity = Math.max(1, Math.min(capacity, 1 << SLOT_BITS));
+
+		width = 0;
+		for (int i = 0; i < nodes.length; i++)
+		{
+			states[i] = nodes[i].numStates();
+			offset[i] = width;
+			width += states[i];
+		}
+
+		slots = new ArrayList<double[]>();
+		gen = new ArrayList<Long>();
+		bound = new ArrayList<List<String>>();
+		used = new ArrayList<Long>();
+		free = new ArrayList<Integer>();
+		names = new HashMap<String, Long>();
+	}
+
+
+	/**
+	 * Whether the arena's layout still fits a network's nodes.
+	 *
+	 * @param topo
+	 *            network nodes in DAG order
+	 * @return whether snapshots can be taken of and restored to the nodes
+	 */
+	public boolean matches(BayesNode[] topo)
+	{
+		if (topo.length != nodes.length)
+			return false;
+		for (int i = 0; i < topo.length; i++)
+			if ((topo[i] != nodes[i]) || (topo[i].numStates() != states[i]))
+				return false;
+		return true;
+	}
+
+
+	/**
+	 * Change the maximum number of snapshots. Shrinking evicts the least
+	 * recently used ones.
+	 *
+	 * @param capacity
+	 *            new maximum
+	 */
+	public void setCapacity(int capacity)
+	{
+		this.capacity = Math.max(1, Math.min(capacity, 1 << SLOT_BITS));
+		while (slots.size() - free.size() > this.capacity)
+			evict(victim());
+	}
+
+
+	/**
+	 * Record the current posteriors under a name.
+	 *
+	 * @param name
+	 *            snapshot name
+	 * @return handle of the snapshot
+	 */
+	public long record(String name)
+	{
+		Long h = names.get(name);
+		int slot;
+
+		/*
+		 * an unshared slot is overwritten as a new generation, so the old
+		 * handle fails; a shared one is left to its other names
+		 */
+		if ((h != null) && (bound.get(slot(h)).size() == 1))
+		{
+			slot = slot(h);
+			gen.set(slot, gen.get(slot) + 1);
+		}
+		else
+		{
+			if (h != null)
+				unbind(name, slot(h));
+			slot = allocate();
+			bound.get(slot).add(name);
+		}
+
+		double[] data = slots.get(slot);
+		for (int i = 0; i < nodes.length; i++)
+			System.arraycopy(nodes[i].getMarginal().values, 0, data,
+					offset[i], states[i]);
+
+		used.set(slot, ++tick);
+		long handle = handle(slot);
+		names.put(name, handle);
+		return handle;
+	}
+
+
+	/**
+	 * Bind a name to an existing snapshot, sharing its slot.
+	 *
+	 * @param name
+	 *            new name
+	 * @param handle
+	 *            snapshot to share
+	 * @throws BayesError
+	 *             if the handle was evicted or released
+	 */
+	public void alias(String name, long handle) throws BayesError
+	{
+		int slot = check(handle);
+		Long h = names.get(name);
+		if (h != null)
+		{
+			if (h == handle)
+				return;
+			unbind(name, slot(h));
+		}
+		bound.get(slot).add(name);
+		names.put(name, handle);
+	}
+
+
+	/**
+	 * @param name
+	 *            snapshot name
+	 * @return handle of the snapshot
+	 * @throws BayesError
+	 *             if there is no snapshot of that name
+	 */
+	public long handle(String name) throws BayesError
+	{
+		Long h = names.get(name);
+		if (h == null)
+			throw new BayesError("no snapshot '" + name + "'");
+		return h;
+	}
+
+
+	/**
+	 * Restore every node's posterior from a snapshot (copying, so later
+	 * changes to the posteriors leave the snapshot intact).
+	 *
+	 * @param handle
+	 *            snapshot to restore
+	 * @throws BayesError
+	 *             if the handle was evicted or released
+	 */
+	public void recall(long handle) throws BayesError
+	{
+		int slot = check(handle);
+		double[] data = slots.get(slot);
+		for (int i = 0; i < nodes.length; i++)
+			System.arraycopy(data, offset[i], nodes[i].getMarginal().values,
+					0, states[i]);
+		used.set(slot, ++tick);
+	}
+
+
+	/**
+	 * Get a node's posterior from a snapshot.
+	 *
+	 * @param handle
+	 *            snapshot
+	 * @param node
+	 *            DAG index of node
+	 * @return copy of the recorded posterior
+	 * @throws BayesError
+	 *             if the handle was evicted or released
+	 */
+	public double[] get(long handle, int node) throws BayesError
+	{
+		double[] d = new double[states[node]];
+		System.arraycopy(slots.get(check(handle)), offset[node], d, 0,
+				states[node]);
+		return d;
+	}
+
+
+	/**
+	 * Drop a name. Its slot is freed when no other name shares it.
+	 *
+	 * @param name
+	 *            snapshot name
+	 */
+	public void release(String name)
+	{
+		Long h = names.remove(name);
+		if (h != null)
+			unbind(name, slot(h));
+	}
+
+
+	/**
+	 * Drop every snapshot.
+	 */
+	public void clear()
+	{
+		for (String name : new ArrayList<String>(names.keySet()))
+			release(name);
+	}
+
+
+	/**
+	 * @return number of names bound
+	 */
+	public int size()
+	{
+		return names.size();
+	}
+
+
+	/**
+	 * @return number of slots holding snapshots
+	 */
+	public int numSlots()
+	{
+		return slots.size() - free.size();
+	}
+
+
+	/**
+	 * Remove a name from a slot's bindings, freeing the slot when unbound.
+	 */
+	private void unbind(String name, int slot)
+	{
+		List<String> b = bound.get(slot);
+		b.remove(name);
+		if (b.isEmpty())
+			release(slot);
+	}
+
+
+	/**
+	 * Return a slot to the free list, invalidating its handles.
+	 */
+	private void release(int slot)
+	{
+		gen.set(slot, gen.get(slot) + 1);
+		free.add(slot);
+	}
+
+
+	/**
+	 * @return a free slot, growing the pool or evicting as needed
+	 */
+	private int allocate()
+	{
+		if (free.isEmpty())
+		{
+			if (slots.size() < capacity)
+			{
+				slots.add(new double[width]);
+				gen.add(0L);
+				bound.add(new ArrayList<String>());
+				used.add(0L);
+				return slots.size() - 1;
+			}
+			evict(victim());
+		}
+		return free.remove(free.size() - 1);
+	}
+
+
+	/**
+	 * @return least recently used slot in use
+	 */
+	private int victim()
+	{
+		int v = -1;
+		for (int s = 0; s < slots.size(); s++)
+			if (!bound.get(s).isEmpty()
+					&& ((v == -1) || (used.get(s) < used.get(v))))
+				v = s;
+		return v;
+	}
+
+
+	/**
+	 * Evict a slot and every name bound to it.
+	 */
+	private void evict(int slot)
+	{
+		List<String> b = bound.get(slot);
+		for (String name : b)
+			names.remove(name);
+		b.clear();
+		release(slot);
+	}
+
+
+	/**
+	 * @return handle of a slot's current generation
+	 */
+	private long handle(int slot)
+	{
+		return (gen.get(slot) << SLOT_BITS) | slot;
+	}
+
+
+	/**
+	 * @return slot of a handle
+	 */
+	private static int slot(long handle)
+	{
+		return (int) (handle & ((1 << SLOT_BITS) - 1));
+	}
+
+
+	/**
+	 * @return slot of a live handle
+	 * @throws BayesError
+	 *             if the handle is stale
+	 */
+	private int check(long handle) throws BayesError
+	{
+		int slot = slot(handle);
+		if ((slot >= slots.size()) || (handle(slot) != handle))
+			throw new BayesError("snapshot " + handle
+					+ " was evicted or released");
+		return slot;
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * SparseKernel.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Factor product and marginalization driven by the support of one sparse
+ * input. Instead of visiting every cell of the product, the kernel visits
+ * each non-zero cell of the driving input, and only the product variables
+ * the driver does not mention are enumerated densely under it. A product
+ * through a functional density (one cell per parent combination) thus costs
+ * as much as its parents' table, not its parents' table times its states.
+ * <p>
+ * Everything but the data is resolved at construction: for each support
+ * cell, the offset of its states into every other input and into the
+ * output. Driver variables which are not product variables (observed
+ * variables positioned by an offset) split the support into slices, one per
+ * offset; a run visits only the slice at the driver's offset. As with
+ * FactorKernel, running allocates nothing, and one kernel must not be run
+ * by two threads at once.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public class SparseKernel implements Kernel
+{
+
+	/** a sparse kernel must visit this many times fewer cells to be used */
+	private static final int	GAIN	= 4;
+
+	/** number of inputs */
+	private int					nf;
+
+	/** driving input */
+	private int					drv;
+
+	/** offset of the non-product driver variables of each slice, ascending */
+	private int[]				slice;
+
+	/** first entry of each slice, and the end of the last */
+	private int[]				first;
+
+	/** driver cell of each entry */
+	private int[]				cell;
+
+	/** offset of each entry into each input, by entry * nf + input */
+	private int[]				eoff;
+
+	/** offset of each entry into the output */
+	private int[]				eout;
+
+	/** number of dense (non-driver) dimensions */
+	private int					nd;
+
+	/** length of each dense dimension */
+	private int[]				len;
+
+	/** stride of each dense dimension in each input */
+	private int[][]				istride;
+
+	/** stride of each dense dimension in the output */
+	private int[]				ostride;
+
+	/** number of output cells */
+	private int					outSize;
+
+	/** odometer over dense dimensions */
+	private int[]				ctr;
+
+	/** current index into each input */
+	private int[]				fidx;
+
+	/** number of cells under each driver cell */
+	private long				dense;
+
+	/** number of product cells the last run visited */
+	private long				visited;
+
+
+	/**
+	 * Compile a kernel driven by one input's support. Input variables which
+	 * are not product variables are ignored, as in FactorKernel.
+	 *
+	 * @param inputs
+	 *            variables of each input, last varying fastest
+	 * @param prod
+	 *            product variables
+	 * @param out
+	 *            output variables, a subset of the product variables, last
+	 *            varying fastest
+	 * @param driver
+	 *            index of the driving input
+	 * @param support
+	 *            support of the driving input
+	 */
+	public SparseKernel(List<? extends List<BayesNode>> inputs,
+			List<BayesNode> prod, List<BayesNode> out, int driver,
+			Support support)
+	{
+		nf = inputs.size();
+		drv = driver;
+		int np = prod.size();
+
+		/* raw strides over product variables */
+		int[][] is = new int[nf][np];
+		for (int k = 0; k < nf; k++)
+		{
+			List<BayesNode> f = inputs.get(k);
+			int mult = 1;
+			for (int j = f.size() - 1; j >= 0; j--)
+			{
+				BayesNode n = f.get(j);
+				int p = prod.indexOf(n);
+				if (p != -1)
+					is[k][p] = mult;
+				mult *= n.numStates();
+			}
+		}
+
+		int[] os = new int[np];
+		outSize = 1;
+		for (int j = out.size() - 1; j >= 0; j--)
+		{
+			os[prod.indexOf(out.get(j))] = outSize;
+			outSize *= out.get(j).numStates();
+		}
+
+		/* dense dimensions: product variables the driver lacks */
+		List<BayesNode> dv = inputs.get(driver);
+		boolean[] inDrv = new boolean[np];
+		for (BayesNode n : dv)
+		{
+			int p = prod.indexOf(n);
+			if (p != -1)
+				inDrv[p] = true;
+		}
+		nd = 0;
+		for (int p = 0; p < np; p++)
+			if (!inDrv[p])
+				nd++;
+		len = new int[nd];
+		ostride = new int[nd];
+		istride = new int[nf][nd];
+		for (int p = 0, d = 0; p < np; p++)
+		{
+			if (inDrv[p])
+				continue;
+			len[d] = prod.get(p).numStates();
+			ostride[d] = os[p];
+			for (int k = 0; k < nf; k++)
+				istride[k][d] = is[k][p];
+			d++;
+		}
+
+		/* resolve every support cell's states into offsets */
+		int[] cells = support.getCells();
+		int ne = cells.length;
+		int nv = dv.size();
+		int[] vlen = new int[nv];
+		int[] vstr = new int[nv];
+		int[] vpos = new int[nv];
+		int mult = 1;
+		for (int j = nv - 1; j >= 0; j--)
+		{
+			vlen[j] = dv.get(j).numStates();
+			vstr[j] = mult;
+			vpos[j] = prod.indexOf(dv.get(j));
+			mult *= vlen[j];
+		}
+
+		long[] key = new long[ne];
+		int[] roff = new int[ne * nf];
+		int[] rout = new int[ne];
+		for (int e = 0; e < ne; e++)
+		{
+			int c = cells[e];
+			int sl = 0;
+			for (int j = 0; j < nv; j++)
+			{
+				int st = (c / vstr[j]) % vlen[j];
+				int p = vpos[j];
+				if (p == -1)
+				{
+					sl += st * vstr[j];
+					continue;
+				}
+				for (int k = 0; k < nf; k++)
+					roff[e * nf + k] += st * is[k][p];
+				rout[e] += st * os[p];
+			}
+			key[e] = ((long) sl << 32) | e;
+		}
+
+		/* group the entries by slice, keeping cell order within a slice */
+		Arrays.sort(key);
+		cell = new int[ne];
+		eoff = new int[ne * nf];
+		eout = new int[ne];
+		int[] sls = new int[ne];
+		int[] fst = new int[ne + 1];
+		int ns = 0;
+		for (int i = 0; i < ne; i++)
+		{
+			int e = (int) key[i];
+			int sl = (int) (key[i] >>> 32);
+			if ((ns == 0) || (sls[ns - 1] != sl))
+			{
+				sls[ns] = sl;
+				fst[ns++] = i;
+			}
+			cell[i] = cells[e];
+			eout[i] = rout[e];
+			System.arraycopy(roff, e * nf, eoff, i * nf, nf);
+		}
+		fst[ns] = ne;
+		slice = Arrays.copyOf(sls, ns);
+		first = Arrays.copyOf(fst, ns + 1);
+
+		ctr = new int[nd];
+		fidx = new int[nf];
+		dense = 1;
+		for (int l : len)
+			dense *= l;
+	}
+
+
+	/**
+	 * Compile the cheaper of a dense kernel and a kernel driven by one of the
+	 * sparse inputs.
+	 *
+	 * @param inputs
+	 *            variables of each input, last varying fastest
+	 * @param prod
+	 *            product variables
+	 * @param out
+	 *            output variables
+	 * @param supports
+	 *            support of each input, or null for dense inputs
+	 * @return compiled kernel
+	 */
+	public static Kernel compile(List<? extends List<BayesNode>> inputs,
+			List<BayesNode> prod, List<BayesNode> out, Support[] supports)
+	{
+		double dense = 1.0;
+		for (BayesNode n : prod)
+			dense *= n.numStates();
+
+		int best = -1;
+		double cost = dense / GAIN;
+		for (int k = 0; k < supports.length; k++)
+		{
+			if (supports[k] == null)
+				continue;
+
+			/* visited cells: one slice of the support, times the dense part */
+			double c = supports[k].size();
+			double rest = dense;
+			for (BayesNode n : inputs.get(k))
+				if (prod.contains(n))
+					rest /= n.numStates();
+				else
+					c /= n.numStates();
+			c *= rest;
+
+			if (c < cost)
+			{
+				cost = c;
+				best = k;
+			}
+		}
+
+		if (best == -1)
+			return new FactorKernel(inputs, prod, out);
+		return new SparseKernel(inputs, prod, out, best, supports[best]);
+	}
+
+
+	/**
+	 * @see bayes.Kernel#outputSize()
+	 */
+	public int outputSize()
+	{
+		return outSize;
+	}
+
+
+	/**
+	 * @see bayes.Kernel#cells()
+	 */
+	public long cells()
+	{
+		return visited;
+	}
+
+
+	/**
+	 * @see bayes.Kernel#run(double[][], int[], double[])
+	 */
+	public void run(double[][] in, int[] off, double[] out)
+	{
+		Arrays.fill(out, 0, outSize, 0.0);
+
+		visited = 0;
+		int s = Arrays.binarySearch(slice, (off == null) ? 0 : off[drv]);
+		if (s < 0)
+			return;
+		visited = (first[s + 1] - first[s]) * dense;
+
+		double[] dd = in[drv];
+		for (int e = first[s]; e < first[s + 1]; e++)
+		{
+			double v = dd[cell[e]];
+			if (v == 0.0)
+				continue;
+
+			int base = e * nf;
+			for (int k = 0; k < nf; k++)
+				fidx[k] = eoff[base + k] + ((off == null) ? 0 : off[k]);
+			int oidx = eout[e];
+
+			/* enumerate the dense dimensions under this cell */
+			for (int j = 0; j < nd; j++)
+				ctr[j] = 0;
+			while (true)
+			{
+				double p = v;
+				for (int k = 0; (k < nf) && (p != 0.0); k++)
+					if (k != drv)
+						p *= in[k][fidx[k]];
+				out[oidx] += p;
+
+				int j = nd - 1;
+				while (j >= 0)
+				{
+					if (++ctr[j] == len[j])
+					{
+						int back = len[j] - 1;
+						for (int k = 0; k < nf; k++)
+							fidx[k] -= back * istride[k][j];
+						oidx -= back * ostride[j];
+						ctr[j--] = 0;
+					}
+					else
+					{
+						for (int k = 0; k < nf; k++)
+							fidx[k] += istride[k][j];
+						oidx += ostride[j];
+						break;
+					}
+				}
+				if (j < 0)
+					break;
+			}
+		}
+	}
+}
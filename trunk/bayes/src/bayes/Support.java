@@ -0,0 +1,179 @@
+/*
+ * Support.java
+ *
+ * Copyright (C) 2005 Nathan Matthews <lowentropy@gmail.com>
+ * All rights reserved.
+ */
+
+package bayes;
+
+import java.util.Arrays;
+
+
+/**
+ * The non-zero cells of a sparse density. A density declared sparse (see
+ * ProbFunction.setSparse()) promises that its zero cells are structural:
+ * later values may change, but only inside the support. Kernels driven by a
+ * sparse density then visit its support rather than its full table.
+ * <p>
+ * A support with exactly one cell per column (parent combination), each
+ * holding 1.0, is functional: the density is a deterministic function from
+ * the parents' states to the node's state.
+ *
+ * @author Nathan Matthews <lowentropy@gmail.com>
+ */
+public final class Support
+{
+
+	/** non-zero cells, ascending */
+	private int[]	cells;
+
+	/** length of the density */
+	private int		length;
+
+	/** state of each column, if functional; otherwise null */
+	private int[]	map;
+
+
+	/**
+	 * Find the support of a density.
+	 *
+	 * @param dist
+	 *            density, laid out with the node's states slowest
+	 * @param numStates
+	 *            number of states of the density's node
+	 */
+	public Support(double[] dist, int numStates)
+	{
+		int n = 0;
+		for (double x : dist)
+			if (x != 0.0)
+				n++;
+
+		length = dist.length;
+		cells = new int[n];
+		n = 0;
+		for (int i = 0; i < dist.length; i++)
+			if (dist[i] != 0.0)
+				cells[n++] = i;
+
+		/* functional: one 1.0 per column */
+		int cols = dist.length / numStates;
+		if (cells.length != cols)
+			return;
+		map = new int[cols];
+		Arrays.fill(map, -1);
+		for (int c : cells)
+		{
+			if ((dist[c] != 1.0) || (map[c % cols] != -1))
+			{
+				map = null;
+				return;
+			}
+			map[c % cols] = c / cols;
+		}
+	}
+
+
+	/**
+	 * @return non-zero cells, ascending; callers must not change them
+	 */
+	public int[] getCells()
+	{
+		return cells;
+	}
+
+
+	/**
+	 * @return number of non-zero cells
+	 */
+	public int size()
+	{
+		return cells.length;
+	}
+
+
+	/**
+	 * @return length of the density
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+
+	/**
+	 * @return fraction of the density's cells which are non-zero
+	 */
+	public double density()
+	{
+		return (length == 0) ? 0.0 : (double) cells.length / length;
+	}
+
+
+	/**
+	 * @return whether the density is a deterministic function of its parents
+	 */
+	public boolean isFunctional()
+	{
+		return map != null;
+	}
+
+
+	/**
+	 * @param col
+	 *            column (parent combination)
+	 * @return state the column maps to
+	 * @throws BayesError
+	 *             if the density is not functional
+	 */
+	public int map(int col) throws BayesError
+	{
+		if (map == null)
+			throw new BayesError("density is not functional");
+		return map[col];
+	}
+
+
+	/**
+	 * @param dist
+	 *            density of the same length
+	 * @return whether every non-zero cell of the density is in the support
+	 */
+	public boolean covers(double[] dist)
+	{
+		if (dist.length != length)
+			return false;
+		int j = 0;
+		for (int i = 0; i < dist.length; i++)
+		{
+			if ((j < cells.length) && (cells[j] == i))
+				j++;
+			else if (dist[i] != 0.0)
+				return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof Support))
+			return false;
+		Support s = (Support) o;
+		return (length == s.length) && Arrays.equals(cells, s.cells)
+				&& Arrays.equals(map, s.map);
+	}
+
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode()
+	{
+		return Arrays.hashCode(cells) ^ length;
+	}
+}
@@ -7,20 +7,50 @@
 
 package test;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import bayes.BayesError;
 import bayes.BayesNet;
 import bayes.BayesNode;
+import bayes.CompiledNet;
+import bayes.ConvergenceControl;
 import bayes.Distribution;
+import bayes.EMLearner;
+import bayes.EffectiveSizeControl;
+import bayes.EliminationPlan;
+import bayes.FactorKernel;
+import bayes.GelmanRubinControl;
+import bayes.ImportanceSampler;
+import bayes.InferenceStats;
+import bayes.Inference;
+import bayes.JunctionTree;
+import bayes.MarginalChangeControl;
+import bayes.NetContext;
+import bayes.NetFile;
 import bayes.Ordering;
+import bayes.ParallelGibbs;
 import bayes.ProbFunction;
 import bayes.Query;
+import bayes.Relevance;
 import bayes.RunOnceControl;
+import bayes.SparseKernel;
+import bayes.Support;
 import junit.framework.TestCase;
 
 
@@ -539,6 +569,57 @@ public class BayesTest extends TestCase
 	}
 
 
+	/**
+	 * Test that the local inference and blanket kernels give the same results
+	 * with caller-owned scratch as with their allocating forms, including
+	 * columns and states ruled out by zero probabilities.
+	 */
+	public void testLocalKernels()
+	{
+		System.out.println("running test: testLocalKernels");
+
+		try
+		{
+			setupMedical();
+			a.setPrior(1.0, 0.0);
+			net.inference();
+
+			Distribution d1 = new Distribution("d", d.getMarginal().states,
+					new double[2]);
+			Distribution d2 = new Distribution("d", d.getMarginal().states,
+					new double[2]);
+			Inference.conditional(d.getFunction(), d1);
+			Inference.conditional(d.getFunction(), d2, new double[4],
+					new int[4]);
+			compareArrays(d1.values, d2.values);
+			compareArrays(new double[] { .68, .32 }, d2.values);
+
+			/* c given a = T and its children b = T (via d), d = F, e = T */
+			double[][] cpri = { d.getConditional(), e.getConditional() };
+			int[] idx = { 4 + 1, 0 };
+			int[] stride = { 2, 1 };
+			Distribution b1 = new Distribution("c", c.getMarginal().states,
+					new double[2]);
+			Distribution b2 = new Distribution("c", c.getMarginal().states,
+					new double[2]);
+			for (long seed = 0; seed < 20; seed++)
+			{
+				int s1 = Inference.blanket(new Random(seed), c.getFunction(),
+						b1, new BayesNode[] { d, e }, stride, idx.clone(), 0);
+				int s2 = Inference.blanket(new Random(seed), c
+						.getConditional(), 0, b2, cpri, idx, stride);
+				assertEquals(s1, s2);
+				compareArrays(b1.values, b2.values);
+			}
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
 //	/**
 //	 * Test that storing/loading works correctly.
 //	 */
@@ -567,6 +648,219 @@ public class BayesTest extends TestCase
 //	}
 
 
+	/**
+	 * Test that mapped network files round-trip, can be saved over the file
+	 * they were read from, expose their tables, reject unknown versions, and
+	 * that the plain stream format can still be read.
+	 */
+	public void testNetFile()
+	{
+		System.out.println("running test: testNetFile");
+
+		try
+		{
+			setupMedical();
+			d.observe("T");
+			File f = File.createTempFile("bayes", ".net");
+			f.deleteOnExit();
+
+			net.writeToFile(f.getPath());
+			assertTrue(NetFile.isNetFile(f));
+			assertEquals(0, f.length() % NetFile.PAGE);
+			BayesNet n2 = BayesNet.readFromFile(f.getPath());
+			assertEquals(net, n2);
+
+			NetFile nf = new NetFile(f);
+			assertEquals(NetFile.VERSION, nf.getVersion());
+			assertEquals(5, nf.numNodes());
+			for (int i = 0; i < nf.numNodes(); i++)
+			{
+				DoubleBuffer t = nf.getTable(i);
+				double[] data = new double[t.remaining()];
+				t.get(data);
+				compareArrays(net.getNode(i).getConditional(), data);
+			}
+
+			assertTrue(n2.save());
+			assertTrue(BayesNet.readFromFile(f.getPath()).save());
+			assertEquals(net, BayesNet.readFromFile(f.getPath()));
+
+			/* the replaced file is still mapped, and unchanged */
+			DoubleBuffer old = nf.getTable(nf.numNodes() - 1);
+			double[] oldData = new double[old.remaining()];
+			old.get(oldData);
+			compareArrays(net.getNode(nf.numNodes() - 1).getConditional(),
+					oldData);
+
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			raf.seek(4);
+			raf.writeInt(0);
+			raf.close();
+			try
+			{
+				new NetFile(f);
+				fail("version 0 accepted");
+			}
+			catch (BayesError e)
+			{
+			}
+
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					f));
+			net.write(out);
+			out.close();
+			assertFalse(NetFile.isNetFile(f));
+			assertEquals(net, BayesNet.readFromFile(f.getPath()));
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Test recording, recalling, sharing and evicting posterior snapshots.
+	 */
+	public void testSnapshots()
+	{
+		System.out.println("running test: testSnapshots");
+
+		try
+		{
+			setupMedical();
+			net.setSnapshotCapacity(2);
+			a.getMarginal().values[0] = .2;
+			a.getMarginal().values[1] = .8;
+			long h0 = net.record("first");
+
+			a.getMarginal().values[0] = .7;
+			a.getMarginal().values[1] = .3;
+			net.record("second");
+			net.getSnapshots().alias("copy", h0);
+			assertEquals(3, net.getSnapshots().size());
+			assertEquals(2, net.getSnapshots().numSlots());
+
+			/* recall copies, so the snapshot survives later changes */
+			net.recall(h0);
+			compareArrays(new double[]
+				{ .2, .8 }, a.getMarginal().values);
+			a.getMarginal().values[0] = .5;
+			qdmap.clear();
+			qdmap.put("a", null);
+			net.queryDist("copy", qdmap);
+			checkDist("a", .2, .8);
+
+			/* re-recording a shared name leaves the other name intact */
+			net.record("copy");
+			net.recall("first");
+			compareArrays(new double[]
+				{ .2, .8 }, a.getMarginal().values);
+
+			/* 'second' was least recently used, so it was evicted */
+			try
+			{
+				net.recall("second");
+				fail("evicted snapshot recalled");
+			}
+			catch (BayesError e)
+			{
+			}
+
+			net.release("first");
+			assertEquals(1, net.getSnapshots().size());
+			try
+			{
+				net.recall(h0);
+				fail("released snapshot recalled");
+			}
+			catch (BayesError e)
+			{
+			}
+
+			/* re-recording gives a new handle and retires the old one */
+			long h1 = net.record("copy");
+			a.getMarginal().values[0] = .9;
+			a.getMarginal().values[1] = .1;
+			long h2 = net.record("copy");
+			assertTrue(h1 != h2);
+			try
+			{
+				net.recall(h1);
+				fail("overwritten snapshot recalled");
+			}
+			catch (BayesError e)
+			{
+			}
+			net.recall(h2);
+			compareArrays(new double[]
+				{ .9, .1 }, a.getMarginal().values);
+
+			/* generations do not wrap into old handles */
+			for (int i = 0; i < 70000; i++)
+				net.record("copy");
+			try
+			{
+				net.recall(h1);
+				fail("stale snapshot recalled");
+			}
+			catch (BayesError e)
+			{
+			}
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Test the streaming incremental log: thinning, the window of recent
+	 * iterations, and running means and variances over all of them.
+	 */
+	public void testIncStreaming()
+	{
+		System.out.println("running test: testIncStreaming");
+
+		try
+		{
+			setupMedical();
+			net.setIncStreaming(3, 2);
+			for (int i = 0; i < 10; i++)
+			{
+				a.getMarginal().values[0] = i / 10.0;
+				a.getMarginal().values[1] = 1.0 - i / 10.0;
+				net.incRecord();
+			}
+
+			/* iterations 0, 2, 4, 6, 8 were logged; 4, 6, 8 are kept */
+			assertEquals(5, net.incCount());
+			double[][][] dump = net.incDump("a", "b");
+			assertEquals(3, dump.length);
+			for (int i = 0; i < 3; i++)
+			{
+				compareDouble((4 + 2 * i) / 10.0, dump[i][0][0]);
+				assertEquals(2, dump[i][1].length);
+			}
+
+			compareDouble(.4, net.incAverages("a")[0][0]);
+			compareDouble(.1, net.incVariances("a")[0][0]);
+
+			net.incClear();
+			assertEquals(0, net.incCount());
+			assertEquals(0, net.incDump("a").length);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
 	/**
 	 * Run a simple markov test repeatedly, with an increasing number of
 	 * iterations. After each iteration, record the average distributions, but
@@ -942,6 +1236,302 @@ public class BayesTest extends TestCase
 	}
 
 
+	/**
+	 * Test multi-chain markov approximation against bucket elimination, and
+	 * that every chain's samples were merged.
+	 */
+	public void testParallelMarkovApprox()
+	{
+		System.out.println("running test: testParallelMarkovApprox");
+
+		try
+		{
+			setupMedical();
+			String[] qvars = new String[]
+				{ "a", "b", "c" };
+			d.observe("T");
+			e.observe("T");
+			Query q = new Query("test", net, qvars);
+			q.setQueried(qvars);
+			q.setObserved("d", "e");
+			q.setPrior();
+			q.solve();
+
+			ParallelGibbs g = net.markovBlanket(new RunOnceControl(200000,
+					false), 4);
+			assertEquals(4, g.numChains());
+
+			long total = 0;
+			for (long n : g.getCounts()[0])
+				total += n;
+			assertTrue(total >= 200000);
+
+			double[][] avg = net.getAverages(qvars);
+			for (int i = 0; i < qvars.length; i++)
+				assertTrue(error(q, qvars[i], avg[i]) < 1.0);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Test that each convergence control stops early on the medical network
+	 * and reports an error bound within its target, while the estimates stay
+	 * within the usual markov test accuracy.
+	 */
+	public void testConvergenceControls()
+	{
+		System.out.println("running test: testConvergenceControls");
+
+		try
+		{
+			setupMedical();
+			String[] qvars = new String[]
+				{ "a", "b", "c" };
+			d.observe("T");
+			e.observe("T");
+			Query q = new Query("test", net, qvars);
+			q.setQueried(qvars);
+			q.setObserved("d", "e");
+			q.setPrior();
+			q.solve();
+
+			ConvergenceControl[] ctls = new ConvergenceControl[]
+				{ new EffectiveSizeControl(0.005, 400000, false),
+						new GelmanRubinControl(1.01, 0.005, 400000, false),
+						new MarginalChangeControl(0.001, 20000, 400000, false) };
+			for (ConvergenceControl ctl : ctls)
+			{
+				net.markovBlanket(ctl, 4);
+				assertTrue(ctl.isConverged());
+				assertTrue(ctl.getIterations() < 400000);
+
+				double[][] avg = net.getAverages(qvars);
+				for (int i = 0; i < qvars.length; i++)
+					assertTrue(error(q, qvars[i], avg[i]) < 1.0);
+			}
+
+			Query aq = new Query("approx", net, qvars);
+			aq.setQueried(qvars);
+			aq.setObserved("d", "e");
+			aq.approx(new EffectiveSizeControl(0.005, 400000, false), 4);
+			assertTrue(aq.getErrorBound() <= 0.005);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Test likelihood weighting and adaptive importance sampling against the
+	 * exact solution of the medical network, on a chain of deterministic
+	 * densities with evidence at its end, and on a node of many states.
+	 */
+	public void testImportanceSampling()
+	{
+		System.out.println("running test: testImportanceSampling");
+
+		try
+		{
+			setupMedical();
+			String[] qvars = new String[]
+				{ "a", "b", "c" };
+			d.observe("T");
+			e.observe("T");
+			Query q = new Query("test", net, qvars);
+			q.setQueried(qvars);
+			q.setObserved("d", "e");
+			q.setPrior();
+			q.solve();
+
+			for (boolean adaptive : new boolean[] { false, true })
+			{
+				ImportanceSampler s = net.likelihoodWeighting(
+						new RunOnceControl(200000, false), 4, adaptive);
+				assertEquals(4, s.numStreams());
+				assertTrue(s.getSamples() >= 200000);
+
+				double[][] avg = net.getAverages(qvars);
+				for (int i = 0; i < qvars.length; i++)
+					assertTrue(error(q, qvars[i], avg[i]) < 1.0);
+			}
+
+			Query aq = new Query("approx", net, qvars);
+			aq.setQueried(qvars);
+			aq.setObserved("d", "e");
+			aq.approxWeighted(new EffectiveSizeControl(0.005, 400000, false),
+					4, true);
+			assertTrue(aq.getErrorBound() <= 0.005);
+
+			/* x -> y -> w copy their parent; only x = T explains w = T */
+			net = new BayesNet("det");
+			BayesNode x = new BayesNode("x", "T", "F");
+			BayesNode y = new BayesNode("y", "T", "F");
+			BayesNode z = new BayesNode("z", "T", "F");
+			BayesNode w = new BayesNode("w", "T", "F");
+			y.addParent(x);
+			z.addParent(y);
+			w.addParent(y);
+			x.setPrior(.3, .7);
+			y.setConditional(new double[] { 1, 0, 0, 1 });
+			z.setConditional(new double[] { .9, .2, .1, .8 });
+			w.setConditional(new double[] { 1, 0, 0, 1 });
+			net.addNode(x);
+			net.addNode(y);
+			net.addNode(z);
+			net.addNode(w);
+			w.observe("T");
+
+			for (boolean adaptive : new boolean[] { false, true })
+			{
+				net.likelihoodWeighting(new RunOnceControl(50000, false), 2,
+						adaptive);
+				double[][] avg = net.getAverages("x", "y", "z");
+				compareArrays(new double[] { 1, 0 }, avg[0]);
+				compareArrays(new double[] { 1, 0 }, avg[1]);
+				assertEquals(.9, avg[2][0], .01);
+			}
+
+			w.observe("F");
+			x.setPrior(1, 0);
+			try
+			{
+				net.likelihoodWeighting(new RunOnceControl(1000, false), 2,
+						false);
+				fail("impossible evidence was sampled");
+			}
+			catch (BayesError ex)
+			{
+			}
+
+			/* a node of as many states as hole pairs still learns */
+			net = new BayesNet("wide");
+			String[] states = new String[1326];
+			for (int i = 0; i < states.length; i++)
+				states[i] = "h" + i;
+			BayesNode h = new BayesNode("h", states);
+			BayesNode v = new BayesNode("v", "T", "F");
+			v.addParent(h);
+			double[] prior = new double[states.length];
+			double[] like = new double[2 * states.length];
+			Arrays.fill(prior, 1.0 / states.length);
+			for (int i = 0; i < states.length; i++)
+			{
+				like[i] = (i < 100) ? .9 : .01;
+				like[states.length + i] = 1 - like[i];
+			}
+			h.setPrior(prior);
+			v.setConditional(like);
+			net.addNode(h);
+			net.addNode(v);
+			v.observe("T");
+			double post = 90 / (90 + .01 * (states.length - 100));
+
+			for (boolean adaptive : new boolean[] { false, true })
+			{
+				ImportanceSampler s = net.likelihoodWeighting(
+						new RunOnceControl(50000, false), 2, adaptive);
+				double[] g = s.getImportance()[0];
+				double[] avg = net.getAverages("h")[0];
+				double learned = 0, est = 0;
+				for (int i = 0; i < 100; i++)
+				{
+					learned += g[i];
+					est += avg[i];
+				}
+				assertEquals(post, est, .02);
+				if (adaptive)
+					assertTrue(learned > .4);
+				else
+					assertEquals(100.0 / states.length, learned, 1e-9);
+			}
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Test that queries, orderings and kernels are counted per name, with
+	 * plan cache hits, factor sizes and cells, and that the counters can be
+	 * read through JMX as well as directly.
+	 */
+	public void testInferenceStats()
+	{
+		System.out.println("running test: testInferenceStats");
+
+		try
+		{
+			setupMedical();
+			InferenceStats qs = InferenceStats.forQuery("test", "stats");
+			InferenceStats ks = InferenceStats.kernels();
+			qs.reset();
+
+			Query q = new Query("stats", net, "a", "c");
+			q.setQueried("a", "c");
+			q.setObserved("d", "e");
+			q.setPrior();
+			d.observe("T");
+			e.observe("T");
+			q.solve();
+			d.observe("F");
+			q.solve();
+
+			InferenceStats.OpStats solve = qs.snapshot(InferenceStats.SOLVE);
+			assertEquals(2, solve.count);
+			assertEquals(1, solve.hits);
+			assertEquals(1, solve.misses);
+			assertTrue(solve.maxFactor >= 4);
+			assertTrue(solve.cells > 0);
+			assertTrue(solve.maxNanos > 0);
+			long n = 0;
+			for (long h : solve.histogram)
+				n += h;
+			assertEquals(2, n);
+			assertTrue(InferenceStats.forNet("test").snapshot(
+					InferenceStats.ORDER).count > 0);
+
+			/* solving sums out too; count the difference */
+			ks.reset();
+			ProbFunction.multiply(a.getFunction(), b.getFunction()).sumOut(a);
+			assertEquals(1, ks.snapshot(InferenceStats.MULTIPLY).count);
+			assertEquals(1, ks.snapshot(InferenceStats.SUM_OUT).count);
+			assertEquals(4, ks.snapshot(InferenceStats.MULTIPLY).maxFactor);
+			assertEquals(4, ks.snapshot(InferenceStats.SUM_OUT).cells);
+
+			ObjectName on = new ObjectName(qs.getName());
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			assertTrue(mbs.isRegistered(on));
+			Object hits = mbs.invoke(on, "getCacheHits",
+					new Object[] { "solve" },
+					new String[] { String.class.getName() });
+			assertEquals(1L, hits);
+
+			InferenceStats.setEnabled(false);
+			q.solve();
+			InferenceStats.setEnabled(true);
+			assertEquals(2, qs.getCount("solve"));
+			qs.reset();
+			assertEquals(0, qs.getCount("solve"));
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
 	/**
 	 * Tests a randomly-generated bayesian network by finding an exact solution
 	 * and then testing the convergence of the markov approximation. Repeats
@@ -985,6 +1575,246 @@ public class BayesTest extends TestCase
 	}
 
 
+	public void testCompiledContexts()
+	{
+		System.out.println("running test: testCompiledContexts");
+
+		try
+		{
+			setupMedical();
+			final CompiledNet cn = new CompiledNet(net);
+
+			/* reference: the network's own exact solution */
+			a.observe("T");
+			Query q = new Query("test", net, "d", "e");
+			q.setObserved("a");
+			q.setPrior();
+			q.solve();
+			final double[] refD = q.getMarginal("d").values.clone();
+			final double[] refE = q.getMarginal("e").values.clone();
+
+			NetContext ctx = cn.newContext();
+			ctx.observe("a", "T");
+			Map<String, Distribution> qm = new HashMap<String, Distribution>();
+			qm.put("d", null);
+			qm.put("e", null);
+			qm.put("a", null);
+			ctx.query(qm);
+			compareArrays(refD, qm.get("d").values);
+			compareArrays(refE, qm.get("e").values);
+			compareArrays(new double[] { 1.0, 0.0 }, qm.get("a").values);
+			ctx.query(qm);
+			assertEquals(1, ctx.numPlans());
+
+			/* a prior in one context is not seen by another */
+			NetContext other = cn.newContext();
+			other.setPrior("a", 1.0, 0.0);
+			compareArrays(refD, other.query("d").values);
+			double[] given = ctx.query("d").values;
+			ctx.unobserve("a");
+			assertFalse(Arrays.equals(given, ctx.query("d").values));
+
+			/* contexts on many threads at once, each exactly as one alone */
+			final double[] oneD = cn.newContext().query("d").values;
+			final double[] oneDa = qm.get("d").values;
+			final boolean[] ok = new boolean[8];
+			Thread[] threads = new Thread[ok.length];
+			for (int t = 0; t < threads.length; t++)
+			{
+				final int id = t;
+				threads[t] = new Thread()
+				{
+					public void run()
+					{
+						try
+						{
+							NetContext c = cn.newContext();
+							boolean good = true;
+							for (int i = 0; i < 500; i++)
+							{
+								c.clearEvidence();
+								if ((i + id) % 2 == 0)
+								{
+									c.observe("a", "T");
+									good &= Arrays.equals(oneDa,
+											c.query("d").values);
+								}
+								else
+									good &= Arrays.equals(oneD,
+											c.query("d").values);
+							}
+							ok[id] = good;
+						}
+						catch (BayesError e)
+						{
+							e.printStackTrace();
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			for (boolean b : ok)
+				assertTrue(b);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+		catch (InterruptedException e)
+		{
+			fail(e.getMessage());
+		}
+	}
+
+
+	public void testBatchQuery()
+	{
+		System.out.println("running test: testBatchQuery");
+
+		try
+		{
+			setupMedical();
+			String[][] ev = { { "a", "T" }, { "a", "F" }, {},
+					{ "b", "T", "c", "F" }, { "d", "F" }, { "c", "T" } };
+			double[][] pa = { null, null, { .7, .3 }, null, { .5, .5 },
+					{ .1, .9 } };
+
+			List<Map<String, String>> obs = new ArrayList<Map<String, String>>();
+			List<Map<String, Distribution>> dens = new ArrayList<Map<String, Distribution>>();
+			for (int b = 0; b < ev.length; b++)
+			{
+				Map<String, String> o = new HashMap<String, String>();
+				for (int i = 0; i < ev[b].length; i += 2)
+					o.put(ev[b][i], ev[b][i + 1]);
+				obs.add(o);
+				Map<String, Distribution> p = new HashMap<String, Distribution>();
+				if (pa[b] != null)
+					p.put("a", new Distribution("a", null, pa[b]));
+				dens.add(p);
+			}
+
+			Query q = new Query("test", net, "d", "e");
+			List<Map<String, Distribution>> res = q.solveBatch(obs, dens);
+			assertEquals(ev.length, res.size());
+
+			/* each entry matches its own solve */
+			NetContext ctx = new CompiledNet(net).newContext();
+			for (int b = 0; b < ev.length; b++)
+			{
+				ctx.clearEvidence();
+				ctx.clearPriors();
+				for (int i = 0; i < ev[b].length; i += 2)
+					ctx.observe(ev[b][i], ev[b][i + 1]);
+				if (pa[b] != null)
+					ctx.setPrior("a", pa[b]);
+				compareArrays(ctx.query("d").values,
+						res.get(b).get("d").values);
+				compareArrays(ctx.query("e").values,
+						res.get(b).get("e").values);
+			}
+
+			/* same shape reuses the plan; the network is untouched */
+			assertFalse(a.isObserved());
+			res = ctx.queryBatch(new String[] { "d", "e" }, obs, dens);
+			ctx.clearEvidence();
+			ctx.clearPriors();
+			ctx.observe("a", "F");
+			compareArrays(ctx.query("e").values, res.get(1).get("e").values);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	public void testOrderingHeuristics()
+	{
+		System.out.println("running test: testOrderingHeuristics");
+
+		try
+		{
+			setupMedical();
+			a.observe("T");
+			Ordering o = new Ordering(net);
+			int[] hs = { Ordering.MIN_WEIGHT, Ordering.MIN_FILL,
+					Ordering.MIN_DEGREE };
+
+			for (int h : hs)
+			{
+				o.setHeuristic(h);
+				o.order("d", "e");
+				BayesNode[] ord = o.getOrder();
+				assertEquals(5, ord.length);
+				assertEquals("a", ord[0].getVariable());
+				assertTrue(ord[3].getVariable().equals("d")
+						|| ord[3].getVariable().equals("e"));
+				assertTrue(ord[4].getVariable().equals("d")
+						|| ord[4].getVariable().equals("e"));
+				assertEquals(1, o.cacheSize());
+
+				/* same signature is served from the cache */
+				o.order("d", "e");
+				assertEquals(1, o.cacheSize());
+
+				/* new evidence set is a new signature */
+				a.setObserved(false);
+				o.order("d", "e");
+				assertEquals(2, o.cacheSize());
+				assertEquals("a", o.getOrder()[0].getVariable());
+				a.setObserved(true);
+			}
+
+			/* the memo is bounded, and keeps the most recent signatures */
+			BayesNode[] all = { a, b, c, d, e };
+			String[] names = { "a", "b", "c", "d", "e" };
+			for (BayesNode n : all)
+				n.observe("T");
+			for (int ev = 0; ev < 32; ev++)
+			{
+				for (int i = 0; i < 5; i++)
+					all[i].setObserved((ev & (1 << i)) != 0);
+				for (int q = 1; q < 32; q++)
+				{
+					List<String> qv = new ArrayList<String>();
+					for (int i = 0; i < 5; i++)
+						if ((q & (1 << i)) != 0)
+							qv.add(names[i]);
+					o.order(qv.toArray(new String[0]));
+					assertTrue(o.cacheSize() <= Ordering.CACHE_SIZE);
+				}
+			}
+			assertEquals(Ordering.CACHE_SIZE, o.cacheSize());
+			a.observe("T");
+			for (int i = 1; i < 5; i++)
+				all[i].setObserved(false);
+
+			/* every heuristic gives the same answer */
+			double[][] dist = new double[hs.length][];
+			for (int i = 0; i < hs.length; i++)
+			{
+				Query q = new Query("test", net, "d", "e");
+				q.setOrderingHeuristic(hs[i]);
+				q.setObserved("a");
+				q.setPrior();
+				q.solve();
+				dist[i] = q.getMarginal("d").values;
+			}
+			compareArrays(dist[0], dist[1]);
+			compareArrays(dist[0], dist[2]);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
 	/**
 	 * Test summing out of distributions.
 	 */
@@ -1122,6 +1952,151 @@ public class BayesTest extends TestCase
 	}
 
 
+	/**
+	 * Test that the fused multiply / sum-out matches multiplying and then
+	 * summing out.
+	 */
+	public void testMultiplySumOutFunc()
+	{
+		System.out.println("running test: testMultiplySumOutFunc");
+
+		try
+		{
+			BayesNode x = new BayesNode("X", "0", "1");
+			BayesNode y = new BayesNode("Y", "0", "1", "2");
+			BayesNode z = new BayesNode("Z", "0", "1");
+			List<BayesNode> l1 = new ArrayList<BayesNode>(2);
+			List<BayesNode> l2 = new ArrayList<BayesNode>(2);
+			l1.add(x);
+			l1.add(y);
+			l2.add(z);
+			l2.add(y);
+
+			ProbFunction f1 = new ProbFunction(l1, new double[]
+				{ .2, .3, .5, .7, .1, .4 });
+			ProbFunction f2 = new ProbFunction(l2, new double[]
+				{ 1.1, 1.3, 1.7, 1.9, 2.3, 2.9 });
+
+			for (BayesNode n : new BayesNode[] { x, y, z })
+			{
+				ProbFunction full = ProbFunction.multiply(f1, f2).sumOut(n);
+				ProbFunction fused = ProbFunction.multiplySumOut(n, f1, f2);
+				assertEquals(full.numVars(), fused.numVars());
+				compareArrays(full.getData(), fused.getData());
+			}
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Test the sparse kernel against the dense one, over every slice of an
+	 * observed driver variable, and sparse and functional densities in the
+	 * elimination plans against the same densities undeclared.
+	 */
+	public void testSparseFunctions()
+	{
+		System.out.println("running test: testSparseFunctions");
+
+		try
+		{
+			BayesNode x = new BayesNode("X", "0", "1", "2");
+			BayesNode y = new BayesNode("Y", "0", "1", "2", "3");
+			BayesNode z = new BayesNode("Z", "0", "1");
+			BayesNode w = new BayesNode("W", "0", "1", "2");
+			List<List<BayesNode>> in = new ArrayList<List<BayesNode>>();
+			in.add(Arrays.asList(x, y, z));
+			in.add(Arrays.asList(y, w));
+			in.add(Arrays.asList(z));
+
+			double[][] data = new double[3][];
+			data[0] = new double[24];
+			for (int i = 0; i < 24; i++)
+				data[0][i] = (i % 3 == 0) ? 0.0 : .1 * (i % 5 + 1);
+			data[1] = new double[12];
+			for (int i = 0; i < 12; i++)
+				data[1][i] = .05 * (i + 1);
+			data[2] = new double[] { .4, .6 };
+			Support sup = new Support(data[0], 3);
+			assertEquals(16, sup.size());
+			assertFalse(sup.isFunctional());
+
+			/* z is observed: positioned by offset, not a product variable */
+			List<BayesNode> prod = Arrays.asList(x, y, w);
+			List<List<BayesNode>> outs = new ArrayList<List<BayesNode>>();
+			outs.add(Arrays.asList(y, w));
+			outs.add(Arrays.asList(x));
+			outs.add(prod);
+			for (List<BayesNode> out : outs)
+			{
+				FactorKernel dense = new FactorKernel(in, prod, out);
+				SparseKernel sparse = new SparseKernel(in, prod, out, 0, sup);
+				assertEquals(dense.outputSize(), sparse.outputSize());
+				double[] d1 = new double[dense.outputSize()];
+				double[] d2 = new double[sparse.outputSize()];
+				for (int zs = 0; zs < 2; zs++)
+				{
+					int[] off = new int[] { zs, 0, zs };
+					dense.run(data, off, d1);
+					sparse.run(data, off, d2);
+					compareArrays(d1, d2);
+				}
+			}
+
+			/* d is a deterministic 'or' of c and b */
+			setupMedical();
+			d.getFunction().setFunctional(0, 0, 0, 1);
+			assertTrue(d.getFunction().getSupport().isFunctional());
+			assertEquals(1, d.getFunction().getSupport().map(3));
+			double[] det = d.getConditional().clone();
+			c.getFunction().setSparse(true);
+			Query sq = new Query("sparse", net, "a", "c");
+			sq.setQueried("a", "c");
+			sq.setObserved("d", "e");
+			sq.setPrior();
+
+			double[][][] res = new double[2][4][];
+			for (int pass = 0; pass < 2; pass++)
+			{
+				for (int k = 0; k < 4; k++)
+				{
+					d.observe((k < 2) ? "T" : "F");
+					e.observe((k % 2 == 0) ? "T" : "F");
+					sq.solve();
+					res[pass][k] = sq.getMarginal("a").values.clone();
+				}
+				d.getFunction().setSparse(false);
+				c.getFunction().setSparse(false);
+			}
+			for (int k = 0; k < 4; k++)
+				compareArrays(res[1][k], res[0][k]);
+
+			/* contexts keep the support, and refuse mass outside it */
+			d.getFunction().setSparse(true);
+			NetContext ctx = new CompiledNet(net).newContext();
+			ctx.setConditional("d", det);
+			try
+			{
+				ctx.setConditional("d", new double[] { .5, .5, .5, .5, .5,
+						.5, .5, .5 });
+				fail("sparse support was not enforced");
+			}
+			catch (BayesError ex)
+			{
+			}
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
 	public void testBucketElimMedical()
 	{
 		System.out.println("running test: testBucketElimMedical");
@@ -1169,4 +2144,471 @@ public class BayesTest extends TestCase
 			fail(e.getMessage());
 		}
 	}
+
+	/**
+	 * Test that a compiled plan gives the same answer as a fresh query after
+	 * priors change.
+	 */
+	public void testPlanReuse()
+	{
+		System.out.println("running test: testPlanReuse");
+
+		try
+		{
+			setupMedical();
+			d.observe("T");
+			Query q = new Query("test", net, "a", "e");
+			q.setQueried("a", "e");
+			q.setObserved("d");
+			q.setPrior("a");
+			q.solve();
+
+			a.setPrior(.6, .4);
+			q.invalidate();
+			q.solve();
+
+			Query fresh = new Query("fresh", net, "a", "e");
+			fresh.setQueried("a", "e");
+			fresh.setObserved("d");
+			fresh.setPrior("a");
+			fresh.solve();
+
+			compareArrays(fresh.getMarginal("a").values,
+					q.getMarginal("a").values);
+			compareArrays(fresh.getMarginal("e").values,
+					q.getMarginal("e").values);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	/**
+	 * Test that sliced and unsliced elimination agree, across evidence
+	 * changes.
+	 */
+	public void testEvidenceSlicing()
+	{
+		System.out.println("running test: testEvidenceSlicing");
+
+		try
+		{
+			setupMedical();
+			Query sliced = new Query("sliced", net, "a", "c");
+			sliced.setQueried("a", "c");
+			sliced.setObserved("d", "e");
+			sliced.setPrior();
+
+			Query full = new Query("full", net, "a", "c");
+			full.setQueried("a", "c");
+			full.setObserved("d", "e");
+			full.setPrior();
+			full.setEvidenceSlicing(false);
+
+			for (String ds : new String[] { "T", "F" })
+				for (String es : new String[] { "T", "F" })
+				{
+					d.observe(ds);
+					e.observe(es);
+					sliced.solve();
+					full.solve();
+					compareArrays(full.getMarginal("a").values, sliced
+							.getMarginal("a").values);
+					compareArrays(full.getMarginal("c").values, sliced
+							.getMarginal("c").values);
+				}
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	/**
+	 * Test that a compiled plan re-runs only the buckets reached by changed
+	 * evidence or densities, and still agrees with a fresh plan.
+	 */
+	public void testIncrementalSolve()
+	{
+		System.out.println("running test: testIncrementalSolve");
+
+		try
+		{
+			/* two independent chains: x -> m -> y, u -> n -> w */
+			BayesNet cn = new BayesNet("chains");
+			BayesNode x = new BayesNode("x", "T", "F");
+			BayesNode m = new BayesNode("m", "T", "F");
+			BayesNode y = new BayesNode("y", "T", "F");
+			BayesNode u = new BayesNode("u", "T", "F");
+			BayesNode n = new BayesNode("n", "T", "F");
+			BayesNode w = new BayesNode("w", "T", "F");
+			m.addParent(x);
+			y.addParent(m);
+			n.addParent(u);
+			w.addParent(n);
+			x.setPrior(.3, .7);
+			u.setPrior(.6, .4);
+			m.setConditional(new double[] { .9, .2, .1, .8 });
+			y.setConditional(new double[] { .7, .4, .3, .6 });
+			n.setConditional(new double[] { .5, .1, .5, .9 });
+			w.setConditional(new double[] { .2, .6, .8, .4 });
+			for (BayesNode v : new BayesNode[] { x, m, y, u, n, w })
+				cn.addNode(v);
+
+			x.observe("T");
+			u.observe("T");
+			Ordering ord = new Ordering(cn);
+			ord.order("y", "w");
+			EliminationPlan plan = new EliminationPlan(cn, ord, 2, true);
+			plan.execute();
+			assertEquals(plan.numSteps(), plan.stepsRun());
+			plan.execute();
+			assertEquals(0, plan.stepsRun());
+
+			/* one observation: the other chain's bucket is kept */
+			x.observe("F");
+			double[] got = plan.execute().getData().clone();
+			assertTrue(plan.stepsRun() < plan.numSteps());
+			compareArrays(new EliminationPlan(cn, ord, 2, true).execute()
+					.getData(), got);
+
+			/* one replaced density */
+			n.setConditional(new double[] { .3, .2, .7, .8 });
+			got = plan.execute().getData().clone();
+			assertTrue(plan.stepsRun() < plan.numSteps());
+			compareArrays(new EliminationPlan(cn, ord, 2, true).execute()
+					.getData(), got);
+
+			/* one density written in place */
+			n.getConditional()[0] = .4;
+			n.getConditional()[2] = .6;
+			n.getFunction().dataChanged();
+			got = plan.execute().getData().clone();
+			assertTrue(plan.stepsRun() < plan.numSteps());
+			compareArrays(new EliminationPlan(cn, ord, 2, true).execute()
+					.getData(), got);
+
+			/* queries and contexts across a series of observations */
+			Query q = new Query("inc", cn, "y", "w");
+			q.setObserved("x", "u");
+			q.setPrior();
+			NetContext ctx = new CompiledNet(cn).newContext();
+			Map<String, Distribution> qm = new HashMap<String, Distribution>();
+			String[] ts = { "T", "F" };
+			for (int i = 0; i < 8; i++)
+			{
+				x.observe(ts[i & 1]);
+				u.observe(ts[(i >> 1) & 1]);
+				if (i == 4)
+				{
+					x.setPrior(.5, .5);
+					ctx.setPrior("x", .5, .5);
+				}
+				q.solve();
+
+				Query fresh = new Query("fresh", cn, "y", "w");
+				fresh.setObserved("x", "u");
+				fresh.setPrior();
+				fresh.solve();
+				compareArrays(fresh.getMarginal("y").values, q
+						.getMarginal("y").values);
+				compareArrays(fresh.getMarginal("w").values, q
+						.getMarginal("w").values);
+
+				ctx.clearEvidence();
+				ctx.observe("x", ts[i & 1]);
+				ctx.observe("u", ts[(i >> 1) & 1]);
+				qm.put("y", null);
+				qm.put("w", null);
+				ctx.query(qm);
+				compareArrays(fresh.getMarginal("y").values,
+						qm.get("y").values);
+				compareArrays(fresh.getMarginal("w").values,
+						qm.get("w").values);
+			}
+
+			/* a replaced density is noticed without invalidating */
+			double before = q.getMarginal("y").values[0];
+			m.setConditional(new double[] { .1, .8, .9, .2 });
+			q.solve();
+			assertTrue(Math.abs(q.getMarginal("y").values[0] - before) > .01);
+			Query fresh = new Query("fresh", cn, "y", "w");
+			fresh.setObserved("x", "u");
+			fresh.setPrior();
+			fresh.solve();
+			compareArrays(fresh.getMarginal("y").values, q.getMarginal("y")
+					.values);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	/**
+	 * Test that barren and d-separated nodes are pruned from a query, and
+	 * that pruned plans still give the right answer.
+	 */
+	public void testRelevancePruning()
+	{
+		System.out.println("running test: testRelevancePruning");
+
+		try
+		{
+			setupMedical();
+			BayesNode[] vars = net.getVars();
+			boolean[] q = new boolean[vars.length];
+			boolean[] o = new boolean[vars.length];
+
+			/* no evidence: c, d and e are barren for b */
+			q[Arrays.asList(vars).indexOf(b)] = true;
+			boolean[] keep = Relevance.densities(vars, q, o);
+			for (int i = 0; i < vars.length; i++)
+				assertEquals(vars[i] == a || vars[i] == b, keep[i]);
+
+			/* c observed: everything but e is cut off from e */
+			Arrays.fill(q, false);
+			q[Arrays.asList(vars).indexOf(e)] = true;
+			o[Arrays.asList(vars).indexOf(c)] = true;
+			keep = Relevance.densities(vars, q, o);
+			for (int i = 0; i < vars.length; i++)
+				assertEquals(vars[i] == e, keep[i]);
+
+			c.observe("T");
+			Ordering ord = new Ordering(net);
+			ord.order("e");
+			EliminationPlan plan = new EliminationPlan(net, ord, 1, true);
+			assertEquals(1, plan.numSteps());
+
+			Query qe = new Query("pruned", net, "e");
+			qe.setObserved("c");
+			qe.setPrior();
+			qe.solve();
+			compareArrays(new double[] { .8, .2 }, qe.getMarginal("e").values);
+
+			/* d observed: its parents and their ancestors come back */
+			d.observe("T");
+			Query qa = new Query("explain", net, "a");
+			qa.setObserved("d");
+			qa.setPrior();
+			qa.solve();
+			Query all = new Query("all", net, "a", "b", "c", "e");
+			all.setObserved("d");
+			all.setPrior();
+			all.solve();
+			compareArrays(all.getMarginal("a").values,
+					qa.getMarginal("a").values);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	/**
+	 * Test junction tree marginals against bucket elimination, including
+	 * evidence absorbed after calibration.
+	 */
+	public void testJunctionTreeMedical()
+	{
+		System.out.println("running test: testJunctionTreeMedical");
+
+		try
+		{
+			setupMedical();
+			JunctionTree jt = new JunctionTree(net);
+			jt.observe("d", "T");
+			jt.calibrate();
+
+			d.observe("T");
+			Query q = new Query("test", net, "a", "b", "c", "e");
+			q.setQueried("a", "b", "c", "e");
+			q.setObserved("d");
+			q.setPrior();
+			q.solve();
+			for (String v : new String[] { "a", "b", "c", "e" })
+				compareArrays(q.getMarginal(v).values,
+						jt.getMarginal(v).values);
+
+			jt.observe("e", "F");
+			e.observe("F");
+			q = new Query("test", net, "a", "b", "c");
+			q.setQueried("a", "b", "c");
+			q.setObserved("d", "e");
+			q.setPrior();
+			q.solve();
+			for (String v : new String[] { "a", "b", "c" })
+				compareArrays(q.getMarginal(v).values,
+						jt.getMarginal(v).values);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Draw a record from the network by forward sampling, hiding each value
+	 * with the given probability.
+	 */
+	private int[] sampleRecord(Random r, BayesNode[] vars, double hidden)
+	{
+		List<BayesNode> order = Arrays.asList(vars);
+		int[] st = new int[vars.length];
+		for (int i = 0; i < vars.length; i++)
+		{
+			ProbFunction f = vars[i].getFunction();
+			double[] cpt = vars[i].getConditional();
+			int ns = vars[i].numStates();
+			int col = 0;
+			for (int j = 1; j < f.numVars(); j++)
+				col = col * f.getVar(j).numStates()
+						+ st[order.indexOf(f.getVar(j))];
+			int cols = cpt.length / ns;
+			double x = r.nextDouble();
+			int s = 0;
+			while ((s < ns - 1) && ((x -= cpt[s * cols + col]) > 0.0))
+				s++;
+			st[i] = s;
+		}
+		for (int i = 0; i < vars.length; i++)
+			if (r.nextDouble() < hidden)
+				st[i] = -1;
+		return st;
+	}
+
+
+	public void testEMLearning()
+	{
+		System.out.println("running test: testEMLearning");
+
+		try
+		{
+			setupMedical();
+			BayesNode[] vars = net.getVars();
+			Random r = new Random(7);
+			List<int[]> corpus = new ArrayList<int[]>();
+			for (int i = 0; i < 20000; i++)
+				corpus.add(sampleRecord(r, vars, 0.3));
+
+			double[][] truth = new double[vars.length][];
+			for (int i = 0; i < vars.length; i++)
+			{
+				truth[i] = vars[i].getConditional().clone();
+				int cols = truth[i].length / 2;
+				double[] flat = new double[truth[i].length];
+				for (int j = 0; j < flat.length; j++)
+					flat[j] = (j < cols) ? 0.4 : 0.6;
+				vars[i].setConditional(flat);
+			}
+
+			EMLearner em = new EMLearner(net);
+			em.setPseudoCount(0.0);
+			double last = Double.NEGATIVE_INFINITY;
+			for (int it = 0; it < 60; it++)
+			{
+				double ll = em.iterate(corpus);
+				assertTrue(ll >= last - 1e-6);
+				last = ll;
+			}
+			assertEquals(20000, em.getRecords());
+			assertEquals(0, em.getRejected());
+
+			for (int i = 0; i < vars.length; i++)
+			{
+				double[] got = vars[i].getConditional();
+				for (int j = 0; j < got.length; j++)
+					assertEquals(truth[i][j], got[j], 0.05);
+			}
+
+			Map<String, String> ev = new HashMap<String, String>();
+			ev.put("c", "F");
+			ev.put("e", "T");
+			assertTrue(Arrays.equals(new int[] { -1, -1, 1, -1, 0 }, em
+					.encode(ev)));
+
+			/* a held density does not move */
+			double[] held = b.getConditional().clone();
+			em.setLearned("d", "e");
+			em.iterate(corpus);
+			for (int j = 0; j < held.length; j++)
+				assertEquals(held[j], b.getConditional()[j], 0.0);
+
+			/* a corpus which fills one array learns the same as a list */
+			em.setLearned("a", "b", "c", "d", "e");
+			double[][] start = new double[vars.length][];
+			for (int i = 0; i < vars.length; i++)
+				start[i] = vars[i].getConditional().clone();
+			double ll = em.iterate(corpus);
+			double[][] expect = new double[vars.length][];
+			for (int i = 0; i < vars.length; i++)
+			{
+				expect[i] = vars[i].getConditional().clone();
+				vars[i].setConditional(start[i].clone());
+			}
+			assertEquals(ll, em.iterate(new Reused(corpus)), 1e-9);
+			for (int i = 0; i < vars.length; i++)
+				for (int j = 0; j < expect[i].length; j++)
+					assertEquals(expect[i][j], vars[i].getConditional()[j],
+							1e-12);
+		}
+		catch (BayesError e)
+		{
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Corpus which copies every record into the same array.
+	 */
+	private static class Reused implements Iterable<int[]>, Iterator<int[]>
+	{
+		private List<int[]>	records;
+
+		private int[]		buf;
+
+		private int			next;
+
+
+		Reused(List<int[]> records)
+		{
+			this.records = records;
+			buf = new int[records.get(0).length];
+		}
+
+
+		public Iterator<int[]> iterator()
+		{
+			next = 0;
+			return this;
+		}
+
+
+		public boolean hasNext()
+		{
+			return next < records.size();
+		}
+
+
+		public int[] next()
+		{
+			System.arraycopy(records.get(next++), 0, buf, 0, buf.length);
+			return buf;
+		}
+
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
 }